@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Future based API over the {@link HttpEngine}, for the JVM. Each call to
+ * {@link #postAsync} runs an engine on the executor of the poster and returns
+ * a CompletableFuture of its {@link HttpResult}, so that many uploads can be
+ * composed without listener bookkeeping:
+ *
+ * ** Usage:
+ * HttpAsyncPoster mPoster = new HttpAsyncPoster();
+ *
+ * CompletableFuture<HttpResult> mFirst = mPoster.postAsync(mConf1);
+ * CompletableFuture<HttpResult> mSecond = mPoster.postAsync(mConf2);
+ *
+ * CompletableFuture.allOf(mFirst, mSecond).join();
+ *
+ * The future completes normally whenever the server answered, even with an
+ * error code, and exceptionally with an {@link HttpPostException} otherwise.
+ * The listener of the configuration, if any, is still called, from the
+ * executor threads or the event loops of the transport.
+ *
+ * The engine is blocking, one thread per request in flight, unless the
+ * configuration sets an {@link HttpSelectorTransport}. By default, on
+ * JDK 21 and later, the poster runs every request on its own virtual thread,
+ * so that tens of thousands of uploads can be in flight without sizing a
+ * thread pool. Older JVMs fall back to a cached thread pool.
+ *
+ * Requires Java 8 (Android API 24) for CompletableFuture.
+ *
+ * @see HttpEngine
+ * @see HttpResult
+ */
+public class HttpAsyncPoster {
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Executor running the engines. */
+  protected final ExecutorService _mExecutor;
+  /** Where the debug traces of the engines go. */
+  protected HttpLogger _mLogger = HttpLogger.NONE;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a poster running each request on a virtual thread when available,
+   * see {@link #newDefaultExecutor()}.
+   */
+  public HttpAsyncPoster() {
+    this(newDefaultExecutor());
+  }
+
+  /**
+   * @param mExecutor Executor running the requests. Each request occupies one
+   *                  of its threads for its whole duration.
+   */
+  public HttpAsyncPoster(ExecutorService mExecutor) {
+    _mExecutor = mExecutor;
+  }
+
+  /**
+   * @return A virtual-thread-per-task executor on JDK 21 and later, a cached
+   * thread pool of daemon threads otherwise.
+   */
+  public static ExecutorService newDefaultExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable mRunnable) {
+          Thread mThread = new Thread(mRunnable, "HttpAsyncPoster");
+          mThread.setDaemon(true);
+          return mThread;
+        }
+      });
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Executes the request of mConf asynchronously.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @return A future completed with the result of the request once the answer
+   * of the server was read, or completed exceptionally with an
+   * {@link HttpPostException} if no answer could be obtained.
+   */
+  public CompletableFuture<HttpResult> postAsync(HttpConfiguration mConf) {
+    final HttpEngine mEngine =
+        new HttpEngine(mConf, HttpEngine.nextInstanceId());
+    mEngine.setLogger(_mLogger);
+
+    final CompletableFuture<HttpResult> mFuture =
+        new CompletableFuture<HttpResult>();
+
+    HttpSelectorTransport mTransport = mConf.getTransport();
+    if (mTransport != null) {
+      mTransport.execute(mEngine, new HttpSelectorTransport.Callback() {
+        @Override
+        public void onFinished(HttpEngine mEngine) {
+          _complete(mFuture, mEngine.getResult());
+        }
+      });
+      return mFuture;
+    }
+
+    _mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mEngine.run();
+          _complete(mFuture, mEngine.getResult());
+        } catch (Throwable e) {
+          mFuture.completeExceptionally(e);
+        }
+      }
+    });
+
+    return mFuture;
+  }
+
+  /**
+   * Executes all the requests asynchronously.
+   *
+   * @param aConfs Configurations of the POST requests to execute.
+   * @return The futures of the requests, in the same order. Use
+   * CompletableFuture.allOf() to wait for all of them.
+   */
+  public ArrayList<CompletableFuture<HttpResult>> postAllAsync(
+      Collection<HttpConfiguration> aConfs) {
+    ArrayList<CompletableFuture<HttpResult>> aFutures =
+        new ArrayList<CompletableFuture<HttpResult>>(aConfs.size());
+
+    for (HttpConfiguration mConf : aConfs) {
+      aFutures.add(postAsync(mConf));
+    }
+
+    return aFutures;
+  }
+
+  /**
+   * @param mLogger Where to send the debug traces of the engines.
+   * @return This poster, to chain calls.
+   */
+  public HttpAsyncPoster setLogger(HttpLogger mLogger) {
+    _mLogger = mLogger != null ? mLogger : HttpLogger.NONE;
+    return this;
+  }
+
+  /**
+   * Stops accepting new requests. Requests already posted still run.
+   */
+  public void shutdown() {
+    _mExecutor.shutdown();
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected void _complete(CompletableFuture<HttpResult> mFuture,
+                           HttpResult mResult) {
+    if (mResult.hasResponse()) {
+      mFuture.complete(mResult);
+    } else {
+      mFuture.completeExceptionally(new HttpPostException(mResult));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+/**
+ * Exception completing the futures of {@link HttpAsyncPoster} when a request
+ * failed without an answer from the server, i.e. in the cases where
+ * {@link HttpListener#onFailure} is called.
+ *
+ * @see HttpAsyncPoster#postAsync
+ */
+public class HttpPostException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  /** Not serializable: null once deserialized. */
+  protected final transient HttpResult _mResult;
+  protected final long _lErrorCode;
+
+  /**
+   * @param mResult The result of the failed request.
+   */
+  public HttpPostException(HttpResult mResult) {
+    super(String.format("POST of instance %d failed with error %d",
+        mResult.getInstanceId(), mResult.getStatus()));
+    _mResult = mResult;
+    _lErrorCode = mResult.getStatus();
+  }
+
+  /** @return The result of the failed request, including its timings, or
+   * null if this exception was deserialized. */
+  public HttpResult getResult() { return _mResult; }
+
+  /** @return The error code, one of the HttpEngine#FAILURE_* codes. */
+  public long getErrorCode() { return _lErrorCode; }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Cost of {@link HttpEngine#_buildEntity} for varying numbers and sizes of
+ * files, and of writing the resulting entity to a stream, which includes
+ * reading the files.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class EntityBenchmark {
+  @Param({"1", "10", "100"})
+  public int iFileCount;
+
+  @Param({"1024", "1048576"})
+  public int iFileSize;
+
+  protected File _mDir;
+  protected HttpConfiguration _mConf;
+  protected HttpEngine _mEngine;
+  protected MultipartEntity _mEntity;
+  protected final NullOutputStream _mSink = new NullOutputStream();
+
+  @Setup
+  public void setUp() throws IOException {
+    _mDir = File.createTempFile("EntityBenchmark", "");
+    _mDir.delete();
+    _mDir.mkdirs();
+
+    byte[] aContent = new byte[iFileSize];
+    ArrayList<File> aFiles = new ArrayList<File>();
+    for (int i = 0; i < iFileCount; i++) {
+      File mFile = new File(_mDir, "file_" + i + ".bin");
+      FileOutputStream mOut = new FileOutputStream(mFile);
+      try {
+        mOut.write(aContent);
+      } finally {
+        mOut.close();
+      }
+      aFiles.add(mFile);
+    }
+
+    HashMap<String, String> mArgs = new HashMap<String, String>();
+    mArgs.put("user", "benchmark");
+    mArgs.put("description", "JMH run of EntityBenchmark");
+
+    _mConf = new HttpConfiguration(new URL("http://127.0.0.1/upload"), mArgs,
+        aFiles, null, "----BenchmarkBoundary", 1000, 1000);
+    _mEngine = new HttpEngine(_mConf, HttpEngine.nextInstanceId());
+    _mEntity = _mEngine._buildEntity(_mConf);
+  }
+
+  @TearDown
+  public void tearDown() {
+    File[] aFiles = _mDir.listFiles();
+    if (aFiles != null) {
+      for (File mFile : aFiles) {
+        mFile.delete();
+      }
+    }
+    _mDir.delete();
+  }
+
+  @Benchmark
+  public MultipartEntity build() throws IOException {
+    return _mEngine._buildEntity(_mConf);
+  }
+
+  @Benchmark
+  public long writeTo() throws IOException {
+    _mEntity.writeTo(_mSink);
+    return _mEntity.getContentLength();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent uploads to one host, each sent on its own pooled HTTP/1.1
+ * connection against a {@link LoopbackServer}, or multiplexed as streams of
+ * one HTTP/2 connection against an {@link H2cLoopbackServer}.
+ *
+ * Modes of the servers:
+ *  - fast: the body is read as fast as possible;
+ *  - slow: the server pauses 1ms after each 64KB of body it reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class MultiplexBenchmark {
+  @Param({"http1", "h2c"})
+  public String sProtocol;
+
+  @Param({"fast", "slow"})
+  public String sMode;
+
+  @Param({"65536", "1048576"})
+  public int iFileSize;
+
+  protected LoopbackServer _mServer;
+  protected H2cLoopbackServer _mH2cServer;
+  protected URL _mEndPoint;
+  protected File _mFile;
+  protected HttpConnectionPool _mPool;
+  protected Http2ConnectionPool _mHttp2Pool;
+
+  @Setup
+  public void setUp() throws IOException {
+    long lPauseNs =
+        sMode.equals("slow") ? TimeUnit.MILLISECONDS.toNanos(1) : 0;
+
+    if (sProtocol.equals("h2c")) {
+      _mH2cServer = new H2cLoopbackServer().setReadPause(lPauseNs);
+      _mEndPoint = _mH2cServer.getEndPoint("/upload");
+      _mHttp2Pool = new Http2ConnectionPool();
+    } else {
+      _mServer = new LoopbackServer().setReadPause(lPauseNs);
+      _mEndPoint = _mServer.getEndPoint("/upload");
+      _mPool = new HttpConnectionPool(16,
+          HttpConnectionPool.DEFAULT_KEEP_ALIVE_MS,
+          HttpConnectionPool.DEFAULT_MAX_REQUESTS_PER_CONNECTION);
+    }
+
+    _mFile = File.createTempFile("MultiplexBenchmark", ".bin");
+    FileOutputStream mOut = new FileOutputStream(_mFile);
+    try {
+      mOut.write(new byte[iFileSize]);
+    } finally {
+      mOut.close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (_mPool != null) {
+      _mPool.evictAll();
+      _mServer.stop();
+    } else {
+      _mHttp2Pool.evictAll();
+      _mH2cServer.stop();
+    }
+    _mFile.delete();
+  }
+
+  @Benchmark
+  public long post() {
+    ArrayList<File> aFiles = new ArrayList<File>();
+    aFiles.add(_mFile);
+
+    HttpConfiguration mConf = new HttpConfiguration(_mEndPoint,
+        new HashMap<String, String>(), aFiles, null, null, 5000, 5000);
+    mConf.setConnectionPool(_mPool).setHttp2ConnectionPool(_mHttp2Pool);
+
+    HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+    long lResult = mEngine.run();
+    if (lResult != HttpEngine.SUCCESS) {
+      throw new IllegalStateException("POST failed with error " + lResult);
+    }
+
+    return mEngine.getResult().getTimings().getTotalNs();
+  }
+}
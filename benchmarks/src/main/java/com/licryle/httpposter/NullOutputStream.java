@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.OutputStream;
+
+/**
+ * Sink discarding everything written to it, so that benchmarks measure the
+ * writer rather than the destination.
+ */
+public class NullOutputStream extends OutputStream {
+  @Override
+  public void write(int iByte) { }
+
+  @Override
+  public void write(byte[] aBytes, int iStart, int iCount) { }
+}
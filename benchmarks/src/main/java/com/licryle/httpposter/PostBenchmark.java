@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end throughput and latency of a POST through {@link HttpEngine#run},
+ * against a {@link LoopbackServer}. SampleTime gives the latency percentiles.
+ *
+ * Modes of the server:
+ *  - fast: the body is read as fast as possible, the reply is 2 bytes;
+ *  - slow: the server pauses 1ms after each 64KB of body it reads;
+ *  - chunked: the reply is 256KB, chunked;
+ *  - large: the reply is 4MB, with a Content-Length.
+ *
+ * Run with -t to send requests from several threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class PostBenchmark {
+  @Param({"fast", "slow", "chunked", "large"})
+  public String sMode;
+
+  @Param({"4096", "1048576"})
+  public int iFileSize;
+
+  @Param({"false", "true"})
+  public boolean bPooled;
+
+  protected LoopbackServer _mServer;
+  protected URL _mEndPoint;
+  protected File _mFile;
+  protected HttpConnectionPool _mPool;
+
+  @Setup
+  public void setUp() throws IOException {
+    _mServer = new LoopbackServer();
+    if (sMode.equals("slow")) {
+      _mServer.setReadPause(TimeUnit.MILLISECONDS.toNanos(1));
+    } else if (sMode.equals("chunked")) {
+      _mServer.setReplySize(256 * 1024).setChunked(true);
+    } else if (sMode.equals("large")) {
+      _mServer.setReplySize(4 * 1024 * 1024);
+    }
+    _mEndPoint = _mServer.getEndPoint("/upload");
+
+    _mFile = File.createTempFile("PostBenchmark", ".bin");
+    FileOutputStream mOut = new FileOutputStream(_mFile);
+    try {
+      mOut.write(new byte[iFileSize]);
+    } finally {
+      mOut.close();
+    }
+
+    _mPool = bPooled ? new HttpConnectionPool() : null;
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (_mPool != null) {
+      _mPool.evictAll();
+    }
+    _mServer.stop();
+    _mFile.delete();
+  }
+
+  @Benchmark
+  public long post() {
+    ArrayList<File> aFiles = new ArrayList<File>();
+    aFiles.add(_mFile);
+
+    HttpConfiguration mConf = new HttpConfiguration(_mEndPoint,
+        new HashMap<String, String>(), aFiles, null, null, 5000, 5000);
+    mConf.setConnectionPool(_mPool);
+
+    HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+    long lResult = mEngine.run();
+    if (lResult != HttpEngine.SUCCESS) {
+      throw new IllegalStateException("POST failed with error " + lResult);
+    }
+
+    return mEngine.getResult().getTimings().getTotalNs();
+  }
+}
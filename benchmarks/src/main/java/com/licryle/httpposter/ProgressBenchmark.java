@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Overhead of the progress tracking stream of the {@link HttpEngine} over the
+ * stream it wraps, for writes of varying sizes. In the "tracked" benchmarks
+ * the progress changes on every write, so that the listener is called each
+ * time, which is the worst case. In the "reported" benchmark, a
+ * {@link ProgressReporter} with its default pacing also follows the bytes
+ * sent.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ProgressBenchmark {
+  @Param({"1", "1024", "262144"})
+  public int iWriteSize;
+
+  protected byte[] _aBytes;
+  protected OutputStream _mRaw;
+  protected OutputStream _mQuiet;
+  protected HttpEngine._ProgressiveOutputStream _mTracked;
+  protected OutputStream _mReported;
+
+  @Setup
+  public void setUp() throws IOException {
+    _aBytes = new byte[iWriteSize];
+    _mRaw = new NullOutputStream();
+
+    HttpConfiguration mConf = new HttpConfiguration(
+        new URL("http://127.0.0.1/upload"), new HashMap<String, String>(),
+        new ArrayList<java.io.File>(), null, null, 1000, 1000);
+    HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId(),
+        new HttpListener() {
+          @Override
+          public void onStartTransfer(int iInstance) { }
+          @Override
+          public void onProgress(int iInstance, int iProgress) { }
+          @Override
+          public void onFailure(int iInstance, long lErrorCode) { }
+          @Override
+          public void onResponse(int iInstance, int iResponseCode,
+                                 String sResponse) { }
+        });
+
+    // Progress practically never changes.
+    _mQuiet = mEngine.new _ProgressiveOutputStream(_mRaw, Long.MAX_VALUE);
+    // Progress moves by 1% on every write, see tracked().
+    _mTracked = mEngine.new _ProgressiveOutputStream(_mRaw, 100L * iWriteSize);
+
+    mConf.setProgressReporter(new ProgressReporter(
+        new ProgressReporter.Listener() {
+          @Override
+          public void onProgress(int iInstance, long lSent, long lTotal,
+                                 long lBytesPerSecond) { }
+        }));
+    HttpEngine mReported = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+    mReported._startProgress(0);
+    _mReported = mReported.new _ProgressiveOutputStream(_mRaw, -1);
+  }
+
+  @Benchmark
+  public void raw() throws IOException {
+    _mRaw.write(_aBytes, 0, iWriteSize);
+  }
+
+  @Benchmark
+  public void quiet() throws IOException {
+    _mQuiet.write(_aBytes, 0, iWriteSize);
+  }
+
+  @Benchmark
+  public void tracked() throws IOException {
+    if (_mTracked._lTotalSent >= _mTracked._lTotalSize) {
+      _mTracked._lTotalSent = 0;
+      _mTracked._lNextProgress =
+          HttpEngine._progressAt(1, _mTracked._lTotalSize);
+    }
+    _mTracked.write(_aBytes, 0, iWriteSize);
+  }
+
+  @Benchmark
+  public void reported() throws IOException {
+    _mReported.write(_aBytes, 0, iWriteSize);
+  }
+
+  @Benchmark
+  public void quietSingleByte() throws IOException {
+    _mQuiet.write(0);
+  }
+}
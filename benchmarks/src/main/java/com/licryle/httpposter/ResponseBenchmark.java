@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cost of {@link HttpEngine#_readServerAnswer} on bodies of varying sizes,
+ * plain or gzip encoded, with the handlers shipped with the library. The body
+ * is read from memory, so that only the decoding and handling is measured.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ResponseBenchmark {
+  @Param({"16384", "1048576", "8388608"})
+  public int iBodySize;
+
+  @Param({"identity", "gzip"})
+  public String sEncoding;
+
+  /** "string", "bytes" or "stream". */
+  @Param({"string", "bytes", "stream"})
+  public String sHandler;
+
+  protected static final String CONTENT_TYPE =
+      "application/json; charset=utf-8";
+
+  protected byte[] _aBody;
+  protected HttpEngine _mEngine;
+  protected HttpResponseHandler<?> _mHandler;
+
+  @Setup
+  public void setUp() throws IOException {
+    // JSON-like text, compressing about as well as real answers.
+    StringBuilder mBuilder = new StringBuilder(iBodySize);
+    for (int i = 0; mBuilder.length() < iBodySize; i++) {
+      mBuilder.append("{\"id\":").append(i).append(",\"name\":\"file_")
+          .append(i * 7919 % 100003).append(".jpg\",\"status\":\"stored\"},");
+    }
+    byte[] aBody = mBuilder.substring(0, iBodySize).getBytes("UTF-8");
+
+    if (sEncoding.equals("gzip")) {
+      ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+      GZIPOutputStream mGzip = new GZIPOutputStream(mOut);
+      mGzip.write(aBody);
+      mGzip.close();
+      aBody = mOut.toByteArray();
+    }
+    _aBody = aBody;
+
+    if (sHandler.equals("string")) {
+      _mHandler = StringResponseHandler.DEFAULT;
+    } else if (sHandler.equals("bytes")) {
+      _mHandler = new BytesResponseHandler();
+    } else {
+      _mHandler = new StreamResponseHandler(new NullOutputStream());
+    }
+
+    HttpConfiguration mConf = new HttpConfiguration(
+        new URL("http://127.0.0.1/upload"), new HashMap<String, String>(),
+        new ArrayList<java.io.File>(), null, null, 1000, 1000);
+    _mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+  }
+
+  @Benchmark
+  public Object read() throws IOException {
+    _mEngine._readServerAnswer(_mHandler, CONTENT_TYPE, sEncoding,
+        _aBody.length, new ByteArrayInputStream(_aBody));
+    return _mEngine.getContent();
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+
+/**
+ * Shares an upload bandwidth between the requests of the process, so that a
+ * large upload doesn't starve the small posts sent meanwhile.
+ *
+ * The bandwidth is a token bucket refilled at {@link #getRate()} bytes per
+ * second, holding at most {@link #getBurst()} bytes. Each request draws from
+ * it through its own {@link Flow}, slice by slice, as its body is written.
+ * When the bucket is empty, the waiting slices are served in weighted fair
+ * order (self-clocked fair queuing): while several uploads are waiting, each
+ * gets a share of the bandwidth proportional to its weight, whatever the
+ * size of its body. A lone upload gets all of it, so that the link stays
+ * busy.
+ *
+ * A flow can also be capped at a rate of its own, whether the limiter limits
+ * the total or not.
+ *
+ * ** Usage:
+ * BandwidthLimiter mLimiter = new BandwidthLimiter(512 * 1024); // 512KB/s
+ * mConf.setBandwidthLimiter(mLimiter).setPriority(4);
+ *
+ * @see HttpConfiguration#setBandwidthLimiter
+ */
+public class BandwidthLimiter {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Largest number of bytes written at once by a throttled upload. */
+  public static final int SLICE_SIZE = 16 * 1024;
+  /** Default weight of a flow. */
+  public static final int DEFAULT_WEIGHT = 1;
+
+  /** Limiter not limiting the total, for flows only capped on their own. */
+  public static final BandwidthLimiter UNLIMITED = new BandwidthLimiter(0);
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Bytes per second, 0 for no limit. Guarded by this. */
+  protected long _lRate;
+  /** Capacity of the bucket, in bytes. Guarded by this. */
+  protected long _lBurst;
+  /** Bytes available, negative while in debt. Guarded by this. */
+  protected double _dTokens;
+  /** Time in ns of the last refill. Guarded by this. */
+  protected long _lLastRefill;
+
+  /** Virtual time: finish tag of the last slice served. Guarded by this. */
+  protected double _dVirtualTime = 0;
+  /** Slices waiting for tokens, by finish tag. Guarded by this. */
+  protected final PriorityQueue<_Waiter> _mWaiters =
+      new PriorityQueue<_Waiter>();
+  /** Arrival order of the waiters, breaking ties. Guarded by this. */
+  protected long _lSequence = 0;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** A slice waiting for tokens. */
+  protected static class _Waiter implements Comparable<_Waiter> {
+    protected final double _dFinish;
+    protected final long _lSequence;
+
+    protected _Waiter(double dFinish, long lSequence) {
+      _dFinish = dFinish;
+      _lSequence = lSequence;
+    }
+
+    @Override
+    public int compareTo(_Waiter mOther) {
+      if (_dFinish != mOther._dFinish) {
+        return _dFinish < mOther._dFinish ? -1 : 1;
+      }
+      return _lSequence < mOther._lSequence ? -1
+          : _lSequence == mOther._lSequence ? 0 : 1;
+    }
+  }
+
+  /**
+   * The share of one upload: its weight against the other flows of the
+   * limiter, and its own cap. Shared by the connections of the upload.
+   */
+  public class Flow {
+    protected final int _iWeight;
+    protected final long _lMaxRate;
+
+    /** Finish tag of the last slice of this flow. Guarded by the limiter. */
+    protected double _dFinish = 0;
+    /** Bytes available under the cap, negative while in debt. Guarded by
+     * this. */
+    protected double _dCapTokens = 0;
+    /** Time in ns of the last refill of the cap. Guarded by this. */
+    protected long _lCapRefill = System.nanoTime();
+
+    protected Flow(int iWeight, long lMaxRate) {
+      _iWeight = Math.max(1, iWeight);
+      _lMaxRate = lMaxRate;
+    }
+
+    public int getWeight() { return _iWeight; }
+    public long getMaxRate() { return _lMaxRate; }
+
+    /**
+     * Waits until lCount bytes may be sent, under the cap of the flow first,
+     * then under the limit of the limiter.
+     *
+     * @param lCount Number of bytes about to be sent, at most
+     *               {@link #SLICE_SIZE} for a fair share.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    public void acquire(long lCount) throws InterruptedIOException {
+      if (_lMaxRate > 0) {
+        _acquireCap(lCount);
+      }
+
+      BandwidthLimiter.this._acquire(this, lCount);
+    }
+
+    /** Waits for lCount bytes under the cap of the flow. */
+    protected synchronized void _acquireCap(long lCount)
+        throws InterruptedIOException {
+      long lNow = System.nanoTime();
+      _dCapTokens = Math.min(Math.max(SLICE_SIZE, _lMaxRate / 10),
+          _dCapTokens + (lNow - _lCapRefill) / 1e9 * _lMaxRate);
+      _lCapRefill = lNow;
+
+      if (_dCapTokens < 0) {
+        _sleep((long) Math.ceil(-_dCapTokens * 1000 / _lMaxRate));
+      }
+      _dCapTokens -= lCount;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param lBytesPerSecond Total upload rate, 0 for no limit. Bursts of a
+   *                        tenth of a second are allowed.
+   */
+  public BandwidthLimiter(long lBytesPerSecond) {
+    this(lBytesPerSecond, Math.max(SLICE_SIZE, lBytesPerSecond / 10));
+  }
+
+  /**
+   * @param lBytesPerSecond Total upload rate, 0 for no limit.
+   * @param lBurst Number of bytes that can be sent at once after a quiet
+   *               period.
+   */
+  public BandwidthLimiter(long lBytesPerSecond, long lBurst) {
+    _lRate = lBytesPerSecond;
+    _lBurst = lBurst;
+    _dTokens = lBurst;
+    _lLastRefill = System.nanoTime();
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param iWeight Share of the bandwidth of the flow relative to the others,
+   *                {@link #DEFAULT_WEIGHT} by default.
+   * @param lMaxRate Cap of the flow in bytes per second, 0 for none.
+   * @return A new flow drawing from this limiter.
+   */
+  public Flow newFlow(int iWeight, long lMaxRate) {
+    return new Flow(iWeight, lMaxRate);
+  }
+
+  /**
+   * Changes the total rate, for example when the network changes. Uploads in
+   * progress follow the new rate from their next slice.
+   *
+   * @param lBytesPerSecond Total upload rate, 0 for no limit.
+   */
+  public synchronized void setRate(long lBytesPerSecond) {
+    _refill();
+    _lRate = lBytesPerSecond;
+    _lBurst = Math.max(SLICE_SIZE, lBytesPerSecond / 10);
+    notifyAll();
+  }
+
+  public synchronized long getRate() { return _lRate; }
+  public synchronized long getBurst() { return _lBurst; }
+
+  /** @return Number of slices waiting for bandwidth. */
+  public synchronized int getWaitingCount() { return _mWaiters.size(); }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Waits until the slice of lCount bytes of mFlow is the first in fair order
+   * and the bucket isn't in debt, then takes its bytes from the bucket.
+   */
+  protected synchronized void _acquire(Flow mFlow, long lCount)
+      throws InterruptedIOException {
+    if (_lRate <= 0) {
+      return;
+    }
+
+    double dFinish = Math.max(_dVirtualTime, mFlow._dFinish) +
+        lCount / (double) mFlow._iWeight;
+    mFlow._dFinish = dFinish;
+    _Waiter mWaiter = new _Waiter(dFinish, _lSequence++);
+    _mWaiters.add(mWaiter);
+
+    try {
+      while (true) {
+        _refill();
+
+        if (_lRate <= 0) {
+          break;
+        }
+
+        if (_mWaiters.peek() == mWaiter) {
+          if (_dTokens >= 0) {
+            _dTokens -= lCount;
+            _dVirtualTime = dFinish;
+            break;
+          }
+
+          wait(Math.max(1, (long) Math.ceil(-_dTokens * 1000 / _lRate)));
+        } else {
+          wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for bandwidth");
+    } finally {
+      _mWaiters.remove(mWaiter);
+      notifyAll();
+    }
+  }
+
+  /** Adds the tokens earned since the last call. */
+  protected void _refill() {
+    long lNow = System.nanoTime();
+    _dTokens = Math.min(_lBurst,
+        _dTokens + (lNow - _lLastRefill) / 1e9 * _lRate);
+    _lLastRefill = lNow;
+  }
+
+  protected static void _sleep(long lMs) throws InterruptedIOException {
+    try {
+      Thread.sleep(lMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for bandwidth");
+    }
+  }
+}
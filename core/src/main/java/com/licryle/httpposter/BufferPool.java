@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of same-sized ByteBuffers, so that each request streaming
+ * file contents borrows a buffer for the duration of the write instead of
+ * allocating one. Unlike a ThreadLocal, buffers are shared between worker
+ * threads, which also keeps the footprint bounded when every request runs on
+ * its own (virtual) thread.
+ *
+ * ** Usage:
+ * ByteBuffer mBuffer = BufferPool.DIRECT.acquire();
+ * try {
+ *   ...
+ * } finally {
+ *   BufferPool.DIRECT.release(mBuffer);
+ * }
+ *
+ * @see MultipartEntity
+ */
+public class BufferPool {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Size of the buffers of the shared pools. */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  /** Size of the buffers streaming file contents to non-channel sinks. Larger
+   * buffers mean fewer writes and fewer progress updates per file. */
+  public static final int LARGE_BUFFER_SIZE = 256 * 1024;
+  /** Number of buffers kept by the shared pools. */
+  public static final int DEFAULT_MAX_POOLED = 16;
+
+  /** Shared pool of direct buffers, for channel sinks. */
+  public static final BufferPool DIRECT =
+      new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED, true);
+  /** Shared pool of large heap buffers, backed by an array, for stream
+   * sinks. */
+  public static final BufferPool HEAP =
+      new BufferPool(LARGE_BUFFER_SIZE, DEFAULT_MAX_POOLED, false);
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final ConcurrentLinkedQueue<ByteBuffer> _mBuffers =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+  /** Number of buffers in _mBuffers, kept apart as size() isn't O(1). */
+  protected final AtomicInteger _iPooled = new AtomicInteger(0);
+
+  protected final int _iBufferSize;
+  protected final int _iMaxPooled;
+  protected final boolean _bDirect;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param iBufferSize Capacity in bytes of each buffer.
+   * @param iMaxPooled Number of released buffers kept for reuse; extra ones
+   *                   are left to the garbage collector.
+   * @param bDirect Whether to allocate direct buffers.
+   */
+  public BufferPool(int iBufferSize, int iMaxPooled, boolean bDirect) {
+    _iBufferSize = iBufferSize;
+    _iMaxPooled = iMaxPooled;
+    _bDirect = bDirect;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @return A cleared buffer, taken from the pool or freshly allocated. Must
+   * be given back with {@link #release}.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer mBuffer = _mBuffers.poll();
+    if (mBuffer == null) {
+      return _bDirect ? ByteBuffer.allocateDirect(_iBufferSize)
+                      : ByteBuffer.allocate(_iBufferSize);
+    }
+
+    _iPooled.decrementAndGet();
+    mBuffer.clear();
+    return mBuffer;
+  }
+
+  /**
+   * Gives a buffer back to the pool. It must not be used afterwards.
+   *
+   * @param mBuffer A buffer obtained from {@link #acquire()}.
+   */
+  public void release(ByteBuffer mBuffer) {
+    if (mBuffer == null || mBuffer.capacity() != _iBufferSize) {
+      return;
+    }
+
+    if (_iPooled.incrementAndGet() <= _iMaxPooled) {
+      _mBuffers.offer(mBuffer);
+    } else {
+      _iPooled.decrementAndGet();
+    }
+  }
+
+  public int getBufferSize() { return _iBufferSize; }
+  public boolean isDirect() { return _bDirect; }
+}
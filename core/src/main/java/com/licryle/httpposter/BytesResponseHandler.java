@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * {@link HttpResponseHandler} collecting the body into a byte array of at
+ * most a given size. Bodies going beyond it fail with an IOException instead
+ * of exhausting the memory.
+ *
+ * When the server announces the length of the body, the buffer is allocated
+ * at that size right away and returned without any extra copy.
+ *
+ * @see StringResponseHandler
+ */
+public class BytesResponseHandler implements HttpResponseHandler<byte[]> {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default maximum size of a collected body, in bytes. */
+  public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iMaxBytes;
+
+  /*****************************************************************************
+   ************************** Protected Helper Classes *************************
+   ****************************************************************************/
+
+  /** ByteArrayOutputStream giving access to its content without copying. */
+  protected static class _Buffer extends ByteArrayOutputStream {
+    public _Buffer(int iSize) {
+      super(iSize);
+    }
+
+    @Override
+    public synchronized byte[] toByteArray() {
+      return count == buf.length ? buf : super.toByteArray();
+    }
+
+    public String toString(Charset mCharset) {
+      return new String(buf, 0, count, mCharset);
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /** Collects bodies of up to {@link #DEFAULT_MAX_BYTES}. */
+  public BytesResponseHandler() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param iMaxBytes Maximum size of the body, in bytes.
+   */
+  public BytesResponseHandler(int iMaxBytes) {
+    _iMaxBytes = iMaxBytes;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  @Override
+  public byte[] handle(HttpResponseBody mBody) throws IOException {
+    return _collect(mBody).toByteArray();
+  }
+
+  public int getMaxBytes() { return _iMaxBytes; }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Reads the whole body into a buffer.
+   *
+   * @throws IOException When reading fails or the body exceeds _iMaxBytes.
+   */
+  protected _Buffer _collect(HttpResponseBody mBody) throws IOException {
+    long lLength = mBody.getContentLength();
+    if (lLength > _iMaxBytes) {
+      throw new IOException("Response body exceeds " + _iMaxBytes + " bytes");
+    }
+
+    _Buffer mBuffer = new _Buffer(lLength >= 0 ? (int) lLength : 4096);
+    InputStream mStream = mBody.getStream();
+    byte[] aChunk = new byte[8192];
+
+    int iRead;
+    while ((iRead = mStream.read(aChunk)) != -1) {
+      if (mBuffer.size() + iRead > _iMaxBytes) {
+        throw new IOException(
+            "Response body exceeds " + _iMaxBytes + " bytes");
+      }
+      mBuffer.write(aChunk, 0, iRead);
+    }
+
+    return mBuffer;
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adapts the number of requests in flight to each end point to how it
+ * copes, instead of a fixed number of parallel uploads: too few waste a good
+ * network, too many overload a struggling server.
+ *
+ * Each route (scheme, host and port) has its own limit, adjusted by
+ * additive increase, multiplicative decrease (AIMD):
+ * - a request answered while the limit was in use raises it by 1/limit,
+ *   that is by one request per full window,
+ * - a request failing with a connection or transfer error, a 5xx or a 429
+ *   divides it by 2,
+ * - a request whose server took more than {@link #getTolerance()} times the
+ *   usual time to answer cuts it by 10%.
+ * Only one decrease happens per window: requests started before the last
+ * decrease don't cut the limit again.
+ *
+ * The time to answer is measured from the request sent to its status line,
+ * so that it doesn't depend on the size of the body. The usual time is the
+ * lowest one seen, raised by 1/256 at each sample so that it follows a
+ * server that became lastingly slower.
+ *
+ * Requests over the limit wait for a slot, in arrival order, on the thread
+ * running them.
+ *
+ * ** Usage:
+ * ConcurrencyLimiter mLimiter = new ConcurrencyLimiter();  // shared
+ * mConf.setConcurrencyLimiter(mLimiter);
+ * ...
+ * int iLimit = mLimiter.getEndpoint(mUrl).getLimit();
+ *
+ * @see HttpConfiguration#setConcurrencyLimiter
+ */
+public class ConcurrencyLimiter {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final int DEFAULT_INITIAL_LIMIT = 4;
+  public static final int DEFAULT_MIN_LIMIT = 1;
+  public static final int DEFAULT_MAX_LIMIT = 64;
+  /** Ratio of the limit kept after a failure. */
+  public static final double DEFAULT_DROP_BACKOFF = 0.5;
+  /** Ratio of the limit kept after a slow answer. */
+  public static final double DEFAULT_LATENCY_BACKOFF = 0.9;
+  /** Times the usual time to answer above which an answer is slow. */
+  public static final double DEFAULT_TOLERANCE = 2.0;
+
+  /** The server answered: the limit may grow. */
+  public static final int OUTCOME_SUCCESS = 0;
+  /** The request failed in a way showing overload: the limit shrinks. */
+  public static final int OUTCOME_DROPPED = 1;
+  /** The request says nothing about the load of the server. */
+  public static final int OUTCOME_IGNORED = 2;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iInitialLimit;
+  protected final int _iMinLimit;
+  protected final int _iMaxLimit;
+  protected volatile double _dDropBackoff = DEFAULT_DROP_BACKOFF;
+  protected volatile double _dLatencyBackoff = DEFAULT_LATENCY_BACKOFF;
+  protected volatile double _dTolerance = DEFAULT_TOLERANCE;
+
+  /** Limits per route. */
+  protected final ConcurrentHashMap<String, Endpoint> _mEndpoints =
+      new ConcurrentHashMap<String, Endpoint>();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** The limit of one route, and the requests waiting for it. */
+  public class Endpoint {
+    protected final String _sRoute;
+
+    /** Requests allowed in flight. Guarded by this. */
+    protected double _dLimit = _iInitialLimit;
+    /** Requests in flight. Guarded by this. */
+    protected int _iInFlight = 0;
+    /** Requests waiting for a slot, in arrival order. Guarded by this. */
+    protected final ArrayDeque<Object> _mWaiters = new ArrayDeque<Object>();
+    /** Usual time to answer in ns, 0 until measured. Guarded by this. */
+    protected long _lUsualLatency = 0;
+    /** Time in ns of the last decrease. Guarded by this. */
+    protected long _lDecreasedAt = 0;
+    protected long _lSuccesses = 0;
+    protected long _lDrops = 0;
+
+    protected Endpoint(String sRoute) {
+      _sRoute = sRoute;
+    }
+
+    /**
+     * Waits until a request may be sent to the route, after those waiting
+     * already.
+     *
+     * @return Time in ns at which the slot was granted, to give back to
+     * {@link #release}.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    public synchronized long acquire() throws InterruptedIOException {
+      Object mTicket = new Object();
+      _mWaiters.addLast(mTicket);
+
+      try {
+        while (_mWaiters.peekFirst() != mTicket || _iInFlight >= getLimit()) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for a slot");
+      } finally {
+        _mWaiters.remove(mTicket);
+        notifyAll();
+      }
+
+      _iInFlight++;
+      return System.nanoTime();
+    }
+
+    /**
+     * Gives back the slot of a request, and adjusts the limit from its
+     * outcome.
+     *
+     * @param lAcquiredAt Value returned by {@link #acquire()}.
+     * @param iOutcome One of the OUTCOME_* constants.
+     * @param lLatencyNs Time in ns the server took to answer, or -1.
+     */
+    public synchronized void release(long lAcquiredAt, int iOutcome,
+                                     long lLatencyNs) {
+      boolean bSaturated = _iInFlight * 2 >= _dLimit;
+      _iInFlight--;
+
+      if (iOutcome == OUTCOME_DROPPED) {
+        _lDrops++;
+        _decrease(lAcquiredAt, _dDropBackoff);
+      } else if (iOutcome == OUTCOME_SUCCESS) {
+        _lSuccesses++;
+
+        if (lLatencyNs > 0) {
+          _lUsualLatency = _lUsualLatency == 0 ? lLatencyNs
+              : Math.min(lLatencyNs, _lUsualLatency + (_lUsualLatency >> 8));
+        }
+
+        if (lLatencyNs > _lUsualLatency * _dTolerance) {
+          _decrease(lAcquiredAt, _dLatencyBackoff);
+        } else if (bSaturated) {
+          _dLimit = Math.min(_iMaxLimit, _dLimit + 1 / _dLimit);
+        }
+      }
+
+      notifyAll();
+    }
+
+    public String getRoute() { return _sRoute; }
+
+    /** @return Number of requests allowed in flight. */
+    public synchronized int getLimit() {
+      return Math.max(_iMinLimit, (int) _dLimit);
+    }
+
+    /** @return Number of requests in flight. */
+    public synchronized int getInFlight() { return _iInFlight; }
+
+    /** @return Number of requests waiting for a slot. */
+    public synchronized int getQueueLength() { return _mWaiters.size(); }
+
+    /** @return Usual time to answer in ns, 0 until measured. */
+    public synchronized long getUsualLatencyNs() { return _lUsualLatency; }
+
+    public synchronized long getSuccessCount() { return _lSuccesses; }
+    public synchronized long getDropCount() { return _lDrops; }
+
+    @Override
+    public synchronized String toString() {
+      return String.format("%s limit=%d inflight=%d queued=%d usual=%dns " +
+          "successes=%d drops=%d", _sRoute, getLimit(), _iInFlight,
+          _mWaiters.size(), _lUsualLatency, _lSuccesses, _lDrops);
+    }
+
+    /**
+     * Multiplies the limit by dBackoff, unless the request was granted
+     * before the last decrease.
+     */
+    protected void _decrease(long lAcquiredAt, double dBackoff) {
+      if (lAcquiredAt <= _lDecreasedAt) {
+        return;
+      }
+
+      _dLimit = Math.max(_iMinLimit, _dLimit * dBackoff);
+      _lDecreasedAt = System.nanoTime();
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  public ConcurrencyLimiter() {
+    this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+  }
+
+  /**
+   * @param iInitialLimit Requests allowed in flight to a route at first.
+   * @param iMinLimit Lowest limit, at least 1.
+   * @param iMaxLimit Highest limit.
+   */
+  public ConcurrencyLimiter(int iInitialLimit, int iMinLimit,
+                            int iMaxLimit) {
+    _iMinLimit = Math.max(1, iMinLimit);
+    _iMaxLimit = Math.max(_iMinLimit, iMaxLimit);
+    _iInitialLimit = Math.min(_iMaxLimit, Math.max(_iMinLimit, iInitialLimit));
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param mEndPoint URL of an end point.
+   * @return The limit of the route of mEndPoint, created on first use.
+   */
+  public Endpoint getEndpoint(URL mEndPoint) {
+    String sRoute = HttpConnection.routeOf(mEndPoint);
+
+    Endpoint mEndpoint = _mEndpoints.get(sRoute);
+    if (mEndpoint == null) {
+      Endpoint mNew = new Endpoint(sRoute);
+      mEndpoint = _mEndpoints.putIfAbsent(sRoute, mNew);
+      if (mEndpoint == null) {
+        mEndpoint = mNew;
+      }
+    }
+
+    return mEndpoint;
+  }
+
+  /** @return The limits of the routes used so far, sorted by route. */
+  public TreeMap<String, Endpoint> getEndpoints() {
+    return new TreeMap<String, Endpoint>(_mEndpoints);
+  }
+
+  /**
+   * @param dDropBackoff Ratio of the limit kept after a failure,
+   *                     {@link #DEFAULT_DROP_BACKOFF} by default.
+   * @param dLatencyBackoff Ratio of the limit kept after a slow answer,
+   *                        {@link #DEFAULT_LATENCY_BACKOFF} by default.
+   * @return This limiter, to chain calls.
+   */
+  public ConcurrencyLimiter setBackoff(double dDropBackoff,
+                                       double dLatencyBackoff) {
+    _dDropBackoff = dDropBackoff;
+    _dLatencyBackoff = dLatencyBackoff;
+    return this;
+  }
+
+  /**
+   * @param dTolerance Times the usual time to answer above which an answer
+   *                   is slow, {@link #DEFAULT_TOLERANCE} by default.
+   * @return This limiter, to chain calls.
+   */
+  public ConcurrencyLimiter setTolerance(double dTolerance) {
+    _dTolerance = dTolerance;
+    return this;
+  }
+
+  public int getMinLimit() { return _iMinLimit; }
+  public int getMaxLimit() { return _iMaxLimit; }
+  public double getTolerance() { return _dTolerance; }
+}
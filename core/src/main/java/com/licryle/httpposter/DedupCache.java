@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Skips the upload of files the server already has. When set on an
+ * {@link HttpConfiguration}, the {@link HttpEngine} computes the SHA-256 of
+ * each file, asks the server which of them it knows, and sends a reference
+ * instead of the content of those.
+ *
+ * Hashes are kept in an index keyed by path, size and modification time, so
+ * that a file sent again unchanged isn't read again. The index keeps the
+ * most recently used {@link #getMaxEntries()} files, about 200 bytes each.
+ * It can be saved and loaded to survive restarts of the process.
+ *
+ * ** Protocol:
+ * Before the multipart form, the engine POSTs an empty body to the end point
+ * with the header:
+ * - X-Dedup-Query: the hashes of the files, in lowercase hex, separated by
+ *   commas.
+ * The server answers with a 2xx code and:
+ * - X-Dedup-Known: those of the hashes whose content it has, separated by
+ *   commas.
+ * Any other answer, or a failure, and all the files are sent in full. The
+ * query goes through the same transport as the form: a pooled connection or
+ * an HTTP/2 stream when the configuration has one.
+ *
+ * In the form, each known file is replaced by a part of the same name and
+ * file name, of type application/vnd.httpposter.sha256, holding its hash.
+ *
+ * ** Usage:
+ * DedupCache mCache = new DedupCache();
+ * mConf.setDedupCache(mCache);
+ *
+ * One cache is meant to be shared by all the configurations. It is thread
+ * safe.
+ *
+ * @see HttpEngine#_getEntity
+ */
+public class DedupCache {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final String HEADER_QUERY = "X-Dedup-Query";
+  public static final String HEADER_KNOWN = "X-Dedup-Known";
+  /** Content-Type of the parts replacing known files. */
+  public static final String REFERENCE_TYPE =
+      "application/vnd.httpposter.sha256";
+
+  /** Default number of files in the index. */
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+  /** Default size under which files are always sent, in bytes. */
+  public static final long DEFAULT_MIN_SIZE = 16 * 1024;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iMaxEntries;
+  protected long _lMinSize = DEFAULT_MIN_SIZE;
+
+  /** Hashes by absolute path, least recently used first. Guarded by
+   * itself. */
+  protected final LinkedHashMap<String, _Entry> _mIndex;
+
+  protected long _lHits = 0;
+  protected long _lMisses = 0;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Hash of a file, valid as long as its size and date don't change. */
+  protected static class _Entry {
+    protected final long _lLength;
+    protected final long _lLastModified;
+    protected final String _sHash;
+
+    protected _Entry(long lLength, long lLastModified, String sHash) {
+      _lLength = lLength;
+      _lLastModified = lLastModified;
+      _sHash = sHash;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  public DedupCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param iMaxEntries Number of files whose hash is kept. The least recently
+   *                    used ones are forgotten first.
+   */
+  public DedupCache(final int iMaxEntries) {
+    _iMaxEntries = iMaxEntries;
+    _mIndex = new LinkedHashMap<String, _Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, _Entry> mEldest) {
+        return size() > iMaxEntries;
+      }
+    };
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param mFile A file about to be sent.
+   * @return Whether it is large enough to be worth a query.
+   */
+  public boolean shouldCheck(File mFile) {
+    return mFile.length() >= _lMinSize;
+  }
+
+  /**
+   * @param mFile File to hash.
+   * @return The SHA-256 of the content of mFile, in lowercase hex, from the
+   * index if mFile didn't change since it was last hashed.
+   * @throws IOException If mFile can't be read.
+   */
+  public String getHash(File mFile) throws IOException {
+    if (!mFile.isFile() || !mFile.canRead()) {
+      throw new FileNotFoundException(mFile.getPath());
+    }
+
+    String sPath = mFile.getAbsolutePath();
+    long lLength = mFile.length();
+    long lLastModified = mFile.lastModified();
+
+    synchronized (_mIndex) {
+      _Entry mEntry = _mIndex.get(sPath);
+      if (mEntry != null && mEntry._lLength == lLength &&
+          mEntry._lLastModified == lLastModified) {
+        _lHits++;
+        return mEntry._sHash;
+      }
+      _lMisses++;
+    }
+
+    // Hashed out of the lock: two threads may hash the same file at once.
+    String sHash = _sha256(mFile);
+    if (mFile.length() == lLength && mFile.lastModified() == lLastModified) {
+      synchronized (_mIndex) {
+        _mIndex.put(sPath, new _Entry(lLength, lLastModified, sHash));
+      }
+    }
+
+    return sHash;
+  }
+
+  /**
+   * @param sHeader Value of an X-Dedup-Known header, or null.
+   * @return The hashes it lists.
+   */
+  public static HashSet<String> parseHashes(String sHeader) {
+    HashSet<String> mHashes = new HashSet<String>();
+    if (sHeader == null) return mHashes;
+
+    for (String sHash : sHeader.split(",")) {
+      sHash = sHash.trim().toLowerCase();
+      if (!sHash.isEmpty()) {
+        mHashes.add(sHash);
+      }
+    }
+
+    return mHashes;
+  }
+
+  /** @return aHashes in the format of the X-Dedup-Query header. */
+  public static String formatHashes(ArrayList<String> aHashes) {
+    StringBuilder mValue = new StringBuilder();
+    for (String sHash : aHashes) {
+      if (mValue.length() > 0) mValue.append(',');
+      mValue.append(sHash);
+    }
+
+    return mValue.toString();
+  }
+
+  /**
+   * Writes the index to mFile, replacing it.
+   *
+   * @param mFile Where to save the index.
+   * @throws IOException When the file can't be written.
+   */
+  public void save(File mFile) throws IOException {
+    ArrayList<Map.Entry<String, _Entry>> aEntries;
+    synchronized (_mIndex) {
+      aEntries = new ArrayList<Map.Entry<String, _Entry>>(_mIndex.entrySet());
+    }
+
+    File mTemp = new File(mFile.getPath() + ".tmp");
+    DataOutputStream mOut = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(mTemp)));
+    try {
+      mOut.writeInt(aEntries.size());
+      for (Map.Entry<String, _Entry> mEntry : aEntries) {
+        mOut.writeUTF(mEntry.getKey());
+        mOut.writeLong(mEntry.getValue()._lLength);
+        mOut.writeLong(mEntry.getValue()._lLastModified);
+        mOut.writeUTF(mEntry.getValue()._sHash);
+      }
+    } finally {
+      mOut.close();
+    }
+
+    if (!mTemp.renameTo(mFile)) {
+      mFile.delete();
+      if (!mTemp.renameTo(mFile)) {
+        throw new IOException("Can't replace " + mFile.getPath());
+      }
+    }
+  }
+
+  /**
+   * Adds the entries saved in mFile to the index. Entries of files changed
+   * since are simply never used.
+   *
+   * @param mFile File written by {@link #save}.
+   * @throws IOException When the file can't be read. Entries read until then
+   * are kept.
+   */
+  public void load(File mFile) throws IOException {
+    DataInputStream mIn = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(mFile)));
+    try {
+      int iCount = mIn.readInt();
+      for (int i = 0; i < iCount; i++) {
+        String sPath = mIn.readUTF();
+        _Entry mEntry = new _Entry(mIn.readLong(), mIn.readLong(),
+            mIn.readUTF());
+
+        synchronized (_mIndex) {
+          _mIndex.put(sPath, mEntry);
+        }
+      }
+    } catch (EOFException e) {
+      throw new IOException("Truncated index " + mFile.getPath());
+    } finally {
+      mIn.close();
+    }
+  }
+
+  /** Forgets all the hashes. */
+  public void clear() {
+    synchronized (_mIndex) {
+      _mIndex.clear();
+    }
+  }
+
+  /**
+   * @param lMinSize Size under which files are sent without a query, in
+   *                 bytes.
+   * @return This cache, to chain calls.
+   */
+  public DedupCache setMinSize(long lMinSize) {
+    _lMinSize = lMinSize;
+    return this;
+  }
+
+  public int getMaxEntries() { return _iMaxEntries; }
+  public long getMinSize() { return _lMinSize; }
+
+  public int size() {
+    synchronized (_mIndex) {
+      return _mIndex.size();
+    }
+  }
+
+  /** @return Number of hashes found in the index. */
+  public long getHitCount() {
+    synchronized (_mIndex) {
+      return _lHits;
+    }
+  }
+
+  /** @return Number of hashes computed. */
+  public long getMissCount() {
+    synchronized (_mIndex) {
+      return _lMisses;
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** @return The SHA-256 of the content of mFile, in lowercase hex. */
+  protected static String _sha256(File mFile) throws IOException {
+    MessageDigest mDigest;
+    try {
+      mDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
+
+    ByteBuffer mBuffer = BufferPool.HEAP.acquire();
+    FileInputStream mIn = new FileInputStream(mFile);
+    try {
+      FileChannel mChannel = mIn.getChannel();
+      while (true) {
+        mBuffer.clear();
+        int iRead = mChannel.read(mBuffer);
+        if (iRead < 0) break;
+
+        mDigest.update(mBuffer.array(), mBuffer.arrayOffset(), iRead);
+      }
+    } finally {
+      mIn.close();
+      BufferPool.HEAP.release(mBuffer);
+    }
+
+    StringBuilder sHex = new StringBuilder(64);
+    for (byte iByte : mDigest.digest()) {
+      sHex.append(Character.forDigit((iByte >> 4) & 0xF, 16));
+      sHex.append(Character.forDigit(iByte & 0xF, 16));
+    }
+
+    return sHex.toString();
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.OutputStream;
+
+/**
+ * Implemented by the output streams tracking the progress of a body, so that
+ * content compressed on its way to them is accounted for in bytes of the
+ * source it was compressed from. {@link MultipartEntity} writes the encoded
+ * bytes to {@link #getEncodedStream()} and reports the source bytes it
+ * consumed with {@link #onSourceBytes}, so that progress still goes from 0 to
+ * 100% of the length of the uncompressed body.
+ *
+ * @see RequestCompression
+ */
+public interface EncodingSink {
+  /**
+   * @return The stream to write encoded bytes to. They are sent as written
+   * to this sink, but don't count towards its progress.
+   */
+  OutputStream getEncodedStream();
+
+  /**
+   * Accounts for lCount bytes of source consumed by the encoder, as if they
+   * were written to this stream.
+   *
+   * @param lCount Number of bytes of source consumed.
+   */
+  void onSourceBytes(long lCount);
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by the output streams that can receive file contents straight
+ * from a FileChannel, typically because they sit in front of a SocketChannel.
+ * {@link MultipartEntity} then sends file parts with FileChannel.transferTo,
+ * letting the kernel copy the data (sendfile, or a memory-mapped region
+ * depending on the platform) instead of going through Java buffers. Direct
+ * and mapped ByteBuffer parts are likewise written to the channel as is.
+ *
+ * Streams wrapping another stream, such as the progress tracking one of the
+ * {@link HttpEngine}, implement it by delegating to the wrapped stream, and
+ * account for the bytes transferred on the way.
+ *
+ * @see MultipartEntity#writeTo(java.io.OutputStream)
+ */
+public interface FileChannelSink {
+  /**
+   * @return Whether {@link #transferFrom} can be used right now. When false,
+   * data must be written through the regular OutputStream methods.
+   */
+  boolean canTransfer();
+
+  /**
+   * Sends exactly lCount bytes of mFile, starting at lPosition, as if they
+   * were written to this stream.
+   *
+   * @param mFile Channel of the file to send.
+   * @param lPosition Position in the file of the first byte to send.
+   * @param lCount Number of bytes to send.
+   * @throws IOException When the transfer fails, or the file is shorter than
+   * lPosition + lCount.
+   */
+  void transferFrom(FileChannel mFile, long lPosition, long lCount)
+      throws IOException;
+
+  /**
+   * Sends the bytes of mData from its position to its limit, as if they were
+   * written to this stream. mData is consumed.
+   *
+   * @param mData Bytes to send, typically in a direct or mapped buffer.
+   * @throws IOException When the writing fails.
+   */
+  void transferFrom(ByteBuffer mData) throws IOException;
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link HttpBody} made of a range of bytes of a file, sent as is as
+ * application/octet-stream. Used by resumable uploads to send a file piece by
+ * piece.
+ *
+ * Like the file parts of a {@link MultipartEntity}, the range goes through
+ * FileChannel.transferTo when the sink is a {@link FileChannelSink}, and
+ * through a buffer of {@link BufferPool#HEAP} otherwise.
+ *
+ * @see ResumableUpload
+ */
+public class FileRangeBody implements HttpBody {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final String CONTENT_TYPE = "application/octet-stream";
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final File _mFile;
+  protected final long _lOffset;
+  protected final long _lCount;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param mFile File to read the range from.
+   * @param lOffset Position in the file of the first byte of the range.
+   * @param lCount Number of bytes of the range.
+   */
+  public FileRangeBody(File mFile, long lOffset, long lCount) {
+    _mFile = mFile;
+    _lOffset = lOffset;
+    _lCount = lCount;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  @Override
+  public long getContentLength() { return _lCount; }
+
+  @Override
+  public String getContentType() { return CONTENT_TYPE; }
+
+  @Override
+  public String getContentEncoding() { return null; }
+
+  @Override
+  public boolean isRepeatable() { return true; }
+
+  public File getFile() { return _mFile; }
+  public long getOffset() { return _lOffset; }
+
+  @Override
+  public void writeTo(OutputStream mOut) throws IOException {
+    if (_lCount == 0) return;
+
+    FileInputStream mIn = new FileInputStream(_mFile);
+
+    try {
+      FileChannel mChannel = mIn.getChannel();
+
+      if (mOut instanceof FileChannelSink &&
+          ((FileChannelSink) mOut).canTransfer()) {
+        _transfer(mChannel, (FileChannelSink) mOut);
+      } else {
+        _copy(mChannel, mOut);
+      }
+    } finally {
+      mIn.close();
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Hands the range to mSink, slice by slice so that progress is reported. */
+  protected void _transfer(FileChannel mChannel, FileChannelSink mSink)
+      throws IOException {
+    long lEnd = _lOffset + _lCount;
+
+    for (long lPosition = _lOffset; lPosition < lEnd; ) {
+      long lSlice = Math.min(MultipartEntity.TRANSFER_SLICE, lEnd - lPosition);
+      mSink.transferFrom(mChannel, lPosition, lSlice);
+      lPosition += lSlice;
+    }
+  }
+
+  /** Streams the range to mOut through a pooled heap buffer. */
+  protected void _copy(FileChannel mChannel, OutputStream mOut)
+      throws IOException {
+    ByteBuffer mBuffer = BufferPool.HEAP.acquire();
+
+    try {
+      long lPosition = _lOffset;
+      long lRemaining = _lCount;
+
+      while (lRemaining > 0) {
+        mBuffer.clear();
+        if (lRemaining < mBuffer.capacity()) {
+          mBuffer.limit((int) lRemaining);
+        }
+
+        int iRead = mChannel.read(mBuffer, lPosition);
+        if (iRead == -1) {
+          throw new EOFException(_mFile.getPath() + " shrank while sent");
+        }
+
+        mOut.write(mBuffer.array(), mBuffer.arrayOffset(), iRead);
+        lPosition += iRead;
+        lRemaining -= iRead;
+      }
+    } finally {
+      BufferPool.HEAP.release(mBuffer);
+    }
+  }
+}
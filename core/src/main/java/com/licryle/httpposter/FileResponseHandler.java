@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link HttpResponseHandler} writing the body straight to a file, which is
+ * replaced if it exists. The content of the result is the file.
+ *
+ * If the body can't be read until its end, the partial file is deleted. As
+ * each response overwrites the file, the handler is meant for one request at
+ * a time.
+ *
+ * @see StreamResponseHandler
+ */
+public class FileResponseHandler implements HttpResponseHandler<File> {
+  protected final File _mFile;
+
+  /**
+   * @param mFile Where to write the body.
+   */
+  public FileResponseHandler(File mFile) {
+    _mFile = mFile;
+  }
+
+  @Override
+  public File handle(HttpResponseBody mBody) throws IOException {
+    FileOutputStream mOut = new FileOutputStream(_mFile);
+    boolean bComplete = false;
+
+    try {
+      StreamResponseHandler.copy(mBody.getStream(), mOut);
+      bComplete = true;
+    } finally {
+      mOut.close();
+
+      if (!bComplete) {
+        _mFile.delete();
+      }
+    }
+
+    return _mFile;
+  }
+
+  public File getFile() { return _mFile; }
+}
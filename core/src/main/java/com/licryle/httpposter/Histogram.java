@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive long values, such as durations in ns or
+ * throughputs in bytes per second, cheap enough to record every request.
+ *
+ * Buckets are log-linear, as in HdrHistogram: each power of two is split in
+ * {@link #SUB_BUCKETS} equal buckets, so that any recorded value is known
+ * within 1/16th (6.25%) over the whole range, with a fixed footprint. Values
+ * from 2^{@link #MAX_EXPONENT} on fall in the last bucket.
+ *
+ * Counts are striped: each thread records into one of several arrays of
+ * buckets, picked from its id, so that concurrent requests don't contend on
+ * the same cache lines. {@link #getSnapshot()} sums the stripes.
+ *
+ * @see HttpMetricsRegistry
+ */
+public class Histogram {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Number of buckets per power of two. */
+  public static final int SUB_BUCKETS = 16;
+  /** Values are tracked precisely up to 2^MAX_EXPONENT, about 4.9 hours in
+   * ns or 16 TB per second. */
+  public static final int MAX_EXPONENT = 44;
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  protected static final int SUB_BITS = 4;
+  protected static final int BUCKET_COUNT =
+      (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+  protected static final int STRIPES = _stripeCount();
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Bucket counts of all the stripes, stripe after stripe. */
+  protected final AtomicLongArray _aCounts =
+      new AtomicLongArray(STRIPES * BUCKET_COUNT);
+  /** Sum of the values of each stripe, for the mean. */
+  protected final AtomicLongArray _aSums = new AtomicLongArray(STRIPES * 8);
+  protected final AtomicLong _lMax = new AtomicLong(0);
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Immutable copy of the counts of a histogram. */
+  public static class Snapshot {
+    protected final long[] _aCounts;
+    protected final long _lCount;
+    protected final long _lSum;
+    protected final long _lMax;
+
+    protected Snapshot(long[] aCounts, long lSum, long lMax) {
+      long lCount = 0;
+      for (long lBucket : aCounts) {
+        lCount += lBucket;
+      }
+
+      _aCounts = aCounts;
+      _lCount = lCount;
+      _lSum = lSum;
+      _lMax = lMax;
+    }
+
+    public long getCount() { return _lCount; }
+    public long getMax() { return _lMax; }
+
+    /** @return The mean of the values, 0 if none was recorded. */
+    public double getMean() {
+      return _lCount == 0 ? 0 : _lSum / (double) _lCount;
+    }
+
+    /**
+     * @param dPercentile Percentile, from 0 to 100, e.g. 99 for the p99.
+     * @return The highest value of the bucket holding the percentile, capped
+     * by the maximum, or 0 if no value was recorded.
+     */
+    public long getValueAtPercentile(double dPercentile) {
+      if (_lCount == 0) return 0;
+
+      long lRank = (long) Math.ceil(_lCount * dPercentile / 100);
+      lRank = Math.max(1, Math.min(_lCount, lRank));
+
+      long lSeen = 0;
+      for (int i = 0; i < _aCounts.length; i++) {
+        lSeen += _aCounts[i];
+        if (lSeen >= lRank) {
+          return Math.min(_lMax, _highestValue(i));
+        }
+      }
+
+      return _lMax;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d max=%d",
+          _lCount, getMean(), getValueAtPercentile(50),
+          getValueAtPercentile(90), getValueAtPercentile(99), _lMax);
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Records a value. Negative values, meaning "not measured", are ignored.
+   *
+   * @param lValue The value to record.
+   */
+  public void record(long lValue) {
+    if (lValue < 0) return;
+
+    int iStripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    _aCounts.incrementAndGet(iStripe * BUCKET_COUNT + _bucketOf(lValue));
+    // Sums are 8 slots apart so that stripes don't share a cache line.
+    _aSums.addAndGet(iStripe * 8, lValue);
+
+    long lMax;
+    while (lValue > (lMax = _lMax.get())) {
+      if (_lMax.compareAndSet(lMax, lValue)) break;
+    }
+  }
+
+  /** @return The counts recorded so far, summed over the stripes. */
+  public Snapshot getSnapshot() {
+    long[] aCounts = new long[BUCKET_COUNT];
+    for (int iStripe = 0; iStripe < STRIPES; iStripe++) {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        aCounts[i] += _aCounts.get(iStripe * BUCKET_COUNT + i);
+      }
+    }
+
+    long lSum = 0;
+    for (int iStripe = 0; iStripe < STRIPES; iStripe++) {
+      lSum += _aSums.get(iStripe * 8);
+    }
+
+    return new Snapshot(aCounts, lSum, _lMax.get());
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** @return Index of the bucket of lValue: values below 2 * SUB_BUCKETS have
+   * their own bucket, then each power of two gets SUB_BUCKETS buckets. */
+  protected static int _bucketOf(long lValue) {
+    if (lValue < 2 * SUB_BUCKETS) return (int) lValue;
+
+    int iExponent = 63 - Long.numberOfLeadingZeros(lValue);
+    if (iExponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+
+    int iSub = (int) (lValue >>> (iExponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (iExponent - SUB_BITS + 1) * SUB_BUCKETS + iSub;
+  }
+
+  /** @return The highest value falling in bucket iBucket. */
+  protected static long _highestValue(int iBucket) {
+    if (iBucket < 2 * SUB_BUCKETS) return iBucket;
+    if (iBucket == BUCKET_COUNT - 1) return Long.MAX_VALUE;
+
+    int iExponent = iBucket / SUB_BUCKETS + SUB_BITS - 1;
+    long lLowest = (long) (SUB_BUCKETS + iBucket % SUB_BUCKETS)
+        << (iExponent - SUB_BITS);
+
+    return lLowest + (1L << (iExponent - SUB_BITS)) - 1;
+  }
+
+  /** @return A power of two close to the number of processors, up to 8. */
+  protected static int _stripeCount() {
+    int iProcessors = Runtime.getRuntime().availableProcessors();
+    int iStripes = 1;
+    while (iStripes * 2 <= Math.min(iProcessors, 8)) {
+      iStripes *= 2;
+    }
+
+    return iStripes;
+  }
+}
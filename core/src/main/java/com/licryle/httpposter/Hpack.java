@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541), for {@link Http2Connection}.
+ *
+ * The {@link Encoder} is stateless: headers found as is in the static table
+ * are sent as an index, the others as literals not added to the dynamic
+ * table, named by their index in the static table when possible, and not
+ * Huffman coded. Request headers are few and mostly unique to the request,
+ * so indexing them would save little.
+ *
+ * The {@link Decoder} supports the whole format, since servers use the
+ * dynamic table and Huffman coding freely.
+ */
+public class Hpack {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Size of the dynamic table until the peer's settings say otherwise. */
+  public static final int DEFAULT_TABLE_SIZE = 4096;
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  /** Static table, Appendix A. Index 1 is the first entry. */
+  protected static final String[][] STATIC_TABLE = {
+      {":authority", ""},
+      {":method", "GET"},
+      {":method", "POST"},
+      {":path", "/"},
+      {":path", "/index.html"},
+      {":scheme", "http"},
+      {":scheme", "https"},
+      {":status", "200"},
+      {":status", "204"},
+      {":status", "206"},
+      {":status", "304"},
+      {":status", "400"},
+      {":status", "404"},
+      {":status", "500"},
+      {"accept-charset", ""},
+      {"accept-encoding", "gzip, deflate"},
+      {"accept-language", ""},
+      {"accept-ranges", ""},
+      {"accept", ""},
+      {"access-control-allow-origin", ""},
+      {"age", ""},
+      {"allow", ""},
+      {"authorization", ""},
+      {"cache-control", ""},
+      {"content-disposition", ""},
+      {"content-encoding", ""},
+      {"content-language", ""},
+      {"content-length", ""},
+      {"content-location", ""},
+      {"content-range", ""},
+      {"content-type", ""},
+      {"cookie", ""},
+      {"date", ""},
+      {"etag", ""},
+      {"expect", ""},
+      {"expires", ""},
+      {"from", ""},
+      {"host", ""},
+      {"if-match", ""},
+      {"if-modified-since", ""},
+      {"if-none-match", ""},
+      {"if-range", ""},
+      {"if-unmodified-since", ""},
+      {"last-modified", ""},
+      {"link", ""},
+      {"location", ""},
+      {"max-forwards", ""},
+      {"proxy-authenticate", ""},
+      {"proxy-authorization", ""},
+      {"range", ""},
+      {"referer", ""},
+      {"refresh", ""},
+      {"retry-after", ""},
+      {"server", ""},
+      {"set-cookie", ""},
+      {"strict-transport-security", ""},
+      {"transfer-encoding", ""},
+      {"user-agent", ""},
+      {"vary", ""},
+      {"via", ""},
+      {"www-authenticate", ""}
+  };
+
+  /** Huffman code of each symbol, right aligned, Appendix B. Symbol 256 is
+   * EOS. */
+  protected static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6,
+      0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea,
+      0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef,
+      0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4,
+      0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa,
+      0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa,
+      0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a,
+      0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+      0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66,
+      0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+      0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3,
+      0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29,
+      0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a,
+      0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2,
+      0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6,
+      0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2,
+      0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+      0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc,
+      0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0,
+      0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0,
+      0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+      0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0,
+      0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+      0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5,
+      0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1,
+      0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9,
+      0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed,
+      0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+      0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb,
+      0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9,
+      0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee,
+      0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff
+  };
+
+  /** Length in bits of the Huffman code of each symbol. */
+  protected static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28,
+      28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12,
+      13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7,
+      8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6,
+      5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24,
+      22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22,
+      22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22,
+      23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25,
+      26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21,
+      26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25,
+      24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27,
+      27, 26, 30
+  };
+
+  /** Huffman decoding tree. The children of node i are at 2i and 2i + 1, for
+   * bits 0 and 1; leaves are stored as -(symbol + 1). */
+  protected static final int[] HUFFMAN_TREE = new int[2 * 256];
+
+  /** Index in the static table of each header name, the first one. */
+  protected static final HashMap<String, Integer> STATIC_NAMES =
+      new HashMap<String, Integer>();
+  /** Index in the static table of each name and value pair. */
+  protected static final HashMap<String, Integer> STATIC_ENTRIES =
+      new HashMap<String, Integer>();
+
+  static {
+    int iNodes = 1;
+    for (int iSymbol = 0; iSymbol < HUFFMAN_CODES.length; iSymbol++) {
+      int iCode = HUFFMAN_CODES[iSymbol];
+      int iNode = 0;
+      for (int iBit = HUFFMAN_LENGTHS[iSymbol] - 1; iBit > 0; iBit--) {
+        int iChild = 2 * iNode + ((iCode >>> iBit) & 1);
+        if (HUFFMAN_TREE[iChild] == 0) {
+          HUFFMAN_TREE[iChild] = iNodes++;
+        }
+        iNode = HUFFMAN_TREE[iChild];
+      }
+      HUFFMAN_TREE[2 * iNode + (iCode & 1)] = -(iSymbol + 1);
+    }
+
+    for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+      STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+      STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1],
+          i + 1);
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Encodes header blocks. Stateless, thus thread-safe. */
+  public static class Encoder {
+    /**
+     * Appends the encoding of mHeaders to mOut. Names are sent in lower case,
+     * as HTTP/2 requires.
+     *
+     * @param mHeaders Headers to encode, pseudo-headers first.
+     * @param mOut Where to append the header block.
+     */
+    public void encode(Map<String, String> mHeaders,
+                       ByteArrayOutputStream mOut) {
+      for (Map.Entry<String, String> mHeader : mHeaders.entrySet()) {
+        String sName = mHeader.getKey().toLowerCase();
+        String sValue = mHeader.getValue();
+
+        Integer iIndex = STATIC_ENTRIES.get(sName + '\0' + sValue);
+        if (iIndex != null) {
+          _writeInteger(mOut, 0x80, 7, iIndex);
+          continue;
+        }
+
+        // Literal header field without indexing.
+        iIndex = STATIC_NAMES.get(sName);
+        _writeInteger(mOut, 0x00, 4, iIndex != null ? iIndex : 0);
+        if (iIndex == null) {
+          _writeString(mOut, sName);
+        }
+        _writeString(mOut, sValue);
+      }
+    }
+  }
+
+  /**
+   * Decodes header blocks. Holds the dynamic table of the connection, so the
+   * blocks must be decoded in the order they were received, by one thread.
+   */
+  public static class Decoder {
+    /** Dynamic table, the newest entry last. */
+    protected final ArrayList<String[]> _aDynamic = new ArrayList<String[]>();
+    /** Size of the dynamic table, as defined in section 4.1. */
+    protected int _iSize = 0;
+    /** Maximum size of the dynamic table set by the encoder. */
+    protected int _iMaxSize = DEFAULT_TABLE_SIZE;
+    /** Limit of _iMaxSize, announced in our settings. */
+    protected final int _iMaxAllowed;
+
+    protected byte[] _aBlock;
+    protected int _iPosition;
+    protected int _iEnd;
+
+    public Decoder() {
+      this(DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     * @param iMaxAllowed Size of the dynamic table announced to the encoder.
+     */
+    public Decoder(int iMaxAllowed) {
+      _iMaxAllowed = iMaxAllowed;
+      _iMaxSize = iMaxAllowed;
+    }
+
+    /**
+     * Decodes a complete header block into mHeaders. Repeated names are
+     * joined with commas.
+     *
+     * @param aBlock Buffer holding the block.
+     * @param iStart Offset of the block in aBlock.
+     * @param iEnd Offset of the end of the block in aBlock.
+     * @param mHeaders Where to put the headers, names in lower case.
+     * @throws IOException When the block is malformed, in which case the
+     * connection can't be used any more.
+     */
+    public void decode(byte[] aBlock, int iStart, int iEnd,
+                       Map<String, String> mHeaders) throws IOException {
+      _aBlock = aBlock;
+      _iPosition = iStart;
+      _iEnd = iEnd;
+
+      while (_iPosition < _iEnd) {
+        int iByte = aBlock[_iPosition] & 0xff;
+
+        if ((iByte & 0x80) != 0) {
+          String[] aEntry = _entry(_readInteger(7));
+          _put(mHeaders, aEntry[0], aEntry[1]);
+        } else if ((iByte & 0x40) != 0) {
+          int iIndex = _readInteger(6);
+          String sName = iIndex == 0 ? _readString() : _entry(iIndex)[0];
+          String sValue = _readString();
+          _add(sName, sValue);
+          _put(mHeaders, sName, sValue);
+        } else if ((iByte & 0x20) != 0) {
+          int iMaxSize = _readInteger(5);
+          if (iMaxSize > _iMaxAllowed) {
+            throw new IOException("HPACK table size above the limit");
+          }
+          _iMaxSize = iMaxSize;
+          _evict(0);
+        } else {
+          // Literal without indexing, or never indexed.
+          int iIndex = _readInteger(4);
+          String sName = iIndex == 0 ? _readString() : _entry(iIndex)[0];
+          _put(mHeaders, sName, _readString());
+        }
+      }
+
+      _aBlock = null;
+    }
+
+    protected String[] _entry(int iIndex) throws IOException {
+      if (iIndex > 0 && iIndex <= STATIC_TABLE.length) {
+        return STATIC_TABLE[iIndex - 1];
+      }
+
+      int iDynamic = iIndex - STATIC_TABLE.length - 1;
+      if (iIndex <= 0 || iDynamic >= _aDynamic.size()) {
+        throw new IOException("HPACK index out of range: " + iIndex);
+      }
+      return _aDynamic.get(_aDynamic.size() - 1 - iDynamic);
+    }
+
+    protected void _add(String sName, String sValue) {
+      int iEntrySize = sName.length() + sValue.length() + 32;
+      _evict(iEntrySize);
+
+      // An entry larger than the table empties it, and isn't added.
+      if (iEntrySize <= _iMaxSize) {
+        _aDynamic.add(new String[] { sName, sValue });
+        _iSize += iEntrySize;
+      }
+    }
+
+    /** Evicts the oldest entries until iRoom more bytes fit. */
+    protected void _evict(int iRoom) {
+      while (!_aDynamic.isEmpty() && _iSize + iRoom > _iMaxSize) {
+        String[] aOldest = _aDynamic.remove(0);
+        _iSize -= aOldest[0].length() + aOldest[1].length() + 32;
+      }
+    }
+
+    protected static void _put(Map<String, String> mHeaders, String sName,
+                               String sValue) {
+      String sPrevious = mHeaders.get(sName);
+      mHeaders.put(sName, sPrevious == null ? sValue
+                                            : sPrevious + ", " + sValue);
+    }
+
+    /** Reads an integer with an iPrefix bits prefix, section 5.1. */
+    protected int _readInteger(int iPrefix) throws IOException {
+      int iMask = (1 << iPrefix) - 1;
+      int iValue = _aBlock[_iPosition++] & iMask;
+      if (iValue < iMask) {
+        return iValue;
+      }
+
+      for (int iShift = 0; iShift <= 28; iShift += 7) {
+        if (_iPosition >= _iEnd) {
+          throw new IOException("Truncated HPACK integer");
+        }
+        int iByte = _aBlock[_iPosition++] & 0xff;
+        iValue += (iByte & 0x7f) << iShift;
+        if ((iByte & 0x80) == 0) {
+          if (iValue < 0) {
+            break;
+          }
+          return iValue;
+        }
+      }
+
+      throw new IOException("HPACK integer overflow");
+    }
+
+    /** Reads a string literal, section 5.2. */
+    protected String _readString() throws IOException {
+      if (_iPosition >= _iEnd) {
+        throw new IOException("Truncated HPACK string");
+      }
+
+      boolean bHuffman = (_aBlock[_iPosition] & 0x80) != 0;
+      int iLength = _readInteger(7);
+      if (iLength > _iEnd - _iPosition) {
+        throw new IOException("Truncated HPACK string");
+      }
+
+      int iStart = _iPosition;
+      _iPosition += iLength;
+      return bHuffman ? _decodeHuffman(_aBlock, iStart, iLength)
+                      : new String(_aBlock, iStart, iLength, "ISO-8859-1");
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Writes iValue with an iPrefix bits prefix after the bits of iFlags. */
+  protected static void _writeInteger(ByteArrayOutputStream mOut, int iFlags,
+                                      int iPrefix, int iValue) {
+    int iMask = (1 << iPrefix) - 1;
+    if (iValue < iMask) {
+      mOut.write(iFlags | iValue);
+      return;
+    }
+
+    mOut.write(iFlags | iMask);
+    iValue -= iMask;
+    while (iValue >= 0x80) {
+      mOut.write((iValue & 0x7f) | 0x80);
+      iValue >>>= 7;
+    }
+    mOut.write(iValue);
+  }
+
+  /** Writes sValue as a string literal, without Huffman coding. */
+  protected static void _writeString(ByteArrayOutputStream mOut,
+                                     String sValue) {
+    byte[] aValue;
+    try {
+      aValue = sValue.getBytes("ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+
+    _writeInteger(mOut, 0x00, 7, aValue.length);
+    mOut.write(aValue, 0, aValue.length);
+  }
+
+  /**
+   * Decodes iLength bytes of Huffman coded data, section 5.2.
+   *
+   * @throws IOException When the data contains EOS, or is not padded with
+   * the most significant bits of EOS.
+   */
+  protected static String _decodeHuffman(byte[] aData, int iStart,
+                                         int iLength) throws IOException {
+    StringBuilder mOut = new StringBuilder(iLength * 8 / 5);
+    int iNode = 0;
+    int iPending = 0;
+    boolean bAllOnes = true;
+
+    for (int i = iStart; i < iStart + iLength; i++) {
+      int iByte = aData[i] & 0xff;
+      for (int iBit = 7; iBit >= 0; iBit--) {
+        int iValue = (iByte >>> iBit) & 1;
+        int iNext = HUFFMAN_TREE[2 * iNode + iValue];
+
+        if (iNext < 0) {
+          int iSymbol = -iNext - 1;
+          if (iSymbol == 256) {
+            throw new IOException("EOS in Huffman string");
+          }
+          mOut.append((char) iSymbol);
+          iNode = 0;
+          iPending = 0;
+          bAllOnes = true;
+        } else {
+          iNode = iNext;
+          iPending++;
+          bAllOnes &= iValue == 1;
+        }
+      }
+    }
+
+    if (iPending > 7 || !bAllOnes) {
+      throw new IOException("Invalid Huffman padding");
+    }
+
+    return mOut.toString();
+  }
+}
@@ -0,0 +1,1071 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An HTTP/2 connection (RFC 7540) carrying many requests at once, each on its
+ * own stream, so that parallel uploads to a host share one socket instead of
+ * opening one each, and a slow upload doesn't hold the others back.
+ *
+ * https end points negotiate h2 with ALPN, which requires the
+ * SSLParameters.setApplicationProtocols API of Java 9 (or 8u252). http end
+ * points speak h2c with prior knowledge: the server must accept HTTP/2
+ * without an upgrade.
+ *
+ * ** Usage:
+ * Http2Connection.Stream mStream = mConn.newStream(mEndPoint, mHeaders,
+ *     lContentLength, iTimeout);
+ * OutputStream mBody = mStream.getRequestBody();
+ * ...
+ * mBody.close();
+ * int iCode = mStream.readResponseHead();
+ * InputStream mAnswer = mStream.getResponseBody();
+ *
+ * Writes follow flow control: a request body is sent as fast as the windows
+ * of its stream and of the connection allow, and writing blocks while they
+ * are exhausted. Answers are received in a window of
+ * {@link #STREAM_RECEIVE_WINDOW} bytes per stream, reopened as they are read.
+ *
+ * A thread per connection reads the frames of the server and dispatches them
+ * to the streams. Server push is disabled.
+ *
+ * @see Http2ConnectionPool
+ */
+public class Http2Connection {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Bytes of answer a stream may receive ahead of its reading. */
+  public static final int STREAM_RECEIVE_WINDOW = 1024 * 1024;
+  /** Bytes of answers all the streams may receive ahead of their reading. */
+  public static final int CONNECTION_RECEIVE_WINDOW = 16 * 1024 * 1024;
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  protected static final byte[] PREFACE;
+
+  static {
+    try {
+      PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes("US-ASCII");
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  protected static final int TYPE_DATA = 0x0;
+  protected static final int TYPE_HEADERS = 0x1;
+  protected static final int TYPE_PRIORITY = 0x2;
+  protected static final int TYPE_RST_STREAM = 0x3;
+  protected static final int TYPE_SETTINGS = 0x4;
+  protected static final int TYPE_PUSH_PROMISE = 0x5;
+  protected static final int TYPE_PING = 0x6;
+  protected static final int TYPE_GOAWAY = 0x7;
+  protected static final int TYPE_WINDOW_UPDATE = 0x8;
+  protected static final int TYPE_CONTINUATION = 0x9;
+
+  protected static final int FLAG_END_STREAM = 0x1;
+  protected static final int FLAG_ACK = 0x1;
+  protected static final int FLAG_END_HEADERS = 0x4;
+  protected static final int FLAG_PADDED = 0x8;
+  protected static final int FLAG_PRIORITY = 0x20;
+
+  protected static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  protected static final int SETTINGS_ENABLE_PUSH = 0x2;
+  protected static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  protected static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  protected static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+  protected static final int ERROR_NO_ERROR = 0x0;
+  protected static final int ERROR_PROTOCOL = 0x1;
+  protected static final int ERROR_REFUSED_STREAM = 0x7;
+  protected static final int ERROR_CANCEL = 0x8;
+
+  /** Initial window and frame size before the settings are exchanged. */
+  protected static final int DEFAULT_WINDOW = 65535;
+  protected static final int DEFAULT_FRAME_SIZE = 16384;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final String _sRoute;
+  protected final Socket _mSocket;
+  protected final DataInputStream _mIn;
+  /** Guarded by itself: frames are written whole, one at a time. */
+  protected final OutputStream _mOut;
+  protected final Hpack.Encoder _mEncoder = new Hpack.Encoder();
+  /** Only used by the reader thread. */
+  protected final Hpack.Decoder _mDecoder = new Hpack.Decoder();
+  protected final Thread _mReader;
+
+  // The fields below are guarded by this connection. The lock of _mOut may be
+  // taken before it, never after.
+
+  /** Open streams, by id. */
+  protected final HashMap<Integer, Stream> _mStreams =
+      new HashMap<Integer, Stream>();
+  /** Streams open or about to be, counted against the server's limit. */
+  protected int _iOpenStreams = 0;
+  /** Guarded by _mOut, as ids must be sent in increasing order. */
+  protected int _iNextStreamId = 1;
+  /** Number of streams opened so far. */
+  protected int _iStreamCount = 0;
+  /** Bytes the connection may still send. */
+  protected long _lSendWindow = DEFAULT_WINDOW;
+  /** Settings of the server. */
+  protected int _iInitialSendWindow = DEFAULT_WINDOW;
+  protected int _iMaxSendFrame = DEFAULT_FRAME_SIZE;
+  protected int _iMaxStreams = Integer.MAX_VALUE;
+  /** Bytes read by the streams and not yet given back to the server. */
+  protected int _iUnacknowledged = 0;
+  /** Set once the server sent GOAWAY: no new stream may be opened. */
+  protected boolean _bGoAway = false;
+  /** Set once the connection failed or was closed. */
+  protected IOException _mFailure = null;
+  /** nanoTime at which the last stream closed. */
+  protected long _lIdleSince = System.nanoTime();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /**
+   * Thrown when a request was not processed by the server, so that it can be
+   * sent again safely, typically on a new connection.
+   */
+  public static class RefusedStreamException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RefusedStreamException(String sMessage) {
+      super(sMessage);
+    }
+  }
+
+  /** A request and its answer, multiplexed with others on the connection. */
+  public class Stream {
+    protected final int _iId;
+    /** Bytes this stream may still send. */
+    protected long _lSendWindow;
+    protected int _iResponseCode = 0;
+    protected final HashMap<String, String> _mHeaders =
+        new HashMap<String, String>();
+    protected boolean _bHeadersRead = false;
+    /** Frames of the answer not read yet. */
+    protected final ArrayDeque<byte[]> _aData = new ArrayDeque<byte[]>();
+    protected int _iDataOffset = 0;
+    /** Bytes read and not yet given back to the server. */
+    protected int _iUnacknowledged = 0;
+    protected boolean _bRemoteClosed = false;
+    protected boolean _bLocalClosed = false;
+    protected IOException _mError = null;
+    protected final int _iTimeout;
+
+    protected Stream(int iId, int iTimeout) {
+      _iId = iId;
+      _lSendWindow = _iInitialSendWindow;
+      _iTimeout = iTimeout;
+    }
+
+    public int getId() { return _iId; }
+
+    /**
+     * @return The stream to write the body of the request into, in DATA
+     * frames. Closing it ends the request.
+     */
+    public OutputStream getRequestBody() {
+      return new OutputStream() {
+        @Override
+        public void write(int iByte) throws IOException {
+          write(new byte[] { (byte) iByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] aBytes, int iStart, int iCount)
+            throws IOException {
+          while (iCount > 0) {
+            int iAllowed = _acquireWindow(Stream.this, iCount);
+            _writeFrame(TYPE_DATA, 0, _iId, aBytes, iStart, iAllowed);
+            iStart += iAllowed;
+            iCount -= iAllowed;
+          }
+        }
+
+        @Override
+        public void flush() throws IOException {
+          _flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          synchronized (Http2Connection.this) {
+            if (_bLocalClosed) {
+              return;
+            }
+            _bLocalClosed = true;
+          }
+
+          _writeFrame(TYPE_DATA, FLAG_END_STREAM, _iId, new byte[0], 0, 0);
+          _flush();
+        }
+      };
+    }
+
+    /**
+     * Waits for the status and headers of the answer, skipping interim 1xx
+     * answers.
+     *
+     * @return The HTTP response code.
+     * @throws IOException When the stream or the connection failed, or the
+     * timeout elapsed.
+     */
+    public int readResponseHead() throws IOException {
+      synchronized (Http2Connection.this) {
+        long lDeadline = _deadline(_iTimeout);
+        while (!_bHeadersRead) {
+          _checkError();
+          if (_bRemoteClosed) {
+            throw new ProtocolException("Stream ended without headers");
+          }
+          _await(lDeadline);
+        }
+        return _iResponseCode;
+      }
+    }
+
+    /**
+     * @param sName Name of the header, case insensitive.
+     * @return The value of the response header, or null if absent.
+     */
+    public String getResponseHeader(String sName) {
+      synchronized (Http2Connection.this) {
+        return _mHeaders.get(sName.toLowerCase());
+      }
+    }
+
+    /** @return The headers of the response, names in lower case. */
+    public Map<String, String> getResponseHeaders() {
+      synchronized (Http2Connection.this) {
+        return new HashMap<String, String>(_mHeaders);
+      }
+    }
+
+    /**
+     * @return The body of the answer. Closing it before its end cancels the
+     * stream.
+     */
+    public InputStream getResponseBody() {
+      return new InputStream() {
+        @Override
+        public int read() throws IOException {
+          byte[] aByte = new byte[1];
+          return read(aByte, 0, 1) == -1 ? -1 : aByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] aBytes, int iStart, int iCount)
+            throws IOException {
+          if (iCount == 0) {
+            return 0;
+          }
+
+          int iRead = _read(aBytes, iStart, iCount);
+          if (iRead > 0) {
+            _acknowledge(Stream.this, iRead);
+          }
+          return iRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+          cancel();
+        }
+      };
+    }
+
+    /** Resets the stream if it is still open, and drops what it received. */
+    public void cancel() {
+      boolean bReset;
+      int iDropped = 0;
+      synchronized (Http2Connection.this) {
+        bReset = _mStreams.containsKey(_iId);
+        for (byte[] aData : _aData) {
+          iDropped += aData.length;
+        }
+        iDropped -= _iDataOffset;
+        _aData.clear();
+        _iDataOffset = 0;
+        // Fails the reads and writes still waiting on the stream.
+        _release(this, new IOException("Stream cancelled"));
+      }
+
+      try {
+        if (bReset) {
+          _writeFrame(TYPE_RST_STREAM, 0, _iId, _int32(ERROR_CANCEL), 0, 4);
+        }
+        if (iDropped > 0) {
+          _acknowledgeConnection(iDropped);
+        }
+        _flush();
+      } catch (IOException e) {
+        // The connection failed, the stream with it.
+      }
+    }
+
+    protected int _read(byte[] aBytes, int iStart, int iCount)
+        throws IOException {
+      synchronized (Http2Connection.this) {
+        long lDeadline = _deadline(_iTimeout);
+        while (_aData.isEmpty()) {
+          if (_bRemoteClosed) {
+            return -1;
+          }
+          _checkError();
+          _await(lDeadline);
+        }
+
+        byte[] aData = _aData.peek();
+        int iRead = Math.min(iCount, aData.length - _iDataOffset);
+        System.arraycopy(aData, _iDataOffset, aBytes, iStart, iRead);
+        _iDataOffset += iRead;
+        if (_iDataOffset == aData.length) {
+          _aData.poll();
+          _iDataOffset = 0;
+        }
+        return iRead;
+      }
+    }
+
+    protected void _checkError() throws IOException {
+      if (_mError != null) {
+        throw _mError instanceof RefusedStreamException
+            ? new RefusedStreamException(_mError.getMessage())
+            : new IOException(_mError.getMessage(), _mError);
+      }
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Opens a connection to the host of mEndPoint and sends the connection
+   * preface. For https end points, h2 is negotiated with ALPN and the host
+   * name verified.
+   *
+   * @param mEndPoint URL of the end point to connect to.
+   * @param iConnectTimeout Timeout in milliseconds for the connection.
+   * @throws IOException When the connection fails, or the server doesn't
+   * speak h2.
+   */
+  public Http2Connection(URL mEndPoint, int iConnectTimeout)
+      throws IOException {
+    _sRoute = HttpConnection.routeOf(mEndPoint);
+
+    String sHost = mEndPoint.getHost();
+    int iPort = HttpConnection.portOf(mEndPoint);
+
+    Socket mSocket = new Socket();
+    try {
+      mSocket.setTcpNoDelay(true);
+      mSocket.connect(new InetSocketAddress(sHost, iPort), iConnectTimeout);
+
+      if ("https".equalsIgnoreCase(mEndPoint.getProtocol())) {
+        mSocket = _negotiate(mSocket, sHost, iPort);
+      }
+    } catch (IOException e) {
+      mSocket.close();
+      throw e;
+    }
+
+    _mSocket = mSocket;
+    _mIn = new DataInputStream(
+        new BufferedInputStream(mSocket.getInputStream(), 32 * 1024));
+    _mOut = new BufferedOutputStream(mSocket.getOutputStream(), 32 * 1024);
+
+    ByteArrayOutputStream mSettings = new ByteArrayOutputStream(18);
+    _writeSetting(mSettings, SETTINGS_ENABLE_PUSH, 0);
+    _writeSetting(mSettings, SETTINGS_INITIAL_WINDOW_SIZE,
+        STREAM_RECEIVE_WINDOW);
+    _writeSetting(mSettings, SETTINGS_HEADER_TABLE_SIZE,
+        Hpack.DEFAULT_TABLE_SIZE);
+
+    synchronized (_mOut) {
+      _mOut.write(PREFACE);
+    }
+    _writeFrame(TYPE_SETTINGS, 0, 0, mSettings.toByteArray(), 0,
+        mSettings.size());
+    _writeFrame(TYPE_WINDOW_UPDATE, 0, 0,
+        _int32(CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW), 0, 4);
+    _flush();
+
+    _mReader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        _readFrames();
+      }
+    }, "Http2Connection " + _sRoute);
+    _mReader.setDaemon(true);
+    _mReader.start();
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Opens a stream and sends the head of a request on it. Waits for a free
+   * stream when the server's limit of concurrent streams is reached.
+   *
+   * @param sMethod HTTP method, typically POST.
+   * @param mEndPoint URL of the request.
+   * @param mHeaders Additional headers of the request.
+   * @param lContentLength Length of the body, or a negative value if unknown.
+   * @param iTimeout Timeout in milliseconds for the waits of the stream: for
+   *                 a free stream, flow control and the answer.
+   * @return The new stream, to write the body of the request into.
+   * @throws RefusedStreamException When the connection can't take new
+   * streams any more.
+   * @throws IOException When the head can't be sent.
+   */
+  public Stream newStream(String sMethod, URL mEndPoint,
+                          Map<String, String> mHeaders, long lContentLength,
+                          int iTimeout) throws IOException {
+    synchronized (this) {
+      long lDeadline = _deadline(iTimeout);
+      while (_mFailure == null && !_bGoAway &&
+          _iOpenStreams >= _iMaxStreams) {
+        _await(lDeadline);
+      }
+      if (_mFailure != null || _bGoAway) {
+        throw new RefusedStreamException("Connection not usable");
+      }
+      _iOpenStreams++;
+    }
+
+    LinkedHashMap<String, String> mFields = new LinkedHashMap<String, String>();
+    String sPath = mEndPoint.getFile();
+    mFields.put(":method", sMethod);
+    mFields.put(":scheme", mEndPoint.getProtocol().toLowerCase());
+    mFields.put(":authority", mEndPoint.getPort() != -1
+        ? mEndPoint.getHost() + ":" + mEndPoint.getPort()
+        : mEndPoint.getHost());
+    mFields.put(":path", sPath == null || sPath.equals("") ? "/" : sPath);
+    for (Map.Entry<String, String> mHeader : mHeaders.entrySet()) {
+      mFields.put(mHeader.getKey().toLowerCase(), mHeader.getValue());
+    }
+    if (lContentLength >= 0) {
+      mFields.put("content-length", String.valueOf(lContentLength));
+    }
+
+    ByteArrayOutputStream mBlock = new ByteArrayOutputStream(256);
+    _mEncoder.encode(mFields, mBlock);
+    byte[] aBlock = mBlock.toByteArray();
+
+    Stream mStream;
+    synchronized (_mOut) {
+      synchronized (this) {
+        if (_mFailure != null || _iNextStreamId < 0) {
+          _iOpenStreams--;
+          throw new RefusedStreamException("Connection not usable");
+        }
+        mStream = new Stream(_iNextStreamId, iTimeout);
+        _iNextStreamId += 2;
+        _iStreamCount++;
+        _mStreams.put(mStream._iId, mStream);
+      }
+
+      int iMaxFrame;
+      synchronized (this) {
+        iMaxFrame = _iMaxSendFrame;
+      }
+      int iOffset = 0;
+      int iType = TYPE_HEADERS;
+      do {
+        int iLength = Math.min(iMaxFrame, aBlock.length - iOffset);
+        boolean bLast = iOffset + iLength == aBlock.length;
+        _writeFrame(iType, bLast ? FLAG_END_HEADERS : 0, mStream._iId,
+            aBlock, iOffset, iLength);
+        iOffset += iLength;
+        iType = TYPE_CONTINUATION;
+      } while (iOffset < aBlock.length);
+    }
+
+    return mStream;
+  }
+
+  /**
+   * @return Whether new streams can be opened on this connection.
+   */
+  public synchronized boolean isUsable() {
+    return _mFailure == null && !_bGoAway && _iNextStreamId > 0;
+  }
+
+  /** @return The number of streams opened so far. */
+  public synchronized int getStreamCount() { return _iStreamCount; }
+
+  /** @return The number of streams in flight. */
+  public synchronized int getOpenStreamCount() { return _iOpenStreams; }
+
+  /** @return How long in ns the connection has had no stream, or 0. */
+  public synchronized long getIdleNs() {
+    return _iOpenStreams > 0 ? 0 : System.nanoTime() - _lIdleSince;
+  }
+
+  public String getRoute() { return _sRoute; }
+
+  /**
+   * Sends GOAWAY and closes the socket. Streams in flight fail.
+   */
+  public void close() {
+    try {
+      byte[] aPayload = new byte[8];
+      System.arraycopy(_int32(0), 0, aPayload, 0, 4);
+      _writeFrame(TYPE_GOAWAY, 0, 0, aPayload, 0, 8);
+      _flush();
+    } catch (IOException e) {
+      // Closing anyway.
+    }
+
+    _fail(new IOException("Connection closed"));
+  }
+
+  /*****************************************************************************
+   ********************************** Reading **********************************
+   ****************************************************************************/
+
+  /** Body of the reader thread: dispatches frames until the end. */
+  protected void _readFrames() {
+    try {
+      byte[] aHead = new byte[9];
+      while (true) {
+        _mIn.readFully(aHead);
+        int iLength = ((aHead[0] & 0xff) << 16) | ((aHead[1] & 0xff) << 8) |
+            (aHead[2] & 0xff);
+        int iType = aHead[3] & 0xff;
+        int iFlags = aHead[4] & 0xff;
+        int iStreamId = _readInt32(aHead, 5) & 0x7fffffff;
+
+        if (iLength > DEFAULT_FRAME_SIZE) {
+          throw new ProtocolException("Frame of " + iLength + " bytes");
+        }
+        byte[] aPayload = new byte[iLength];
+        _mIn.readFully(aPayload);
+
+        _onFrame(iType, iFlags, iStreamId, aPayload);
+      }
+    } catch (IOException e) {
+      _fail(e);
+    }
+  }
+
+  protected void _onFrame(int iType, int iFlags, int iStreamId,
+                          byte[] aPayload) throws IOException {
+    switch (iType) {
+      case TYPE_DATA:
+        _onData(iFlags, iStreamId, aPayload);
+        break;
+
+      case TYPE_HEADERS:
+        _onHeaders(iFlags, iStreamId, aPayload);
+        break;
+
+      case TYPE_RST_STREAM:
+        int iError = _readInt32(aPayload, 0);
+        synchronized (this) {
+          Stream mStream = _mStreams.get(iStreamId);
+          if (mStream != null) {
+            _release(mStream, iError == ERROR_REFUSED_STREAM
+                ? new RefusedStreamException("Stream refused")
+                : new IOException("Stream reset with error " + iError));
+          }
+        }
+        break;
+
+      case TYPE_SETTINGS:
+        if ((iFlags & FLAG_ACK) == 0) {
+          _onSettings(aPayload);
+          _writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, aPayload, 0, 0);
+          _flush();
+        }
+        break;
+
+      case TYPE_PING:
+        if ((iFlags & FLAG_ACK) == 0) {
+          _writeFrame(TYPE_PING, FLAG_ACK, 0, aPayload, 0, aPayload.length);
+          _flush();
+        }
+        break;
+
+      case TYPE_GOAWAY:
+        _onGoAway(_readInt32(aPayload, 0) & 0x7fffffff,
+            _readInt32(aPayload, 4));
+        break;
+
+      case TYPE_WINDOW_UPDATE:
+        int iIncrement = _readInt32(aPayload, 0) & 0x7fffffff;
+        synchronized (this) {
+          if (iStreamId == 0) {
+            _lSendWindow += iIncrement;
+          } else {
+            Stream mStream = _mStreams.get(iStreamId);
+            if (mStream != null) {
+              mStream._lSendWindow += iIncrement;
+            }
+          }
+          notifyAll();
+        }
+        break;
+
+      case TYPE_PUSH_PROMISE:
+      case TYPE_CONTINUATION:
+        throw new ProtocolException("Unexpected frame of type " + iType);
+
+      default:
+        // PRIORITY and unknown frames are ignored.
+        break;
+    }
+  }
+
+  protected void _onData(int iFlags, int iStreamId, byte[] aPayload)
+      throws IOException {
+    int iStart = 0;
+    int iEnd = aPayload.length;
+    if ((iFlags & FLAG_PADDED) != 0) {
+      iStart = 1;
+      iEnd -= aPayload[0] & 0xff;
+    }
+
+    byte[] aData = new byte[Math.max(0, iEnd - iStart)];
+    System.arraycopy(aPayload, iStart, aData, 0, aData.length);
+
+    // Padding, and data nobody will read, are given back right away.
+    int iUnread = aPayload.length - aData.length;
+    synchronized (this) {
+      Stream mStream = _mStreams.get(iStreamId);
+      if (mStream != null && mStream._mError == null) {
+        if (aData.length > 0) {
+          mStream._aData.add(aData);
+        }
+        if ((iFlags & FLAG_END_STREAM) != 0) {
+          mStream._bRemoteClosed = true;
+          _release(mStream, null);
+        }
+        notifyAll();
+      } else {
+        iUnread = aPayload.length;
+      }
+    }
+
+    if (iUnread > 0) {
+      _acknowledgeConnection(iUnread);
+      _flush();
+    }
+  }
+
+  protected void _onHeaders(int iFlags, int iStreamId, byte[] aPayload)
+      throws IOException {
+    int iStart = 0;
+    int iEnd = aPayload.length;
+    if ((iFlags & FLAG_PADDED) != 0) {
+      iStart = 1;
+      iEnd -= aPayload[0] & 0xff;
+    }
+    if ((iFlags & FLAG_PRIORITY) != 0) {
+      iStart += 5;
+    }
+
+    ByteArrayOutputStream mBlock = new ByteArrayOutputStream(iEnd - iStart);
+    mBlock.write(aPayload, iStart, iEnd - iStart);
+
+    int iBlockFlags = iFlags;
+    byte[] aHead = new byte[9];
+    while ((iBlockFlags & FLAG_END_HEADERS) == 0) {
+      _mIn.readFully(aHead);
+      int iLength = ((aHead[0] & 0xff) << 16) | ((aHead[1] & 0xff) << 8) |
+          (aHead[2] & 0xff);
+      if ((aHead[3] & 0xff) != TYPE_CONTINUATION ||
+          (_readInt32(aHead, 5) & 0x7fffffff) != iStreamId ||
+          iLength > DEFAULT_FRAME_SIZE) {
+        throw new ProtocolException("Expected CONTINUATION");
+      }
+      byte[] aContinuation = new byte[iLength];
+      _mIn.readFully(aContinuation);
+      mBlock.write(aContinuation, 0, iLength);
+      iBlockFlags = aHead[4] & 0xff;
+    }
+
+    // Decoded even for unknown streams, to keep the table in sync.
+    byte[] aBlock = mBlock.toByteArray();
+    HashMap<String, String> mHeaders = new HashMap<String, String>();
+    _mDecoder.decode(aBlock, 0, aBlock.length, mHeaders);
+
+    synchronized (this) {
+      Stream mStream = _mStreams.get(iStreamId);
+      if (mStream == null) {
+        return;
+      }
+
+      if (!mStream._bHeadersRead) {
+        int iCode;
+        try {
+          iCode = Integer.parseInt(mHeaders.get(":status"));
+        } catch (NumberFormatException e) {
+          throw new ProtocolException("Missing :status");
+        }
+
+        if (iCode >= 200) {
+          mStream._iResponseCode = iCode;
+          mStream._mHeaders.putAll(mHeaders);
+          mStream._mHeaders.remove(":status");
+          mStream._bHeadersRead = true;
+        }
+      }
+
+      if ((iFlags & FLAG_END_STREAM) != 0) {
+        mStream._bRemoteClosed = true;
+        _release(mStream, null);
+      }
+      notifyAll();
+    }
+  }
+
+  protected synchronized void _onSettings(byte[] aPayload)
+      throws IOException {
+    for (int i = 0; i + 6 <= aPayload.length; i += 6) {
+      int iId = ((aPayload[i] & 0xff) << 8) | (aPayload[i + 1] & 0xff);
+      int iValue = _readInt32(aPayload, i + 2);
+
+      switch (iId) {
+        case SETTINGS_MAX_CONCURRENT_STREAMS:
+          _iMaxStreams = iValue < 0 ? Integer.MAX_VALUE : iValue;
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (iValue < 0) {
+            throw new ProtocolException("Window size above 2^31-1");
+          }
+          int iDelta = iValue - _iInitialSendWindow;
+          _iInitialSendWindow = iValue;
+          for (Stream mStream : _mStreams.values()) {
+            mStream._lSendWindow += iDelta;
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          _iMaxSendFrame = iValue;
+          break;
+        default:
+          // The encoder doesn't use the dynamic table: the size of the
+          // server's is irrelevant, as are unknown settings.
+          break;
+      }
+    }
+    notifyAll();
+  }
+
+  protected synchronized void _onGoAway(int iLastStreamId, int iError) {
+    _bGoAway = true;
+
+    for (Stream mStream : new ArrayList<Stream>(_mStreams.values())) {
+      if (mStream._iId > iLastStreamId) {
+        _release(mStream, new RefusedStreamException(
+            "Stream refused by GOAWAY with error " + iError));
+      }
+    }
+    notifyAll();
+  }
+
+  /*****************************************************************************
+   ******************************* Flow Control ********************************
+   ****************************************************************************/
+
+  /**
+   * Takes up to iWanted bytes from the send windows of mStream and of the
+   * connection, waiting for the server to open them if needed.
+   *
+   * @return The number of bytes that may be sent, at least 1.
+   */
+  protected int _acquireWindow(Stream mStream, int iWanted)
+      throws IOException {
+    synchronized (this) {
+      int iAllowed = _takeWindow(mStream, iWanted);
+      if (iAllowed > 0) {
+        return iAllowed;
+      }
+    }
+
+    // Frames still buffered would never be acknowledged.
+    _flush();
+
+    synchronized (this) {
+      long lDeadline = _deadline(mStream._iTimeout);
+      int iAllowed;
+      while ((iAllowed = _takeWindow(mStream, iWanted)) == 0) {
+        _await(lDeadline);
+      }
+      return iAllowed;
+    }
+  }
+
+  /** @return The bytes taken from the windows, possibly 0. */
+  protected int _takeWindow(Stream mStream, int iWanted) throws IOException {
+    mStream._checkError();
+    if (_mFailure != null) {
+      throw new IOException(_mFailure.getMessage(), _mFailure);
+    }
+    if (!_mStreams.containsKey(mStream._iId)) {
+      throw new IOException("Stream closed by the server");
+    }
+
+    int iAllowed = (int) Math.min(Math.min(iWanted, _iMaxSendFrame),
+        Math.min(_lSendWindow, mStream._lSendWindow));
+    if (iAllowed <= 0) {
+      return 0;
+    }
+
+    _lSendWindow -= iAllowed;
+    mStream._lSendWindow -= iAllowed;
+    return iAllowed;
+  }
+
+  /** Gives iCount bytes read by mStream back to the server. */
+  protected void _acknowledge(Stream mStream, int iCount) throws IOException {
+    int iStreamIncrement = 0;
+    synchronized (this) {
+      mStream._iUnacknowledged += iCount;
+      if (mStream._iUnacknowledged >= STREAM_RECEIVE_WINDOW / 2 &&
+          _mStreams.containsKey(mStream._iId)) {
+        iStreamIncrement = mStream._iUnacknowledged;
+        mStream._iUnacknowledged = 0;
+      }
+    }
+
+    if (iStreamIncrement > 0) {
+      _writeFrame(TYPE_WINDOW_UPDATE, 0, mStream._iId,
+          _int32(iStreamIncrement), 0, 4);
+    }
+    if (_acknowledgeConnection(iCount) || iStreamIncrement > 0) {
+      _flush();
+    }
+  }
+
+  /**
+   * Gives iCount bytes back to the connection window of the server, once
+   * enough accumulated.
+   *
+   * @return Whether a WINDOW_UPDATE frame was written.
+   */
+  protected boolean _acknowledgeConnection(int iCount) throws IOException {
+    int iIncrement = 0;
+    synchronized (this) {
+      _iUnacknowledged += iCount;
+      if (_iUnacknowledged >= CONNECTION_RECEIVE_WINDOW / 2) {
+        iIncrement = _iUnacknowledged;
+        _iUnacknowledged = 0;
+      }
+    }
+
+    if (iIncrement == 0) {
+      return false;
+    }
+    _writeFrame(TYPE_WINDOW_UPDATE, 0, 0, _int32(iIncrement), 0, 4);
+    return true;
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Negotiates TLS and h2 with ALPN over mSocket.
+   *
+   * @return The TLS socket.
+   * @throws IOException When the handshake fails, the host name doesn't match
+   * or the server doesn't speak h2.
+   */
+  protected static Socket _negotiate(Socket mSocket, String sHost, int iPort)
+      throws IOException {
+    SSLSocket mSSLSocket = (SSLSocket) ((SSLSocketFactory)
+        SSLSocketFactory.getDefault()).createSocket(mSocket, sHost, iPort,
+        true);
+
+    String sProtocol;
+    try {
+      SSLParameters mParameters = mSSLSocket.getSSLParameters();
+      SSLParameters.class.getMethod("setApplicationProtocols", String[].class)
+          .invoke(mParameters, (Object) new String[] { "h2" });
+      mSSLSocket.setSSLParameters(mParameters);
+
+      mSSLSocket.startHandshake();
+
+      sProtocol = (String) SSLSocket.class.getMethod("getApplicationProtocol")
+          .invoke(mSSLSocket);
+    } catch (NoSuchMethodException | IllegalAccessException |
+        InvocationTargetException e) {
+      // Not ReflectiveOperationException, missing before Android KitKat.
+      mSSLSocket.close();
+      throw new IOException("ALPN is not available on this platform", e);
+    }
+
+    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+        sHost, mSSLSocket.getSession())) {
+      mSSLSocket.close();
+      throw new SSLPeerUnverifiedException(
+          "Hostname " + sHost + " not verified");
+    }
+
+    if (!"h2".equals(sProtocol)) {
+      mSSLSocket.close();
+      throw new ProtocolException("Server did not negotiate h2");
+    }
+
+    return mSSLSocket;
+  }
+
+  /** Writes a whole frame, buffered. */
+  protected void _writeFrame(int iType, int iFlags, int iStreamId,
+                             byte[] aPayload, int iStart, int iLength)
+      throws IOException {
+    byte[] aHead = new byte[9];
+    aHead[0] = (byte) (iLength >>> 16);
+    aHead[1] = (byte) (iLength >>> 8);
+    aHead[2] = (byte) iLength;
+    aHead[3] = (byte) iType;
+    aHead[4] = (byte) iFlags;
+    System.arraycopy(_int32(iStreamId), 0, aHead, 5, 4);
+
+    synchronized (_mOut) {
+      _mOut.write(aHead);
+      _mOut.write(aPayload, iStart, iLength);
+    }
+  }
+
+  protected void _flush() throws IOException {
+    synchronized (_mOut) {
+      _mOut.flush();
+    }
+  }
+
+  /**
+   * Removes mStream from the open streams, failing it with mError if any.
+   * Must hold the lock of the connection.
+   */
+  protected void _release(Stream mStream, IOException mError) {
+    if (mError != null && mStream._mError == null && !mStream._bRemoteClosed) {
+      mStream._mError = mError;
+    }
+
+    if (_mStreams.remove(mStream._iId) != null) {
+      _iOpenStreams--;
+      if (_iOpenStreams == 0) {
+        _lIdleSince = System.nanoTime();
+      }
+    }
+    notifyAll();
+  }
+
+  /** Fails the connection and all its streams. */
+  protected void _fail(IOException mError) {
+    synchronized (this) {
+      if (_mFailure == null) {
+        _mFailure = mError;
+      }
+      for (Stream mStream : new ArrayList<Stream>(_mStreams.values())) {
+        _release(mStream, mError);
+      }
+      notifyAll();
+    }
+
+    try {
+      _mSocket.close();
+    } catch (IOException e) {
+      // Nothing more we can do.
+    }
+  }
+
+  /** @return The nanoTime after which waits time out, or 0 for never. */
+  protected static long _deadline(int iTimeout) {
+    return iTimeout > 0 ? System.nanoTime() + iTimeout * 1000000L : 0;
+  }
+
+  /**
+   * Waits on the connection until notified or lDeadline. Must hold the lock
+   * of the connection.
+   *
+   * @throws SocketTimeoutException When lDeadline passed.
+   */
+  protected void _await(long lDeadline) throws IOException {
+    long lWait = 0;
+    if (lDeadline != 0) {
+      lWait = (lDeadline - System.nanoTime()) / 1000000;
+      if (lWait <= 0) {
+        throw new SocketTimeoutException("HTTP/2 stream timed out");
+      }
+    }
+
+    try {
+      wait(lWait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new java.io.InterruptedIOException("Interrupted");
+    }
+  }
+
+  protected static void _writeSetting(ByteArrayOutputStream mOut, int iId,
+                                      int iValue) {
+    mOut.write(iId >>> 8);
+    mOut.write(iId);
+    mOut.write(_int32(iValue), 0, 4);
+  }
+
+  protected static byte[] _int32(int iValue) {
+    return new byte[] { (byte) (iValue >>> 24), (byte) (iValue >>> 16),
+        (byte) (iValue >>> 8), (byte) iValue };
+  }
+
+  protected static int _readInt32(byte[] aBytes, int iOffset) {
+    return ((aBytes[iOffset] & 0xff) << 24) |
+        ((aBytes[iOffset + 1] & 0xff) << 16) |
+        ((aBytes[iOffset + 2] & 0xff) << 8) | (aBytes[iOffset + 3] & 0xff);
+  }
+}
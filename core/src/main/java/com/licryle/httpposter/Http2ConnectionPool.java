@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one {@link Http2Connection} per host between all the requests to
+ * that host. When set on an {@link HttpConfiguration}, {@link HttpEngine}
+ * sends the request as a stream of that connection, so that concurrent
+ * uploads to the same end point are multiplexed over a single socket instead
+ * of each opening its own.
+ *
+ * - A new connection replaces the shared one once it can't open new streams
+ *   any more, e.g. after the server sent GOAWAY.
+ * - Connections without streams for longer than #getKeepAliveMs() are closed
+ *   on the next call to {@link #acquire}, or by {@link #evictIdle()}.
+ *
+ * ** Usage:
+ * HttpConfiguration mConf = new HttpConfiguration(...);
+ * mConf.setHttp2ConnectionPool(Http2ConnectionPool.getDefault());
+ *
+ * The servers must speak HTTP/2: over TLS with ALPN for https end points, with
+ * prior knowledge (h2c) for http ones. See {@link Http2Connection}.
+ *
+ * @see Http2Connection
+ * @see HttpConfiguration#setHttp2ConnectionPool
+ */
+public class Http2ConnectionPool {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default time in milliseconds a connection without streams is kept. */
+  public static final long DEFAULT_KEEP_ALIVE_MS = 60000;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Shared pool returned by {@link #getDefault()}. */
+  protected static Http2ConnectionPool _mDefault = null;
+
+  /** Shared connection per route. */
+  protected final HashMap<String, Http2Connection> _mConnections =
+      new HashMap<String, Http2Connection>();
+  /** Replaced connections, closed once their last stream is over. */
+  protected final ArrayList<Http2Connection> _aDraining =
+      new ArrayList<Http2Connection>();
+
+  protected final long _lKeepAliveNs;
+
+  /** Number of requests sent on an existing connection. */
+  protected final AtomicLong _lHits = new AtomicLong();
+  /** Number of connections that had to be opened. */
+  protected final AtomicLong _lMisses = new AtomicLong();
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a pool with the default keep alive.
+   */
+  public Http2ConnectionPool() {
+    this(DEFAULT_KEEP_ALIVE_MS);
+  }
+
+  /**
+   * @param lKeepAliveMs Time in milliseconds a connection without streams is
+   *                     kept open.
+   */
+  public Http2ConnectionPool(long lKeepAliveMs) {
+    if (lKeepAliveMs <= 0) {
+      throw new IllegalArgumentException("Invalid keep alive");
+    }
+
+    _lKeepAliveNs = TimeUnit.MILLISECONDS.toNanos(lKeepAliveMs);
+  }
+
+  /**
+   * @return A pool shared by the whole process, created on first use with the
+   * default keep alive.
+   */
+  public static synchronized Http2ConnectionPool getDefault() {
+    if (_mDefault == null) {
+      _mDefault = new Http2ConnectionPool();
+    }
+
+    return _mDefault;
+  }
+
+  /*****************************************************************************
+   ******************************* Pool Functions ******************************
+   ****************************************************************************/
+
+  /**
+   * Returns the connection shared for the host of mEndPoint, opening it if
+   * needed. Requests to the same host wait while it is being opened, rather
+   * than each opening their own.
+   *
+   * @param mEndPoint URL the connection will be used for.
+   * @param iConnectTimeout Timeout in milliseconds to open a new connection.
+   * @return A connection to open a stream on. Nothing needs to be given back.
+   * @throws IOException When a new connection can't be opened.
+   */
+  public synchronized Http2Connection acquire(URL mEndPoint,
+                                              int iConnectTimeout)
+      throws IOException {
+    evictIdle();
+
+    String sRoute = HttpConnection.routeOf(mEndPoint);
+    Http2Connection mConn = _mConnections.get(sRoute);
+    if (mConn != null && mConn.isUsable()) {
+      _lHits.incrementAndGet();
+      return mConn;
+    }
+
+    if (mConn != null) {
+      _mConnections.remove(sRoute);
+      _aDraining.add(mConn);
+    }
+
+    _lMisses.incrementAndGet();
+    mConn = new Http2Connection(mEndPoint, iConnectTimeout);
+    _mConnections.put(sRoute, mConn);
+    return mConn;
+  }
+
+  /**
+   * Closes the connections that had no stream for longer than the keep alive
+   * duration, and the replaced ones that have no stream left.
+   */
+  public void evictIdle() {
+    ArrayList<Http2Connection> aExpired = new ArrayList<Http2Connection>();
+
+    synchronized (this) {
+      Iterator<Http2Connection> mConns = _mConnections.values().iterator();
+      while (mConns.hasNext()) {
+        Http2Connection mConn = mConns.next();
+
+        if (mConn.getIdleNs() >= _lKeepAliveNs) {
+          mConns.remove();
+          aExpired.add(mConn);
+        }
+      }
+
+      mConns = _aDraining.iterator();
+      while (mConns.hasNext()) {
+        Http2Connection mConn = mConns.next();
+        if (mConn.getIdleNs() > 0) {
+          mConns.remove();
+          aExpired.add(mConn);
+        }
+      }
+    }
+
+    for (Http2Connection mConn : aExpired) {
+      mConn.close();
+    }
+  }
+
+  /**
+   * Closes all the connections of the pool. Streams in flight fail.
+   */
+  public void evictAll() {
+    ArrayList<Http2Connection> aConns;
+
+    synchronized (this) {
+      aConns = new ArrayList<Http2Connection>(_mConnections.values());
+      aConns.addAll(_aDraining);
+      _mConnections.clear();
+      _aDraining.clear();
+    }
+
+    for (Http2Connection mConn : aConns) {
+      mConn.close();
+    }
+  }
+
+  /*****************************************************************************
+   ********************************* Statistics ********************************
+   ****************************************************************************/
+
+  /** @return Number of requests sent on an already open connection. */
+  public long getHitCount() { return _lHits.get(); }
+  /** @return Number of requests that required opening a new connection. */
+  public long getMissCount() { return _lMisses.get(); }
+  /** @return Number of connections currently held. */
+  public synchronized int getConnectionCount() { return _mConnections.size(); }
+
+  public long getKeepAliveMs() {
+    return TimeUnit.NANOSECONDS.toMillis(_lKeepAliveNs);
+  }
+}
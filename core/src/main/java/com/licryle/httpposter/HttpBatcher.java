@@ -0,0 +1,746 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces small POSTs to the same end point into one multipart request,
+ * so that many configurations carrying a few arguments and maybe a small
+ * file don't each pay for a full request. Configurations are held for up to
+ * #getMaxDelayMs() or until #getMaxItems() of them are waiting for the same
+ * end point, then sent together. The batched answer of the server is split
+ * back into one {@link HttpListener#onResponse} call per configuration, with
+ * the instance id returned by {@link #post}.
+ *
+ * ** Usage:
+ * HttpBatcher mBatcher = new HttpBatcher(32, 20);
+ *
+ * int iInstanceId = mBatcher.post(mConf);
+ *
+ * ** Protocol:
+ * The batch is a multipart/form-data POST to the end point, with an
+ * X-Batch-Count header giving the number of items. The parts of item i are
+ * those {@link HttpEngine} would send for it, their names prefixed with
+ * "item<i>.": "item0.file_0", "item0.<arg name>", ...
+ *
+ * A configuration left alone when its delay expires is posted as is, without
+ * prefixes.
+ *
+ * The server answers with a multipart/mixed body holding one part per item.
+ * Each part carries a "Content-ID: item<i>" header, or else is taken to be
+ * the answer of the item at its position. An X-Status header gives the
+ * response code of the item, the code of the batch if absent, and the
+ * Content-Type the charset of its body. If the answer isn't multipart/mixed,
+ * every item receives it as is. If the batch fails, every item fails the
+ * same way.
+ *
+ * The items of a batch share the timeouts, connection pools, retry policy
+ * and metrics of the first of them. onStartTransfer and onProgress report
+ * the progress of the whole batch to each item. The listeners are called
+ * from the threads of the batcher.
+ *
+ * Settings that apply to a single request can't be honoured within a batch,
+ * so configurations with any of them are posted on their own, see
+ * {@link #isBatchable}: a resumable or parallel upload, a dedup cache, a
+ * response handler other than the default one, a compression, a bandwidth
+ * limiter or upload rate, a concurrency limiter, a progress reporter, a
+ * transport, or files larger than #getMaxItemBytes() in total.
+ *
+ * Each configuration is in the {@link HttpRequestRegistry} under its
+ * instance id from the call to {@link #post} on, so that it can be
+ * cancelled, and its deadline applies from then on. A cancelled item fails
+ * with {@link HttpEngine#FAILURE_CANCELLED}. Its batch goes on for the
+ * other items, and is only cancelled once all of them are.
+ *
+ * @see HttpEngine
+ */
+public class HttpBatcher {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default number of configurations sent in one batch. */
+  public static final int DEFAULT_MAX_ITEMS = 32;
+  /** Default time in milliseconds a configuration waits for others. */
+  public static final long DEFAULT_MAX_DELAY_MS = 20;
+  /** Default size of the files of a configuration above which it is posted
+   * on its own. */
+  public static final long DEFAULT_MAX_ITEM_BYTES = 64 * 1024;
+  /** Default number of requests sent at once. */
+  public static final int DEFAULT_THREADS = 2;
+
+  /** Prefix of the names of the parts of each item, followed by its index. */
+  public static final String PART_PREFIX = "item";
+  /** Header of the batch request giving its number of items. */
+  public static final String HEADER_BATCH_COUNT = "X-Batch-Count";
+  /** Header of the parts of the answer giving the response code of an
+   * item. */
+  public static final String HEADER_ITEM_STATUS = "X-Status";
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  protected static final Charset HEADER_CHARSET = Charset.forName("UTF-8");
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iMaxItems;
+  protected final long _lMaxDelayMs;
+  protected long _lMaxItemBytes = DEFAULT_MAX_ITEM_BYTES;
+  protected final ScheduledThreadPoolExecutor _mExecutor;
+  protected HttpLogger _mLogger = HttpLogger.NONE;
+
+  /** Batches being filled, by end point. Guarded by this. */
+  protected final HashMap<String, _Batch> _mPending =
+      new HashMap<String, _Batch>();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /**
+   * A configuration waiting in a batch. It stands for it in the
+   * {@link HttpRequestRegistry}, and runs it when it is sent alone.
+   */
+  protected static class _Item extends HttpEngine {
+    /** The batch request carrying this item, once sent. */
+    protected volatile _BatchEngine _mBatch = null;
+
+    public _Item(int iInstanceId, HttpConfiguration mConf) {
+      super(mConf, iInstanceId);
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!super.cancel()) {
+        return false;
+      }
+
+      _BatchEngine mBatch = _mBatch;
+      if (mBatch != null) {
+        mBatch._cancelIfAbandoned();
+      }
+      return true;
+    }
+  }
+
+  /** A part of a multipart/mixed answer. */
+  protected static class _Part {
+    /** Headers of the part, names in lower case. */
+    protected final HashMap<String, String> _mHeaders =
+        new HashMap<String, String>();
+    protected int _iStart;
+    protected int _iEnd;
+  }
+
+  /** Engine sending the items of a batch as one request. */
+  protected static class _BatchEngine extends HttpEngine {
+    protected final ArrayList<_Item> _aItems;
+
+    public _BatchEngine(HttpConfiguration mConf, ArrayList<_Item> aItems) {
+      super(mConf, HttpEngine.nextInstanceId());
+      _aItems = aItems;
+    }
+
+    @Override
+    protected MultipartEntity _buildEntity(HttpConfiguration mConf)
+        throws IOException {
+      MultipartEntity mEntity = new MultipartEntity(mConf.getHTTPBoundary())
+          .setCompression(mConf.getCompression());
+
+      for (int i = 0; i < _aItems.size(); i++) {
+        HttpConfiguration mItem = _aItems.get(i).getConfiguration();
+        String sPrefix = PART_PREFIX + i + ".";
+
+        int iFileNb = 0;
+        for (File mFile : mItem.getFiles()) {
+          mEntity.addFile(sPrefix + "file_" + iFileNb, mFile);
+          iFileNb++;
+        }
+
+        for (Map.Entry<String, String> mPair : mItem.getArgs().entrySet()) {
+          mEntity.addText(sPrefix + mPair.getKey(), mPair.getValue());
+        }
+
+        for (HttpPart mPart : mItem.getParts()) {
+          mPart.addTo(mEntity, sPrefix + mPart.getName());
+        }
+      }
+
+      _mTimings.markBuilt();
+      return mEntity;
+    }
+
+    @Override
+    protected long _httpPost(HttpConfiguration mConf, HttpBody mEntity) {
+      HashMap<String, String> mHeaders = new HashMap<String, String>();
+      mHeaders.put(HEADER_BATCH_COUNT, String.valueOf(_aItems.size()));
+
+      return _httpPost(mConf, mEntity, mHeaders, mConf.getResponseHandler());
+    }
+
+    /** Cancels the batch request once all its items are cancelled. */
+    protected void _cancelIfAbandoned() {
+      for (_Item mItem : _aItems) {
+        if (!mItem.isCancelled()) {
+          return;
+        }
+      }
+
+      cancel();
+    }
+  }
+
+  /** Configurations waiting to be sent to the same end point. */
+  protected static class _Batch {
+    protected final String _sKey;
+    protected final ArrayList<_Item> _aItems = new ArrayList<_Item>();
+
+    public _Batch(String sKey) {
+      _sKey = sKey;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a batcher with the default limits.
+   */
+  public HttpBatcher() {
+    this(DEFAULT_MAX_ITEMS, DEFAULT_MAX_DELAY_MS);
+  }
+
+  /**
+   * @param iMaxItems Number of configurations for the same end point that
+   *                  triggers sending them.
+   * @param lMaxDelayMs Time in milliseconds after which a configuration is
+   *                    sent, along with those that joined it meanwhile.
+   */
+  public HttpBatcher(int iMaxItems, long lMaxDelayMs) {
+    this(iMaxItems, lMaxDelayMs, DEFAULT_THREADS);
+  }
+
+  /**
+   * @param iMaxItems Number of configurations for the same end point that
+   *                  triggers sending them.
+   * @param lMaxDelayMs Time in milliseconds after which a configuration is
+   *                    sent, along with those that joined it meanwhile.
+   * @param iThreads Number of requests sent at once.
+   */
+  public HttpBatcher(int iMaxItems, long lMaxDelayMs, int iThreads) {
+    if (iMaxItems <= 0 || lMaxDelayMs < 0 || iThreads <= 0) {
+      throw new IllegalArgumentException("Invalid batching limits");
+    }
+
+    _iMaxItems = iMaxItems;
+    _lMaxDelayMs = lMaxDelayMs;
+
+    _mExecutor = new ScheduledThreadPoolExecutor(iThreads,
+        new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable mRunnable) {
+        Thread mThread = new Thread(mRunnable, "HttpBatcher");
+        mThread.setDaemon(true);
+        return mThread;
+      }
+    });
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Sends the request of mConf, within a batch if possible.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @return The instance id given to the listener of mConf.
+   */
+  public int post(final HttpConfiguration mConf) {
+    final _Item mItem = new _Item(HttpEngine.nextInstanceId(), mConf);
+    mItem.setLogger(_mLogger);
+    mItem._register();
+
+    if (!isBatchable(mConf)) {
+      _mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          mItem.run();
+        }
+      });
+      return mItem.getInstanceId();
+    }
+
+    String sKey = mConf.getEndPoint().toString();
+    _Batch mFull = null;
+    synchronized (this) {
+      _Batch mBatch = _mPending.get(sKey);
+      if (mBatch == null) {
+        mBatch = new _Batch(sKey);
+        _mPending.put(sKey, mBatch);
+        _schedule(mBatch);
+      }
+
+      mBatch._aItems.add(mItem);
+      if (mBatch._aItems.size() >= _iMaxItems) {
+        _mPending.remove(sKey);
+        mFull = mBatch;
+      }
+    }
+
+    if (mFull != null) {
+      _submit(mFull);
+    }
+
+    return mItem.getInstanceId();
+  }
+
+  /**
+   * A configuration is posted on its own if it has any setting that applies
+   * to a single request, which the batch request would drop. The priority
+   * only matters with a bandwidth limiter.
+   *
+   * @param mConf A configuration.
+   * @return Whether mConf can be sent within a batch.
+   */
+  public boolean isBatchable(HttpConfiguration mConf) {
+    if (mConf.getResumableUpload() != null ||
+        mConf.getParallelUpload() != null ||
+        mConf.getResponseHandler() != StringResponseHandler.DEFAULT ||
+        mConf.getDedupCache() != null ||
+        mConf.getCompression() != null ||
+        mConf.getBandwidthLimiter() != null ||
+        mConf.getMaxUploadRate() > 0 ||
+        mConf.getConcurrencyLimiter() != null ||
+        mConf.getProgressReporter() != null ||
+        mConf.getTransport() != null) {
+      return false;
+    }
+
+    long lBytes = 0;
+    for (File mFile : mConf.getFiles()) {
+      lBytes += mFile.length();
+    }
+    for (HttpPart mPart : mConf.getParts()) {
+      if (mPart.getLength() < 0) {
+        return false;
+      }
+      lBytes += mPart.getLength();
+    }
+    return lBytes <= _lMaxItemBytes;
+  }
+
+  /**
+   * Sends the pending batches right away, without waiting for their delay.
+   */
+  public void flush() {
+    ArrayList<_Batch> aBatches;
+    synchronized (this) {
+      aBatches = new ArrayList<_Batch>(_mPending.values());
+      _mPending.clear();
+    }
+
+    for (_Batch mBatch : aBatches) {
+      _submit(mBatch);
+    }
+  }
+
+  /**
+   * Sends the pending batches, then stops accepting new configurations.
+   * Requests already submitted still run.
+   */
+  public void shutdown() {
+    flush();
+    _mExecutor.shutdown();
+  }
+
+  /**
+   * @param lMaxItemBytes Size of the files of a configuration above which it
+   *                      is posted on its own.
+   * @return This batcher, to chain calls.
+   */
+  public HttpBatcher setMaxItemBytes(long lMaxItemBytes) {
+    _lMaxItemBytes = lMaxItemBytes;
+    return this;
+  }
+
+  /**
+   * @param mLogger Where to send the debug traces of the requests.
+   * @return This batcher, to chain calls.
+   */
+  public HttpBatcher setLogger(HttpLogger mLogger) {
+    _mLogger = mLogger != null ? mLogger : HttpLogger.NONE;
+    return this;
+  }
+
+  public int getMaxItems() { return _iMaxItems; }
+  public long getMaxDelayMs() { return _lMaxDelayMs; }
+  public long getMaxItemBytes() { return _lMaxItemBytes; }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Sends mBatch after the delay, unless it was sent meanwhile. */
+  protected void _schedule(final _Batch mBatch) {
+    _mExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (HttpBatcher.this) {
+          if (_mPending.get(mBatch._sKey) != mBatch) {
+            return;
+          }
+          _mPending.remove(mBatch._sKey);
+        }
+
+        _send(mBatch);
+      }
+    }, _lMaxDelayMs, TimeUnit.MILLISECONDS);
+  }
+
+  protected void _submit(final _Batch mBatch) {
+    _mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        _send(mBatch);
+      }
+    });
+  }
+
+  /**
+   * Sends the items of mBatch, as a single request if there are several,
+   * and dispatches the answer to their listeners.
+   */
+  protected void _send(_Batch mBatch) {
+    final ArrayList<_Item> aItems = new ArrayList<_Item>();
+    for (_Item mItem : mBatch._aItems) {
+      if (mItem.isCancelled()) {
+        _dispatchFailure(mItem, HttpEngine.FAILURE_CANCELLED);
+      } else {
+        aItems.add(mItem);
+      }
+    }
+
+    if (aItems.isEmpty()) {
+      return;
+    } else if (aItems.size() == 1) {
+      aItems.get(0).run();
+      return;
+    }
+
+    HttpConfiguration mFirst = aItems.get(0).getConfiguration();
+    int iConnectTimeout = 0;
+    int iReadTimeout = 0;
+    for (_Item mItem : aItems) {
+      iConnectTimeout = Math.max(iConnectTimeout,
+          mItem.getConfiguration().getConnectTimeout());
+      iReadTimeout = Math.max(iReadTimeout,
+          mItem.getConfiguration().getReadTimeout());
+    }
+
+    HttpConfiguration mConf = new HttpConfiguration(mFirst.getEndPoint(),
+        new HashMap<String, String>(), new ArrayList<File>(),
+        new HttpListener() {
+          @Override
+          public void onStartTransfer(int iInstance) {
+            for (_Item mItem : aItems) {
+              HttpListener mListener = mItem.getConfiguration().getListener();
+              if (mListener != null && !mItem.isCancelled()) {
+                mListener.onStartTransfer(mItem.getInstanceId());
+              }
+            }
+          }
+
+          @Override
+          public void onProgress(int iInstance, int iProgress) {
+            for (_Item mItem : aItems) {
+              HttpListener mListener = mItem.getConfiguration().getListener();
+              if (mListener != null && !mItem.isCancelled()) {
+                mListener.onProgress(mItem.getInstanceId(), iProgress);
+              }
+            }
+          }
+
+          @Override
+          public void onFailure(int iInstance, long lErrorCode) {}
+
+          @Override
+          public void onResponse(int iInstance, int iResponseCode,
+                                 String sResponse) {}
+        }, null, iConnectTimeout, iReadTimeout)
+        .setResponseHandler(new BytesResponseHandler())
+        .setConnectionPool(mFirst.getConnectionPool())
+        .setHttp2ConnectionPool(mFirst.getHttp2ConnectionPool())
+        .setRetryPolicy(mFirst.getRetryPolicy())
+        .setMetrics(mFirst.getMetrics());
+
+    _BatchEngine mEngine = new _BatchEngine(mConf, aItems);
+    mEngine.setLogger(_mLogger);
+    for (_Item mItem : aItems) {
+      mItem._mBatch = mEngine;
+    }
+    // Items may have been cancelled before they knew of the batch.
+    mEngine._cancelIfAbandoned();
+    long lResult = mEngine.run();
+
+    _mLogger.d("HttpBatcher", String.format(
+        "_send: Batch of %d items to %s ended with %d", aItems.size(),
+        mBatch._sKey, lResult));
+
+    if (lResult == HttpEngine.FAILURE_RESPONSE) {
+      // The answer wasn't read, as for any request failing this way.
+      for (_Item mItem : aItems) {
+        _dispatchResponse(mItem, mEngine.getResponseCode(),
+            mEngine.getResponse());
+      }
+      return;
+    } else if (lResult != HttpEngine.SUCCESS) {
+      for (_Item mItem : aItems) {
+        _dispatchFailure(mItem, lResult);
+      }
+      return;
+    }
+
+    _dispatchAnswer(aItems, mEngine);
+  }
+
+  /** Splits the answer of mEngine between aItems. */
+  protected void _dispatchAnswer(ArrayList<_Item> aItems,
+                                 HttpEngine mEngine) {
+    byte[] aBody = mEngine.getContent() instanceof byte[]
+        ? (byte[]) mEngine.getContent() : new byte[0];
+    String sContentType = mEngine.getResponseHeader("content-type");
+    int iCode = mEngine.getResponseCode();
+
+    String sBoundary = null;
+    if (sContentType != null &&
+        sContentType.trim().toLowerCase().startsWith("multipart/mixed")) {
+      sBoundary = _parameter(sContentType, "boundary");
+    }
+
+    if (sBoundary == null) {
+      String sBody = _decode(aBody, 0, aBody.length, sContentType, iCode);
+      for (_Item mItem : aItems) {
+        _dispatchResponse(mItem, iCode, sBody);
+      }
+      return;
+    }
+
+    ArrayList<_Part> aParts = _split(aBody, sBoundary);
+    _Part[] aAnswers = new _Part[aItems.size()];
+    for (int i = 0; i < aParts.size(); i++) {
+      _Part mPart = aParts.get(i);
+      int iItem = i;
+
+      String sId = mPart._mHeaders.get("content-id");
+      if (sId != null) {
+        sId = sId.trim();
+        if (sId.startsWith("<") && sId.endsWith(">")) {
+          sId = sId.substring(1, sId.length() - 1);
+        }
+        try {
+          iItem = sId.startsWith(PART_PREFIX)
+              ? Integer.parseInt(sId.substring(PART_PREFIX.length())) : -1;
+        } catch (NumberFormatException e) {
+          iItem = -1;
+        }
+      }
+
+      if (iItem >= 0 && iItem < aAnswers.length) {
+        aAnswers[iItem] = mPart;
+      }
+    }
+
+    for (int i = 0; i < aAnswers.length; i++) {
+      _Part mPart = aAnswers[i];
+      if (mPart == null) {
+        _dispatchFailure(aItems.get(i), HttpEngine.FAILURE_RESPONSE);
+        continue;
+      }
+
+      int iItemCode = iCode;
+      String sStatus = mPart._mHeaders.get(HEADER_ITEM_STATUS.toLowerCase());
+      if (sStatus != null) {
+        try {
+          iItemCode = Integer.parseInt(sStatus.trim());
+        } catch (NumberFormatException e) {
+          // Keep the code of the batch.
+        }
+      }
+
+      _dispatchResponse(aItems.get(i), iItemCode, _decode(aBody,
+          mPart._iStart, mPart._iEnd, mPart._mHeaders.get("content-type"),
+          iItemCode));
+    }
+  }
+
+  /**
+   * Gives its answer to the listener of mItem, unless it was cancelled, and
+   * removes it from the registry.
+   */
+  protected void _dispatchResponse(_Item mItem, int iCode, String sBody) {
+    if (mItem.isCancelled()) {
+      _dispatchFailure(mItem, HttpEngine.FAILURE_CANCELLED);
+      return;
+    }
+
+    mItem._unregister();
+    HttpListener mListener = mItem.getConfiguration().getListener();
+    if (mListener != null) {
+      mListener.onResponse(mItem.getInstanceId(), iCode, sBody);
+    }
+  }
+
+  /**
+   * Reports the failure of mItem, as cancelled if it was, and removes it
+   * from the registry.
+   */
+  protected void _dispatchFailure(_Item mItem, long lError) {
+    mItem._unregister();
+    HttpListener mListener = mItem.getConfiguration().getListener();
+    if (mListener != null) {
+      mListener.onFailure(mItem.getInstanceId(),
+          mItem.isCancelled() ? HttpEngine.FAILURE_CANCELLED : lError);
+    }
+  }
+
+  /**
+   * Splits a multipart body into its parts. The preamble and epilogue are
+   * ignored, as is a last part missing its closing delimiter.
+   */
+  protected static ArrayList<_Part> _split(byte[] aBody, String sBoundary) {
+    ArrayList<_Part> aParts = new ArrayList<_Part>();
+    byte[] aDelimiter = ("\r\n--" + sBoundary).getBytes(HEADER_CHARSET);
+
+    // The first delimiter may start the body, without a CRLF before it.
+    int iPos = _indexOf(aBody, aDelimiter, 2, 0) == 0
+        ? aDelimiter.length - 2 : -1;
+    if (iPos == -1) {
+      iPos = _indexOf(aBody, aDelimiter, 0, 0);
+      if (iPos == -1) {
+        return aParts;
+      }
+      iPos += aDelimiter.length;
+    }
+
+    while (iPos + 2 <= aBody.length &&
+        !(aBody[iPos] == '-' && aBody[iPos + 1] == '-')) {
+      // Transport padding, then CRLF.
+      int iLineEnd = _indexOf(aBody, new byte[] { '\r', '\n' }, 0, iPos);
+      if (iLineEnd == -1) {
+        break;
+      }
+
+      _Part mPart = new _Part();
+      int iLine = iLineEnd + 2;
+      while (true) {
+        iLineEnd = _indexOf(aBody, new byte[] { '\r', '\n' }, 0, iLine);
+        if (iLineEnd == -1 || iLineEnd == iLine) {
+          break;
+        }
+
+        String sLine = new String(aBody, iLine, iLineEnd - iLine,
+            HEADER_CHARSET);
+        int iColon = sLine.indexOf(':');
+        if (iColon > 0) {
+          mPart._mHeaders.put(sLine.substring(0, iColon).trim().toLowerCase(),
+              sLine.substring(iColon + 1).trim());
+        }
+        iLine = iLineEnd + 2;
+      }
+      if (iLineEnd == -1) {
+        break;
+      }
+
+      mPart._iStart = iLineEnd + 2;
+      mPart._iEnd = _indexOf(aBody, aDelimiter, 0, mPart._iStart);
+      if (mPart._iEnd == -1) {
+        break;
+      }
+
+      aParts.add(mPart);
+      iPos = mPart._iEnd + aDelimiter.length;
+    }
+
+    return aParts;
+  }
+
+  /**
+   * @return The position of aNeedle in aHaystack from iFrom, ignoring the
+   * first iSkip bytes of aNeedle, or -1.
+   */
+  protected static int _indexOf(byte[] aHaystack, byte[] aNeedle, int iSkip,
+                                int iFrom) {
+    int iLength = aNeedle.length - iSkip;
+    outer:
+    for (int i = iFrom; i <= aHaystack.length - iLength; i++) {
+      for (int j = 0; j < iLength; j++) {
+        if (aHaystack[i + j] != aNeedle[iSkip + j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /** @return The value of the parameter sName of a header, or null. */
+  protected static String _parameter(String sHeader, String sName) {
+    for (String sParam : sHeader.split(";")) {
+      int iEquals = sParam.indexOf('=');
+      if (iEquals == -1 ||
+          !sParam.substring(0, iEquals).trim().equalsIgnoreCase(sName)) {
+        continue;
+      }
+
+      String sValue = sParam.substring(iEquals + 1).trim();
+      if (sValue.length() > 1 && sValue.startsWith("\"") &&
+          sValue.endsWith("\"")) {
+        sValue = sValue.substring(1, sValue.length() - 1);
+      }
+      return sValue;
+    }
+
+    return null;
+  }
+
+  /** Decodes a body with the charset of its Content-Type. */
+  protected static String _decode(byte[] aBody, int iStart, int iEnd,
+                                  String sContentType, int iCode) {
+    try {
+      Charset mCharset = new HttpResponseBody(iCode, sContentType, null, -1,
+          null).getCharset();
+      return new String(aBody, iStart, iEnd - iStart, mCharset);
+    } catch (IOException e) {
+      return new String(aBody, iStart, iEnd - iStart,
+          HttpResponseBody.DEFAULT_CHARSET);
+    }
+  }
+}
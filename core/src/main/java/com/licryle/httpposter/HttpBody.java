@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a request sent by the {@link HttpEngine}: the multipart form of
+ * a configuration ({@link MultipartEntity}), or the range of a file sent by a
+ * resumable upload ({@link FileRangeBody}).
+ *
+ * @see HttpEngine#_httpPost
+ */
+public interface HttpBody {
+  /** @return The exact number of bytes {@link #writeTo} writes, or -1 if not
+   * known in advance, in which case the body is sent chunked. */
+  long getContentLength();
+
+  /** @return The value of the Content-Type header, or null for none. */
+  String getContentType();
+
+  /** @return The value of the Content-Encoding header, or null for none. */
+  String getContentEncoding();
+
+  /** @return Whether {@link #writeTo} can be called more than once, which
+   * allows resending the body on a fresh connection. */
+  boolean isRepeatable();
+
+  /**
+   * Writes the whole body to mOut. When mOut implements
+   * {@link FileChannelSink}, file contents may be handed to it directly.
+   *
+   * @param mOut Where to write the body.
+   * @throws IOException When writing fails.
+   */
+  void writeTo(OutputStream mOut) throws IOException;
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration class for the {@link HttpEngine}, and the Android HttpPoster
+ * running it. Helps specify where, what and under which conditions to send the
+ * HTTP POST request.
+ *
+ * ** Usage:
+ * HashMap<String, String> mArgs = new HashMap<>();
+ * mArgs.put("lat", "40.712784");
+ * mArgs.put("lon", "-74.005941");
+ *
+ * ArrayList<File> aFileList = getMyImageFiles();
+ *
+ * HttpConfiguration mConf = new HttpConfiguration(
+ *     "http://www.mysite.com/HttpPostEndPoint",
+ *     mArgs,
+ *     aFileList,
+ *     this,  // If this class implements HttpListener
+ *     null,  // Boundary for Entities - Optional
+ *     15000  // Timeout in ms for the connection operation
+ *     10000, // Timeout in ms for the reading operation
+ * );
+ *
+ * This will send "lat=40.712784", "lon=-74.005941" as well as the encoded files
+ * to the server using {@link HttpEngine} or the Android HttpPoster.
+ *
+ * @see HttpEngine
+ */
+public class HttpConfiguration {
+  /** URL end point to send the HTTP Post request to. */
+  protected URL _mEndPoint;
+  /** Array of Key/Value pairs to be sent in the request, in the order of the
+   * map given. */
+  protected HashMap<String, String> _mArgs;
+  /** Array of files to be encoded and sent in the request. */
+  protected ArrayList<File> _mFilePaths;
+  /** Typed parts sent after the args and files, in the order added. */
+  protected ArrayList<HttpPart> _aParts = new ArrayList<HttpPart>();
+  /** Unique String to be used for the HTTP Boundary. It must *not* appear in
+   * your files data. */
+  protected String _sHTTPBoundary;
+  /** Object implementing {@see HttpListener} to received callbacks calls. */
+  protected HttpListener _mListener;
+  /** Timeout in milliseconds for the connection. */
+  protected int _iConnectTimeout;
+  /** Timeout in mulliseconds for the reading of the response from the server.*/
+  protected int _iReadTimeout;
+  /** Optional pool of keep-alive connections to send the request through. */
+  protected HttpConnectionPool _mConnectionPool = null;
+  /** Consumes the body of the server response. */
+  protected HttpResponseHandler<?> _mResponseHandler =
+      StringResponseHandler.DEFAULT;
+  /** When set, files are sent in acknowledged ranges that can be resumed. */
+  protected ResumableUpload _mResumableUpload = null;
+  /** When set, files are sent in parts over several connections at once. */
+  protected ParallelUpload _mParallelUpload = null;
+  /** When set, failed requests are sent again according to this policy. */
+  protected RetryPolicy _mRetryPolicy = null;
+  /** Receives the timings and outcome of the request. */
+  protected HttpMetrics _mMetrics = HttpMetrics.NONE;
+  /** When set, the request is run by this transport's event loops. */
+  protected HttpSelectorTransport _mTransport = null;
+  /** When set, the request is sent as a stream of a shared HTTP/2
+   * connection. */
+  protected Http2ConnectionPool _mHttp2ConnectionPool = null;
+  /** When set, the request body is compressed while sent. */
+  protected RequestCompression _mCompression = null;
+  /** When set, files the server already has are not sent again. */
+  protected DedupCache _mDedupCache = null;
+  /** When set, the upload shares this bandwidth with the other requests. */
+  protected BandwidthLimiter _mBandwidthLimiter = null;
+  /** Share of the bandwidth of the limiter, relative to the other
+   * requests. */
+  protected int _iPriority = BandwidthLimiter.DEFAULT_WEIGHT;
+  /** Upload rate of the request in bytes per second, 0 for no cap. */
+  protected long _lMaxUploadRate = 0;
+  /** When set, the request waits for a slot of this limiter. */
+  protected ConcurrencyLimiter _mConcurrencyLimiter = null;
+  /** Time in ms after which the request is cancelled, 0 for none. */
+  protected long _lDeadline = 0;
+  /** When set, progress is also reported in bytes through it. */
+  protected ProgressReporter _mProgressReporter = null;
+
+  /**
+   * Creates the configuration object for the HTTP POST request to be executed
+   * by an {@link HttpEngine} instance.
+   *
+   * @param mEndPoint URL end point to send the HTTP Post request to.
+   * @param mArgs Array of Key/Value pairs to be sent in the request.
+   * @param mFilePaths Array of files to be encoded and sent in the request.
+   * @param mListener Object implementing {@see HttpListener} to received
+   *                  callbacks calls.
+   * @param sHTTPBoundary Unique String to be used for the HTTP Boundary. It
+   *                      must *not* appear in your files data.
+   * @param iConnectTimeout Timeout in milliseconds for the connection.
+   * @param iReadTimeout Timeout in mulliseconds for the reading of the response
+   *                     from the server.
+   */
+  public HttpConfiguration(URL mEndPoint,
+                           Map<String, String> mArgs,
+                           ArrayList<File> mFilePaths,
+                           HttpListener mListener,
+                           String sHTTPBoundary,
+                           int iConnectTimeout,
+                           int iReadTimeout) {
+    _mEndPoint = mEndPoint;
+    _mArgs = new LinkedHashMap<String, String>(mArgs);
+    _mFilePaths = new ArrayList<File>(mFilePaths);
+    _mListener = mListener;
+
+    _sHTTPBoundary = sHTTPBoundary;
+    if (sHTTPBoundary == null || sHTTPBoundary.equals("")) {
+      _sHTTPBoundary = "-------" + String.valueOf(Math.random() * 10e10)
+          + "-------";
+    }
+
+    _iReadTimeout = iReadTimeout;
+    _iConnectTimeout = iConnectTimeout;
+  }
+
+  public URL getEndPoint() { return _mEndPoint; }
+  public ArrayList<File> getFiles() { return _mFilePaths; }
+  public HashMap<String, String> getArgs() { return _mArgs; }
+  public List<HttpPart> getParts() { return _aParts; }
+  public HttpListener getListener() { return _mListener; }
+  public String getHTTPBoundary() { return _sHTTPBoundary; }
+  public int getReadTimeout() { return _iReadTimeout; }
+  public int getConnectTimeout() { return _iConnectTimeout; }
+  public HttpConnectionPool getConnectionPool() { return _mConnectionPool; }
+  public HttpResponseHandler<?> getResponseHandler() {
+    return _mResponseHandler;
+  }
+  public ResumableUpload getResumableUpload() { return _mResumableUpload; }
+  public ParallelUpload getParallelUpload() { return _mParallelUpload; }
+  public RetryPolicy getRetryPolicy() { return _mRetryPolicy; }
+  public HttpMetrics getMetrics() { return _mMetrics; }
+  public HttpSelectorTransport getTransport() { return _mTransport; }
+  public Http2ConnectionPool getHttp2ConnectionPool() {
+    return _mHttp2ConnectionPool;
+  }
+  public RequestCompression getCompression() { return _mCompression; }
+  public DedupCache getDedupCache() { return _mDedupCache; }
+  public BandwidthLimiter getBandwidthLimiter() { return _mBandwidthLimiter; }
+  public int getPriority() { return _iPriority; }
+  public long getMaxUploadRate() { return _lMaxUploadRate; }
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return _mConcurrencyLimiter;
+  }
+  public long getDeadline() { return _lDeadline; }
+  public ProgressReporter getProgressReporter() { return _mProgressReporter; }
+
+  /**
+   * Sends the request through a pool of keep-alive connections, reusing an
+   * idle connection to the same host when possible instead of opening and
+   * closing a new one for every request. By default, no pool is used.
+   *
+   * @param mPool The pool to use, typically
+   *              {@link HttpConnectionPool#getDefault()}, or null to open a
+   *              dedicated connection.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setConnectionPool(HttpConnectionPool mPool) {
+    _mConnectionPool = mPool;
+    return this;
+  }
+
+  /**
+   * Sets how the body of the server response is consumed. By default, it is
+   * decoded into a String of up to
+   * {@link BytesResponseHandler#DEFAULT_MAX_BYTES} bytes, given to
+   * {@link HttpListener#onResponse}. Other handlers can stream it to a file
+   * or any OutputStream instead, see {@link HttpResponseHandler}.
+   *
+   * @param mHandler The handler to use, or null for the default one.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setResponseHandler(
+      HttpResponseHandler<?> mHandler) {
+    _mResponseHandler =
+        mHandler != null ? mHandler : StringResponseHandler.DEFAULT;
+    return this;
+  }
+
+  /**
+   * Sends the files in ranges acknowledged by the server, so that a failed
+   * upload resumes where it stopped instead of starting over. The server must
+   * implement the protocol described in {@link ResumableUpload}. By default,
+   * files are sent in a single multipart request.
+   *
+   * @param mUpload Settings and state of the upload, or null to disable.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setResumableUpload(ResumableUpload mUpload) {
+    _mResumableUpload = mUpload;
+    return this;
+  }
+
+  /**
+   * Retries failed requests with an exponential backoff, see
+   * {@link RetryPolicy}. By default, a request is attempted only once.
+   *
+   * @param mPolicy The policy to apply, or null to disable retries.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setRetryPolicy(RetryPolicy mPolicy) {
+    _mRetryPolicy = mPolicy;
+    return this;
+  }
+
+  /**
+   * Reports the timings, response code and outcome of the request once it
+   * is over, typically to {@link HttpMetricsRegistry#getDefault()} to track
+   * latency percentiles per end point. By default, nothing is reported.
+   *
+   * @param mMetrics Where to report the measures, or null to disable.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setMetrics(HttpMetrics mMetrics) {
+    _mMetrics = mMetrics != null ? mMetrics : HttpMetrics.NONE;
+    return this;
+  }
+
+  /**
+   * Runs the request on the event loops of a non-blocking transport instead
+   * of a blocking connection, so that it doesn't hold a thread while in
+   * flight when posted with HttpAsyncPoster. See
+   * {@link HttpSelectorTransport} for what it supports. By default, requests
+   * are run by the {@link HttpEngine} on the calling thread.
+   *
+   * @param mTransport The transport to use, or null for the engine.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setTransport(HttpSelectorTransport mTransport) {
+    _mTransport = mTransport;
+    return this;
+  }
+
+  /**
+   * Sends the request over HTTP/2, as a stream of the connection the pool
+   * shares for the host, so that concurrent requests to it are multiplexed
+   * on one socket. The server must speak HTTP/2, see {@link Http2Connection}.
+   * Takes precedence over {@link #setConnectionPool}. By default, requests
+   * are sent with HTTP/1.1.
+   *
+   * @param mPool The pool to use, typically
+   *              {@link Http2ConnectionPool#getDefault()}, or null for
+   *              HTTP/1.1.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setHttp2ConnectionPool(Http2ConnectionPool mPool) {
+    _mHttp2ConnectionPool = mPool;
+    return this;
+  }
+
+  /**
+   * Compresses the request body while it is sent, as a whole or part by part,
+   * skipping files that are already compressed. The server must accept the
+   * Content-Encoding of the codec. By default, bodies are sent as is.
+   *
+   * @param mCompression How to compress the body, see
+   *                     {@link RequestCompression}, or null not to.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setCompression(RequestCompression mCompression) {
+    _mCompression = mCompression;
+    return this;
+  }
+
+  /**
+   * Asks the server which files it already has before sending them, and
+   * sends only a reference to those, see {@link DedupCache}. By default,
+   * files are always sent in full.
+   *
+   * @param mCache The cache of file hashes, typically shared by all the
+   *               configurations, or null not to deduplicate.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setDedupCache(DedupCache mCache) {
+    _mDedupCache = mCache;
+    return this;
+  }
+
+  /**
+   * Sends each file in parts over several connections at once, then commits
+   * them with the regular form. The server must implement the protocol
+   * described in {@link ParallelUpload}. {@link #setResumableUpload} takes
+   * precedence. By default, files are sent in the multipart form itself.
+   *
+   * @param mUpload The parallel upload to use, or null.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setParallelUpload(ParallelUpload mUpload) {
+    _mParallelUpload = mUpload;
+    return this;
+  }
+
+  /**
+   * Makes the upload draw from a bandwidth shared with the other requests
+   * using the same limiter, typically all the requests of the process. By
+   * default, uploads aren't limited.
+   *
+   * @param mLimiter The shared limiter, or null.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setBandwidthLimiter(BandwidthLimiter mLimiter) {
+    _mBandwidthLimiter = mLimiter;
+    return this;
+  }
+
+  /**
+   * @param iPriority Share of the bandwidth of the limiter while other
+   *                  uploads wait for it: an upload of priority 4 goes 4
+   *                  times as fast as one of priority 1. 1 by default.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setPriority(int iPriority) {
+    _iPriority = iPriority;
+    return this;
+  }
+
+  /**
+   * @param lBytesPerSecond Maximum upload rate of this request, with or
+   *                        without a limiter, 0 for none.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setMaxUploadRate(long lBytesPerSecond) {
+    _lMaxUploadRate = lBytesPerSecond;
+    return this;
+  }
+
+  /**
+   * Makes each HTTP request wait for a slot of the limiter, which adapts the
+   * number of requests in flight to each end point from their outcomes and
+   * times to answer. By default, requests are sent right away.
+   *
+   * @param mLimiter The shared limiter, or null.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setConcurrencyLimiter(
+      ConcurrencyLimiter mLimiter) {
+    _mConcurrencyLimiter = mLimiter;
+    return this;
+  }
+
+  /**
+   * Cancels the request if it is still running lMs after it started, retries
+   * and waits for a connection slot included. The request then fails with
+   * {@link HttpEngine#FAILURE_CANCELLED}. By default, there is no deadline.
+   *
+   * @param lMs Time in milliseconds the request may take, 0 for none.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setDeadline(long lMs) {
+    _lDeadline = lMs;
+    return this;
+  }
+
+  /**
+   * Reports the progress of the request in bytes sent, with its throughput,
+   * at the pace and on the executor of mReporter, in addition to the
+   * percentages given to {@link HttpListener#onProgress}. By default, only
+   * percentages are reported.
+   *
+   * @param mReporter The reporter, which may be shared by many requests, or
+   *                  null.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration setProgressReporter(ProgressReporter mReporter) {
+    _mProgressReporter = mReporter;
+    return this;
+  }
+
+  /**
+   * Adds a typed part to the request, after the args and files given to the
+   * constructor. Parts are sent in the order they are added, and several
+   * may share a name.
+   *
+   * @param mPart The part to send, see the factories of {@link HttpPart}.
+   * @return This configuration, to chain calls.
+   */
+  public HttpConfiguration addPart(HttpPart mPart) {
+    _aParts.add(mPart);
+    return this;
+  }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A persistent HTTP/1.1 connection to a single host, owned by an
+ * {@link HttpConnectionPool}. Unlike {@link java.net.HttpURLConnection}, it
+ * exposes the underlying socket lifecycle so that it can be kept alive and
+ * reused across several POST requests to the same end point.
+ *
+ * A connection runs one exchange at a time:
+ * - {@link #writeRequestHead} sends the request line and headers,
+ * - {@link #getRequestBody} returns the stream to write the entity into,
+ * - {@link #readResponseHead} reads the status line and headers,
+ * - {@link #getResponseBody} returns the body of the response, which must be
+ *   read until its end before the connection can go back to the pool.
+ *
+ * Plain http connections are opened through a SocketChannel, so that the
+ * request body streams can send file contents with FileChannel.transferTo,
+ * see {@link FileChannelSink}. TLS connections go through an SSLSocket, which
+ * has to encrypt the data in Java anyway.
+ *
+ * @see HttpConnectionPool
+ */
+public class HttpConnection {
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Key of the host this connection is attached to: scheme://host:port. */
+  protected String _sRoute;
+  /** The socket, possibly an SSLSocket, of the connection. */
+  protected Socket _mSocket;
+  /** Channel of _mSocket for plain http connections, null with TLS. */
+  protected SocketChannel _mChannel;
+  /** Buffered input stream of the socket. */
+  protected BufferedInputStream _mIn;
+  /** Buffered output stream of the socket. */
+  protected BufferedOutputStream _mOut;
+
+  /** Number of requests sent on this connection so far. */
+  protected int _iRequestCount = 0;
+  /** Time in ns, from System.nanoTime(), when the connection went idle. */
+  protected long _lIdleSince = 0;
+  /** Whether the connection may be reused after the current exchange. */
+  protected boolean _bReusable = true;
+
+  /** HTTP response code of the current exchange. */
+  protected int _iResponseCode = 0;
+  /** Headers of the response of the current exchange, keys in lower case. */
+  protected HashMap<String, String> _mResponseHeaders =
+      new HashMap<String, String>();
+  /** Length of the request body announced in the current request head. */
+  protected long _lRequestLength = -1;
+  /** Whether a byte of the answer to the current request was received. */
+  protected boolean _bAnswerStarted = false;
+
+  /*****************************************************************************
+   ************************** Protected Helper Classes *************************
+   ****************************************************************************/
+
+  /** Writes the request body using the chunked transfer encoding, used when
+   * the length of the entity isn't known ahead of time. Data is buffered so
+   * that small writes don't each produce a chunk. Closing the stream writes
+   * the last chunk but leaves the socket open. Transferred file regions are
+   * sent as a chunk of their own. */
+  protected class _ChunkedOutputStream extends FilterOutputStream
+      implements FileChannelSink {
+    protected byte[] _aBuffer = new byte[8192];
+    protected int _iCount = 0;
+    protected boolean _bClosed = false;
+
+    public _ChunkedOutputStream(OutputStream mOut) {
+      super(mOut);
+    }
+
+    @Override
+    public void write(int iByte) throws IOException {
+      if (_iCount == _aBuffer.length) {
+        _writeChunk();
+      }
+      _aBuffer[_iCount++] = (byte) iByte;
+    }
+
+    @Override
+    public void write(byte[] aBytes, int iStart, int iCount)
+        throws IOException {
+      while (iCount > 0) {
+        if (_iCount == _aBuffer.length) {
+          _writeChunk();
+        }
+
+        int iToCopy = Math.min(iCount, _aBuffer.length - _iCount);
+        System.arraycopy(aBytes, iStart, _aBuffer, _iCount, iToCopy);
+        _iCount += iToCopy;
+        iStart += iToCopy;
+        iCount -= iToCopy;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      _writeChunk();
+      out.flush();
+    }
+
+    @Override
+    public boolean canTransfer() { return _mChannel != null; }
+
+    @Override
+    public void transferFrom(FileChannel mFile, long lPosition, long lCount)
+        throws IOException {
+      if (lCount == 0) return;
+
+      _writeChunk();
+      out.write((Long.toHexString(lCount) + "\r\n").getBytes("US-ASCII"));
+      out.flush();
+
+      _transfer(mFile, lPosition, lCount);
+      out.write(CRLF);
+    }
+
+    @Override
+    public void transferFrom(ByteBuffer mData) throws IOException {
+      if (!mData.hasRemaining()) return;
+
+      _writeChunk();
+      out.write((Integer.toHexString(mData.remaining()) + "\r\n")
+          .getBytes("US-ASCII"));
+      out.flush();
+
+      _transfer(mData);
+      out.write(CRLF);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (_bClosed) return;
+      _bClosed = true;
+
+      _writeChunk();
+      out.write("0\r\n\r\n".getBytes("US-ASCII"));
+      out.flush();
+    }
+
+    protected void _writeChunk() throws IOException {
+      if (_iCount == 0) return;
+
+      out.write((Integer.toHexString(_iCount) + "\r\n").getBytes("US-ASCII"));
+      out.write(_aBuffer, 0, _iCount);
+      out.write(CRLF);
+      _iCount = 0;
+    }
+  }
+
+  /** Writes a request body of a known length. Closing the stream checks that
+   * the announced length was honoured but leaves the socket open. */
+  protected class _FixedLengthOutputStream extends FilterOutputStream
+      implements FileChannelSink {
+    protected long _lRemaining;
+
+    public _FixedLengthOutputStream(OutputStream mOut, long lLength) {
+      super(mOut);
+      _lRemaining = lLength;
+    }
+
+    @Override
+    public void write(int iByte) throws IOException {
+      write(new byte[] { (byte) iByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] aBytes, int iStart, int iCount)
+        throws IOException {
+      if (iCount > _lRemaining) {
+        throw new IOException("Request body exceeds its Content-Length");
+      }
+
+      out.write(aBytes, iStart, iCount);
+      _lRemaining -= iCount;
+    }
+
+    @Override
+    public boolean canTransfer() { return _mChannel != null; }
+
+    @Override
+    public void transferFrom(FileChannel mFile, long lPosition, long lCount)
+        throws IOException {
+      if (lCount > _lRemaining) {
+        throw new IOException("Request body exceeds its Content-Length");
+      }
+
+      out.flush();
+      _transfer(mFile, lPosition, lCount);
+      _lRemaining -= lCount;
+    }
+
+    @Override
+    public void transferFrom(ByteBuffer mData) throws IOException {
+      int iCount = mData.remaining();
+      if (iCount > _lRemaining) {
+        throw new IOException("Request body exceeds its Content-Length");
+      }
+
+      out.flush();
+      _transfer(mData);
+      _lRemaining -= iCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.flush();
+
+      if (_lRemaining != 0) {
+        _bReusable = false;
+        throw new IOException("Request body shorter than its Content-Length");
+      }
+    }
+  }
+
+  /** Reads a response body of a known length, then signals its end. */
+  protected class _FixedLengthInputStream extends InputStream {
+    protected long _lRemaining;
+
+    public _FixedLengthInputStream(long lLength) {
+      _lRemaining = lLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] aByte = new byte[1];
+      return read(aByte, 0, 1) == -1 ? -1 : aByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] aBytes, int iStart, int iCount) throws IOException {
+      if (_lRemaining == 0) return -1;
+
+      int iRead = _mIn.read(aBytes, iStart,
+          (int) Math.min(iCount, _lRemaining));
+      if (iRead == -1) {
+        _bReusable = false;
+        throw new EOFException("Connection closed before end of response");
+      }
+
+      _lRemaining -= iRead;
+      return iRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(_mIn.available(), _lRemaining);
+    }
+  }
+
+  /** Reads a response body sent with the chunked transfer encoding. */
+  protected class _ChunkedInputStream extends InputStream {
+    protected long _lChunkRemaining = 0;
+    protected boolean _bEnded = false;
+
+    @Override
+    public int read() throws IOException {
+      byte[] aByte = new byte[1];
+      return read(aByte, 0, 1) == -1 ? -1 : aByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] aBytes, int iStart, int iCount) throws IOException {
+      if (_bEnded) return -1;
+
+      if (_lChunkRemaining == 0) {
+        _lChunkRemaining = _readChunkSize();
+
+        if (_lChunkRemaining == 0) {
+          // Skip the trailers up to the final empty line.
+          while (_readLine().length() > 0) { }
+          _bEnded = true;
+          return -1;
+        }
+      }
+
+      int iRead = _mIn.read(aBytes, iStart,
+          (int) Math.min(iCount, _lChunkRemaining));
+      if (iRead == -1) {
+        _bReusable = false;
+        throw new EOFException("Connection closed before end of response");
+      }
+
+      _lChunkRemaining -= iRead;
+      if (_lChunkRemaining == 0) {
+        _readLine(); // CRLF closing the chunk
+      }
+
+      return iRead;
+    }
+
+    protected long _readChunkSize() throws IOException {
+      String sLine = _readLine();
+      int iExtension = sLine.indexOf(';');
+      if (iExtension != -1) {
+        sLine = sLine.substring(0, iExtension);
+      }
+
+      try {
+        return Long.parseLong(sLine.trim(), 16);
+      } catch (NumberFormatException e) {
+        _bReusable = false;
+        throw new IOException("Invalid chunk size: " + sLine);
+      }
+    }
+  }
+
+  /** Reads a response body delimited by the closing of the connection. */
+  protected class _UntilCloseInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      return _mIn.read();
+    }
+
+    @Override
+    public int read(byte[] aBytes, int iStart, int iCount) throws IOException {
+      return _mIn.read(aBytes, iStart, iCount);
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  protected static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+  /**
+   * Opens a new connection to the host of mEndPoint. For https end points, the
+   * TLS handshake is performed and the host name verified right away.
+   *
+   * @param mEndPoint URL of the end point to connect to.
+   * @param iConnectTimeout Timeout in milliseconds for the connection.
+   * @param iReadTimeout Timeout in milliseconds for the reading operations.
+   * @throws IOException When the connection or the handshake fails.
+   */
+  public HttpConnection(URL mEndPoint, int iConnectTimeout, int iReadTimeout)
+      throws IOException {
+    _sRoute = routeOf(mEndPoint);
+
+    String sHost = mEndPoint.getHost();
+    int iPort = portOf(mEndPoint);
+
+    boolean bSecure = "https".equalsIgnoreCase(mEndPoint.getProtocol());
+    SocketChannel mChannel = bSecure ? null : SocketChannel.open();
+    Socket mSocket = bSecure ? new Socket() : mChannel.socket();
+    try {
+      mSocket.setTcpNoDelay(true);
+      mSocket.connect(new InetSocketAddress(sHost, iPort), iConnectTimeout);
+      mSocket.setSoTimeout(iReadTimeout);
+
+      if (bSecure) {
+        SSLSocket mSSLSocket = (SSLSocket) ((SSLSocketFactory)
+            SSLSocketFactory.getDefault()).createSocket(
+            mSocket, sHost, iPort, true);
+        mSSLSocket.startHandshake();
+
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+            sHost, mSSLSocket.getSession())) {
+          mSSLSocket.close();
+          throw new SSLPeerUnverifiedException(
+              "Hostname " + sHost + " not verified");
+        }
+
+        mSocket = mSSLSocket;
+      }
+    } catch (IOException e) {
+      mSocket.close();
+      throw e;
+    }
+
+    _mSocket = mSocket;
+    _mChannel = mChannel;
+    _mIn = new BufferedInputStream(mSocket.getInputStream(), 8192);
+    _mOut = new BufferedOutputStream(mSocket.getOutputStream(), 8192);
+  }
+
+  /*****************************************************************************
+   ********************************* Exchange **********************************
+   ****************************************************************************/
+
+  /**
+   * Sends the request line and headers of a new request on this connection.
+   *
+   * @param sMethod HTTP method, typically POST.
+   * @param mEndPoint URL of the request; only its path and query are sent.
+   * @param mHeaders Additional headers of the request.
+   * @param lContentLength Length of the body, or a negative value to use the
+   *                       chunked transfer encoding.
+   * @param bLastRequest Whether this request should close the connection
+   *                     once answered.
+   * @throws IOException When the head can't be written.
+   */
+  public void writeRequestHead(String sMethod, URL mEndPoint,
+                               Map<String, String> mHeaders,
+                               long lContentLength, boolean bLastRequest)
+      throws IOException {
+    _iRequestCount++;
+    _iResponseCode = 0;
+    _bAnswerStarted = false;
+    _mResponseHeaders.clear();
+    _lRequestLength = lContentLength;
+    if (bLastRequest) {
+      _bReusable = false;
+    }
+
+    String sPath = mEndPoint.getFile();
+    if (sPath == null || sPath.equals("")) {
+      sPath = "/";
+    }
+
+    StringBuilder mHead = new StringBuilder(256);
+    mHead.append(sMethod).append(' ').append(sPath).append(" HTTP/1.1\r\n");
+    mHead.append("Host: ").append(mEndPoint.getHost());
+    if (mEndPoint.getPort() != -1) {
+      mHead.append(':').append(mEndPoint.getPort());
+    }
+    mHead.append("\r\n");
+
+    for (Map.Entry<String, String> mHeader : mHeaders.entrySet()) {
+      mHead.append(mHeader.getKey()).append(": ")
+          .append(mHeader.getValue()).append("\r\n");
+    }
+
+    if (lContentLength >= 0) {
+      mHead.append("Content-Length: ").append(lContentLength).append("\r\n");
+    } else {
+      mHead.append("Transfer-Encoding: chunked\r\n");
+    }
+    mHead.append(bLastRequest ? "Connection: close\r\n"
+                              : "Connection: keep-alive\r\n");
+    mHead.append("\r\n");
+
+    _mOut.write(mHead.toString().getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * @return The stream to write the body of the current request into. Closing
+   * it terminates the body, but not the connection.
+   */
+  public OutputStream getRequestBody() {
+    if (_lRequestLength >= 0) {
+      return new _FixedLengthOutputStream(_mOut, _lRequestLength);
+    }
+
+    return new _ChunkedOutputStream(_mOut);
+  }
+
+  /**
+   * Reads the status line and the headers of the response, skipping interim
+   * 1xx responses.
+   *
+   * @return The HTTP response code.
+   * @throws IOException When the response can't be read or is malformed.
+   */
+  public int readResponseHead() throws IOException {
+    _mOut.flush();
+
+    do {
+      String sStatus = _readLine();
+      String[] aStatus = sStatus.split(" ", 3);
+      if (aStatus.length < 2 || !aStatus[0].startsWith("HTTP/")) {
+        _bReusable = false;
+        throw new IOException("Malformed status line: " + sStatus);
+      }
+
+      try {
+        _iResponseCode = Integer.parseInt(aStatus[1]);
+      } catch (NumberFormatException e) {
+        _bReusable = false;
+        throw new IOException("Malformed status line: " + sStatus);
+      }
+
+      _mResponseHeaders.clear();
+      String sLine;
+      while ((sLine = _readLine()).length() > 0) {
+        int iColon = sLine.indexOf(':');
+        if (iColon > 0) {
+          _mResponseHeaders.put(
+              sLine.substring(0, iColon).trim().toLowerCase(),
+              sLine.substring(iColon + 1).trim());
+        }
+      }
+
+      String sConnection = getResponseHeader("connection");
+      if (aStatus[0].equals("HTTP/1.0")) {
+        _bReusable &= "keep-alive".equalsIgnoreCase(sConnection);
+      } else {
+        _bReusable &= !"close".equalsIgnoreCase(sConnection);
+      }
+    } while (_iResponseCode >= 100 && _iResponseCode < 200);
+
+    return _iResponseCode;
+  }
+
+  /**
+   * @param sName Name of the header, case insensitive.
+   * @return The value of the response header, or null if absent.
+   */
+  public String getResponseHeader(String sName) {
+    return _mResponseHeaders.get(sName.toLowerCase());
+  }
+
+  /** @return The headers of the response, names in lower case. */
+  public Map<String, String> getResponseHeaders() {
+    return _mResponseHeaders;
+  }
+
+  /**
+   * @return The body of the response. It must be read until it returns -1 for
+   * the connection to be reusable.
+   */
+  public InputStream getResponseBody() {
+    if (_iResponseCode == 204 || _iResponseCode == 304) {
+      return new _FixedLengthInputStream(0);
+    }
+
+    if ("chunked".equalsIgnoreCase(getResponseHeader("transfer-encoding"))) {
+      return new _ChunkedInputStream();
+    }
+
+    String sLength = getResponseHeader("content-length");
+    if (sLength != null) {
+      try {
+        return new _FixedLengthInputStream(Long.parseLong(sLength));
+      } catch (NumberFormatException e) {
+        // Fall through to a close-delimited body.
+      }
+    }
+
+    _bReusable = false;
+    return new _UntilCloseInputStream();
+  }
+
+  /*****************************************************************************
+   ******************************** Lifecycle **********************************
+   ****************************************************************************/
+
+  public String getRoute() { return _sRoute; }
+  public int getRequestCount() { return _iRequestCount; }
+  /** @return Whether a byte of the answer to the current request was
+   * received. */
+  public boolean isAnswerStarted() { return _bAnswerStarted; }
+  public boolean isReusable() { return _bReusable && !_mSocket.isClosed(); }
+
+  /**
+   * Checks, without blocking, whether the server closed this idle connection
+   * or sent unexpected data on it, in which case it must not be reused.
+   *
+   * @return True if the connection can't be used for a new request.
+   */
+  public boolean isStale() {
+    if (_mSocket.isClosed() || _mSocket.isInputShutdown() ||
+        _mSocket.isOutputShutdown()) {
+      return true;
+    }
+
+    try {
+      int iTimeout = _mSocket.getSoTimeout();
+      try {
+        _mSocket.setSoTimeout(1);
+        _mIn.mark(1);
+        if (_mIn.read() == -1) {
+          return true;
+        }
+        _mIn.reset();
+        return true; // Unsolicited data: the stream is out of sync.
+      } finally {
+        _mSocket.setSoTimeout(iTimeout);
+      }
+    } catch (SocketTimeoutException e) {
+      return false;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  /** Closes the underlying socket. */
+  public void close() {
+    _bReusable = false;
+
+    try {
+      _mSocket.close();
+    } catch (IOException e) {
+      // Nothing more we can do.
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * @param mEndPoint Any http or https URL.
+   * @return The key identifying connections that can serve mEndPoint.
+   */
+  public static String routeOf(URL mEndPoint) {
+    return mEndPoint.getProtocol().toLowerCase() + "://" +
+        mEndPoint.getHost().toLowerCase() + ":" + portOf(mEndPoint);
+  }
+
+  protected static int portOf(URL mEndPoint) {
+    return mEndPoint.getPort() != -1 ? mEndPoint.getPort()
+                                     : mEndPoint.getDefaultPort();
+  }
+
+  /**
+   * Reads a line terminated by LF, dropping the trailing CR if any.
+   *
+   * @return The line read, without its terminator.
+   * @throws IOException When the connection closes before the end of line.
+   */
+  protected String _readLine() throws IOException {
+    StringBuilder mLine = new StringBuilder(64);
+
+    int iByte;
+    while ((iByte = _mIn.read()) != '\n') {
+      if (iByte == -1) {
+        _bReusable = false;
+        throw new EOFException("Connection closed by the server");
+      }
+      _bAnswerStarted = true;
+      mLine.append((char) iByte);
+    }
+
+    int iLength = mLine.length();
+    if (iLength > 0 && mLine.charAt(iLength - 1) == '\r') {
+      mLine.setLength(iLength - 1);
+    }
+
+    return mLine.toString();
+  }
+
+  /**
+   * Sends lCount bytes of mFile straight to the socket channel. The buffered
+   * output stream must have been flushed first.
+   */
+  protected void _transfer(FileChannel mFile, long lPosition, long lCount)
+      throws IOException {
+    try {
+      MultipartEntity.transferFully(mFile, lPosition, lCount, _mChannel);
+    } catch (IOException e) {
+      _bReusable = false;
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of mData straight to the socket channel. The
+   * buffered output stream must have been flushed first.
+   */
+  protected void _transfer(ByteBuffer mData) throws IOException {
+    try {
+      while (mData.hasRemaining()) {
+        _mChannel.write(mData);
+      }
+    } catch (IOException e) {
+      _bReusable = false;
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of keep-alive {@link HttpConnection}s, grouped by host. When
+ * set on an {@link HttpConfiguration}, {@link HttpEngine} borrows a connection
+ * from the pool instead of opening (and tearing down) a new one for every
+ * request, saving the TCP and TLS handshakes on repeated posts to the same end
+ * point.
+ *
+ * - At most #getMaxIdlePerHost() idle connections are kept per host, extra
+ *   ones are closed when released.
+ * - Idle connections are closed after #getKeepAliveMs() by a background
+ *   daemon thread, which only runs while the pool holds idle connections.
+ * - A connection serves at most #getMaxRequestsPerConnection() requests, the
+ *   last one being sent with "Connection: close".
+ *
+ * Hits and misses are counted so the reuse rate can be monitored.
+ *
+ * ** Usage:
+ * HttpConfiguration mConf = new HttpConfiguration(...);
+ * mConf.setConnectionPool(HttpConnectionPool.getDefault());
+ *
+ * new HttpEngine(mConf, HttpEngine.nextInstanceId()).run();
+ *
+ * @see HttpConnection
+ * @see HttpConfiguration#setConnectionPool
+ */
+public class HttpConnectionPool {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default number of idle connections kept per host. */
+  public static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+  /** Default time in milliseconds an idle connection is kept open. */
+  public static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+  /** Default number of requests a connection serves before being closed. */
+  public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Shared pool returned by {@link #getDefault()}. */
+  protected static HttpConnectionPool _mDefault = null;
+
+  /** Idle connections per route, most recently used last. */
+  protected final HashMap<String, ArrayDeque<HttpConnection>> _mIdle =
+      new HashMap<String, ArrayDeque<HttpConnection>>();
+  /** Total number of idle connections in _mIdle. */
+  protected int _iIdleCount = 0;
+
+  protected final int _iMaxIdlePerHost;
+  protected final long _lKeepAliveNs;
+  protected final int _iMaxRequestsPerConnection;
+
+  /** Background thread closing expired idle connections, null when idle. */
+  protected Thread _mCleaner = null;
+
+  /** Number of connections served from the pool. */
+  protected final AtomicLong _lHits = new AtomicLong();
+  /** Number of connections that had to be opened. */
+  protected final AtomicLong _lMisses = new AtomicLong();
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a pool with the default limits.
+   */
+  public HttpConnectionPool() {
+    this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_MS,
+        DEFAULT_MAX_REQUESTS_PER_CONNECTION);
+  }
+
+  /**
+   * @param iMaxIdlePerHost Number of idle connections kept per host.
+   * @param lKeepAliveMs Time in milliseconds an idle connection is kept open.
+   *                     Should be lower than the keep-alive timeout of the
+   *                     server.
+   * @param iMaxRequestsPerConnection Number of requests a connection serves
+   *                                  before being closed.
+   */
+  public HttpConnectionPool(int iMaxIdlePerHost, long lKeepAliveMs,
+                            int iMaxRequestsPerConnection) {
+    if (iMaxIdlePerHost < 0 || lKeepAliveMs <= 0 ||
+        iMaxRequestsPerConnection <= 0) {
+      throw new IllegalArgumentException("Invalid connection pool limits");
+    }
+
+    _iMaxIdlePerHost = iMaxIdlePerHost;
+    _lKeepAliveNs = TimeUnit.MILLISECONDS.toNanos(lKeepAliveMs);
+    _iMaxRequestsPerConnection = iMaxRequestsPerConnection;
+  }
+
+  /**
+   * @return A pool shared by the whole process, created on first use with the
+   * default limits.
+   */
+  public static synchronized HttpConnectionPool getDefault() {
+    if (_mDefault == null) {
+      _mDefault = new HttpConnectionPool();
+    }
+
+    return _mDefault;
+  }
+
+  /*****************************************************************************
+   ******************************* Pool Functions ******************************
+   ****************************************************************************/
+
+  /**
+   * Returns an idle connection to the host of mEndPoint if one is available
+   * and still healthy, or opens a new one.
+   *
+   * @param mEndPoint URL the connection will be used for.
+   * @param iConnectTimeout Timeout in milliseconds to open a new connection.
+   * @param iReadTimeout Timeout in milliseconds for the reading operations.
+   * @return A connection ready for a new request. Must be given back with
+   * {@link #release}.
+   * @throws IOException When a new connection can't be opened.
+   */
+  public HttpConnection acquire(URL mEndPoint, int iConnectTimeout,
+                                int iReadTimeout) throws IOException {
+    String sRoute = HttpConnection.routeOf(mEndPoint);
+
+    HttpConnection mConn;
+    while ((mConn = _pollIdle(sRoute)) != null) {
+      if (!mConn.isStale()) {
+        try {
+          mConn._mSocket.setSoTimeout(iReadTimeout);
+          _lHits.incrementAndGet();
+          return mConn;
+        } catch (IOException e) {
+          // Broken socket, try the next one.
+        }
+      }
+
+      mConn.close();
+    }
+
+    _lMisses.incrementAndGet();
+    return new HttpConnection(mEndPoint, iConnectTimeout, iReadTimeout);
+  }
+
+  /**
+   * @param mConn A connection about to send a request.
+   * @return Whether that request must be the last one of mConn.
+   */
+  public boolean isLastRequest(HttpConnection mConn) {
+    return mConn.getRequestCount() + 1 >= _iMaxRequestsPerConnection;
+  }
+
+  /**
+   * Gives a connection back to the pool once its exchange is complete. The
+   * connection is closed instead of pooled if it isn't reusable, or if the
+   * pool already holds enough idle connections for its host.
+   *
+   * @param mConn Connection obtained from {@link #acquire}.
+   */
+  public void release(HttpConnection mConn) {
+    if (!mConn.isReusable() ||
+        mConn.getRequestCount() >= _iMaxRequestsPerConnection) {
+      mConn.close();
+      return;
+    }
+
+    HttpConnection mEvicted = null;
+    synchronized (this) {
+      ArrayDeque<HttpConnection> mRoute = _mIdle.get(mConn.getRoute());
+      if (mRoute == null) {
+        mRoute = new ArrayDeque<HttpConnection>();
+        _mIdle.put(mConn.getRoute(), mRoute);
+      }
+
+      mConn._lIdleSince = System.nanoTime();
+      mRoute.addLast(mConn);
+      _iIdleCount++;
+
+      if (mRoute.size() > _iMaxIdlePerHost) {
+        mEvicted = mRoute.pollFirst();
+        _iIdleCount--;
+      }
+
+      _startCleaner();
+    }
+
+    if (mEvicted != null) {
+      mEvicted.close();
+    }
+  }
+
+  /**
+   * Closes the idle connections that were unused for longer than the keep
+   * alive duration.
+   *
+   * @return Time in nanoseconds until the next idle connection expires, or -1
+   * if the pool holds no idle connection.
+   */
+  public long evictIdle() {
+    long lNow = System.nanoTime();
+    long lNextExpiry = -1;
+    ArrayList<HttpConnection> aExpired = new ArrayList<HttpConnection>();
+
+    synchronized (this) {
+      Iterator<ArrayDeque<HttpConnection>> mRoutes =
+          _mIdle.values().iterator();
+      while (mRoutes.hasNext()) {
+        ArrayDeque<HttpConnection> mRoute = mRoutes.next();
+
+        Iterator<HttpConnection> mConns = mRoute.iterator();
+        while (mConns.hasNext()) {
+          HttpConnection mConn = mConns.next();
+          long lRemaining = mConn._lIdleSince + _lKeepAliveNs - lNow;
+
+          if (lRemaining <= 0) {
+            mConns.remove();
+            _iIdleCount--;
+            aExpired.add(mConn);
+          } else if (lNextExpiry == -1 || lRemaining < lNextExpiry) {
+            lNextExpiry = lRemaining;
+          }
+        }
+
+        if (mRoute.isEmpty()) {
+          mRoutes.remove();
+        }
+      }
+    }
+
+    for (HttpConnection mConn : aExpired) {
+      mConn.close();
+    }
+
+    return lNextExpiry;
+  }
+
+  /**
+   * Closes all the idle connections of the pool. Connections currently in use
+   * are closed when released only if they aren't reusable.
+   */
+  public void evictAll() {
+    ArrayList<HttpConnection> aConns = new ArrayList<HttpConnection>();
+
+    synchronized (this) {
+      for (ArrayDeque<HttpConnection> mRoute : _mIdle.values()) {
+        aConns.addAll(mRoute);
+      }
+      _mIdle.clear();
+      _iIdleCount = 0;
+    }
+
+    for (HttpConnection mConn : aConns) {
+      mConn.close();
+    }
+  }
+
+  /*****************************************************************************
+   ********************************* Statistics ********************************
+   ****************************************************************************/
+
+  /** @return Number of requests served by a pooled connection. */
+  public long getHitCount() { return _lHits.get(); }
+  /** @return Number of requests that required opening a new connection. */
+  public long getMissCount() { return _lMisses.get(); }
+  /** @return Number of idle connections currently held. */
+  public synchronized int getIdleCount() { return _iIdleCount; }
+
+  public int getMaxIdlePerHost() { return _iMaxIdlePerHost; }
+  public long getKeepAliveMs() {
+    return TimeUnit.NANOSECONDS.toMillis(_lKeepAliveNs);
+  }
+  public int getMaxRequestsPerConnection() {
+    return _iMaxRequestsPerConnection;
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Takes the most recently used idle connection of sRoute out of the pool.
+   *
+   * @param sRoute Route as computed by {@link HttpConnection#routeOf}.
+   * @return The connection, or null if none is idle for that route.
+   */
+  protected synchronized HttpConnection _pollIdle(String sRoute) {
+    ArrayDeque<HttpConnection> mRoute = _mIdle.get(sRoute);
+    if (mRoute == null) {
+      return null;
+    }
+
+    HttpConnection mConn = mRoute.pollLast();
+    if (mConn != null) {
+      _iIdleCount--;
+    }
+    if (mRoute.isEmpty()) {
+      _mIdle.remove(sRoute);
+    }
+
+    return mConn;
+  }
+
+  /**
+   * Starts the cleaner thread if not running. It sleeps until the next idle
+   * connection expires and stops once the pool is empty. Must be called with
+   * the pool lock held.
+   */
+  protected void _startCleaner() {
+    if (_mCleaner != null) {
+      return;
+    }
+
+    _mCleaner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          long lWaitNs = evictIdle();
+
+          synchronized (HttpConnectionPool.this) {
+            if (lWaitNs == -1 && _iIdleCount == 0) {
+              _mCleaner = null;
+              return;
+            }
+
+            try {
+              long lWaitMs = lWaitNs == -1 ? 1 :
+                  Math.max(1, TimeUnit.NANOSECONDS.toMillis(lWaitNs));
+              HttpConnectionPool.this.wait(lWaitMs);
+            } catch (InterruptedException e) {
+              _mCleaner = null;
+              return;
+            }
+          }
+        }
+      }
+    }, "HttpConnectionPool cleaner");
+
+    _mCleaner.setDaemon(true);
+    _mCleaner.start();
+  }
+}
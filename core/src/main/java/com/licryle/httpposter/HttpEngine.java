@@ -0,0 +1,2178 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Framework-free core of the library: builds the multipart entity of an
+ * {@link HttpConfiguration}, sends it to the end point, reads the answer and
+ * reports every event to an {@link HttpListener}. It depends on nothing but
+ * the JDK, so it runs the same on Android and on a regular JVM.
+ *
+ * An engine executes a single request, synchronously, on the calling thread,
+ * and the listener callbacks are called on that same thread.
+ *
+ * ** Usage example:
+ * HttpConfiguration mConf = new HttpConfiguration(...);
+ *
+ * HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+ * long lResult = mEngine.run();
+ *
+ * if (lResult == HttpEngine.SUCCESS) {
+ *   String sResponse = mEngine.getResponse();
+ * }
+ *
+ * The body of the answer is consumed by the {@link HttpResponseHandler} of the
+ * configuration, a size-capped String by default.
+ *
+ * On Android, HttpPoster wraps an engine in an AsyncTask and
+ * dispatches the callbacks on the main thread.
+ *
+ * @see HttpConfiguration
+ * @see HttpListener
+ */
+public class HttpEngine {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** A failure ocurred when trying to open the connection. */
+  public static final long FAILURE_CONNECTION = -1;
+  /** A failure ocurred when trying to post the request. */
+  public static final long FAILURE_TRANSFER = -2;
+  /** A failure ocurred when retrieving the reponse from the post request. */
+  public static final long FAILURE_RESPONSE = -3;
+  /** A file passed in paramater couldn't be accessed. */
+  public static final long FAILURE_FILE_READ = -4;
+  /** The request was cancelled, or its deadline passed, see
+   * {@link #cancel()}. */
+  public static final long FAILURE_CANCELLED = -5;
+
+  /** The POST request was successful and we retrieved the answer correctly. */
+  public static final long SUCCESS = 0;
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  /** Handler ignoring the body of the answers to intermediate requests. */
+  protected static final HttpResponseHandler<Void> DISCARD =
+      new HttpResponseHandler<Void>() {
+        @Override
+        public Void handle(HttpResponseBody mBody) {
+          return null;
+        }
+      };
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Static Unique ID so we can associate each request with a unique id for the
+   * listener's callbacks. Atomic as requests may run on several threads. */
+  protected static final AtomicInteger UNIQUE_ID = new AtomicInteger(0);
+
+  /** Configuration of the request to execute. */
+  protected final HttpConfiguration _mConf;
+  /** Unique Id of the POST Request. */
+  protected final int _iInstanceId;
+  /** The listener object to which we will dispatch events. */
+  protected HttpListener _mListener;
+  /** Where the debug traces go. */
+  protected HttpLogger _mLogger = HttpLogger.NONE;
+
+  /** The response from the server following the HTTPPost request, null if
+   * the response handler didn't produce text. */
+  protected String _sResponse = "";
+  /** What the response handler made of the body of the response. */
+  protected Object _mContent = null;
+  /** The response code from the server following the HTTPPost request. 200 is a
+   *  success. */
+  protected int _iResponseCode = 0;
+  /** Time spent in each phase of the request. */
+  protected final HttpTimings _mTimings = new HttpTimings();
+  /** Outcome of the request, once run. */
+  protected long _lStatus = 0;
+  /** Headers of the last response, names in lower case. */
+  protected HashMap<String, String> _mResponseHeaders =
+      new HashMap<String, String>();
+  /** Number of attempts made so far. */
+  protected int _iAttempts = 0;
+  /** Whether onStartTransfer was dispatched already. */
+  protected boolean _bTransferStarted = false;
+  /** Bytes already sent by earlier requests of the same transfer, and size of
+   * the whole transfer, so that progress spans all the requests of a
+   * resumable upload. A negative total means the current body only. */
+  protected long _lProgressBase = 0;
+  protected long _lProgressTotal = -1;
+  /** Entity built ahead by {@link #prepare()}, or null. */
+  protected MultipartEntity _mPrepared = null;
+  /** Hashes of the files of the entity built, from the {@link DedupCache},
+   * or null if there is none. */
+  protected ArrayList<String> _aHashes = null;
+  /** Share of the upload bandwidth of the request, or null if unlimited. */
+  protected final BandwidthLimiter.Flow _mFlow;
+  /** Bytes sent by the parts of a parallel upload at which the progress
+   * dispatched goes up next. */
+  protected long _lPartsNextProgress = 0;
+  /** Reports the progress in bytes, see
+   * {@link HttpConfiguration#setProgressReporter}, or null. */
+  protected final ProgressReporter.Tracker _mProgressTracker;
+
+  /** Whether {@link #cancel()} was called. */
+  protected volatile boolean _bCancelled = false;
+  /** Whether the request is over. */
+  protected volatile boolean _bFinished = false;
+  /** Closes the connection or stream of the request in flight, or null. */
+  protected volatile Closeable _mAbort = null;
+  /** Thread running the request, interrupted on cancel. Guarded by
+   * _mCancelLock. */
+  protected Thread _mThread = null;
+  protected final Object _mCancelLock = new Object();
+  /** Engines sending the parts of a parallel upload right now. */
+  protected final CopyOnWriteArrayList<HttpEngine> _aParts =
+      new CopyOnWriteArrayList<HttpEngine>();
+  /** Bytes of the transfer handed to the connection so far, for
+   * {@link HttpRequestRegistry}. */
+  protected volatile long _lBytesSent = 0;
+
+  /*****************************************************************************
+   ************************** Protected Helper Classes *************************
+   ****************************************************************************/
+
+  /** _ProgressiveOutputStream is an implementation of DataOutputStream that
+   * keeps track of the number of bytes written in the stream.
+   *
+   * Wraps the connection stream in {@link #_writeEntity}. When the connection
+   * stream accepts file regions, so does this one, see
+   * {@link FileChannelSink}. Compressed content is counted in bytes of
+   * source, see {@link EncodingSink}.
+   */
+  protected class _ProgressiveOutputStream extends DataOutputStream
+      implements FileChannelSink, EncodingSink {
+    /** Number of bytes we already sent in the stream. */
+    protected long _lTotalSent;
+    /** Total number of bytes we want to send. */
+    protected long _lTotalSize;
+    /** Progress from 0 to 100 of the transfer. Used to pace progress sending.*/
+    protected int _iProgress;
+    /** Bytes sent at which _iProgress goes up next. */
+    protected long _lNextProgress;
+
+    public _ProgressiveOutputStream(OutputStream proxy, long total) {
+      this(proxy, 0, total);
+    }
+
+    /**
+     * @param proxy The stream to write to.
+     * @param sent Number of bytes of the transfer already sent earlier.
+     * @param total Total number of bytes of the transfer.
+     */
+    public _ProgressiveOutputStream(OutputStream proxy, long sent, long total) {
+      super(proxy);
+      _lTotalSent = sent;
+      _lTotalSize = total;
+      _iProgress = total > 0 ? (int) (sent * 100 / total) : 0;
+      _lNextProgress = _progressAt(_iProgress + 1, total);
+    }
+
+    /**
+     * Override of the write method from the base class so we can track how many
+     * bytes we sent in the stream. Once written, dispatches progress using
+     * _dispatchOnProgress as an int from 0 to 100 corresponding to the
+     * percentage of data sent, only when the value changes to avoid spamming
+     * progress signals, and updates the {@link ProgressReporter} if any.
+     *
+     * As the connection is in streaming mode, the bytes are only counted once
+     * the underlying stream accepted them, so the progress follows what was
+     * actually handed to the socket. With a {@link BandwidthLimiter}, the
+     * bytes are written slice by slice, each waiting for its share of the
+     * bandwidth.
+     *
+     * @param aBytes Full array of bytes to be sent in the stream.
+     * @param iStart Starting index in aBytes weere we want to start sending.
+     * @param iCount Number of bytes to write in the stream.
+     * @throws IOException Whenever the write fails, raises an IO Exception.
+     */
+    @Override
+    public void write(byte[] aBytes, int iStart, int iCount)
+        throws IOException {
+      while (iCount > 0) {
+        int iSlice = (int) _throttle(iCount);
+        out.write(aBytes, iStart, iSlice);
+
+        _onBytesSent(iSlice);
+        iStart += iSlice;
+        iCount -= iSlice;
+      }
+    }
+
+    @Override
+    public void write(int iByte) throws IOException {
+      _throttle(1);
+      out.write(iByte);
+
+      _onBytesSent(1);
+    }
+
+    @Override
+    public boolean canTransfer() {
+      return out instanceof FileChannelSink &&
+          ((FileChannelSink) out).canTransfer();
+    }
+
+    @Override
+    public void transferFrom(FileChannel mFile, long lPosition, long lCount)
+        throws IOException {
+      while (lCount > 0) {
+        long lSlice = _throttle(lCount);
+        ((FileChannelSink) out).transferFrom(mFile, lPosition, lSlice);
+
+        _onBytesSent(lSlice);
+        lPosition += lSlice;
+        lCount -= lSlice;
+      }
+    }
+
+    @Override
+    public void transferFrom(ByteBuffer mData) throws IOException {
+      while (mData.hasRemaining()) {
+        int iSlice = (int) _throttle(mData.remaining());
+        ByteBuffer mSlice = mData.duplicate();
+        mSlice.limit(mSlice.position() + iSlice);
+        ((FileChannelSink) out).transferFrom(mSlice);
+
+        _onBytesSent(iSlice);
+        mData.position(mData.position() + iSlice);
+      }
+    }
+
+    @Override
+    public OutputStream getEncodedStream() {
+      return new FilterOutputStream(out) {
+        @Override
+        public void write(byte[] aBytes, int iStart, int iCount)
+            throws IOException {
+          while (iCount > 0) {
+            int iSlice = (int) _throttle(iCount);
+            out.write(aBytes, iStart, iSlice);
+
+            _mTimings.addUploadBytes(iSlice);
+            iStart += iSlice;
+            iCount -= iSlice;
+          }
+        }
+
+        @Override
+        public void write(int iByte) throws IOException {
+          _throttle(1);
+          out.write(iByte);
+          _mTimings.addUploadBytes(1);
+        }
+      };
+    }
+
+    /**
+     * Waits for the bandwidth to send the next slice of at most lCount bytes,
+     * see {@link HttpConfiguration#setBandwidthLimiter}.
+     *
+     * @param lCount Number of bytes left to send.
+     * @return Number of bytes that may be sent now.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    protected long _throttle(long lCount) throws InterruptedIOException {
+      if (_mFlow == null) {
+        return lCount;
+      }
+
+      long lSlice = Math.min(lCount, BandwidthLimiter.SLICE_SIZE);
+      _mFlow.acquire(lSlice);
+      return lSlice;
+    }
+
+    @Override
+    public void onSourceBytes(long lCount) {
+      _onProgress(lCount);
+    }
+
+    /**
+     * Accounts for lCount more bytes sent and publishes the progress when it
+     * changed.
+     *
+     * @param lCount Number of bytes that were just written in the stream.
+     */
+    protected void _onBytesSent(long lCount) {
+      _mTimings.addUploadBytes(lCount);
+      _onProgress(lCount);
+    }
+
+    /**
+     * Accounts for lCount more bytes of the transfer and publishes the
+     * progress when it changed. No percentage is published when the total
+     * size is unknown. Called on every write, so the percentage is only
+     * computed once the bytes sent reach the next one.
+     *
+     * @param lCount Number of bytes of the transfer just handled.
+     */
+    protected void _onProgress(long lCount) {
+      _lTotalSent += lCount;
+      _lBytesSent = _lTotalSent;
+
+      if (_mProgressTracker != null) {
+        _mProgressTracker.update(_lTotalSent, _lTotalSize);
+      }
+
+      if (_lTotalSize <= 0 || _lTotalSent < _lNextProgress) {
+        return;
+      }
+
+      _iProgress = (int) (_lTotalSent * 100 / _lTotalSize);
+      _lNextProgress = _progressAt(_iProgress + 1, _lTotalSize);
+      _dispatchOnProgress(_iProgress);
+    }
+
+    /**
+     * Publishes the final report of the {@link ProgressReporter} if any, once
+     * the whole transfer was written, even if its size is unknown.
+     */
+    protected void _finishProgress() {
+      if (_mProgressTracker != null) {
+        _mProgressTracker.finish(_lTotalSent);
+      }
+    }
+  }
+
+  /** A part of a file of a parallel upload, waiting to be sent. */
+  protected static class _PendingPart {
+    protected final ParallelUpload.Session _mSession;
+    protected final int _iPart;
+
+    protected _PendingPart(ParallelUpload.Session mSession, int iPart) {
+      _mSession = mSession;
+      _iPart = iPart;
+    }
+  }
+
+  /**
+   * Engine sending parts of a parallel upload over its own connections, on
+   * behalf of the engine of the request, to which it reports progress.
+   */
+  protected static class _PartEngine extends HttpEngine {
+    protected final HttpEngine _mParent;
+    /** Bytes of the current attempt counted in the progress of _mParent. */
+    protected long _lPartSent = 0;
+
+    public _PartEngine(HttpEngine mParent) {
+      // Shares the flow and tracker of mParent, so that the parts obey the
+      // cap and weight of the request and report into its progress.
+      super(mParent._mConf, mParent._iInstanceId, null, mParent._mFlow,
+          mParent._mProgressTracker);
+      _mParent = mParent;
+      _mLogger = mParent._mLogger;
+    }
+
+    /**
+     * Sends mPart until the server stores it, at most
+     * {@link ParallelUpload#getMaxAttempts()} times.
+     *
+     * @return #SUCCESS once stored, otherwise the result of the last attempt.
+     */
+    public long sendPart(ParallelUpload mUpload, _PendingPart mPart)
+        throws IOException {
+      ParallelUpload.Session mSession = mPart._mSession;
+      long lOffset = mSession.getPartOffset(mPart._iPart);
+      long lCount = mSession.getPartLength(mPart._iPart);
+
+      HashMap<String, String> mHeaders = new HashMap<String, String>();
+      mHeaders.put(ResumableUpload.HEADER_ID, mSession.getUploadId());
+      mHeaders.put(ResumableUpload.HEADER_OFFSET, String.valueOf(lOffset));
+      mHeaders.put(ResumableUpload.HEADER_LENGTH,
+          String.valueOf(mSession.getLength()));
+      mHeaders.put(ResumableUpload.HEADER_NAME,
+          URLEncoder.encode(mSession.getFile().getName(), "UTF-8"));
+      mHeaders.put(ParallelUpload.HEADER_PART, String.valueOf(mPart._iPart));
+      mHeaders.put(ParallelUpload.HEADER_PART_COUNT,
+          String.valueOf(mSession.getPartCount()));
+
+      long lResult = FAILURE_CONNECTION;
+      for (int i = 0; i < mUpload.getMaxAttempts(); i++) {
+        _lPartSent = 0;
+        _mLogger.d("HttpEngine",
+            String.format("sendPart: Part %d of %s, attempt %d for " +
+                "Instance %d", mPart._iPart, mSession.getUploadId(), i + 1,
+                _iInstanceId));
+
+        lResult = _httpPost(_mConf, new FileRangeBody(mSession.getFile(),
+            lOffset, lCount), mHeaders, DISCARD);
+        if (lResult == SUCCESS) {
+          mSession.store(mPart._iPart);
+          return SUCCESS;
+        }
+
+        // The part is sent again from its start.
+        _mParent._onPartProgress(-_lPartSent);
+        if (lResult == FAILURE_RESPONSE &&
+            _iResponseCode >= 400 && _iResponseCode < 500) {
+          return lResult;
+        }
+      }
+
+      return lResult;
+    }
+
+    @Override
+    protected void _writeEntity(HttpBody mEntity, OutputStream mOutput)
+        throws IOException {
+      mEntity.writeTo(_mParent.new _ProgressiveOutputStream(mOutput, 0, 0) {
+        @Override
+        protected void _onProgress(long lCount) {
+          _lPartSent += lCount;
+          _mParent._onPartProgress(lCount);
+        }
+      });
+    }
+
+    @Override
+    protected void _dispatchOnStartTransfer() {
+      synchronized (_mParent) {
+        _mParent._dispatchOnStartTransfer();
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return _bCancelled || _mParent.isCancelled();
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates an engine dispatching its events to the listener of mConf.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @param iInstanceId Unique Id of the request, typically obtained from
+   *                    {@link #nextInstanceId()}.
+   */
+  public HttpEngine(HttpConfiguration mConf, int iInstanceId) {
+    this(mConf, iInstanceId, mConf.getListener());
+  }
+
+  /**
+   * Creates an engine dispatching its events to mListener instead of the
+   * listener of mConf.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @param iInstanceId Unique Id of the request.
+   * @param mListener Object to which events are dispatched. Can be null.
+   */
+  public HttpEngine(HttpConfiguration mConf, int iInstanceId,
+                    HttpListener mListener) {
+    this(mConf, iInstanceId, mListener, _newFlow(mConf),
+        mConf.getProgressReporter() != null
+            ? mConf.getProgressReporter().newTracker(iInstanceId)
+            : null);
+  }
+
+  /**
+   * Creates an engine sending its bytes through mFlow and reporting them to
+   * mTracker, for instance those of the request it sends a part of.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @param iInstanceId Unique Id of the request.
+   * @param mListener Object to which events are dispatched. Can be null.
+   * @param mFlow Share of the upload bandwidth, null if unlimited.
+   * @param mTracker Reports the progress in bytes, or null.
+   */
+  protected HttpEngine(HttpConfiguration mConf, int iInstanceId,
+                       HttpListener mListener, BandwidthLimiter.Flow mFlow,
+                       ProgressReporter.Tracker mTracker) {
+    _mConf = mConf;
+    _iInstanceId = iInstanceId;
+    _mListener = mListener;
+    _mFlow = mFlow;
+    _mProgressTracker = mTracker;
+  }
+
+  /**
+   * @return A new share of the bandwidth limiter of mConf for a request, or
+   * null if its upload is unlimited.
+   */
+  protected static BandwidthLimiter.Flow _newFlow(HttpConfiguration mConf) {
+    BandwidthLimiter mLimiter = mConf.getBandwidthLimiter();
+    if (mLimiter == null && mConf.getMaxUploadRate() <= 0) {
+      return null;
+    }
+
+    return (mLimiter != null ? mLimiter : BandwidthLimiter.UNLIMITED)
+        .newFlow(mConf.getPriority(), mConf.getMaxUploadRate());
+  }
+
+  /**
+   * @return A new Unique Id for a POST Request, shared by all the engines of
+   * the process.
+   */
+  public static int nextInstanceId() {
+    return UNIQUE_ID.incrementAndGet();
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Executes the request: builds the Entity to send to the server, then
+   * processes the request, reports its measures to the
+   * {@link HttpConfiguration#getMetrics()} and finally calls either
+   * {@link HttpListener#onResponse} or {@link HttpListener#onFailure}.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER, #FAILURE_RESPONSE,
+   * #FAILURE_FILE_READ or #FAILURE_CANCELLED.
+   */
+  public long run() {
+    _register();
+    _attach();
+
+    try {
+      HttpSelectorTransport mTransport = _mConf.getTransport();
+      if (mTransport != null && mTransport.supports(_mConf)) {
+        return _runOnTransport(mTransport);
+      }
+
+      long lResult;
+      _mTimings.markStart();
+
+      try {
+        // Built once, and sent again as is on each attempt.
+        MultipartEntity mEntity = _mConf.getResumableUpload() == null &&
+            _mConf.getParallelUpload() == null ? _getEntity(_mConf) : null;
+
+        lResult = _httpPostWithRetries(_mConf, mEntity);
+      } catch (IOException e) {
+        if (!isCancelled()) {
+          e.printStackTrace();
+        }
+        lResult = FAILURE_FILE_READ;
+      }
+
+      return _finish(lResult);
+    } finally {
+      _detach();
+      // Also when a listener threw, so that the registry doesn't keep it.
+      _unregister();
+    }
+  }
+
+  /**
+   * Aborts the request: the connection or stream in flight is closed right
+   * away, which fails the write or read blocking on it, and waits for
+   * bandwidth, a slot or a retry are interrupted. Buffers and files are
+   * released as the request unwinds. The request then ends with
+   * #FAILURE_CANCELLED, unless it succeeded meanwhile. Can be called from any
+   * thread, typically through {@link HttpRequestRegistry#cancel}.
+   *
+   * @return Whether the request was still in flight.
+   */
+  public boolean cancel() {
+    if (_bCancelled || _bFinished) {
+      return false;
+    }
+
+    _bCancelled = true;
+    _mLogger.d("HttpEngine",
+        String.format("cancel: Cancelling Instance %d", _iInstanceId));
+
+    _closeQuietly(_mAbort);
+    synchronized (_mCancelLock) {
+      if (_mThread != null) {
+        _mThread.interrupt();
+      }
+    }
+    for (HttpEngine mPart : _aParts) {
+      mPart.cancel();
+    }
+
+    return true;
+  }
+
+  /** @return Whether {@link #cancel()} was called. */
+  public boolean isCancelled() { return _bCancelled; }
+
+  /** @return Whether the request is over. */
+  public boolean isFinished() { return _bFinished; }
+
+  /**
+   * @return Bytes of the transfer handed to the connection so far, across
+   * the requests of a resumable or parallel upload. Can be read while the
+   * request runs.
+   */
+  public long getBytesSent() { return _lBytesSent; }
+
+  /**
+   * Builds the entity of the request ahead of {@link #run()}, typically while
+   * another request is being sent, see {@link UploadPipeline}: files are
+   * stat-ed, hashed or compressed, and the arguments encoded. Nothing is sent:
+   * the server is asked which files it knows by run(). Does nothing for
+   * resumable and parallel uploads, which build their requests as they go.
+   *
+   * @throws IOException When a file can't be read. run() then builds the
+   * entity again, and fails with #FAILURE_FILE_READ if it still can't.
+   */
+  public void prepare() throws IOException {
+    if (_mConf.getResumableUpload() == null &&
+        _mConf.getParallelUpload() == null) {
+      _mPrepared = _buildEntity(_mConf);
+    }
+  }
+
+  /** @return Whether {@link #prepare()} built the entity already. */
+  public boolean isPrepared() { return _mPrepared != null; }
+
+  /**
+   * Ends the request with lResult: reports its measures to the
+   * {@link HttpConfiguration#getMetrics()}, then calls either
+   * {@link HttpListener#onResponse} or {@link HttpListener#onFailure}.
+   *
+   * @param lResult The outcome of the request.
+   * @return lResult.
+   */
+  protected long _finish(long lResult) {
+    if (isCancelled() && lResult != SUCCESS) {
+      lResult = FAILURE_CANCELLED;
+    }
+
+    _mTimings.markEnd();
+    _lStatus = lResult;
+    _bFinished = true;
+    _unregister();
+    _mConf.getMetrics().onRequestFinished(_mConf.getEndPoint(), getResult());
+
+    if (lResult == SUCCESS || lResult == FAILURE_RESPONSE) {
+      _dispatchOnSuccess(_sResponse);
+    } else {
+      _dispatchOnFailure(lResult);
+    }
+
+    return lResult;
+  }
+
+  /**
+   * Starts measuring the throughput reported by the
+   * {@link ProgressReporter}, if any, as an upload begins.
+   *
+   * @param lSent Bytes of the transfer sent by earlier requests.
+   */
+  protected void _startProgress(long lSent) {
+    if (_mProgressTracker != null) {
+      _mProgressTracker.start(lSent);
+    }
+  }
+
+  /** Makes the request known to the default {@link HttpRequestRegistry}. */
+  protected void _register() {
+    HttpRequestRegistry.getDefault().register(this);
+  }
+
+  /** Removes the request from the default {@link HttpRequestRegistry}. */
+  protected void _unregister() {
+    HttpRequestRegistry.getDefault().unregister(this);
+  }
+
+  /** Makes {@link #cancel()} interrupt the calling thread, until
+   * {@link #_detach()}. */
+  protected void _attach() {
+    synchronized (_mCancelLock) {
+      _mThread = Thread.currentThread();
+    }
+  }
+
+  /** Undoes {@link #_attach()}, clearing the interrupt of a cancel. */
+  protected void _detach() {
+    synchronized (_mCancelLock) {
+      _mThread = null;
+    }
+    if (isCancelled()) {
+      Thread.interrupted();
+    }
+  }
+
+  /**
+   * Makes {@link #cancel()} close mAbort while the current HTTP request is
+   * in flight. Closes it right away if the request was cancelled already.
+   *
+   * @param mAbort Closes the connection or stream of the request, or null
+   *               once it is over.
+   */
+  protected void _setAbort(Closeable mAbort) {
+    _mAbort = mAbort;
+    if (mAbort != null && isCancelled()) {
+      _closeQuietly(mAbort);
+    }
+  }
+
+  protected static void _closeQuietly(Closeable mCloseable) {
+    if (mCloseable == null) {
+      return;
+    }
+
+    try {
+      mCloseable.close();
+    } catch (IOException e) {
+      // Nothing more we can do.
+    }
+  }
+
+  /**
+   * Hands the request to mTransport, and waits until it is over.
+   *
+   * @param mTransport The transport of the configuration.
+   * @return The result of the request.
+   */
+  protected long _runOnTransport(HttpSelectorTransport mTransport) {
+    final CountDownLatch mDone = new CountDownLatch(1);
+    mTransport.execute(this, new HttpSelectorTransport.Callback() {
+      @Override
+      public void onFinished(HttpEngine mEngine) {
+        mDone.countDown();
+      }
+    });
+
+    boolean bInterrupted = false;
+    while (true) {
+      try {
+        mDone.await();
+        break;
+      } catch (InterruptedException e) {
+        bInterrupted = true;
+      }
+    }
+    if (bInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    return _lStatus;
+  }
+
+  /**
+   * @param mLogger Where to send the debug traces of the engine.
+   * @return This engine, to chain calls.
+   */
+  public HttpEngine setLogger(HttpLogger mLogger) {
+    _mLogger = mLogger != null ? mLogger : HttpLogger.NONE;
+    return this;
+  }
+
+  public HttpConfiguration getConfiguration() { return _mConf; }
+  public int getInstanceId() { return _iInstanceId; }
+  /**
+   * @return The response from the server as a String, once {@link #run()}
+   * returned, or null if the {@link HttpResponseHandler} of the configuration
+   * doesn't produce text.
+   */
+  public String getResponse() { return _sResponse; }
+  /**
+   * @return What the {@link HttpResponseHandler} of the configuration made of
+   * the body of the response, once {@link #run()} returned.
+   */
+  public Object getContent() { return _mContent; }
+  /** @return The HTTP response code, once {@link #run()} returned. */
+  public int getResponseCode() { return _iResponseCode; }
+  public HttpTimings getTimings() { return _mTimings; }
+  /** @return The number of attempts made, see {@link RetryPolicy}. */
+  public int getAttemptCount() { return _iAttempts; }
+
+  /**
+   * @param sName Name of the header, case insensitive.
+   * @return The value of the header in the last response, or null.
+   */
+  public String getResponseHeader(String sName) {
+    return _mResponseHeaders.get(sName.toLowerCase());
+  }
+
+  /**
+   * @return The status, response and timings of the request, once
+   * {@link #run()} returned.
+   */
+  public HttpResult getResult() {
+    return new HttpResult(_iInstanceId, _lStatus, _iResponseCode,
+        _mContent != null ? _mContent : _sResponse, _mTimings);
+  }
+
+  /*****************************************************************************
+   ************************** HttpListener Dispatchers *************************
+   ****************************************************************************/
+
+  /**
+   * Will call the {@link HttpListener#onStartTransfer} callback should the
+   * _mListener object be non-null.
+   *
+   * @see HttpListener#onStartTransfer
+   */
+  protected void _dispatchOnStartTransfer() {
+    if (_bTransferStarted) return;
+    _bTransferStarted = true;
+
+    if (_mListener != null) {
+      _mListener.onStartTransfer(_iInstanceId);
+    }
+  }
+
+  /**
+   * Will call the {@link HttpListener#onProgress} callback should the
+   * _mListener object be non-null.
+   *
+   * @param iProgress The process of the upload on a scale of 0 to 100.
+   *
+   * @see HttpListener#onProgress
+   */
+  protected void _dispatchOnProgress(int iProgress) {
+    if (_mListener != null) {
+      _mListener.onProgress(_iInstanceId, iProgress);
+    }
+  }
+
+  /**
+   * Will call the {@link HttpListener#onResponse} callback should the
+   * _mListener object be non-null.
+   *
+   * @param sResponse The response from the server.
+   *
+   * @see HttpListener#onResponse
+   */
+  protected void _dispatchOnSuccess(String sResponse) {
+    if (_mListener != null) {
+      _mListener.onResponse(_iInstanceId, _iResponseCode, sResponse);
+    }
+  }
+
+  /**
+   * Will call the {@link HttpListener#onFailure} callback should the
+   * _mListener object be non-null.
+   *
+   * @param lError The error code related to the POST failure. Either
+   *               #FAILURE_CONNECTION, #FAILURE_TRANSFER, #FAILURE_RESPONSE,
+   *               #FAILURE_MALFORMEDURL or #FAILURE_FILE_READ.
+   *
+   * @see HttpListener#onFailure
+   */
+  protected void _dispatchOnFailure(long lError) {
+    if (_mListener != null) {
+      _mListener.onFailure(_iInstanceId, lError);
+    }
+  }
+
+  /*****************************************************************************
+   **************************** Core Poster Functions **************************
+   ****************************************************************************/
+
+  /**
+   * Builds the {@link MultipartEntity} that we will send to the server.
+   * Takes for input an {@link HttpConfiguration} that contains the Post
+   * variables and File Names to send. Files are only stat-ed at this point,
+   * and hashed into {@link #_aHashes} if mConf has a {@link DedupCache}. All
+   * the files are sent in full, see {@link #_getEntity} for deduplication.
+   *
+   * @param mConf Configuration of the POST request to be processed.
+   * @return A MultipartEntity, which exact length is known.
+   *
+   * @throws IOException When a file in the list of files from
+   * {@link HttpConfiguration#getFiles()} cannot be read.
+   *
+   * @see {@link com.licryle.httpposter.MultipartEntity}
+   * @see {@link com.licryle.httpposter.HttpConfiguration}
+   */
+  protected MultipartEntity _buildEntity(HttpConfiguration mConf)
+      throws IOException{
+    _mLogger.d("HttpEngine",
+        String.format("_buildEntity: Entering for Instance %d", _iInstanceId));
+
+    _aHashes = mConf.getDedupCache() != null ? _hashFiles(mConf) : null;
+    MultipartEntity mEntity = _buildEntity(mConf, new HashSet<String>());
+
+    _mLogger.d("HttpEngine",
+        String.format("_buildEntity: Leaving for Instance %d", _iInstanceId));
+
+    _mTimings.markBuilt();
+
+    return mEntity;
+  }
+
+  /**
+   * Builds the entity of mConf, with a reference in place of each file whose
+   * hash in {@link #_aHashes} is in mKnown.
+   *
+   * @throws IOException When a file can't be read.
+   */
+  protected MultipartEntity _buildEntity(HttpConfiguration mConf,
+                                         HashSet<String> mKnown)
+      throws IOException {
+    MultipartEntity mEntity = new MultipartEntity(mConf.getHTTPBoundary())
+        .setCompression(mConf.getCompression());
+
+    int iFileNb = 0;
+    for (File mFile : mConf.getFiles()) {
+      String sHash = _aHashes != null ? _aHashes.get(iFileNb) : null;
+      if (sHash != null && mKnown.contains(sHash)) {
+        mEntity.addReference("file_" + iFileNb, mFile.getName(), sHash);
+      } else {
+        mEntity.addFile("file_" + iFileNb, mFile);
+      }
+      iFileNb++;
+    }
+
+    for (Map.Entry<String, String> mPair : mConf.getArgs().entrySet()) {
+      mEntity.addText(mPair.getKey(), mPair.getValue());
+    }
+    _addParts(mEntity, mConf);
+
+    return mEntity;
+  }
+
+  /**
+   * Adds the typed parts of mConf to mEntity, in their order.
+   *
+   * @throws IOException When a file part can't be read.
+   */
+  protected void _addParts(MultipartEntity mEntity, HttpConfiguration mConf)
+      throws IOException {
+    for (HttpPart mPart : mConf.getParts()) {
+      mPart.addTo(mEntity, mPart.getName());
+    }
+  }
+
+  /**
+   * Gets the entity built by {@link #prepare()} if any, a new one from
+   * {@link #_buildEntity} otherwise. If files were hashed, the server is then
+   * asked which of them it knows, and the entity built again with references
+   * to those. Called as the request is sent, so that prepare() never goes to
+   * the network.
+   *
+   * @return The entity to send.
+   * @throws IOException When a file can't be read.
+   */
+  protected MultipartEntity _getEntity(HttpConfiguration mConf)
+      throws IOException {
+    MultipartEntity mEntity;
+    if (_mPrepared != null) {
+      _mTimings.markBuilt();
+      mEntity = _mPrepared;
+    } else {
+      mEntity = _buildEntity(mConf);
+    }
+
+    if (_aHashes == null) {
+      return mEntity;
+    }
+
+    HashSet<String> mKnown = _queryKnownHashes(mConf, _aHashes);
+    return mKnown.isEmpty() ? mEntity : _buildEntity(mConf, mKnown);
+  }
+
+  /**
+   * @return The SHA-256 of each file of mConf, in order, from its
+   * {@link DedupCache}. null for the files too small to be worth it.
+   * @throws IOException When a file can't be read.
+   */
+  protected ArrayList<String> _hashFiles(HttpConfiguration mConf)
+      throws IOException {
+    DedupCache mCache = mConf.getDedupCache();
+    ArrayList<String> aHashes = new ArrayList<String>();
+
+    for (File mFile : mConf.getFiles()) {
+      aHashes.add(mCache.shouldCheck(mFile) ? mCache.getHash(mFile) : null);
+    }
+
+    return aHashes;
+  }
+
+  /**
+   * Asks the server which of aHashes it has the content of. Failures are
+   * ignored: the files are then all sent.
+   *
+   * The query is a bare request, sent through the same transport as the
+   * upload: an HTTP/2 stream, a pooled connection or an
+   * {@link HttpURLConnection}. It isn't part of the upload, so it is neither
+   * reported to the listener, nor timed, nor throttled, nor counted in the
+   * metrics.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param aHashes Hashes of the files, null for those not to check.
+   * @return The hashes known by the server.
+   *
+   * @see DedupCache
+   */
+  protected HashSet<String> _queryKnownHashes(HttpConfiguration mConf,
+                                              ArrayList<String> aHashes) {
+    ArrayList<String> aQuery = new ArrayList<String>();
+    for (String sHash : aHashes) {
+      if (sHash != null && !aQuery.contains(sHash)) {
+        aQuery.add(sHash);
+      }
+    }
+
+    if (aQuery.isEmpty() || isCancelled()) {
+      return new HashSet<String>();
+    }
+
+    HashMap<String, String> mHeaders = new HashMap<String, String>();
+    mHeaders.put(DedupCache.HEADER_QUERY, DedupCache.formatHashes(aQuery));
+
+    HashSet<String> mKnown = new HashSet<String>();
+    Closeable mAbort = _mAbort;
+    try {
+      String sKnown;
+      if (mConf.getHttp2ConnectionPool() != null) {
+        sKnown = _bareRequestHttp2(mConf, mHeaders, DedupCache.HEADER_KNOWN);
+      } else if (mConf.getConnectionPool() != null) {
+        sKnown = _bareRequestPooled(mConf, mHeaders, DedupCache.HEADER_KNOWN);
+      } else {
+        sKnown = _bareRequest(mConf, mHeaders, DedupCache.HEADER_KNOWN);
+      }
+      mKnown = DedupCache.parseHashes(sKnown);
+    } catch (IOException e) {
+      _mLogger.d("HttpEngine", String.valueOf(e.getMessage()));
+    } finally {
+      _setAbort(mAbort);
+    }
+
+    _mLogger.d("HttpEngine",
+        String.format("_queryKnownHashes: %d of %d files known for " +
+            "Instance %d", mKnown.size(), aQuery.size(), _iInstanceId));
+    return mKnown;
+  }
+
+  /**
+   * Sends a POST with an empty body and mHeaders on a connection of its own,
+   * abortable but otherwise untracked.
+   *
+   * @return The value of the header sName of a 2xx answer, null otherwise.
+   * @throws IOException When the request fails.
+   */
+  protected String _bareRequest(HttpConfiguration mConf,
+                                Map<String, String> mHeaders, String sName)
+      throws IOException {
+    final HttpURLConnection mConn =
+        (HttpURLConnection) mConf.getEndPoint().openConnection();
+    _setAbort(new Closeable() {
+      @Override
+      public void close() {
+        mConn.disconnect();
+      }
+    });
+
+    try {
+      mConn.setRequestMethod("POST");
+      for (Map.Entry<String, String> mHeader : mHeaders.entrySet()) {
+        mConn.setRequestProperty(mHeader.getKey(), mHeader.getValue());
+      }
+      mConn.setDoOutput(true);
+      mConn.setUseCaches(false);
+      mConn.setReadTimeout(mConf.getReadTimeout());
+      mConn.setConnectTimeout(mConf.getConnectTimeout());
+      mConn.setInstanceFollowRedirects(false);
+      mConn.setFixedLengthStreamingMode(0);
+      mConn.getOutputStream().close();
+
+      int iCode = mConn.getResponseCode();
+      if (iCode < 200 || iCode >= 300) {
+        return null;
+      }
+
+      String sValue = mConn.getHeaderField(sName);
+      mConn.getInputStream().close();
+      return sValue;
+    } finally {
+      mConn.disconnect();
+    }
+  }
+
+  /**
+   * Same as {@link #_bareRequest} on a connection borrowed from
+   * {@link HttpConfiguration#getConnectionPool()}, given back once the answer
+   * was read.
+   */
+  protected String _bareRequestPooled(HttpConfiguration mConf,
+                                      Map<String, String> mHeaders,
+                                      String sName) throws IOException {
+    HttpConnectionPool mPool = mConf.getConnectionPool();
+    final HttpConnection mConn = mPool.acquire(mConf.getEndPoint(),
+        mConf.getConnectTimeout(), mConf.getReadTimeout());
+    _setAbort(new Closeable() {
+      @Override
+      public void close() {
+        mConn.close();
+      }
+    });
+
+    try {
+      mConn.writeRequestHead("POST", mConf.getEndPoint(), mHeaders, 0,
+          mPool.isLastRequest(mConn));
+      mConn.getRequestBody().close();
+
+      int iCode = mConn.readResponseHead();
+      _drain(mConn.getResponseBody());
+      return iCode >= 200 && iCode < 300
+          ? mConn.getResponseHeader(sName) : null;
+    } catch (IOException e) {
+      mConn.close();
+      throw e;
+    } finally {
+      mPool.release(mConn);
+    }
+  }
+
+  /**
+   * Same as {@link #_bareRequest} on a stream of the HTTP/2 connection of
+   * {@link HttpConfiguration#getHttp2ConnectionPool()} for the host.
+   */
+  protected String _bareRequestHttp2(HttpConfiguration mConf,
+                                     Map<String, String> mHeaders,
+                                     String sName) throws IOException {
+    Http2Connection mConn = mConf.getHttp2ConnectionPool().acquire(
+        mConf.getEndPoint(), mConf.getConnectTimeout());
+    final Http2Connection.Stream mStream = mConn.newStream("POST",
+        mConf.getEndPoint(), mHeaders, 0, mConf.getReadTimeout());
+    _setAbort(new Closeable() {
+      @Override
+      public void close() {
+        mStream.cancel();
+      }
+    });
+
+    boolean bEnded = false;
+    try {
+      mStream.getRequestBody().close();
+
+      int iCode = mStream.readResponseHead();
+      _drain(mStream.getResponseBody());
+      bEnded = true;
+      return iCode >= 200 && iCode < 300
+          ? mStream.getResponseHeader(sName) : null;
+    } finally {
+      if (!bEnded) {
+        mStream.cancel();
+      }
+    }
+  }
+
+  /**
+   * Writes mEntity to mOutput, tracking the progress of the writing. Progress
+   * covers the whole transfer set by {@link #_lProgressTotal} if any, the
+   * entity alone otherwise, before compression.
+   *
+   * @param mEntity The Entity to send.
+   * @param mOutput The stream of the request body.
+   * @throws IOException When the writing fails.
+   */
+  protected void _writeEntity(HttpBody mEntity, OutputStream mOutput)
+      throws IOException {
+    _mLogger.d("HttpEngine", "_writeEntity.In");
+    long lLength = mEntity instanceof MultipartEntity
+        ? ((MultipartEntity) mEntity).getSourceLength()
+        : mEntity.getContentLength();
+
+    _startProgress(_lProgressTotal < 0 ? 0 : _lProgressBase);
+    _ProgressiveOutputStream mProgress = _lProgressTotal < 0
+        ? new _ProgressiveOutputStream(mOutput, lLength)
+        : new _ProgressiveOutputStream(mOutput, _lProgressBase,
+              _lProgressTotal);
+    mEntity.writeTo(mProgress);
+    // The body is the whole transfer, of which the size may be unknown.
+    if (_lProgressTotal < 0) {
+      mProgress._finishProgress();
+    }
+    _mLogger.d("HttpEngine", "_writeEntity.Out");
+  }
+
+  /**
+   * Sends the request, then sends it again for as long as the
+   * {@link RetryPolicy} of mConf asks to, waiting the delay it gives between
+   * attempts. Without a policy, the request is sent once.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mEntity The entity to send, or null for a resumable or parallel
+   *                upload.
+   *
+   * @return The result of the last attempt. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER or #FAILURE_RESPONSE.
+   * @throws IOException When a file can't be read.
+   */
+  protected long _httpPostWithRetries(HttpConfiguration mConf,
+                                      MultipartEntity mEntity)
+      throws IOException {
+    RetryPolicy mPolicy = mConf.getRetryPolicy();
+    long lStart = System.nanoTime();
+
+    while (true) {
+      _iAttempts++;
+      _iResponseCode = 0;
+
+      long lResult = mEntity != null
+          ? _httpPost(mConf, mEntity)
+          : mConf.getResumableUpload() != null
+              ? _httpPostResumable(mConf, mConf.getResumableUpload())
+              : _httpPostParallel(mConf, mConf.getParallelUpload());
+
+      if (mPolicy == null || isCancelled() ||
+          (mEntity != null && !mEntity.isRepeatable())) {
+        return lResult;
+      }
+
+      long lDelay = mPolicy.getRetryDelay(_iAttempts, lResult, _iResponseCode,
+          getResponseHeader("retry-after"),
+          (System.nanoTime() - lStart) / 1000000);
+      if (lDelay < 0) {
+        return lResult;
+      }
+
+      _mLogger.d("HttpEngine",
+          String.format("_httpPost: Attempt %d failed with %d, retrying in " +
+              "%d ms for Instance %d", _iAttempts, lResult, lDelay,
+              _iInstanceId));
+
+      try {
+        Thread.sleep(lDelay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return lResult;
+      }
+    }
+  }
+
+  /**
+   * Opens a connection to the POST end point specified in the mConf
+   * {@link HttpConfiguration} and sends the content of mEntity. Attempts to
+   * read the answer from the server after the POST Request.
+   * 
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mEntity The Entity to send in the HTTP Post. Should be built using
+   *                {@link #_buildEntity}.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER, #FAILURE_RESPONSE,
+   * #FAILURE_MALFORMEDURL.
+   *
+   * @see HttpConfiguration
+   * @see MultipartEntity
+   */
+  protected long _httpPost(HttpConfiguration mConf, HttpBody mEntity) {
+    return _httpPost(mConf, mEntity, new HashMap<String, String>(),
+        mConf.getResponseHandler());
+  }
+
+  /**
+   * Same as {@link #_httpPost(HttpConfiguration, HttpBody)}, with extra
+   * request headers and a specific handler for the answer.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mEntity The body of the request.
+   * @param mHeaders Headers to send on top of Content-Type and
+   *                 Accept-Encoding.
+   * @param mHandler Handler of the body of the answer.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER or #FAILURE_RESPONSE.
+   */
+  protected long _httpPost(HttpConfiguration mConf, HttpBody mEntity,
+                           Map<String, String> mHeaders,
+                           HttpResponseHandler<?> mHandler) {
+    if (isCancelled()) {
+      return FAILURE_CANCELLED;
+    }
+
+    ConcurrencyLimiter mLimiter = mConf.getConcurrencyLimiter();
+    ConcurrencyLimiter.Endpoint mEndpoint = mLimiter != null
+        ? mLimiter.getEndpoint(mConf.getEndPoint()) : null;
+    long lAcquiredAt = 0;
+    if (mEndpoint != null) {
+      try {
+        lAcquiredAt = mEndpoint.acquire();
+      } catch (InterruptedIOException e) {
+        return isCancelled() ? FAILURE_CANCELLED : FAILURE_CONNECTION;
+      }
+    }
+
+    long lResult = FAILURE_CONNECTION;
+    try {
+      lResult = _httpPostAttempt(mConf, mEntity, mHeaders, mHandler);
+    } finally {
+      _setAbort(null);
+      if (mEndpoint != null) {
+        mEndpoint.release(lAcquiredAt, _limiterOutcome(lResult),
+            _mTimings.getWaitNs());
+      }
+    }
+
+    return isCancelled() && lResult != SUCCESS ? FAILURE_CANCELLED : lResult;
+  }
+
+  /**
+   * @param lResult Result of a request.
+   * @return How the request reflects the load of the server, one of the
+   * ConcurrencyLimiter#OUTCOME_* constants.
+   */
+  protected int _limiterOutcome(long lResult) {
+    if (isCancelled()) {
+      return ConcurrencyLimiter.OUTCOME_IGNORED;
+    }
+    if (_iResponseCode == 429 || _iResponseCode >= 500 ||
+        lResult == FAILURE_CONNECTION || lResult == FAILURE_TRANSFER) {
+      return ConcurrencyLimiter.OUTCOME_DROPPED;
+    }
+
+    return _iResponseCode > 0 ? ConcurrencyLimiter.OUTCOME_SUCCESS
+                              : ConcurrencyLimiter.OUTCOME_IGNORED;
+  }
+
+  /**
+   * Sends a single request, as {@link #_httpPost(HttpConfiguration, HttpBody,
+   * Map, HttpResponseHandler)} once a slot is granted.
+   */
+  protected long _httpPostAttempt(HttpConfiguration mConf, HttpBody mEntity,
+                                  Map<String, String> mHeaders,
+                                  HttpResponseHandler<?> mHandler) {
+    _mLogger.d("HttpEngine",
+        String.format("_httpPost: Entering Instance %d", _iInstanceId));
+    _mResponseHeaders.clear();
+    _mTimings.markAttempt();
+
+    if (mConf.getHttp2ConnectionPool() != null) {
+      return _httpPostHttp2(mConf, mEntity, mHeaders, mHandler);
+    }
+    if (mConf.getConnectionPool() != null) {
+      return _httpPostPooled(mConf, mEntity, mHeaders, mHandler);
+    }
+
+    /******** Open request ********/
+    try {
+      final HttpURLConnection mConn =
+          (HttpURLConnection) mConf.getEndPoint().openConnection();
+      _setAbort(new Closeable() {
+        @Override
+        public void close() {
+          mConn.disconnect();
+        }
+      });
+
+      mConn.setRequestMethod("POST");
+      if (mEntity.getContentType() != null) {
+        mConn.setRequestProperty("Content-Type", mEntity.getContentType());
+      }
+      if (mEntity.getContentEncoding() != null) {
+        mConn.setRequestProperty("Content-Encoding",
+            mEntity.getContentEncoding());
+      }
+      mConn.setRequestProperty("Accept-Encoding",
+          HttpResponseBody.ACCEPT_ENCODING);
+      for (Map.Entry<String, String> mHeader : mHeaders.entrySet()) {
+        mConn.setRequestProperty(mHeader.getKey(), mHeader.getValue());
+      }
+
+      mConn.setDoInput(true);
+      mConn.setDoOutput(true);
+      mConn.setUseCaches(false);
+      mConn.setReadTimeout(mConf.getReadTimeout());
+      mConn.setConnectTimeout(mConf.getConnectTimeout());
+      mConn.setInstanceFollowRedirects(false);
+      _setStreamingMode(mConn, mEntity.getContentLength());
+
+      mConn.connect();
+      _mTimings.markConnected();
+      // A cancel before connect() had no connection to disconnect.
+      if (isCancelled()) {
+        mConn.disconnect();
+        return FAILURE_CANCELLED;
+      }
+
+      _mLogger.d("HttpEngine",
+          String.format("_httpPost: Connected for Instance %d", _iInstanceId));
+
+      try {
+        /********** Write request ********/
+        _dispatchOnStartTransfer();
+
+        _mLogger.d("HttpEngine",
+            String.format("_httpPost: Sending for Instance %d", _iInstanceId));
+
+        OutputStream mOutput = mConn.getOutputStream();
+        _writeEntity(mEntity, mOutput);
+        mOutput.flush();
+        mOutput.close();
+        _mTimings.markSent();
+
+        _iResponseCode = mConn.getResponseCode();
+        _mTimings.markFirstByte();
+        _storeResponseHeaders(mConn);
+        try {
+          _mLogger.d("HttpEngine",
+              String.format("_httpPost: Reading for Instance %d",
+                  _iInstanceId));
+
+          InputStream mBody = mConn.getInputStream();
+          try {
+            _readServerAnswer(mHandler, mConn.getContentType(),
+                mConn.getContentEncoding(),
+                _parseLength(mConn.getHeaderField("Content-Length")), mBody);
+          } finally {
+            mBody.close();
+          }
+          return SUCCESS;
+        } catch (IOException e) {
+          return FAILURE_RESPONSE;
+        }
+      } catch (Exception e) {
+        _mLogger.d("HttpEngine", String.valueOf(e.getMessage()));
+        if (!isCancelled()) {
+          e.printStackTrace();
+        }
+
+        return FAILURE_TRANSFER;
+      } finally {
+        if (mConn != null) {
+          _mLogger.d("HttpEngine",
+              String.format("_httpPost: Disconnecting Instance %d",
+                  _iInstanceId));
+
+          mConn.disconnect();
+        }
+      }
+    } catch (Exception e) {
+      return FAILURE_CONNECTION;
+    }
+  }
+
+  /**
+   * Same as {@link #_httpPost} but sends the request on a keep-alive
+   * connection borrowed from {@link HttpConfiguration#getConnectionPool()},
+   * and gives it back once the answer was fully read instead of disconnecting.
+   *
+   * A pooled connection may have been closed by the server while idle. If
+   * a reused connection fails before the head of the request was written,
+   * or is closed or reset by the server before any byte of its answer, the
+   * request is sent once more on a fresh connection, as long as the entity
+   * can be written again. Other failures, timeouts included, aren't retried
+   * here, as the server may have processed the request.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mEntity The body of the request.
+   * @param mExtraHeaders Headers to send on top of Content-Type and
+   *                      Accept-Encoding.
+   * @param mHandler Handler of the body of the answer.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER or #FAILURE_RESPONSE.
+   *
+   * @see HttpConnectionPool
+   */
+  protected long _httpPostPooled(HttpConfiguration mConf, HttpBody mEntity,
+                                 Map<String, String> mExtraHeaders,
+                                 HttpResponseHandler<?> mHandler) {
+    HttpConnectionPool mPool = mConf.getConnectionPool();
+
+    HashMap<String, String> mHeaders = new HashMap<String, String>();
+    if (mEntity.getContentType() != null) {
+      mHeaders.put("Content-Type", mEntity.getContentType());
+    }
+    if (mEntity.getContentEncoding() != null) {
+      mHeaders.put("Content-Encoding", mEntity.getContentEncoding());
+    }
+    mHeaders.put("Accept-Encoding", HttpResponseBody.ACCEPT_ENCODING);
+    mHeaders.putAll(mExtraHeaders);
+
+    boolean bRetried = false;
+    while (true) {
+      /******** Open request ********/
+      HttpConnection mConn;
+      try {
+        mConn = mPool.acquire(mConf.getEndPoint(), mConf.getConnectTimeout(),
+            mConf.getReadTimeout());
+      } catch (IOException e) {
+        return FAILURE_CONNECTION;
+      }
+
+      final HttpConnection mAborted = mConn;
+      _setAbort(new Closeable() {
+        @Override
+        public void close() {
+          mAborted.close();
+        }
+      });
+
+      boolean bReused = mConn.getRequestCount() > 0;
+      _mTimings.markConnected();
+      _mLogger.d("HttpEngine",
+          String.format("_httpPost: %s connection for Instance %d",
+              bReused ? "Reusing" : "Opened", _iInstanceId));
+
+      boolean bHeadWritten = false;
+      try {
+        /********** Write request ********/
+        _dispatchOnStartTransfer();
+
+        mConn.writeRequestHead("POST", mConf.getEndPoint(), mHeaders,
+            mEntity.getContentLength(), mPool.isLastRequest(mConn));
+        bHeadWritten = true;
+
+        OutputStream mOutput = mConn.getRequestBody();
+        _writeEntity(mEntity, mOutput);
+        mOutput.close();
+        _mTimings.markSent();
+
+        _iResponseCode = mConn.readResponseHead();
+        _mTimings.markFirstByte();
+        _mResponseHeaders.putAll(mConn.getResponseHeaders());
+      } catch (IOException e) {
+        mConn.close();
+
+        // Sending the POST again is only safe if the server can't have
+        // processed it: nothing was written, or the idle connection had been
+        // closed by the server, which never answered. Never after a timeout.
+        boolean bStale = !bHeadWritten ||
+            (!mConn.isAnswerStarted() && _isConnectionLost(e));
+        if (bReused && bStale && !bRetried && mEntity.isRepeatable() &&
+            !isCancelled()) {
+          _mLogger.d("HttpEngine",
+              String.format("_httpPost: Stale connection for Instance %d",
+                  _iInstanceId));
+          bRetried = true;
+          continue;
+        }
+
+        return FAILURE_TRANSFER;
+      }
+
+      /********** Read answer ********/
+      try {
+        InputStream mBody = mConn.getResponseBody();
+
+        if (_iResponseCode >= 400) {
+          _drain(mBody);
+          return FAILURE_RESPONSE;
+        }
+
+        _readServerAnswer(mHandler, mConn.getResponseHeader("content-type"),
+            mConn.getResponseHeader("content-encoding"),
+            _parseLength(mConn.getResponseHeader("content-length")), mBody);
+        _drain(mBody);
+        return SUCCESS;
+      } catch (IOException e) {
+        mConn.close();
+        return FAILURE_RESPONSE;
+      } finally {
+        _setAbort(null);
+        mPool.release(mConn);
+      }
+    }
+  }
+
+  /**
+   * Same as {@link #_httpPost} but sends the request as a stream of the
+   * HTTP/2 connection shared by
+   * {@link HttpConfiguration#getHttp2ConnectionPool()} for the host,
+   * multiplexed with the other requests in flight. Progress is
+   * reported for this stream only, as its DATA frames are sent.
+   *
+   * If the server refused the stream without processing it, e.g. because it
+   * was shutting the connection down, or if the shared connection turns out
+   * to be broken, the request is sent once more on a new connection, as long
+   * as the entity can be written again.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mEntity The body of the request.
+   * @param mExtraHeaders Headers to send on top of Content-Type and
+   *                      Accept-Encoding.
+   * @param mHandler Handler of the body of the answer.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER or #FAILURE_RESPONSE.
+   *
+   * @see Http2ConnectionPool
+   */
+  protected long _httpPostHttp2(HttpConfiguration mConf, HttpBody mEntity,
+                                Map<String, String> mExtraHeaders,
+                                HttpResponseHandler<?> mHandler) {
+    Http2ConnectionPool mPool = mConf.getHttp2ConnectionPool();
+
+    HashMap<String, String> mHeaders = new HashMap<String, String>();
+    if (mEntity.getContentType() != null) {
+      mHeaders.put("Content-Type", mEntity.getContentType());
+    }
+    if (mEntity.getContentEncoding() != null) {
+      mHeaders.put("Content-Encoding", mEntity.getContentEncoding());
+    }
+    mHeaders.put("Accept-Encoding", HttpResponseBody.ACCEPT_ENCODING);
+    mHeaders.putAll(mExtraHeaders);
+
+    boolean bRetried = false;
+    while (true) {
+      /******** Open request ********/
+      Http2Connection mConn;
+      try {
+        mConn = mPool.acquire(mConf.getEndPoint(), mConf.getConnectTimeout());
+      } catch (IOException e) {
+        return FAILURE_CONNECTION;
+      }
+
+      boolean bReused = mConn.getStreamCount() > 0;
+      _mTimings.markConnected();
+
+      Http2Connection.Stream mStream = null;
+      try {
+        /********** Write request ********/
+        _dispatchOnStartTransfer();
+
+        mStream = mConn.newStream("POST", mConf.getEndPoint(), mHeaders,
+            mEntity.getContentLength(), mConf.getReadTimeout());
+        final Http2Connection.Stream mAborted = mStream;
+        _setAbort(new Closeable() {
+          @Override
+          public void close() {
+            mAborted.cancel();
+          }
+        });
+        _mLogger.d("HttpEngine",
+            String.format("_httpPost: Stream %d for Instance %d",
+                mStream.getId(), _iInstanceId));
+
+        OutputStream mOutput = mStream.getRequestBody();
+        _writeEntity(mEntity, mOutput);
+        mOutput.close();
+        _mTimings.markSent();
+
+        _iResponseCode = mStream.readResponseHead();
+        _mTimings.markFirstByte();
+        _mResponseHeaders.putAll(mStream.getResponseHeaders());
+      } catch (IOException e) {
+        if (mStream != null) {
+          mStream.cancel();
+        }
+
+        if ((bReused || e instanceof Http2Connection.RefusedStreamException)
+            && !bRetried && mEntity.isRepeatable() && !isCancelled()) {
+          _mLogger.d("HttpEngine",
+              String.format("_httpPost: Stream failed for Instance %d",
+                  _iInstanceId));
+          bRetried = true;
+          continue;
+        }
+
+        return FAILURE_TRANSFER;
+      }
+
+      /********** Read answer ********/
+      InputStream mBody = mStream.getResponseBody();
+      boolean bEnded = false;
+      try {
+        if (_iResponseCode >= 400) {
+          return FAILURE_RESPONSE;
+        }
+
+        _readServerAnswer(mHandler, mStream.getResponseHeader("content-type"),
+            mStream.getResponseHeader("content-encoding"),
+            _parseLength(mStream.getResponseHeader("content-length")), mBody);
+
+        // The end of the stream may come in a frame of its own once the body
+        // was read: waits for it rather than resetting a finished stream.
+        try {
+          bEnded = mBody.read() == -1;
+        } catch (IOException e) {
+          // Reset below.
+        }
+        return SUCCESS;
+      } catch (IOException e) {
+        return FAILURE_RESPONSE;
+      } finally {
+        // Resets the stream when its answer was left unread.
+        if (!bEnded) {
+          mStream.cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the files of mConf in ranges acknowledged by the server, resuming
+   * each from its last acknowledged offset, then posts the arguments along
+   * with the upload ids of the files. See {@link ResumableUpload} for the
+   * protocol. Progress covers all the ranges of all the files.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mUpload Settings and state of the upload.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER or #FAILURE_RESPONSE.
+   * @throws IOException When a file can't be read.
+   *
+   * @see ResumableUpload
+   */
+  protected long _httpPostResumable(HttpConfiguration mConf,
+                                    ResumableUpload mUpload)
+      throws IOException {
+    ArrayList<ResumableUpload.Session> aSessions =
+        new ArrayList<ResumableUpload.Session>();
+    long lTotal = 0;
+
+    for (File mFile : mConf.getFiles()) {
+      if (!mFile.isFile() || !mFile.canRead()) {
+        throw new FileNotFoundException(mFile.getPath());
+      }
+
+      ResumableUpload.Session mSession = mUpload.getSession(mFile);
+      aSessions.add(mSession);
+      lTotal += mSession.getLength();
+    }
+
+    MultipartEntity mEntity = new MultipartEntity(mConf.getHTTPBoundary());
+    for (int i = 0; i < aSessions.size(); i++) {
+      mEntity.addText("file_" + i, aSessions.get(i).getUploadId());
+    }
+    for (Map.Entry<String, String> mPair : mConf.getArgs().entrySet()) {
+      mEntity.addText(mPair.getKey(), mPair.getValue());
+    }
+    _addParts(mEntity, mConf);
+    _mTimings.markBuilt();
+
+    /********** Send the files ********/
+    _lProgressTotal = lTotal + mEntity.getContentLength();
+    for (ResumableUpload.Session mSession : aSessions) {
+      long lResult = _uploadSession(mConf, mUpload, mSession, aSessions);
+      if (lResult != SUCCESS) {
+        return lResult;
+      }
+    }
+
+    /********** Send the form ********/
+    _lProgressBase = lTotal;
+    long lResult = _httpPost(mConf, mEntity);
+    if (lResult == SUCCESS) {
+      mUpload.clear();
+    }
+
+    return lResult;
+  }
+
+  /**
+   * Sends the ranges of mSession that the server doesn't have yet.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mUpload Settings of the upload.
+   * @param mSession The file upload to complete.
+   * @param aSessions All the file uploads of the request, for progress.
+   *
+   * @return #SUCCESS once the server has the whole file, otherwise the result
+   * of the last failed request.
+   */
+  protected long _uploadSession(HttpConfiguration mConf,
+                                ResumableUpload mUpload,
+                                ResumableUpload.Session mSession,
+                                ArrayList<ResumableUpload.Session> aSessions)
+      throws IOException {
+    HashMap<String, String> mHeaders = new HashMap<String, String>();
+    mHeaders.put(ResumableUpload.HEADER_ID, mSession.getUploadId());
+    mHeaders.put(ResumableUpload.HEADER_LENGTH,
+        String.valueOf(mSession.getLength()));
+    mHeaders.put(ResumableUpload.HEADER_NAME,
+        URLEncoder.encode(mSession.getFile().getName(), "UTF-8"));
+
+    // A session started earlier may have stopped anywhere: ask the server.
+    if (mSession.getAcknowledged() > 0 && !mSession.isComplete()) {
+      _queryOffset(mConf, mSession, mHeaders);
+    }
+
+    int iFailures = 0;
+    while (!mSession.isComplete()) {
+      long lOffset = mSession.getAcknowledged();
+      long lCount =
+          Math.min(mUpload.getChunkSize(), mSession.getLength() - lOffset);
+
+      mHeaders.put(ResumableUpload.HEADER_OFFSET, String.valueOf(lOffset));
+      _lProgressBase = _acknowledgedBytes(aSessions);
+
+      _mLogger.d("HttpEngine",
+          String.format("_uploadSession: %d bytes at %d for Instance %d",
+              lCount, lOffset, _iInstanceId));
+
+      long lResult = _httpPost(mConf,
+          new FileRangeBody(mSession.getFile(), lOffset, lCount), mHeaders,
+          DISCARD);
+      long lAcked = _parseLength(
+          getResponseHeader(ResumableUpload.HEADER_OFFSET));
+
+      if (lResult == SUCCESS) {
+        mSession.acknowledge(lAcked >= 0 ? lAcked : lOffset + lCount);
+      } else if (lResult == FAILURE_RESPONSE && lAcked >= 0) {
+        // The server disagrees on the offset and tells where to go on from.
+        mSession.acknowledge(lAcked);
+      } else if (lResult == FAILURE_RESPONSE) {
+        return lResult;
+      } else {
+        _queryOffset(mConf, mSession, mHeaders);
+      }
+
+      if (mSession.getAcknowledged() > lOffset || mSession.isComplete()) {
+        iFailures = 0;
+      } else if (++iFailures >= mUpload.getMaxAttempts()) {
+        return lResult == SUCCESS ? FAILURE_RESPONSE : lResult;
+      }
+    }
+
+    return SUCCESS;
+  }
+
+  /**
+   * Asks the server how much of the file of mSession it has, and records it.
+   * Failures are ignored: the offset stays as it was.
+   */
+  protected void _queryOffset(HttpConfiguration mConf,
+                              ResumableUpload.Session mSession,
+                              HashMap<String, String> mHeaders) {
+    HashMap<String, String> mQuery = new HashMap<String, String>(mHeaders);
+    mQuery.remove(ResumableUpload.HEADER_OFFSET);
+
+    long lResult = _httpPost(mConf, new FileRangeBody(mSession.getFile(), 0, 0),
+        mQuery, DISCARD);
+    long lAcked =
+        _parseLength(getResponseHeader(ResumableUpload.HEADER_OFFSET));
+
+    if (lResult == SUCCESS && lAcked >= 0) {
+      mSession.acknowledge(lAcked);
+    }
+  }
+
+  /**
+   * Sends the files of mConf in parts, several at once, then the multipart
+   * form committing them, which answer is the one of the request.
+   *
+   * @param mConf The {@link HttpConfiguration} of the request.
+   * @param mUpload Settings and state of the upload.
+   *
+   * @return The result of the HTTP Post request. Either #SUCCESS,
+   * #FAILURE_CONNECTION, #FAILURE_TRANSFER or #FAILURE_RESPONSE.
+   * @throws IOException When a file can't be read.
+   *
+   * @see ParallelUpload
+   */
+  protected long _httpPostParallel(HttpConfiguration mConf,
+                                   ParallelUpload mUpload)
+      throws IOException {
+    ConcurrentLinkedQueue<_PendingPart> mParts =
+        new ConcurrentLinkedQueue<_PendingPart>();
+    ArrayList<ParallelUpload.Session> aSessions =
+        new ArrayList<ParallelUpload.Session>();
+    long lTotal = 0;
+    long lStored = 0;
+
+    for (File mFile : mConf.getFiles()) {
+      if (!mFile.isFile() || !mFile.canRead()) {
+        throw new FileNotFoundException(mFile.getPath());
+      }
+
+      ParallelUpload.Session mSession = mUpload.getSession(mFile);
+      for (int i = 0; i < mSession.getPartCount(); i++) {
+        if (!mSession.isStored(i)) {
+          mParts.add(new _PendingPart(mSession, i));
+        }
+      }
+      aSessions.add(mSession);
+      lTotal += mSession.getLength();
+      lStored += mSession.getStoredBytes();
+    }
+
+    MultipartEntity mEntity = new MultipartEntity(mConf.getHTTPBoundary());
+    for (int i = 0; i < aSessions.size(); i++) {
+      mEntity.addText("file_" + i, aSessions.get(i).getUploadId());
+    }
+    for (Map.Entry<String, String> mPair : mConf.getArgs().entrySet()) {
+      mEntity.addText(mPair.getKey(), mPair.getValue());
+    }
+    _addParts(mEntity, mConf);
+    _mTimings.markBuilt();
+
+    /********** Send the parts ********/
+    _lProgressTotal = lTotal + mEntity.getContentLength();
+    _lProgressBase = lStored;
+    _lPartsNextProgress = _progressAt(
+        (int) (lStored * 100 / _lProgressTotal) + 1, _lProgressTotal);
+    _startProgress(lStored);
+    long lResult = _sendParts(mUpload, mParts);
+    if (lResult != SUCCESS) {
+      return lResult;
+    }
+
+    /********** Commit ********/
+    _lProgressBase = lTotal;
+    lResult = _httpPost(mConf, mEntity);
+    if (lResult == SUCCESS) {
+      mUpload.clear();
+    }
+
+    return lResult;
+  }
+
+  /**
+   * Sends mParts over {@link ParallelUpload#getConnections()} connections at
+   * once, one of them from the calling thread, and waits until all are
+   * stored or one fails for good.
+   *
+   * @return #SUCCESS once all the parts are stored, otherwise the result of
+   * the first part that failed.
+   */
+  protected long _sendParts(final ParallelUpload mUpload,
+                            final ConcurrentLinkedQueue<_PendingPart> mParts) {
+    final AtomicLong mResult = new AtomicLong(SUCCESS);
+    int iWorkers = Math.min(mUpload.getConnections(), mParts.size());
+    final CountDownLatch mDone = new CountDownLatch(iWorkers);
+
+    Runnable mWorker = new Runnable() {
+      @Override
+      public void run() {
+        _PartEngine mEngine = new _PartEngine(HttpEngine.this);
+        _aParts.add(mEngine);
+        mEngine._attach();
+        try {
+          _PendingPart mPart;
+          while (mResult.get() == SUCCESS &&
+              (mPart = mParts.poll()) != null) {
+            long lResult = mEngine.sendPart(mUpload, mPart);
+            if (lResult != SUCCESS && mResult.compareAndSet(SUCCESS, lResult)) {
+              _onPartFailed(mEngine);
+            }
+          }
+        } catch (IOException e) {
+          mResult.compareAndSet(SUCCESS, FAILURE_FILE_READ);
+        } finally {
+          mEngine._detach();
+          _aParts.remove(mEngine);
+          mDone.countDown();
+        }
+      }
+    };
+
+    for (int i = 1; i < iWorkers; i++) {
+      if (mUpload.getExecutor() != null) {
+        mUpload.getExecutor().execute(mWorker);
+      } else {
+        Thread mThread = new Thread(mWorker, "HttpEngine-part");
+        mThread.setDaemon(true);
+        mThread.start();
+      }
+    }
+    if (iWorkers > 0) {
+      mWorker.run();
+    }
+
+    boolean bInterrupted = false;
+    while (true) {
+      try {
+        mDone.await();
+        break;
+      } catch (InterruptedException e) {
+        bInterrupted = true;
+      }
+    }
+    if (bInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    return mResult.get();
+  }
+
+  /** Takes the answer to the part that failed the request from mEngine. */
+  protected synchronized void _onPartFailed(_PartEngine mEngine) {
+    _iResponseCode = mEngine._iResponseCode;
+    _mResponseHeaders.clear();
+    _mResponseHeaders.putAll(mEngine._mResponseHeaders);
+  }
+
+  /**
+   * Accounts for lCount more bytes sent by the parts of a parallel upload,
+   * or fewer if negative, and publishes the progress when it went up.
+   *
+   * @param lCount Number of bytes of a part just handed to its connection.
+   */
+  protected synchronized void _onPartProgress(long lCount) {
+    _lProgressBase += lCount;
+    _lBytesSent = _lProgressBase;
+
+    if (_mProgressTracker != null) {
+      _mProgressTracker.update(_lProgressBase, _lProgressTotal);
+    }
+
+    if (_lProgressTotal <= 0 || _lProgressBase < _lPartsNextProgress) {
+      return;
+    }
+
+    int iProgress = (int) (_lProgressBase * 100 / _lProgressTotal);
+    _lPartsNextProgress = _progressAt(iProgress + 1, _lProgressTotal);
+    _dispatchOnProgress(iProgress);
+  }
+
+  /**
+   * @return The number of bytes out of lTotal at which the progress reaches
+   * iProgress percent, or Long.MAX_VALUE if lTotal is unknown.
+   */
+  protected static long _progressAt(int iProgress, long lTotal) {
+    return lTotal > 0 ? (iProgress * lTotal + 99) / 100 : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return Whether e means the server closed or reset the connection, as
+   * opposed to a timeout or a malformed answer.
+   */
+  protected static boolean _isConnectionLost(IOException e) {
+    return !(e instanceof SocketTimeoutException) &&
+        (e instanceof EOFException || e instanceof SocketException);
+  }
+
+  /** @return The number of bytes of aSessions the server has. */
+  protected static long _acknowledgedBytes(
+      ArrayList<ResumableUpload.Session> aSessions) {
+    long lBytes = 0;
+    for (ResumableUpload.Session mSession : aSessions) {
+      lBytes += mSession.getAcknowledged();
+    }
+
+    return lBytes;
+  }
+
+  /**
+   * Reads and discards the rest of mInputStream, so that the connection it
+   * belongs to can be reused.
+   *
+   * @param mInputStream Any valid InputStream.
+   * @throws IOException When the InputStream can't be read.
+   */
+  protected void _drain(InputStream mInputStream) throws IOException {
+    byte[] aBuffer = new byte[4096];
+    while (mInputStream.read(aBuffer) != -1) { }
+  }
+
+  /**
+   * Puts the connection in streaming mode so that the entity is written
+   * straight to the socket instead of being buffered in memory by
+   * {@link HttpURLConnection} to compute its length. Uses a fixed length
+   * streaming mode when the size of the entity is known, and falls back to
+   * chunked transfer encoding otherwise.
+   *
+   * Must be called before the connection is established.
+   *
+   * @param mConn The connection about to be opened.
+   * @param lContentLength Length of the entity to send, as returned by
+   *                       {@link MultipartEntity#getContentLength()}, or a
+   *                       negative value if unknown.
+   */
+  protected void _setStreamingMode(HttpURLConnection mConn,
+                                   long lContentLength) {
+    if (lContentLength >= 0 && lContentLength <= Integer.MAX_VALUE) {
+      mConn.setFixedLengthStreamingMode((int) lContentLength);
+    } else if (lContentLength >= 0) {
+      try {
+        // Only available from Java 7 and Android KitKat on.
+        mConn.setFixedLengthStreamingMode(lContentLength);
+      } catch (NoSuchMethodError e) {
+        mConn.setChunkedStreamingMode(0);
+      }
+    } else {
+      mConn.setChunkedStreamingMode(0);
+    }
+
+    _mLogger.d("HttpEngine",
+        String.format("_httpPost: Streaming %d bytes for Instance %d",
+            lContentLength, _iInstanceId));
+  }
+
+  /**
+   * Hands the answer from the server to mHandler, typically the
+   * {@link HttpResponseHandler} of the configuration, and stores what it
+   * produced in {@link #_mContent}, and in {@link #_sResponse} when it is
+   * text. Compressed bodies are decoded on the
+   * way, see {@link HttpResponseBody}.
+   *
+   * @param mHandler Handler of the body.
+   * @param sContentType Value of the Content-Type header, or null.
+   * @param sContentEncoding Value of the Content-Encoding header, or null.
+   * @param lContentLength Length of the body, -1 if unknown.
+   * @param mInputStream The body of the answer.
+   * @throws IOException When the InputStream can't be read, or the handler
+   * fails.
+   */
+  protected void _readServerAnswer(HttpResponseHandler<?> mHandler,
+                                   String sContentType,
+                                   String sContentEncoding,
+                                   long lContentLength,
+                                   InputStream mInputStream)
+      throws IOException {
+    HttpResponseBody mBody = new HttpResponseBody(_iResponseCode,
+        sContentType, sContentEncoding, lContentLength, mInputStream);
+
+    _mContent = mHandler.handle(mBody);
+    _sResponse = _mContent instanceof String ? (String) _mContent : null;
+  }
+
+  /**
+   * Copies the response headers of mConn to {@link #_mResponseHeaders}.
+   */
+  protected void _storeResponseHeaders(HttpURLConnection mConn) {
+    for (String sName : mConn.getHeaderFields().keySet()) {
+      if (sName != null) {
+        _mResponseHeaders.put(sName.toLowerCase(),
+            mConn.getHeaderField(sName));
+      }
+    }
+  }
+
+  /**
+   * @param sLength Value of a Content-Length header, or null.
+   * @return The length it holds, -1 if missing or invalid.
+   */
+  protected static long _parseLength(String sLength) {
+    if (sLength == null) return -1;
+
+    try {
+      return Long.parseLong(sLength.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
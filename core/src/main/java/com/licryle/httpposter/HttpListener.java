@@ -16,11 +16,12 @@
 package com.licryle.httpposter;
 
 /**
- * Interface to implement to listen to the events from the {@link HttpPoster}
- * Async task. All these callbacks are called on the main thread so updating the
- * UI is safe.
+ * Interface to implement to listen to the events from the {@link HttpEngine}.
+ * When going through the Android HttpPoster Async task, all these callbacks are
+ * called on the main thread so updating the UI is safe. When an HttpEngine is
+ * run directly, they are called on the thread running it.
  *
- * @see HttpPoster
+ * @see HttpEngine
  */
 public interface HttpListener {
   /**
@@ -32,7 +33,9 @@ public interface HttpListener {
   void onStartTransfer(int iInstance);
 
   /**
-   * Callback called everytime some data is written to the stream.
+   * Callback called whenever the percentage of the request written to the
+   * stream goes up. Not called when the length of the request isn't known,
+   * see {@link ProgressReporter} for progress in bytes.
    *
    * @param iInstance Unique Id of the HttpPost for tracking purpose.
    * @param iProgress Progress represented from a scale to 0 to 100 as the
@@ -57,7 +60,10 @@ public interface HttpListener {
    * @param iInstance Unique Id of the HttpPost for tracking purpose.
    * @param iResponseCode The HTTP Response code from the server to the POST
    *                      request.
-   * @param sResponse The content of the server response.
+   * @param sResponse The content of the server response, as decoded by the
+   *                  default {@link StringResponseHandler}. Null when the
+   *                  configuration uses a handler that doesn't produce text,
+   *                  see {@link HttpEngine#getContent()}.
    */
   void onResponse(int iInstance, int iResponseCode, String sResponse);
 }
\ No newline at end of file
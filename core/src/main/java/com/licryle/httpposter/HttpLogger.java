@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+/**
+ * Interface to implement to receive the debug traces of the {@link HttpEngine},
+ * so that the engine doesn't depend on any logging framework. The Android
+ * adapter forwards them to logcat.
+ *
+ * @see HttpEngine#setLogger
+ */
+public interface HttpLogger {
+  /** Logger discarding every message, used by default. */
+  HttpLogger NONE = new HttpLogger() {
+    @Override
+    public void d(String sTag, String sMessage) { }
+  };
+
+  /**
+   * Logs a debug message.
+   *
+   * @param sTag Component emitting the message.
+   * @param sMessage The message.
+   */
+  void d(String sTag, String sMessage);
+}
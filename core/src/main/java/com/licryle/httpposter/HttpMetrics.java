@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.net.URL;
+
+/**
+ * Receives the measures of every request run by an {@link HttpEngine}: the
+ * time spent in each phase, the bytes uploaded, the response code and the
+ * outcome, all found in the {@link HttpResult}. Set with
+ * {@link HttpConfiguration#setMetrics}.
+ *
+ * {@link HttpMetricsRegistry} aggregates them per end point into histograms;
+ * implement this interface to forward them to another metrics system.
+ *
+ * Called on the thread running the engine, once the request is over and
+ * before the listener is notified, so implementations must be fast and
+ * thread-safe.
+ *
+ * @see HttpTimings
+ */
+public interface HttpMetrics {
+  /** Discards the measures. */
+  HttpMetrics NONE = new HttpMetrics() {
+    @Override
+    public void onRequestFinished(URL mEndPoint, HttpResult mResult) { }
+  };
+
+  /**
+   * @param mEndPoint The end point the request was sent to.
+   * @param mResult Outcome, response code and timings of the request.
+   */
+  void onRequestFinished(URL mEndPoint, HttpResult mResult);
+}
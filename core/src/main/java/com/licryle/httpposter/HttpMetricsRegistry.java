@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link HttpMetrics} aggregating the measures of the requests per end point,
+ * i.e. scheme, host, port and path, into lock-free {@link Histogram}s and
+ * counters. A consistent-enough view can be taken at any time with
+ * {@link #getSnapshot()}, for instance to export it periodically.
+ *
+ * ** Usage:
+ * mConf.setMetrics(HttpMetricsRegistry.getDefault());
+ * ...
+ * for (HttpMetricsRegistry.EndpointSnapshot mEndPoint :
+ *     HttpMetricsRegistry.getDefault().getSnapshot().values()) {
+ *   long lP99 = mEndPoint.getUpload().getValueAtPercentile(99);
+ * }
+ *
+ * Durations are in ns, throughputs in bytes per second. Each end point costs
+ * a few tens of KB, so end points should be a bounded set: query strings are
+ * left out of the key.
+ *
+ * @see Histogram
+ */
+public class HttpMetricsRegistry implements HttpMetrics {
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected static final HttpMetricsRegistry DEFAULT =
+      new HttpMetricsRegistry();
+
+  protected final ConcurrentHashMap<String, EndpointMetrics> _mEndPoints =
+      new ConcurrentHashMap<String, EndpointMetrics>();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Live aggregates of the requests to an end point. */
+  public static class EndpointMetrics {
+    /** Number of outcomes, from SUCCESS (0) to FAILURE_CANCELLED (-5). */
+    protected static final int RESULTS = 6;
+
+    protected final Histogram _mBuild = new Histogram();
+    protected final Histogram _mConnect = new Histogram();
+    protected final Histogram _mUpload = new Histogram();
+    protected final Histogram _mThroughput = new Histogram();
+    protected final Histogram _mWait = new Histogram();
+    protected final Histogram _mRead = new Histogram();
+    protected final Histogram _mTotal = new Histogram();
+    /** Number of answers per response code. */
+    protected final AtomicLongArray _aStatuses = new AtomicLongArray(600);
+    /** Number of requests per outcome, indexed by -outcome. */
+    protected final AtomicLongArray _aResults = new AtomicLongArray(RESULTS);
+
+    /** Adds the measures of mResult. */
+    public void record(HttpResult mResult) {
+      HttpTimings mTimings = mResult.getTimings();
+      _mBuild.record(mTimings.getBuildNs());
+      _mConnect.record(mTimings.getConnectNs());
+      _mUpload.record(mTimings.getUploadNs());
+      _mThroughput.record(mTimings.getUploadBytesPerSecond());
+      _mWait.record(mTimings.getWaitNs());
+      _mRead.record(mTimings.getReadNs());
+      _mTotal.record(mTimings.getTotalNs());
+
+      int iCode = mResult.getResponseCode();
+      if (iCode > 0 && iCode < _aStatuses.length()) {
+        _aStatuses.incrementAndGet(iCode);
+      }
+
+      int iResult = (int) -mResult.getStatus();
+      if (iResult >= 0 && iResult < RESULTS) {
+        _aResults.incrementAndGet(iResult);
+      }
+    }
+
+    public EndpointSnapshot getSnapshot(String sEndPoint) {
+      TreeMap<Integer, Long> mStatuses = new TreeMap<Integer, Long>();
+      for (int i = 0; i < _aStatuses.length(); i++) {
+        long lCount = _aStatuses.get(i);
+        if (lCount > 0) {
+          mStatuses.put(i, lCount);
+        }
+      }
+
+      long[] aResults = new long[RESULTS];
+      for (int i = 0; i < RESULTS; i++) {
+        aResults[i] = _aResults.get(i);
+      }
+
+      return new EndpointSnapshot(sEndPoint, _mBuild.getSnapshot(),
+          _mConnect.getSnapshot(), _mUpload.getSnapshot(),
+          _mThroughput.getSnapshot(), _mWait.getSnapshot(),
+          _mRead.getSnapshot(), _mTotal.getSnapshot(), mStatuses, aResults);
+    }
+  }
+
+  /** Copy of the aggregates of an end point at a point in time. */
+  public static class EndpointSnapshot {
+    protected final String _sEndPoint;
+    protected final Histogram.Snapshot _mBuild;
+    protected final Histogram.Snapshot _mConnect;
+    protected final Histogram.Snapshot _mUpload;
+    protected final Histogram.Snapshot _mThroughput;
+    protected final Histogram.Snapshot _mWait;
+    protected final Histogram.Snapshot _mRead;
+    protected final Histogram.Snapshot _mTotal;
+    protected final TreeMap<Integer, Long> _mStatuses;
+    protected final long[] _aResults;
+
+    protected EndpointSnapshot(String sEndPoint, Histogram.Snapshot mBuild,
+                               Histogram.Snapshot mConnect,
+                               Histogram.Snapshot mUpload,
+                               Histogram.Snapshot mThroughput,
+                               Histogram.Snapshot mWait,
+                               Histogram.Snapshot mRead,
+                               Histogram.Snapshot mTotal,
+                               TreeMap<Integer, Long> mStatuses,
+                               long[] aResults) {
+      _sEndPoint = sEndPoint;
+      _mBuild = mBuild;
+      _mConnect = mConnect;
+      _mUpload = mUpload;
+      _mThroughput = mThroughput;
+      _mWait = mWait;
+      _mRead = mRead;
+      _mTotal = mTotal;
+      _mStatuses = mStatuses;
+      _aResults = aResults;
+    }
+
+    public String getEndPoint() { return _sEndPoint; }
+    /** @return Time in ns spent building the entity. */
+    public Histogram.Snapshot getBuild() { return _mBuild; }
+    /** @return Time in ns spent resolving and connecting. */
+    public Histogram.Snapshot getConnect() { return _mConnect; }
+    /** @return Time in ns spent writing the request. */
+    public Histogram.Snapshot getUpload() { return _mUpload; }
+    /** @return Upload throughput in bytes per second. */
+    public Histogram.Snapshot getThroughput() { return _mThroughput; }
+    /** @return Time in ns until the first byte of the answer. */
+    public Histogram.Snapshot getWait() { return _mWait; }
+    /** @return Time in ns spent reading the answer. */
+    public Histogram.Snapshot getRead() { return _mRead; }
+    /** @return Time in ns of the whole request. */
+    public Histogram.Snapshot getTotal() { return _mTotal; }
+    /** @return Number of answers per response code. */
+    public Map<Integer, Long> getStatusCounts() { return _mStatuses; }
+
+    /**
+     * @param lResult HttpEngine#SUCCESS or one of the HttpEngine#FAILURE_*
+     *                codes.
+     * @return The number of requests that ended with lResult.
+     */
+    public long getResultCount(long lResult) {
+      int iIndex = (int) -lResult;
+      return iIndex >= 0 && iIndex < _aResults.length ? _aResults[iIndex] : 0;
+    }
+
+    /** @return The number of requests measured. */
+    public long getRequestCount() {
+      long lCount = 0;
+      for (long lResult : _aResults) {
+        lCount += lResult;
+      }
+      return lCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s requests=%d success=%d connection=%d " +
+              "transfer=%d response=%d file=%d cancelled=%d statuses=%s%n" +
+              "  build      %s%n  connect    %s%n  upload     %s%n" +
+              "  throughput %s%n  wait       %s%n  read       %s%n" +
+              "  total      %s",
+          _sEndPoint, getRequestCount(),
+          getResultCount(HttpEngine.SUCCESS),
+          getResultCount(HttpEngine.FAILURE_CONNECTION),
+          getResultCount(HttpEngine.FAILURE_TRANSFER),
+          getResultCount(HttpEngine.FAILURE_RESPONSE),
+          getResultCount(HttpEngine.FAILURE_FILE_READ),
+          getResultCount(HttpEngine.FAILURE_CANCELLED), _mStatuses,
+          _mBuild, _mConnect, _mUpload, _mThroughput, _mWait, _mRead, _mTotal);
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /** @return The registry shared by the process. */
+  public static HttpMetricsRegistry getDefault() { return DEFAULT; }
+
+  @Override
+  public void onRequestFinished(URL mEndPoint, HttpResult mResult) {
+    String sKey = keyOf(mEndPoint);
+
+    EndpointMetrics mMetrics = _mEndPoints.get(sKey);
+    if (mMetrics == null) {
+      EndpointMetrics mNew = new EndpointMetrics();
+      mMetrics = _mEndPoints.putIfAbsent(sKey, mNew);
+      if (mMetrics == null) {
+        mMetrics = mNew;
+      }
+    }
+
+    mMetrics.record(mResult);
+  }
+
+  /**
+   * @return The aggregates of every end point, sorted by end point. Each
+   * histogram is copied on its own while requests go on, so that counts
+   * across histograms may differ by the requests in between.
+   */
+  public TreeMap<String, EndpointSnapshot> getSnapshot() {
+    TreeMap<String, EndpointSnapshot> mSnapshot =
+        new TreeMap<String, EndpointSnapshot>();
+    for (Map.Entry<String, EndpointMetrics> mEntry : _mEndPoints.entrySet()) {
+      mSnapshot.put(mEntry.getKey(),
+          mEntry.getValue().getSnapshot(mEntry.getKey()));
+    }
+
+    return mSnapshot;
+  }
+
+  /** Forgets all the measures. */
+  public void reset() {
+    _mEndPoints.clear();
+  }
+
+  /**
+   * @param mEndPoint URL of an end point.
+   * @return The key of its aggregates: scheme://host:port/path.
+   */
+  public static String keyOf(URL mEndPoint) {
+    return HttpConnection.routeOf(mEndPoint) + mEndPoint.getPath();
+  }
+}
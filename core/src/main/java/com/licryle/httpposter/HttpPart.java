@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A part of the multipart form of a request, added with
+ * {@link HttpConfiguration#addPart}. Unlike the arguments and files of the
+ * configuration, parts keep the order in which they are added, may share a
+ * name, and hold any kind of content:
+ * - text, in any charset,
+ * - bytes, from an array or a ByteBuffer, direct or mapped ones included,
+ * - a stream, opened anew each time the request is sent,
+ * - a file, or a region of a file.
+ *
+ * Contents are referenced, not copied: arrays and buffers must not change
+ * until the request is over, and files and streams are only read while the
+ * request is sent.
+ *
+ * ** Usage:
+ * Charset mUtf8 = Charset.forName("UTF-8");
+ * mConf.addPart(HttpPart.text("title", sTitle, mUtf8))
+ *      .addPart(HttpPart.bytes("thumb", "thumb.jpg", "image/jpeg", aJpeg))
+ *      .addPart(HttpPart.fileRegion("chunk", mVideo, lOffset, lLength));
+ *
+ * @see MultipartEntity
+ */
+public class HttpPart {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final int TYPE_TEXT = 0;
+  public static final int TYPE_BYTES = 1;
+  public static final int TYPE_STREAM = 2;
+  public static final int TYPE_FILE = 3;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iType;
+  protected final String _sName;
+  /** File name sent in the Content-Disposition header, or null. */
+  protected final String _sFileName;
+  /** Content-Type header of the part, or null. */
+  protected final String _sContentType;
+
+  protected String _sText = null;
+  protected Charset _mCharset = null;
+  protected ByteBuffer _mData = null;
+  protected StreamSupplier _mStream = null;
+  protected File _mFile = null;
+  protected long _lOffset = 0;
+  /** Number of bytes of content, -1 if unknown. */
+  protected long _lLength = -1;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Opens the content of a stream part, each time the request is sent. */
+  public interface StreamSupplier {
+    /**
+     * @return A new stream of the content, closed by the caller.
+     * @throws IOException When the content can't be opened.
+     */
+    InputStream open() throws IOException;
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  protected HttpPart(int iType, String sName, String sFileName,
+                     String sContentType) {
+    _iType = iType;
+    _sName = sName;
+    _sFileName = sFileName;
+    _sContentType = sContentType;
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param sValue Value of the field, sent in ISO-8859-1 like the arguments.
+   * @return A text part.
+   */
+  public static HttpPart text(String sName, String sValue) {
+    return text(sName, sValue, MultipartEntity.TEXT_CHARSET);
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param sValue Value of the field.
+   * @param mCharset Charset of the value, given in the Content-Type of the
+   *                 part unless it is ISO-8859-1.
+   * @return A text part.
+   */
+  public static HttpPart text(String sName, String sValue, Charset mCharset) {
+    HttpPart mPart = new HttpPart(TYPE_TEXT, sName, null, null);
+    mPart._sText = sValue;
+    mPart._mCharset = mCharset;
+    return mPart;
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param sFileName File name of the part, or null for a plain field.
+   * @param sContentType Content-Type of the part, or null for none.
+   * @param aData Content of the part, not copied.
+   * @return A part holding aData.
+   */
+  public static HttpPart bytes(String sName, String sFileName,
+                               String sContentType, byte[] aData) {
+    return buffer(sName, sFileName, sContentType, ByteBuffer.wrap(aData));
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param sFileName File name of the part, or null for a plain field.
+   * @param sContentType Content-Type of the part, or null for none.
+   * @param mData Content of the part, from its position to its limit. It is
+   *              not copied, and its position isn't changed by sending it.
+   * @return A part holding mData.
+   */
+  public static HttpPart buffer(String sName, String sFileName,
+                                String sContentType, ByteBuffer mData) {
+    HttpPart mPart = new HttpPart(TYPE_BYTES, sName, sFileName, sContentType);
+    mPart._mData = mData.duplicate();
+    mPart._lLength = mData.remaining();
+    return mPart;
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param sFileName File name of the part, or null for a plain field.
+   * @param sContentType Content-Type of the part, or null for none.
+   * @param mStream Opens the content each time the request is sent.
+   * @param lLength Number of bytes sent from the stream, or -1 to send it
+   *                until its end, in which case the request is sent chunked.
+   * @return A part streaming its content.
+   */
+  public static HttpPart stream(String sName, String sFileName,
+                                String sContentType, StreamSupplier mStream,
+                                long lLength) {
+    HttpPart mPart = new HttpPart(TYPE_STREAM, sName, sFileName, sContentType);
+    mPart._mStream = mStream;
+    mPart._lLength = lLength;
+    return mPart;
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param mFile File to send, under its own name, as
+   *              application/octet-stream.
+   * @return A part holding the whole file.
+   */
+  public static HttpPart file(String sName, File mFile) {
+    return fileRegion(sName, mFile, 0, -1);
+  }
+
+  /**
+   * @param sName Name of the field.
+   * @param mFile File to send part of, under its own name, as
+   *              application/octet-stream.
+   * @param lOffset Position in the file of the first byte to send.
+   * @param lLength Number of bytes to send, or -1 for the rest of the file.
+   * @return A part holding the region of the file.
+   */
+  public static HttpPart fileRegion(String sName, File mFile, long lOffset,
+                                    long lLength) {
+    HttpPart mPart = new HttpPart(TYPE_FILE, sName, mFile.getName(), null);
+    mPart._mFile = mFile;
+    mPart._lOffset = lOffset;
+    mPart._lLength = lLength;
+    return mPart;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  public int getType() { return _iType; }
+  public String getName() { return _sName; }
+  public String getFileName() { return _sFileName; }
+  public String getContentType() { return _sContentType; }
+  public File getFile() { return _mFile; }
+
+  /**
+   * @return The number of bytes of content of the part, -1 if unknown until
+   * sent. Text is measured in its charset.
+   */
+  public long getLength() {
+    switch (_iType) {
+      case TYPE_TEXT:
+        return _sText.getBytes(_mCharset).length;
+      case TYPE_FILE:
+        return _lLength >= 0 ? _lLength
+            : Math.max(0, _mFile.length() - _lOffset);
+      default:
+        return _lLength;
+    }
+  }
+
+  /**
+   * Adds this part to mEntity.
+   *
+   * @param mEntity Entity being built.
+   * @param sName Name of the field, typically {@link #getName()}.
+   * @throws FileNotFoundException If the file of a file part isn't readable,
+   * or is shorter than its region.
+   */
+  public void addTo(MultipartEntity mEntity, String sName)
+      throws FileNotFoundException {
+    switch (_iType) {
+      case TYPE_TEXT:
+        mEntity.addText(sName, _sText, _mCharset);
+        break;
+      case TYPE_BYTES:
+        mEntity.addBuffer(sName, _sFileName, _sContentType, _mData);
+        break;
+      case TYPE_STREAM:
+        mEntity.addStream(sName, _sFileName, _sContentType, _mStream,
+            _lLength);
+        break;
+      case TYPE_FILE:
+        if (_lOffset == 0 && _lLength < 0) {
+          mEntity.addFile(sName, _mFile);
+        } else {
+          mEntity.addFileRegion(sName, _mFile, _lOffset, getLength());
+        }
+        break;
+    }
+  }
+}
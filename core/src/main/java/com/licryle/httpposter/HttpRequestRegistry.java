@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.net.URL;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The requests in flight in the process, by instance id. Every
+ * {@link HttpEngine} registers itself when it starts running and leaves once
+ * over, so that requests can be watched and cancelled from anywhere, by the
+ * id given to the {@link HttpListener} callbacks:
+ *
+ * ** Usage:
+ * HttpRequestRegistry mRegistry = HttpRequestRegistry.getDefault();
+ *
+ * for (HttpRequestRegistry.RequestSnapshot mRequest :
+ *     mRegistry.getSnapshot().values()) {
+ *   Log.d("Uploads", mRequest.toString());
+ * }
+ *
+ * mRegistry.cancel(iInstanceId);
+ *
+ * Cancelling closes the connection of the request right away, see
+ * {@link HttpEngine#cancel()}. Requests with a deadline, see
+ * {@link HttpConfiguration#setDeadline}, are cancelled by the registry once
+ * it passes.
+ *
+ * Ids are expected to be unique, as given by
+ * {@link HttpEngine#nextInstanceId()}. A request registered with the id of
+ * another request in flight replaces it in the registry.
+ *
+ * @see HttpEngine#cancel()
+ */
+public class HttpRequestRegistry {
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  protected static final HttpRequestRegistry DEFAULT =
+      new HttpRequestRegistry();
+
+  protected static final String[] PHASES = { "pending", "building",
+      "connecting", "uploading", "waiting", "reading", "done" };
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final ConcurrentHashMap<Integer, _Entry> _mRequests =
+      new ConcurrentHashMap<Integer, _Entry>();
+  /** Cancels the requests whose deadline passed. Its thread only starts
+   * with the first deadline. */
+  protected final ScheduledThreadPoolExecutor _mTimer;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** A request in flight, and the cancellation of its deadline. */
+  protected static class _Entry {
+    protected final HttpEngine _mEngine;
+    protected volatile ScheduledFuture<?> _mDeadline = null;
+
+    protected _Entry(HttpEngine mEngine) {
+      _mEngine = mEngine;
+    }
+  }
+
+  /** State of a request in flight at the time it was taken. */
+  public static class RequestSnapshot {
+    protected final int _iInstanceId;
+    protected final URL _mEndPoint;
+    protected final int _iPhase;
+    protected final long _lBytesSent;
+    protected final long _lElapsedNs;
+    protected final int _iAttempts;
+    protected final boolean _bCancelled;
+
+    protected RequestSnapshot(HttpEngine mEngine) {
+      _iInstanceId = mEngine.getInstanceId();
+      _mEndPoint = mEngine.getConfiguration().getEndPoint();
+      _iPhase = mEngine.getTimings().getPhase();
+      _lBytesSent = mEngine.getBytesSent();
+      _lElapsedNs = mEngine.getTimings().getElapsedNs();
+      _iAttempts = mEngine.getAttemptCount();
+      _bCancelled = mEngine.isCancelled();
+    }
+
+    public int getInstanceId() { return _iInstanceId; }
+    public URL getEndPoint() { return _mEndPoint; }
+    /** @return One of the HttpTimings#PHASE_* constants. */
+    public int getPhase() { return _iPhase; }
+    /** @return Bytes of the transfer sent so far. */
+    public long getBytesSent() { return _lBytesSent; }
+    /** @return Time in ns since the request started. */
+    public long getElapsedNs() { return _lElapsedNs; }
+    public int getAttemptCount() { return _iAttempts; }
+    public boolean isCancelled() { return _bCancelled; }
+
+    @Override
+    public String toString() {
+      return String.format("#%d %s %s sent=%dB elapsed=%dms attempts=%d%s",
+          _iInstanceId, _mEndPoint, PHASES[_iPhase], _lBytesSent,
+          TimeUnit.NANOSECONDS.toMillis(_lElapsedNs), _iAttempts,
+          _bCancelled ? " cancelled" : "");
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  public HttpRequestRegistry() {
+    _mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable mRunnable) {
+        Thread mThread = new Thread(mRunnable, "HttpRequestRegistry");
+        mThread.setDaemon(true);
+        return mThread;
+      }
+    });
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /** @return The registry the engines of the process register with. */
+  public static HttpRequestRegistry getDefault() { return DEFAULT; }
+
+  /**
+   * @param iInstanceId Id of a request.
+   * @return The engine running it, or null if it isn't in flight.
+   */
+  public HttpEngine get(int iInstanceId) {
+    _Entry mEntry = _mRequests.get(iInstanceId);
+    return mEntry != null ? mEntry._mEngine : null;
+  }
+
+  /**
+   * Cancels a request, see {@link HttpEngine#cancel()}.
+   *
+   * @param iInstanceId Id of the request.
+   * @return Whether the request was in flight.
+   */
+  public boolean cancel(int iInstanceId) {
+    HttpEngine mEngine = get(iInstanceId);
+    return mEngine != null && mEngine.cancel();
+  }
+
+  /**
+   * Cancels all the requests in flight.
+   *
+   * @return The number of requests cancelled.
+   */
+  public int cancelAll() {
+    int iCancelled = 0;
+    for (_Entry mEntry : _mRequests.values()) {
+      if (mEntry._mEngine.cancel()) {
+        iCancelled++;
+      }
+    }
+
+    return iCancelled;
+  }
+
+  /**
+   * @param iInstanceId Id of a request.
+   * @return Its current state, or null if it isn't in flight.
+   */
+  public RequestSnapshot getSnapshot(int iInstanceId) {
+    HttpEngine mEngine = get(iInstanceId);
+    return mEngine != null ? new RequestSnapshot(mEngine) : null;
+  }
+
+  /** @return The current state of the requests in flight, by id. */
+  public TreeMap<Integer, RequestSnapshot> getSnapshot() {
+    TreeMap<Integer, RequestSnapshot> mSnapshot =
+        new TreeMap<Integer, RequestSnapshot>();
+    for (_Entry mEntry : _mRequests.values()) {
+      mSnapshot.put(mEntry._mEngine.getInstanceId(),
+          new RequestSnapshot(mEntry._mEngine));
+    }
+
+    return mSnapshot;
+  }
+
+  /** @return The number of requests in flight. */
+  public int size() { return _mRequests.size(); }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Adds mEngine, and schedules its cancellation at the deadline of its
+   * configuration. Does nothing if it is registered already.
+   */
+  protected void register(final HttpEngine mEngine) {
+    _Entry mEntry = new _Entry(mEngine);
+    _Entry mOld = _mRequests.put(mEngine.getInstanceId(), mEntry);
+    if (mOld != null && mOld._mEngine == mEngine) {
+      _mRequests.put(mEngine.getInstanceId(), mOld);
+      return;
+    }
+
+    long lDeadline = mEngine.getConfiguration().getDeadline();
+    if (lDeadline > 0) {
+      mEntry._mDeadline = _mTimer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          mEngine.cancel();
+        }
+      }, lDeadline, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Removes mEngine, and cancels its deadline. */
+  protected void unregister(HttpEngine mEngine) {
+    _Entry mEntry = _mRequests.get(mEngine.getInstanceId());
+    if (mEntry == null || mEntry._mEngine != mEngine ||
+        !_mRequests.remove(mEngine.getInstanceId(), mEntry)) {
+      return;
+    }
+
+    ScheduledFuture<?> mDeadline = mEntry._mDeadline;
+    if (mDeadline != null) {
+      mDeadline.cancel(false);
+      // Drops it from the queue now rather than when it is due. Works where
+      // setRemoveOnCancelPolicy() doesn't exist, before Android Lollipop.
+      _mTimer.remove((Runnable) mDeadline);
+    }
+  }
+}
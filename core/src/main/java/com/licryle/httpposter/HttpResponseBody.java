@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The body of a server response, as handed to an {@link HttpResponseHandler}:
+ * a stream of the decoded content along with what the headers tell about it.
+ *
+ * Bodies sent with a gzip or deflate Content-Encoding are decompressed on the
+ * fly, so handlers always read the actual content. The {@link HttpEngine}
+ * announces both encodings in the Accept-Encoding header of its requests.
+ *
+ * @see HttpResponseHandler
+ */
+public class HttpResponseBody {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Value of the Accept-Encoding header sent with the requests. */
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+  /** Charset used for text bodies whose Content-Type doesn't specify one. */
+  public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iResponseCode;
+  protected final String _sContentType;
+  protected final String _sContentEncoding;
+  protected final long _lContentLength;
+  protected final InputStream _mStream;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param iResponseCode HTTP response code of the answer.
+   * @param sContentType Value of the Content-Type header, or null.
+   * @param sContentEncoding Value of the Content-Encoding header, or null.
+   * @param lContentLength Value of the Content-Length header, -1 if unknown.
+   * @param mRawStream The body as received, before any decompression.
+   * @throws IOException When the header of a compressed body can't be read.
+   */
+  public HttpResponseBody(int iResponseCode, String sContentType,
+                          String sContentEncoding, long lContentLength,
+                          InputStream mRawStream) throws IOException {
+    _iResponseCode = iResponseCode;
+    _sContentType = sContentType;
+    _sContentEncoding = sContentEncoding;
+    _mStream = _decode(mRawStream, sContentEncoding);
+    _lContentLength = _mStream == mRawStream ? lContentLength : -1;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  public int getResponseCode() { return _iResponseCode; }
+  public String getContentType() { return _sContentType; }
+  public String getContentEncoding() { return _sContentEncoding; }
+
+  /**
+   * @return The length of the decoded content, or -1 if unknown, which is
+   * always the case for compressed bodies.
+   */
+  public long getContentLength() { return _lContentLength; }
+
+  /** @return The decoded content. Handlers don't need to close it. */
+  public InputStream getStream() { return _mStream; }
+
+  /**
+   * @return The charset parameter of the Content-Type header, or
+   * {@link #DEFAULT_CHARSET} if it is missing or not supported.
+   */
+  public Charset getCharset() {
+    if (_sContentType == null) return DEFAULT_CHARSET;
+
+    for (String sParam : _sContentType.split(";")) {
+      int iEquals = sParam.indexOf('=');
+      if (iEquals == -1 ||
+          !sParam.substring(0, iEquals).trim().equalsIgnoreCase("charset")) {
+        continue;
+      }
+
+      String sCharset = sParam.substring(iEquals + 1).trim();
+      if (sCharset.length() > 1 && sCharset.startsWith("\"") &&
+          sCharset.endsWith("\"")) {
+        sCharset = sCharset.substring(1, sCharset.length() - 1);
+      }
+
+      try {
+        return Charset.forName(sCharset);
+      } catch (IllegalCharsetNameException e) {
+        return DEFAULT_CHARSET;
+      } catch (UnsupportedCharsetException e) {
+        return DEFAULT_CHARSET;
+      }
+    }
+
+    return DEFAULT_CHARSET;
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Wraps mRawStream into the decompressing stream matching sEncoding. Empty
+   * bodies, as sent with some error codes, are left as is. "deflate" is meant
+   * to be zlib-wrapped but some servers send raw deflate data, so the zlib
+   * header is checked before picking the decoder.
+   */
+  protected static InputStream _decode(InputStream mRawStream,
+                                       String sEncoding) throws IOException {
+    if (sEncoding == null) return mRawStream;
+
+    sEncoding = sEncoding.trim();
+    boolean bGzip = sEncoding.equalsIgnoreCase("gzip") ||
+        sEncoding.equalsIgnoreCase("x-gzip");
+    if (!bGzip && !sEncoding.equalsIgnoreCase("deflate")) {
+      return mRawStream;
+    }
+
+    PushbackInputStream mStream = new PushbackInputStream(mRawStream, 2);
+    int iCmf = mStream.read();
+    if (iCmf == -1) return mStream;
+    int iFlg = mStream.read();
+
+    if (iFlg != -1) mStream.unread(iFlg);
+    mStream.unread(iCmf);
+
+    if (bGzip) {
+      return new GZIPInputStream(mStream, 8192);
+    }
+
+    boolean bZlib = iFlg != -1 && (iCmf & 0x0f) == 8 &&
+        ((iCmf << 8) | iFlg) % 31 == 0;
+    return new InflaterInputStream(mStream, new Inflater(!bZlib), 8192);
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+
+/**
+ * Consumes the body of the server response on the thread running the
+ * {@link HttpEngine}, as it arrives, and turns it into the content of the
+ * {@link HttpResult}. A handler is set per request with
+ * {@link HttpConfiguration#setResponseHandler}.
+ *
+ * The library comes with handlers collecting the body into a String
+ * ({@link StringResponseHandler}, the default) or a byte array
+ * ({@link BytesResponseHandler}), both capped in size, and handlers copying it
+ * to a file ({@link FileResponseHandler}) or to any OutputStream
+ * ({@link StreamResponseHandler}) without holding it in memory.
+ *
+ * The same handler may run for several requests at once, so implementations
+ * should keep their per-response state local to {@link #handle}.
+ *
+ * @param <T> Type of the content produced from the body.
+ * @see HttpEngine#getContent()
+ */
+public interface HttpResponseHandler<T> {
+  /**
+   * Reads the body of the response. The body doesn't need to be read until
+   * its end: the engine discards what's left.
+   *
+   * @param mBody The decoded body and its headers.
+   * @return The content of the response, or null.
+   * @throws IOException When the body can't be read or handled, the request
+   * then ends with HttpEngine#FAILURE_RESPONSE.
+   */
+  T handle(HttpResponseBody mBody) throws IOException;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+/**
+ * Outcome of a request executed by an {@link HttpEngine}: the status of the
+ * POST, the HTTP response code and body, and the time spent in each phase.
+ * The futures of HttpAsyncPoster, in the async module, complete with it.
+ *
+ * @see HttpEngine#getResult()
+ */
+public class HttpResult {
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iInstanceId;
+  protected final long _lStatus;
+  protected final int _iResponseCode;
+  protected final String _sBody;
+  protected final Object _mContent;
+  protected final HttpTimings _mTimings;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param iInstanceId Unique Id of the request.
+   * @param lStatus Either {@link HttpEngine#SUCCESS} or one of the
+   *                HttpEngine#FAILURE_* codes.
+   * @param iResponseCode HTTP response code, 0 if none was received.
+   * @param sBody The content of the server response.
+   * @param mTimings Time spent in each phase of the request.
+   */
+  public HttpResult(int iInstanceId, long lStatus, int iResponseCode,
+                    String sBody, HttpTimings mTimings) {
+    this(iInstanceId, lStatus, iResponseCode, (Object) sBody, mTimings);
+  }
+
+  /**
+   * @param iInstanceId Unique Id of the request.
+   * @param lStatus Either {@link HttpEngine#SUCCESS} or one of the
+   *                HttpEngine#FAILURE_* codes.
+   * @param iResponseCode HTTP response code, 0 if none was received.
+   * @param mContent What the {@link HttpResponseHandler} made of the body.
+   * @param mTimings Time spent in each phase of the request.
+   */
+  public HttpResult(int iInstanceId, long lStatus, int iResponseCode,
+                    Object mContent, HttpTimings mTimings) {
+    _iInstanceId = iInstanceId;
+    _lStatus = lStatus;
+    _iResponseCode = iResponseCode;
+    _mContent = mContent;
+    _sBody = mContent instanceof String ? (String) mContent : null;
+    _mTimings = mTimings;
+  }
+
+  public int getInstanceId() { return _iInstanceId; }
+  public long getStatus() { return _lStatus; }
+  public int getResponseCode() { return _iResponseCode; }
+  /** @return The body as a String, null if the handler produced no text. */
+  public String getBody() { return _sBody; }
+  /** @return What the {@link HttpResponseHandler} made of the body. */
+  public Object getContent() { return _mContent; }
+  public HttpTimings getTimings() { return _mTimings; }
+
+  /** @return Whether the POST succeeded and its answer was read. */
+  public boolean isSuccess() { return _lStatus == HttpEngine.SUCCESS; }
+
+  /** @return Whether the server answered, even with an error code. */
+  public boolean hasResponse() {
+    return _lStatus == HttpEngine.SUCCESS ||
+        _lStatus == HttpEngine.FAILURE_RESPONSE;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("HttpResult[instance=%d status=%d code=%d %s]",
+        _iInstanceId, _lStatus, _iResponseCode, _mTimings);
+  }
+}
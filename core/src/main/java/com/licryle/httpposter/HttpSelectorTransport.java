@@ -0,0 +1,1002 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport driving many requests from a few event loop threads,
+ * each running a Selector over the SocketChannels of its requests. Where the
+ * {@link HttpEngine} holds a thread blocked on each request for its whole
+ * duration, a transport holds none: thousands of slow uploads cost sockets,
+ * not threads.
+ *
+ * ** Usage:
+ * HttpSelectorTransport mTransport = new HttpSelectorTransport();
+ * mConf.setTransport(mTransport);
+ *
+ * new HttpAsyncPoster().postAsync(mConf);
+ *
+ * Requests are swapped in through {@link HttpConfiguration#setTransport}:
+ * HttpAsyncPoster, of the async module, then runs them without a thread of
+ * its own, and {@link HttpEngine#run()} waits for the transport. The request
+ * sent, the {@link HttpListener} events, the {@link HttpResult}, the
+ * {@link RetryPolicy} and the {@link HttpMetrics} are the same as with the
+ * engine alone.
+ *
+ * The request body is written only as fast as the socket accepts it: file
+ * contents are handed to the socket with FileChannel.transferTo, slice by
+ * slice as the socket drains, see {@link MultipartEntity.NonBlockingWriter}.
+ *
+ * Differences with the blocking engine:
+ *  - plain http only. Requests to https end points, and resumable uploads,
+ *    are run by the engine on a thread of the transport;
+ *  - the answer is read in memory before being handed to the
+ *    {@link HttpResponseHandler}, so it is limited to
+ *    {@link #setMaxResponseBytes} bytes;
+ *  - the read timeout of the configuration applies to the whole exchange
+ *    after the connection: sending stalled that long fails as well;
+ *  - connections are not kept alive, the connection pool of the
+ *    configuration is ignored.
+ *
+ * Host names are resolved, and entities built, on a thread of the transport
+ * as these calls block. Listener callbacks and response handlers run on the
+ * event loops: they must return quickly.
+ *
+ * @see HttpEngine
+ */
+public class HttpSelectorTransport {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default number of event loops. */
+  public static final int DEFAULT_LOOP_COUNT =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  /** Default size in bytes above which answers are refused. */
+  public static final int DEFAULT_MAX_RESPONSE_BYTES =
+      BytesResponseHandler.DEFAULT_MAX_BYTES;
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  /** Size of the status line and headers above which answers are refused. */
+  protected static final int MAX_HEAD_BYTES = 64 * 1024;
+  /** Size of the buffer each loop reads sockets into. */
+  protected static final int READ_BUFFER_SIZE = 64 * 1024;
+  /** Interval in ms at which loops look for requests that timed out. */
+  protected static final long TIMEOUT_TICK = 50;
+
+  /** Steps of an attempt, for the failure to report when it stops. */
+  protected static final int CONNECTING = 0;
+  protected static final int WRITING = 1;
+  protected static final int READING = 2;
+  protected static final int WAITING = 3;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final _EventLoop[] _aLoops;
+  /** Loop to give the next request to, round robin. */
+  protected final AtomicInteger _iNextLoop = new AtomicInteger(0);
+  /** Runs the blocking steps: name resolution, entity building, and the
+   * requests the loops can't handle. */
+  protected final ExecutorService _mBlocking;
+
+  protected volatile int _iMaxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+  protected volatile HttpLogger _mLogger = HttpLogger.NONE;
+  protected volatile boolean _bClosed = false;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Notified once a request run by the transport is over. */
+  public interface Callback {
+    /**
+     * Called once the listener of mEngine was notified, on an event loop or
+     * a thread of the transport.
+     *
+     * @param mEngine The engine of the request. Its result is available
+     *                through {@link HttpEngine#getResult()}.
+     */
+    void onFinished(HttpEngine mEngine);
+  }
+
+  /** A thread running a Selector over the sockets of its requests. */
+  protected class _EventLoop implements Runnable {
+    protected final Selector _mSelector;
+    protected final Thread _mThread;
+    /** Work handed to the loop by other threads. */
+    protected final ConcurrentLinkedQueue<Runnable> _mTasks =
+        new ConcurrentLinkedQueue<Runnable>();
+    /** Requests with a socket open, checked for timeouts. */
+    protected final HashSet<_Exchange> _mActive = new HashSet<_Exchange>();
+    /** Requests waiting to be attempted again, the earliest first. */
+    protected final PriorityQueue<_Exchange> _mDelayed =
+        new PriorityQueue<_Exchange>(16, new Comparator<_Exchange>() {
+          @Override
+          public int compare(_Exchange mLeft, _Exchange mRight) {
+            long lDiff = mLeft._lWakeUp - mRight._lWakeUp;
+            return lDiff < 0 ? -1 : (lDiff > 0 ? 1 : 0);
+          }
+        });
+    /** Shared by the requests of the loop, as only one reads at a time. */
+    protected final ByteBuffer _mReadBuffer =
+        ByteBuffer.allocate(READ_BUFFER_SIZE);
+    protected long _lNextTick = System.nanoTime();
+
+    public _EventLoop(int iIndex) throws IOException {
+      _mSelector = Selector.open();
+      _mThread = new Thread(this, "HttpSelectorTransport-" + iIndex);
+      _mThread.setDaemon(true);
+    }
+
+    /** Runs mTask on the loop thread. */
+    public void submit(Runnable mTask) {
+      _mTasks.offer(mTask);
+      _mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (!_bClosed) {
+        try {
+          _mSelector.select(_nextTimeout());
+        } catch (IOException e) {
+          _mLogger.d("HttpSelectorTransport", "select: " + e.getMessage());
+        }
+
+        try {
+          _runEvents();
+        } catch (RuntimeException e) {
+          // Thrown by a listener or a handler: the loop must go on.
+          _mLogger.d("HttpSelectorTransport", "Event failed: " + e);
+        }
+      }
+
+      _shutDown();
+    }
+
+    /** Runs the submitted tasks, the ready sockets and the timers. */
+    protected void _runEvents() {
+      Runnable mTask;
+      while ((mTask = _mTasks.poll()) != null) {
+        mTask.run();
+      }
+
+      Iterator<SelectionKey> mKeys = _mSelector.selectedKeys().iterator();
+      while (mKeys.hasNext()) {
+        SelectionKey mKey = mKeys.next();
+        mKeys.remove();
+        ((_Exchange) mKey.attachment())._onReady(mKey);
+      }
+
+      long lNow = System.nanoTime();
+      _Exchange mDelayed;
+      while ((mDelayed = _mDelayed.peek()) != null &&
+          mDelayed._lWakeUp - lNow <= 0) {
+        _mDelayed.poll();
+        mDelayed._startAttempt();
+      }
+
+      if (lNow - _lNextTick >= 0) {
+        _lNextTick = lNow + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_TICK);
+        for (_Exchange mExchange : new ArrayList<_Exchange>(_mActive)) {
+          if (mExchange._lDeadline != 0 &&
+              mExchange._lDeadline - lNow <= 0) {
+            mExchange._onTimeout();
+          }
+        }
+      }
+    }
+
+    /** @return How long in ms select may block. */
+    protected long _nextTimeout() {
+      long lTimeout = TIMEOUT_TICK;
+
+      _Exchange mDelayed = _mDelayed.peek();
+      if (mDelayed != null) {
+        long lWait = TimeUnit.NANOSECONDS.toMillis(
+            mDelayed._lWakeUp - System.nanoTime());
+        lTimeout = Math.max(1, Math.min(lTimeout, lWait));
+      }
+
+      return lTimeout;
+    }
+
+    /** Fails whatever is left once the transport is closed. */
+    protected void _shutDown() {
+      Runnable mTask;
+      while ((mTask = _mTasks.poll()) != null) {
+        mTask.run();
+      }
+
+      for (_Exchange mExchange : new ArrayList<_Exchange>(_mActive)) {
+        mExchange._closeChannel();
+        mExchange._finish(mExchange._failureOf(mExchange._iStep));
+      }
+      while (!_mDelayed.isEmpty()) {
+        _Exchange mExchange = _mDelayed.poll();
+        mExchange._finish(mExchange._lLastResult);
+      }
+
+      try {
+        _mSelector.close();
+      } catch (IOException e) {
+        // Nothing more we can do.
+      }
+    }
+  }
+
+  /** A request run by an event loop, through as many attempts as needed. */
+  protected class _Exchange {
+    protected final HttpEngine _mEngine;
+    protected final HttpConfiguration _mConf;
+    protected final Callback _mCallback;
+    protected final _EventLoop _mLoop;
+
+    protected MultipartEntity _mEntity;
+    protected InetSocketAddress _mAddress;
+    /** When the first attempt started, for the deadline of the retries. */
+    protected long _lStart;
+
+    /** Step of the current attempt. */
+    protected int _iStep = WAITING;
+    protected SocketChannel _mChannel;
+    protected SelectionKey _mKey;
+    protected ByteBuffer _mHead;
+    protected MultipartEntity.NonBlockingWriter _mWriter;
+    /** Only its accounting is used, to publish progress as the engine. */
+    protected HttpEngine._ProgressiveOutputStream _mProgress;
+    protected _ResponseReader _mReader;
+    /** nanoTime after which the attempt times out, 0 for never. */
+    protected long _lDeadline = 0;
+
+    /** nanoTime at which to start the next attempt. */
+    protected long _lWakeUp;
+    protected long _lLastResult = HttpEngine.FAILURE_CONNECTION;
+
+    public _Exchange(HttpEngine mEngine, Callback mCallback,
+                     _EventLoop mLoop) {
+      _mEngine = mEngine;
+      _mConf = mEngine._mConf;
+      _mCallback = mCallback;
+      _mLoop = mLoop;
+    }
+
+    /**
+     * Builds the entity and resolves the host, then hands the request to its
+     * loop. Runs on a thread of the transport, as both may block.
+     */
+    public void prepare() {
+      _mEngine._register();
+      _mEngine._setAbort(new Closeable() {
+        @Override
+        public void close() {
+          _mLoop.submit(new Runnable() {
+            @Override
+            public void run() {
+              _cancel();
+            }
+          });
+        }
+      });
+      _mEngine._mTimings.markStart();
+
+      try {
+        _mEntity = _mEngine._getEntity(_mConf);
+      } catch (IOException e) {
+        _finish(HttpEngine.FAILURE_FILE_READ);
+        return;
+      }
+
+      URL mEndPoint = _mConf.getEndPoint();
+      _mAddress = new InetSocketAddress(mEndPoint.getHost(),
+          HttpConnection.portOf(mEndPoint));
+      if (_mAddress.isUnresolved()) {
+        _mEngine._iAttempts++;
+        _finish(HttpEngine.FAILURE_CONNECTION);
+        return;
+      }
+
+      if (_bClosed) {
+        _finish(HttpEngine.FAILURE_CONNECTION);
+        return;
+      }
+
+      _lStart = System.nanoTime();
+      _mLoop.submit(new Runnable() {
+        @Override
+        public void run() {
+          _startAttempt();
+        }
+      });
+    }
+
+    /** Opens a connection for a new attempt. */
+    protected void _startAttempt() {
+      if (_bClosed || _mEngine.isCancelled()) {
+        _finish(_lLastResult);
+        return;
+      }
+
+      _mEngine._iAttempts++;
+      _mEngine._iResponseCode = 0;
+      _mEngine._mResponseHeaders.clear();
+      _mEngine._mTimings.markAttempt();
+      _mReader = new _ResponseReader(_iMaxResponseBytes);
+      _iStep = CONNECTING;
+      _mLoop._mActive.add(this);
+
+      try {
+        _mChannel = SocketChannel.open();
+        _mChannel.configureBlocking(false);
+        _mChannel.socket().setTcpNoDelay(true);
+
+        if (_mChannel.connect(_mAddress)) {
+          _mKey = _mChannel.register(_mLoop._mSelector, 0, this);
+          _onConnected();
+        } else {
+          _mKey = _mChannel.register(_mLoop._mSelector,
+              SelectionKey.OP_CONNECT, this);
+          _setDeadline(_mConf.getConnectTimeout());
+        }
+      } catch (IOException e) {
+        // A connection made at once starts writing right away: a failure
+        // then belongs to the transfer.
+        _endAttempt(_failureOf(_iStep));
+      }
+    }
+
+    /** Handles the readiness of the socket reported by the selector. */
+    protected void _onReady(SelectionKey mKey) {
+      try {
+        if (!mKey.isValid()) {
+          return;
+        }
+
+        if (mKey.isConnectable()) {
+          if (_mChannel.finishConnect()) {
+            _onConnected();
+          }
+          return;
+        }
+
+        if (mKey.isWritable()) {
+          _onWritable();
+        }
+        if (mKey.isValid() && mKey.isReadable()) {
+          _onReadable();
+        }
+      } catch (IOException e) {
+        _mEngine._mLogger.d("HttpSelectorTransport",
+            String.format("Instance %d: %s", _mEngine._iInstanceId,
+                e.getMessage()));
+        _endAttempt(_failureOf(_iStep));
+      } catch (CancelledKeyException e) {
+        _endAttempt(_failureOf(_iStep));
+      }
+    }
+
+    protected void _onConnected() throws IOException {
+      _mEngine._mTimings.markConnected();
+      _mEngine._dispatchOnStartTransfer();
+
+      _mHead = ByteBuffer.wrap(_requestHead(_mConf.getEndPoint(), _mEntity));
+      _mWriter = _mEntity.newNonBlockingWriter();
+      _mEngine._startProgress(0);
+      _mProgress = _mEngine.new _ProgressiveOutputStream(null,
+          _mEntity.getContentLength());
+
+      _iStep = WRITING;
+      _mKey.interestOps(SelectionKey.OP_WRITE);
+      _setDeadline(_mConf.getReadTimeout());
+      _onWritable();
+    }
+
+    protected void _onWritable() throws IOException {
+      if (_mHead.hasRemaining()) {
+        _mChannel.write(_mHead);
+        if (_mHead.hasRemaining()) {
+          return;
+        }
+      }
+
+      long lWritten = _mWriter.writeTo(_mChannel);
+      if (lWritten > 0) {
+        _mProgress._onBytesSent(lWritten);
+        _setDeadline(_mConf.getReadTimeout());
+      }
+
+      if (_mWriter.isDone()) {
+        _mProgress._finishProgress();
+        _mEngine._mTimings.markSent();
+        _iStep = READING;
+        _mKey.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    protected void _onReadable() throws IOException {
+      ByteBuffer mBuffer = _mLoop._mReadBuffer;
+      mBuffer.clear();
+
+      int iRead = _mChannel.read(mBuffer);
+      if (iRead == -1) {
+        if (!_mReader.endOfStream()) {
+          throw new EOFException("Connection closed by the server");
+        }
+        _onAnswered();
+        return;
+      }
+
+      _setDeadline(_mConf.getReadTimeout());
+      boolean bHeadRead = _mReader.isHeadRead();
+      boolean bDone = _mReader.feed(mBuffer.array(), 0, iRead);
+
+      if (!bHeadRead && _mReader.isHeadRead()) {
+        _mEngine._mTimings.markFirstByte();
+        _mEngine._iResponseCode = _mReader._iResponseCode;
+        _mEngine._mResponseHeaders.putAll(_mReader._mHeaders);
+      }
+
+      if (bDone) {
+        _onAnswered();
+      }
+    }
+
+    /** Hands the answer, fully read, to the response handler. */
+    protected void _onAnswered() {
+      _closeChannel();
+
+      if (_mReader._iResponseCode >= 400) {
+        _endAttempt(HttpEngine.FAILURE_RESPONSE);
+        return;
+      }
+
+      try {
+        _mEngine._readServerAnswer(_mConf.getResponseHandler(),
+            _mReader.getHeader("content-type"),
+            _mReader.getHeader("content-encoding"),
+            HttpEngine._parseLength(_mReader.getHeader("content-length")),
+            new ByteArrayInputStream(_mReader._aBody, 0,
+                _mReader._iBodyLength));
+        _endAttempt(HttpEngine.SUCCESS);
+      } catch (IOException e) {
+        _endAttempt(HttpEngine.FAILURE_RESPONSE);
+      }
+    }
+
+    protected void _onTimeout() {
+      _mEngine._mLogger.d("HttpSelectorTransport",
+          String.format("Instance %d: timed out", _mEngine._iInstanceId));
+      _endAttempt(_failureOf(_iStep));
+    }
+
+    /**
+     * Ends the current attempt with lResult, then either schedules the next
+     * one as the {@link RetryPolicy} of the configuration says, or finishes
+     * the request.
+     */
+    protected void _endAttempt(long lResult) {
+      _closeChannel();
+      _lLastResult = lResult;
+
+      RetryPolicy mPolicy = _mConf.getRetryPolicy();
+      if (mPolicy != null && !_bClosed && !_mEngine.isCancelled()) {
+        long lDelay = mPolicy.getRetryDelay(_mEngine._iAttempts, lResult,
+            _mEngine._iResponseCode,
+            _mEngine.getResponseHeader("retry-after"),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _lStart));
+
+        if (lDelay >= 0) {
+          _mEngine._mLogger.d("HttpSelectorTransport",
+              String.format("Instance %d: attempt %d failed with %d, " +
+                  "retrying in %d ms", _mEngine._iInstanceId,
+                  _mEngine._iAttempts, lResult, lDelay));
+          _lWakeUp = System.nanoTime() +
+              TimeUnit.MILLISECONDS.toNanos(lDelay);
+          _mLoop._mDelayed.add(this);
+          return;
+        }
+      }
+
+      _finish(lResult);
+    }
+
+    /**
+     * Closes the socket of the request and finishes it, if it is in flight
+     * or waiting for a retry. Runs on the loop, once the engine is
+     * cancelled.
+     */
+    protected void _cancel() {
+      if (_mLoop._mActive.contains(this) || _mLoop._mDelayed.remove(this)) {
+        _closeChannel();
+        _finish(HttpEngine.FAILURE_CANCELLED);
+      }
+    }
+
+    /** Notifies the listener, the metrics and the callback. */
+    protected void _finish(long lResult) {
+      _mEngine._setAbort(null);
+      _mEngine._finish(lResult);
+
+      if (_mCallback != null) {
+        _mCallback.onFinished(_mEngine);
+      }
+    }
+
+    protected void _closeChannel() {
+      _iStep = WAITING;
+      _lDeadline = 0;
+      _mLoop._mActive.remove(this);
+
+      if (_mWriter != null) {
+        _mWriter.close();
+        _mWriter = null;
+      }
+
+      if (_mChannel != null) {
+        try {
+          _mChannel.close();
+        } catch (IOException e) {
+          // Nothing more we can do.
+        }
+        _mChannel = null;
+        _mKey = null;
+      }
+    }
+
+    /**
+     * @return The failure matching the step an attempt stopped at, as the
+     * engine reports it.
+     */
+    protected long _failureOf(int iStep) {
+      switch (iStep) {
+        case CONNECTING:
+          return HttpEngine.FAILURE_CONNECTION;
+        case READING:
+          return _mReader.isHeadRead() ? HttpEngine.FAILURE_RESPONSE
+                                       : HttpEngine.FAILURE_TRANSFER;
+        case WRITING:
+          return HttpEngine.FAILURE_TRANSFER;
+        default:
+          return _lLastResult;
+      }
+    }
+
+    protected void _setDeadline(int iTimeout) {
+      _lDeadline = iTimeout > 0
+          ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(iTimeout) : 0;
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Response Parsing *****************************
+   ****************************************************************************/
+
+  /**
+   * Incremental parser of an HTTP/1.1 answer fed with the bytes read from the
+   * socket as they come. Interim 1xx answers are skipped. The body, without
+   * its chunked framing, is kept in memory up to a given size.
+   */
+  protected static class _ResponseReader {
+    protected static final int STATUS = 0;
+    protected static final int HEADERS = 1;
+    protected static final int BODY = 2;
+    protected static final int CHUNK_SIZE = 3;
+    protected static final int CHUNK_DATA = 4;
+    protected static final int CHUNK_END = 5;
+    protected static final int TRAILERS = 6;
+    protected static final int UNTIL_CLOSE = 7;
+    protected static final int DONE = 8;
+
+    protected final int _iMaxBody;
+    protected int _iState = STATUS;
+    protected final StringBuilder _mLine = new StringBuilder(64);
+    protected int _iHeadBytes = 0;
+
+    protected int _iResponseCode = 0;
+    protected final HashMap<String, String> _mHeaders =
+        new HashMap<String, String>();
+    /** Bytes of the body, or of the chunk, still expected. */
+    protected long _lRemaining = 0;
+    protected byte[] _aBody = new byte[0];
+    protected int _iBodyLength = 0;
+
+    public _ResponseReader(int iMaxBody) {
+      _iMaxBody = iMaxBody;
+    }
+
+    /**
+     * Parses iCount more bytes of the answer.
+     *
+     * @return Whether the answer is complete. Bytes past its end are ignored.
+     * @throws IOException When the answer is malformed or too large.
+     */
+    public boolean feed(byte[] aBytes, int iStart, int iCount)
+        throws IOException {
+      int iEnd = iStart + iCount;
+      int i = iStart;
+
+      while (i < iEnd && _iState != DONE) {
+        if (_iState == BODY || _iState == CHUNK_DATA ||
+            _iState == UNTIL_CLOSE) {
+          int iTaken = iEnd - i;
+          if (_iState != UNTIL_CLOSE) {
+            iTaken = (int) Math.min(iTaken, _lRemaining);
+          }
+          _append(aBytes, i, iTaken);
+          i += iTaken;
+
+          if (_iState != UNTIL_CLOSE) {
+            _lRemaining -= iTaken;
+            if (_lRemaining == 0) {
+              _iState = _iState == BODY ? DONE : CHUNK_END;
+            }
+          }
+          continue;
+        }
+
+        byte bByte = aBytes[i++];
+        if (++_iHeadBytes > MAX_HEAD_BYTES) {
+          throw new IOException("Response head too large");
+        }
+        if (bByte != '\n') {
+          _mLine.append((char) (bByte & 0xff));
+          continue;
+        }
+
+        int iLength = _mLine.length();
+        if (iLength > 0 && _mLine.charAt(iLength - 1) == '\r') {
+          _mLine.setLength(iLength - 1);
+        }
+        String sLine = _mLine.toString();
+        _mLine.setLength(0);
+        _onLine(sLine);
+      }
+
+      return _iState == DONE;
+    }
+
+    /**
+     * Called when the server closed the connection.
+     *
+     * @return Whether the answer was complete.
+     */
+    public boolean endOfStream() {
+      if (_iState == UNTIL_CLOSE) {
+        _iState = DONE;
+      }
+      return _iState == DONE;
+    }
+
+    /** @return Whether the status line and headers were read. */
+    public boolean isHeadRead() { return _iState > HEADERS; }
+
+    /**
+     * @param sName Name of the header, in lower case.
+     * @return Its value, or null.
+     */
+    public String getHeader(String sName) { return _mHeaders.get(sName); }
+
+    protected void _onLine(String sLine) throws IOException {
+      switch (_iState) {
+        case STATUS:
+          String[] aStatus = sLine.split(" ", 3);
+          if (aStatus.length < 2 || !aStatus[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + sLine);
+          }
+          try {
+            _iResponseCode = Integer.parseInt(aStatus[1]);
+          } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + sLine);
+          }
+          _mHeaders.clear();
+          _iState = HEADERS;
+          break;
+
+        case HEADERS:
+          if (sLine.length() > 0) {
+            int iColon = sLine.indexOf(':');
+            if (iColon > 0) {
+              _mHeaders.put(sLine.substring(0, iColon).trim().toLowerCase(),
+                  sLine.substring(iColon + 1).trim());
+            }
+          } else if (_iResponseCode >= 100 && _iResponseCode < 200) {
+            _iState = STATUS;
+          } else {
+            _onHeadRead();
+          }
+          break;
+
+        case CHUNK_SIZE:
+          int iExtension = sLine.indexOf(';');
+          String sSize = (iExtension >= 0 ? sLine.substring(0, iExtension)
+                                          : sLine).trim();
+          try {
+            _lRemaining = Long.parseLong(sSize, 16);
+          } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + sLine);
+          }
+          _iState = _lRemaining > 0 ? CHUNK_DATA : TRAILERS;
+          break;
+
+        case CHUNK_END:
+          if (sLine.length() > 0) {
+            throw new IOException("Malformed chunk end");
+          }
+          _iState = CHUNK_SIZE;
+          break;
+
+        case TRAILERS:
+          if (sLine.length() == 0) {
+            _iState = DONE;
+          }
+          break;
+      }
+    }
+
+    /** Sets how the body is delimited, from the headers. */
+    protected void _onHeadRead() throws IOException {
+      _iHeadBytes = 0;
+
+      // The body of errors is not read, as the engine reports none.
+      if (_iResponseCode >= 400 || _iResponseCode == 204 ||
+          _iResponseCode == 304) {
+        _iState = DONE;
+        return;
+      }
+
+      if ("chunked".equalsIgnoreCase(_mHeaders.get("transfer-encoding"))) {
+        _iState = CHUNK_SIZE;
+        return;
+      }
+
+      long lLength = HttpEngine._parseLength(_mHeaders.get("content-length"));
+      if (lLength < 0) {
+        _iState = UNTIL_CLOSE;
+        return;
+      }
+      if (lLength > _iMaxBody) {
+        throw new IOException("Response larger than " + _iMaxBody);
+      }
+
+      _aBody = new byte[(int) lLength];
+      _lRemaining = lLength;
+      _iState = lLength > 0 ? BODY : DONE;
+    }
+
+    protected void _append(byte[] aBytes, int iStart, int iCount)
+        throws IOException {
+      int iLength = _iBodyLength + iCount;
+      if (iLength > _iMaxBody || iLength < 0) {
+        throw new IOException("Response larger than " + _iMaxBody);
+      }
+
+      if (iLength > _aBody.length) {
+        _aBody = Arrays.copyOf(_aBody,
+            (int) Math.min(_iMaxBody, Math.max(iLength, 2L * _aBody.length)));
+      }
+
+      System.arraycopy(aBytes, iStart, _aBody, _iBodyLength, iCount);
+      _iBodyLength = iLength;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Starts a transport with {@link #DEFAULT_LOOP_COUNT} event loops.
+   *
+   * @throws IOException When a Selector can't be opened.
+   */
+  public HttpSelectorTransport() throws IOException {
+    this(DEFAULT_LOOP_COUNT);
+  }
+
+  /**
+   * @param iLoops Number of event loop threads. One or two loops per core is
+   *               plenty: loops only wait on the network.
+   * @throws IOException When a Selector can't be opened.
+   */
+  public HttpSelectorTransport(int iLoops) throws IOException {
+    _aLoops = new _EventLoop[Math.max(1, iLoops)];
+    for (int i = 0; i < _aLoops.length; i++) {
+      _aLoops[i] = new _EventLoop(i);
+    }
+    for (_EventLoop mLoop : _aLoops) {
+      mLoop._mThread.start();
+    }
+
+    _mBlocking = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable mRunnable) {
+        Thread mThread = new Thread(mRunnable, "HttpSelectorTransport");
+        mThread.setDaemon(true);
+        return mThread;
+      }
+    });
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param mConf A request configuration.
+   * @return Whether the event loops can run the request of mConf. Other
+   * requests are run by the engine on a thread of the transport.
+   */
+  public boolean supports(HttpConfiguration mConf) {
+    return "http".equalsIgnoreCase(mConf.getEndPoint().getProtocol()) &&
+        mConf.getResumableUpload() == null &&
+        mConf.getParallelUpload() == null &&
+        mConf.getHttp2ConnectionPool() == null &&
+        mConf.getCompression() == null &&
+        mConf.getBandwidthLimiter() == null &&
+        mConf.getMaxUploadRate() <= 0 &&
+        mConf.getConcurrencyLimiter() == null &&
+        !_hasStreamParts(mConf);
+  }
+
+  /**
+   * Runs the request of mEngine without blocking the calling thread. Events
+   * are dispatched to the listener of mEngine as {@link HttpEngine#run()}
+   * would.
+   *
+   * @param mEngine Engine of the request, not run yet.
+   * @param mCallback Notified once the request is over, or null.
+   * @throws IllegalStateException If the transport was closed.
+   */
+  public void execute(final HttpEngine mEngine, final Callback mCallback) {
+    if (_bClosed) {
+      throw new IllegalStateException("Transport closed");
+    }
+
+    if (!supports(mEngine._mConf)) {
+      _mBlocking.execute(new Runnable() {
+        @Override
+        public void run() {
+          mEngine.run();
+          if (mCallback != null) {
+            mCallback.onFinished(mEngine);
+          }
+        }
+      });
+      return;
+    }
+
+    final _Exchange mExchange = new _Exchange(mEngine, mCallback,
+        _aLoops[(_iNextLoop.getAndIncrement() & Integer.MAX_VALUE)
+            % _aLoops.length]);
+    _mBlocking.execute(new Runnable() {
+      @Override
+      public void run() {
+        mExchange.prepare();
+      }
+    });
+  }
+
+  /**
+   * @param iMaxBytes Size in bytes above which answers are refused with
+   *                  #FAILURE_RESPONSE, as they are read in memory.
+   * @return This transport, to chain calls.
+   */
+  public HttpSelectorTransport setMaxResponseBytes(int iMaxBytes) {
+    _iMaxResponseBytes = iMaxBytes;
+    return this;
+  }
+
+  /**
+   * @param mLogger Where to send the debug traces of the event loops.
+   * @return This transport, to chain calls.
+   */
+  public HttpSelectorTransport setLogger(HttpLogger mLogger) {
+    _mLogger = mLogger != null ? mLogger : HttpLogger.NONE;
+    return this;
+  }
+
+  public int getLoopCount() { return _aLoops.length; }
+  public int getMaxResponseBytes() { return _iMaxResponseBytes; }
+
+  /**
+   * Stops the event loops. Requests in flight fail as their current step
+   * would, requests waiting for a retry end with the result of their last
+   * attempt. Requests run by the engine on a thread of the transport still
+   * run to completion.
+   */
+  public void close() {
+    _bClosed = true;
+    for (_EventLoop mLoop : _aLoops) {
+      mLoop._mSelector.wakeup();
+    }
+    _mBlocking.shutdown();
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * @return The request line and headers of the POST of mEntity to
+   * mEndPoint, as the connection pool sends them but closing the connection.
+   */
+  protected static byte[] _requestHead(URL mEndPoint, MultipartEntity mEntity)
+      throws IOException {
+    String sPath = mEndPoint.getFile();
+    if (sPath == null || sPath.equals("")) {
+      sPath = "/";
+    }
+
+    StringBuilder mHead = new StringBuilder(256);
+    mHead.append("POST ").append(sPath).append(" HTTP/1.1\r\n");
+    mHead.append("Host: ").append(mEndPoint.getHost());
+    if (mEndPoint.getPort() != -1) {
+      mHead.append(':').append(mEndPoint.getPort());
+    }
+    mHead.append("\r\n");
+
+    mHead.append("Content-Type: ").append(mEntity.getContentType())
+        .append("\r\n");
+    mHead.append("Accept-Encoding: ").append(HttpResponseBody.ACCEPT_ENCODING)
+        .append("\r\n");
+    mHead.append("Content-Length: ").append(mEntity.getContentLength())
+        .append("\r\n");
+    mHead.append("Connection: close\r\n");
+    mHead.append("\r\n");
+
+    return mHead.toString().getBytes("ISO-8859-1");
+  }
+
+  /** @return Whether mConf has stream parts, which can only be read by
+   * blocking. */
+  protected static boolean _hasStreamParts(HttpConfiguration mConf) {
+    for (HttpPart mPart : mConf.getParts()) {
+      if (mPart.getType() == HttpPart.TYPE_STREAM) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
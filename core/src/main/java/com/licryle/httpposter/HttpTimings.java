@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent by an {@link HttpEngine} in each phase of a request. Marks are
+ * taken with System.nanoTime(); a phase that wasn't reached, for instance
+ * because the connection failed, has a duration of -1.
+ *
+ * Phases, in order:
+ * - build: building the entity to send,
+ * - connect: opening (or borrowing) the connection,
+ * - upload: writing the request,
+ * - wait: waiting for the status line of the response,
+ * - read: reading the body of the response.
+ *
+ * When a request takes several HTTP requests, because of retries or of a
+ * resumable upload, the connect, upload, wait and read phases are those of
+ * the last one, which {@link #markAttempt()} starts. The number of bytes
+ * uploaded is counted likewise, so that {@link #getUploadBytesPerSecond()}
+ * is the throughput of that request.
+ *
+ * Marks are taken by the thread running the request, and can be read from
+ * other threads while it runs, see {@link #getPhase()}.
+ *
+ * @see HttpResult#getTimings()
+ */
+public class HttpTimings {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final int PHASE_PENDING = 0;
+  public static final int PHASE_BUILDING = 1;
+  public static final int PHASE_CONNECTING = 2;
+  public static final int PHASE_UPLOADING = 3;
+  public static final int PHASE_WAITING = 4;
+  public static final int PHASE_READING = 5;
+  public static final int PHASE_DONE = 6;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected volatile long _lStart = 0;
+  protected volatile long _lBuilt = 0;
+  protected volatile long _lAttempt = 0;
+  protected volatile long _lConnected = 0;
+  protected volatile long _lSent = 0;
+  protected volatile long _lFirstByte = 0;
+  protected volatile long _lEnd = 0;
+  /** Bytes of request body written since the last attempt started. Added to
+   * by the threads sending the parts of a parallel upload at once. */
+  protected final AtomicLong _mUploadBytes = new AtomicLong();
+
+  /*****************************************************************************
+   ********************************** Marks ************************************
+   ****************************************************************************/
+
+  public void markStart() { _lStart = System.nanoTime(); }
+  public void markBuilt() { _lBuilt = System.nanoTime(); }
+  public void markAttempt() {
+    _lAttempt = System.nanoTime();
+    _lConnected = 0;
+    _lSent = 0;
+    _lFirstByte = 0;
+    _mUploadBytes.set(0);
+  }
+  public void markConnected() { _lConnected = System.nanoTime(); }
+  public void markSent() { _lSent = System.nanoTime(); }
+  public void markFirstByte() { _lFirstByte = System.nanoTime(); }
+  public void markEnd() { _lEnd = System.nanoTime(); }
+  public void addUploadBytes(long lBytes) {
+    _mUploadBytes.addAndGet(lBytes);
+  }
+
+  /*****************************************************************************
+   ********************************* Durations *********************************
+   ****************************************************************************/
+
+  /** @return Time in ns spent building the entity, or -1. */
+  public long getBuildNs() { return _between(_lStart, _lBuilt); }
+  /** @return Time in ns spent resolving the host and opening the
+   * connection, or -1. */
+  public long getConnectNs() {
+    return _between(_lAttempt != 0 ? _lAttempt : _lBuilt, _lConnected);
+  }
+  /** @return Time in ns spent writing the request, or -1. */
+  public long getUploadNs() { return _between(_lConnected, _lSent); }
+  /** @return Time in ns between the request sent and the status line, or
+   * -1. */
+  public long getWaitNs() { return _between(_lSent, _lFirstByte); }
+  /** @return Time in ns spent reading the body of the response, or -1. */
+  public long getReadNs() { return _between(_lFirstByte, _lEnd); }
+  /** @return Time in ns from the start to the end of the request, or -1. */
+  public long getTotalNs() { return _between(_lStart, _lEnd); }
+
+  /** @return Time in ns since the start, up to the end if over, or 0 if
+   * not started. */
+  public long getElapsedNs() {
+    long lStart = _lStart;
+    long lEnd = _lEnd;
+    return lStart == 0 ? 0 : (lEnd != 0 ? lEnd : System.nanoTime()) - lStart;
+  }
+
+  /**
+   * @return The phase the request is in, one of the PHASE_* constants, from
+   * the last marks taken.
+   */
+  public int getPhase() {
+    if (_lEnd != 0) {
+      return PHASE_DONE;
+    }
+    if (_lFirstByte != 0) {
+      return PHASE_READING;
+    }
+    if (_lSent != 0) {
+      return PHASE_WAITING;
+    }
+    if (_lConnected != 0) {
+      return PHASE_UPLOADING;
+    }
+    if (_lAttempt != 0 || _lBuilt != 0) {
+      return PHASE_CONNECTING;
+    }
+    if (_lStart != 0) {
+      return PHASE_BUILDING;
+    }
+    return PHASE_PENDING;
+  }
+
+  /** @return Number of bytes of request body written by the last attempt. */
+  public long getUploadBytes() { return _mUploadBytes.get(); }
+
+  /** @return Upload throughput of the last attempt in bytes per second, or -1
+   * if the request wasn't fully sent. */
+  public long getUploadBytesPerSecond() {
+    long lUploadNs = getUploadNs();
+    return lUploadNs <= 0 ? -1
+        : (long) (_mUploadBytes.get() * 1000000000.0 / lUploadNs);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("build=%dns connect=%dns upload=%dns wait=%dns " +
+        "read=%dns total=%dns uploaded=%dB", getBuildNs(), getConnectNs(),
+        getUploadNs(), getWaitNs(), getReadNs(), getTotalNs(),
+        _mUploadBytes.get());
+  }
+
+  protected static long _between(long lFrom, long lTo) {
+    return lFrom == 0 || lTo == 0 ? -1 : lTo - lFrom;
+  }
+}
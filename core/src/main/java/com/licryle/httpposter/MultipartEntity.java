@@ -0,0 +1,1147 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Allocation-light multipart/form-data encoder. It produces, byte for byte,
+ * the same body as httpmime's MultipartEntityBuilder in BROWSER_COMPATIBLE
+ * mode, which the library used until now:
+ *
+ * --boundary\r\n
+ * Content-Disposition: form-data; name="file_0"; filename="a.jpg"\r\n
+ * Content-Type: application/octet-stream\r\n
+ * \r\n
+ * <file content>\r\n
+ * --boundary\r\n
+ * Content-Disposition: form-data; name="lat"\r\n
+ * \r\n
+ * 40.712784\r\n
+ * --boundary--\r\n
+ *
+ * Part headers are encoded once, when the part is added, into a single byte
+ * array; text parts are encoded with their value, so that writing them is a
+ * single call. The exact length of the body is known up front from the file
+ * sizes, without reading them. The entity is repeatable: it can be written any
+ * number of times.
+ *
+ * File contents are sent with FileChannel.transferTo whenever the sink is a
+ * channel, or a stream implementing {@link FileChannelSink}, so that they are
+ * never copied through the Java heap. Otherwise they are streamed through a
+ * large buffer borrowed from {@link BufferPool#HEAP}.
+ *
+ * As in httpmime, headers are encoded in US-ASCII and text values in
+ * ISO-8859-1, unless another charset is given.
+ *
+ * Besides text and files, parts can hold bytes of an array or a ByteBuffer,
+ * the region of a file, or a stream. Arrays and heap buffers are written
+ * straight from their backing array, and file regions like files. Direct
+ * and mapped buffers are written straight to channels and to streams
+ * implementing {@link FileChannelSink}, and copied through the heap buffer
+ * to other streams, such as the one of HttpURLConnection.
+ *
+ * With a {@link RequestCompression}, the whole body, or each part worth it,
+ * is compressed while written. Its length is then unknown, and file contents
+ * always go through the heap buffer.
+ *
+ * @see HttpEngine#_buildEntity
+ */
+public class MultipartEntity implements HttpBody {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Charset of the part headers and boundaries. */
+  public static final Charset HEADER_CHARSET = Charset.forName("US-ASCII");
+  /** Charset of the text values. */
+  public static final Charset TEXT_CHARSET = Charset.forName("ISO-8859-1");
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  protected static final byte[] EMPTY = {};
+  protected static final byte[] CRLF = { '\r', '\n' };
+  protected static final byte[] DASHES = { '-', '-' };
+  protected static final byte[] DISPOSITION =
+      "Content-Disposition: form-data; name=\"".getBytes(HEADER_CHARSET);
+  protected static final byte[] FILENAME =
+      "\"; filename=\"".getBytes(HEADER_CHARSET);
+  protected static final byte[] QUOTE_CRLF = { '"', '\r', '\n' };
+  protected static final byte[] OCTET_STREAM =
+      "Content-Type: application/octet-stream\r\n".getBytes(HEADER_CHARSET);
+  protected static final byte[] REFERENCE =
+      ("Content-Type: " + DedupCache.REFERENCE_TYPE + "\r\n")
+          .getBytes(HEADER_CHARSET);
+  protected static final byte[] CONTENT_TYPE =
+      "Content-Type: ".getBytes(HEADER_CHARSET);
+  protected static final byte[] CONTENT_ENCODING =
+      "Content-Encoding: ".getBytes(HEADER_CHARSET);
+
+  /** Bytes sent per call to a {@link FileChannelSink}, so that the progress
+   * of large files is still reported regularly. */
+  protected static final long TRANSFER_SLICE = 1024 * 1024;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** The boundary, as sent in the Content-Type header. */
+  protected final String _sBoundary;
+  /** "--boundary\r\n", shared by the headers of all the parts. */
+  protected final byte[] _aDelimiter;
+  /** "--boundary--\r\n", closing the body. */
+  protected final byte[] _aClosing;
+  /** Parts of the body, in order. */
+  protected final ArrayList<_Part> _aParts = new ArrayList<_Part>();
+  /** Exact length of the body, updated as parts are added. Before
+   * compression, if any. */
+  protected long _lContentLength;
+
+  /** How to compress the body, or null. */
+  protected RequestCompression _mCompression = null;
+  /** Bytes of the parts worth compressing, in PER_REQUEST mode. */
+  protected long _lCompressible = 0;
+  /** Number of parts whose file is compressed while written. */
+  protected int _iEncodedFiles = 0;
+  /** Number of parts read from a stream. */
+  protected int _iStreamParts = 0;
+  /** Number of parts whose length is unknown until written. */
+  protected int _iUnknownLengths = 0;
+
+  /*****************************************************************************
+   ************************** Protected Helper Classes *************************
+   ****************************************************************************/
+
+  /** A part of the body: its pre-encoded head, then optionally the content of
+   * a file, a buffer or a stream followed by CRLF. Text parts are entirely
+   * held in their head. */
+  protected static class _Part {
+    /** Bytes written before the content, if any. */
+    protected final byte[] _aHead;
+    /** File whose content follows the head, or null. */
+    protected final File _mFile;
+    /** Position in _mFile of the first byte to send. */
+    protected final long _lFileOffset;
+    /** Number of bytes of _mFile to send, as measured when added. */
+    protected final long _lFileLength;
+    /** Whether the content of _mFile is compressed while written. */
+    protected final boolean _bEncoded;
+    /** Bytes following the head, or null. Only read through duplicates. */
+    protected final ByteBuffer _mData;
+    /** Opens the content following the head, or null. */
+    protected final HttpPart.StreamSupplier _mStream;
+    /** Number of bytes of _mStream to send, -1 for all of it. */
+    protected final long _lStreamLength;
+
+    /** A part entirely held in its head. */
+    public _Part(byte[] aHead) {
+      this(aHead, (File) null, 0, 0, false);
+    }
+
+    public _Part(byte[] aHead, File mFile, long lFileLength) {
+      this(aHead, mFile, 0, lFileLength, false);
+    }
+
+    public _Part(byte[] aHead, File mFile, long lFileLength,
+                 boolean bEncoded) {
+      this(aHead, mFile, 0, lFileLength, bEncoded);
+    }
+
+    public _Part(byte[] aHead, File mFile, long lFileOffset,
+                 long lFileLength, boolean bEncoded) {
+      _aHead = aHead;
+      _mFile = mFile;
+      _lFileOffset = lFileOffset;
+      _lFileLength = lFileLength;
+      _bEncoded = bEncoded;
+      _mData = null;
+      _mStream = null;
+      _lStreamLength = 0;
+    }
+
+    public _Part(byte[] aHead, ByteBuffer mData) {
+      _aHead = aHead;
+      _mFile = null;
+      _lFileOffset = 0;
+      _lFileLength = 0;
+      _bEncoded = false;
+      _mData = mData;
+      _mStream = null;
+      _lStreamLength = 0;
+    }
+
+    public _Part(byte[] aHead, HttpPart.StreamSupplier mStream,
+                 long lStreamLength) {
+      _aHead = aHead;
+      _mFile = null;
+      _lFileOffset = 0;
+      _lFileLength = 0;
+      _bEncoded = false;
+      _mData = null;
+      _mStream = mStream;
+      _lStreamLength = lStreamLength;
+    }
+
+    /** @return Whether content and a CRLF follow the head. */
+    public boolean hasContent() {
+      return _mFile != null || _mData != null || _mStream != null;
+    }
+
+    /** @return Number of bytes this part adds to the body, not counting a
+     * stream of unknown length. */
+    public long getLength() {
+      long lContent = _mFile != null ? _lFileLength
+          : _mData != null ? _mData.remaining()
+          : Math.max(0, _lStreamLength);
+
+      return _aHead.length + (hasContent() ? lContent + 2 : 0);
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param sBoundary Unique String to be used for the HTTP Boundary. It must
+   *                  *not* appear in the data.
+   */
+  public MultipartEntity(String sBoundary) {
+    _sBoundary = sBoundary;
+
+    byte[] aBoundary = sBoundary.getBytes(HEADER_CHARSET);
+    _aDelimiter = _concat(DASHES, aBoundary, CRLF);
+    _aClosing = _concat(DASHES, aBoundary, DASHES, CRLF);
+    _lContentLength = _aClosing.length;
+  }
+
+  /*****************************************************************************
+   ******************************* Building Parts ******************************
+   ****************************************************************************/
+
+  /**
+   * Adds a text field.
+   *
+   * @param sName Name of the field.
+   * @param sValue Value of the field.
+   * @return This entity, to chain calls.
+   */
+  public MultipartEntity addText(String sName, String sValue) {
+    return _addText(sName, sValue.getBytes(TEXT_CHARSET), EMPTY);
+  }
+
+  /**
+   * Adds a text field in mCharset, which is given in the Content-Type of the
+   * part unless it is ISO-8859-1.
+   *
+   * @param sName Name of the field.
+   * @param sValue Value of the field.
+   * @param mCharset Charset of the value.
+   * @return This entity, to chain calls.
+   */
+  public MultipartEntity addText(String sName, String sValue,
+                                 Charset mCharset) {
+    if (mCharset.equals(TEXT_CHARSET)) {
+      return addText(sName, sValue);
+    }
+
+    return _addText(sName, sValue.getBytes(mCharset),
+        _contentType("text/plain; charset=" + mCharset.name()));
+  }
+
+  /**
+   * Adds a field holding aData, which is not copied: it must not change
+   * until the entity is written for the last time.
+   *
+   * @param sName Name of the field.
+   * @param sFileName File name of the part, or null for a plain field.
+   * @param sContentType Content-Type of the part, or null for none.
+   * @param aData Content of the part.
+   * @return This entity, to chain calls.
+   */
+  public MultipartEntity addBytes(String sName, String sFileName,
+                                  String sContentType, byte[] aData) {
+    return addBuffer(sName, sFileName, sContentType, ByteBuffer.wrap(aData));
+  }
+
+  /**
+   * Adds a field holding the bytes of mData from its position to its limit.
+   * They are not copied: they must not change until the entity is written
+   * for the last time. The position of mData is left untouched.
+   *
+   * @param sName Name of the field.
+   * @param sFileName File name of the part, or null for a plain field.
+   * @param sContentType Content-Type of the part, or null for none.
+   * @param mData Content of the part, on the heap, direct or mapped.
+   * @return This entity, to chain calls.
+   */
+  public MultipartEntity addBuffer(String sName, String sFileName,
+                                   String sContentType, ByteBuffer mData) {
+    return _addPart(new _Part(_head(sName, sFileName, sContentType),
+        mData.duplicate()));
+  }
+
+  /**
+   * Adds a field read from a stream opened each time the entity is written.
+   * Such entities can't be written without blocking.
+   *
+   * @param sName Name of the field.
+   * @param sFileName File name of the part, or null for a plain field.
+   * @param sContentType Content-Type of the part, or null for none.
+   * @param mStream Opens the content of the part.
+   * @param lLength Number of bytes to send from the stream, or -1 for all of
+   *                it, in which case the length of the entity is unknown.
+   * @return This entity, to chain calls.
+   */
+  public MultipartEntity addStream(String sName, String sFileName,
+                                   String sContentType,
+                                   HttpPart.StreamSupplier mStream,
+                                   long lLength) {
+    _iStreamParts++;
+    if (lLength < 0) {
+      _iUnknownLengths++;
+    }
+
+    return _addPart(new _Part(_head(sName, sFileName, sContentType), mStream,
+        lLength));
+  }
+
+  /**
+   * Adds lLength bytes of a file from lOffset, sent as
+   * application/octet-stream under the name of the file.
+   *
+   * @param sName Name of the field.
+   * @param mFile File to send part of.
+   * @param lOffset Position in the file of the first byte to send.
+   * @param lLength Number of bytes to send.
+   * @return This entity, to chain calls.
+   * @throws FileNotFoundException If mFile isn't a readable file, or is
+   * shorter than the region.
+   */
+  public MultipartEntity addFileRegion(String sName, File mFile, long lOffset,
+                                       long lLength)
+      throws FileNotFoundException {
+    if (!mFile.isFile() || !mFile.canRead()) {
+      throw new FileNotFoundException(mFile.getPath());
+    }
+    if (lOffset < 0 || lLength < 0 || lOffset + lLength > mFile.length()) {
+      throw new FileNotFoundException(mFile.getPath() + " has no region " +
+          lOffset + "+" + lLength);
+    }
+
+    return _addPart(new _Part(_head(sName, mFile.getName(),
+        "application/octet-stream"), mFile, lOffset, lLength, false));
+  }
+
+  /**
+   * Adds a text field of value aValue, compressed if worth it.
+   *
+   * @param aType Content-Type header line of the part, or EMPTY.
+   */
+  protected MultipartEntity _addText(String sName, byte[] aValue,
+                                     byte[] aType) {
+    if (_mCompression != null && _mCompression.shouldCompress(aValue.length)) {
+      if (_mCompression.getMode() == RequestCompression.PER_REQUEST) {
+        _lCompressible += aValue.length;
+      } else {
+        byte[] aEncoded = _encode(aValue);
+        if (aEncoded != null) {
+          return _addPart(new _Part(_concat(
+              _aDelimiter,
+              DISPOSITION, sName.getBytes(HEADER_CHARSET), QUOTE_CRLF,
+              aType,
+              _encodingHeader(),
+              CRLF,
+              aEncoded, CRLF)));
+        }
+      }
+    }
+
+    return _addPart(new _Part(_concat(
+        _aDelimiter,
+        DISPOSITION, sName.getBytes(HEADER_CHARSET), QUOTE_CRLF,
+        aType,
+        CRLF,
+        aValue, CRLF)));
+  }
+
+  /**
+   * Adds a file, sent as application/octet-stream under its own name. The
+   * file is only stat-ed here; its content is read when the entity is written.
+   *
+   * @param sName Name of the field.
+   * @param mFile File to send.
+   * @return This entity, to chain calls.
+   * @throws FileNotFoundException If mFile isn't a readable file.
+   */
+  public MultipartEntity addFile(String sName, File mFile)
+      throws FileNotFoundException {
+    if (!mFile.isFile() || !mFile.canRead()) {
+      throw new FileNotFoundException(mFile.getPath());
+    }
+
+    long lLength = mFile.length();
+    if (_mCompression != null && _mCompression.shouldCompress(mFile)) {
+      if (_mCompression.getMode() == RequestCompression.PER_REQUEST) {
+        _lCompressible += lLength;
+      } else {
+        _iEncodedFiles++;
+        return _addPart(new _Part(_concat(
+            _aDelimiter,
+            DISPOSITION, sName.getBytes(HEADER_CHARSET),
+            FILENAME, mFile.getName().getBytes(HEADER_CHARSET), QUOTE_CRLF,
+            OCTET_STREAM,
+            _encodingHeader(),
+            CRLF), mFile, lLength, true));
+      }
+    }
+
+    return _addPart(new _Part(_concat(
+        _aDelimiter,
+        DISPOSITION, sName.getBytes(HEADER_CHARSET),
+        FILENAME, mFile.getName().getBytes(HEADER_CHARSET), QUOTE_CRLF,
+        OCTET_STREAM,
+        CRLF), mFile, lLength));
+  }
+
+  /**
+   * Adds a reference to a file the server already has, in place of its
+   * content: a part of type {@link DedupCache#REFERENCE_TYPE} holding the
+   * hash of the file.
+   *
+   * @param sName Name of the field.
+   * @param sFileName Name of the file.
+   * @param sHash SHA-256 of the content of the file, in lowercase hex.
+   * @return This entity, to chain calls.
+   */
+  public MultipartEntity addReference(String sName, String sFileName,
+                                      String sHash) {
+    return _addPart(new _Part(_concat(
+        _aDelimiter,
+        DISPOSITION, sName.getBytes(HEADER_CHARSET),
+        FILENAME, sFileName.getBytes(HEADER_CHARSET), QUOTE_CRLF,
+        REFERENCE,
+        CRLF,
+        sHash.getBytes(HEADER_CHARSET), CRLF)));
+  }
+
+  /**
+   * Compresses the parts added from now on, see {@link RequestCompression}.
+   * Must be called before adding any part.
+   *
+   * @param mCompression How to compress the body, or null not to.
+   * @return This entity, to chain calls.
+   * @throws IllegalStateException If parts were already added.
+   */
+  public MultipartEntity setCompression(RequestCompression mCompression) {
+    if (!_aParts.isEmpty()) {
+      throw new IllegalStateException("Compression set after parts");
+    }
+
+    _mCompression = mCompression;
+    return this;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /** @return The exact number of bytes {@link #writeTo} will write, or -1
+   * when compressed while written. */
+  @Override
+  public long getContentLength() {
+    return _iEncodedFiles > 0 || _isEncoded() ? -1 : getSourceLength();
+  }
+
+  /** @return The number of bytes of the body before compression, -1 if a
+   * stream of unknown length is part of it. */
+  public long getSourceLength() {
+    return _iUnknownLengths > 0 ? -1 : _lContentLength;
+  }
+
+  /** @return The Content-Encoding of the whole body, or null. */
+  @Override
+  public String getContentEncoding() {
+    return _isEncoded() ? _mCompression.getCodec().getName() : null;
+  }
+
+  /** @return The value of the Content-Type header for this entity. */
+  @Override
+  public String getContentType() {
+    return "multipart/form-data; boundary=" + _sBoundary;
+  }
+
+  public String getBoundary() { return _sBoundary; }
+
+  /** @return Always true: files are re-read and streams re-opened on every
+   * write. */
+  @Override
+  public boolean isRepeatable() { return true; }
+
+  /**
+   * Writes the whole body to mOut. If mOut is a {@link FileChannelSink} that
+   * can transfer, file contents are handed to it as FileChannel regions, and
+   * direct or mapped buffers as they are. Otherwise they go through a heap
+   * buffer borrowed from {@link BufferPool#HEAP}.
+   *
+   * Compressed content is written to the encoded stream of mOut when it is
+   * an {@link EncodingSink}, which is told about the source bytes consumed.
+   *
+   * @param mOut Where to write the body.
+   * @throws IOException When writing fails or a file can't be read in full.
+   */
+  @Override
+  public void writeTo(OutputStream mOut) throws IOException {
+    if (!_isEncoded()) {
+      _writeParts(mOut);
+      return;
+    }
+
+    final EncodingSink mSink =
+        mOut instanceof EncodingSink ? (EncodingSink) mOut : null;
+    OutputStream mEncoder = _startEncoding(
+        mSink != null ? mSink.getEncodedStream() : mOut);
+    boolean bDone = false;
+
+    try {
+      _writeParts(new FilterOutputStream(mEncoder) {
+        @Override
+        public void write(byte[] aBytes, int iStart, int iCount)
+            throws IOException {
+          out.write(aBytes, iStart, iCount);
+          if (mSink != null) {
+            mSink.onSourceBytes(iCount);
+          }
+        }
+
+        @Override
+        public void write(int iByte) throws IOException {
+          write(new byte[] { (byte) iByte }, 0, 1);
+        }
+      });
+      bDone = true;
+    } finally {
+      _endEncoding(mEncoder, bDone);
+    }
+  }
+
+  /**
+   * Writes the parts and the closing delimiter to mOut, compressing the
+   * files of the parts marked as such.
+   */
+  protected void _writeParts(OutputStream mOut) throws IOException {
+    ByteBuffer mBuffer = null;
+
+    try {
+      for (_Part mPart : _aParts) {
+        mOut.write(mPart._aHead);
+
+        if (mPart._mFile != null) {
+          if (mPart._bEncoded) {
+            if (mBuffer == null) {
+              mBuffer = BufferPool.HEAP.acquire();
+            }
+
+            _encodeFile(mPart, mBuffer, mOut);
+          } else if (mOut instanceof FileChannelSink &&
+              ((FileChannelSink) mOut).canTransfer()) {
+            _transferFile(mPart, (FileChannelSink) mOut);
+          } else {
+            if (mBuffer == null) {
+              mBuffer = BufferPool.HEAP.acquire();
+            }
+
+            _copyFile(mPart, mBuffer, mOut);
+          }
+        } else if (mPart._mData != null) {
+          if (!mPart._mData.hasArray() && mOut instanceof FileChannelSink &&
+              ((FileChannelSink) mOut).canTransfer()) {
+            _transferData(mPart._mData, (FileChannelSink) mOut);
+          } else {
+            if (mBuffer == null && !mPart._mData.hasArray()) {
+              mBuffer = BufferPool.HEAP.acquire();
+            }
+
+            _writeData(mPart._mData, mBuffer, mOut);
+          }
+        } else if (mPart._mStream != null) {
+          if (mBuffer == null) {
+            mBuffer = BufferPool.HEAP.acquire();
+          }
+
+          _copyStream(mPart, mBuffer, mOut);
+        }
+
+        if (mPart.hasContent()) {
+          mOut.write(CRLF);
+        }
+      }
+
+      mOut.write(_aClosing);
+    } finally {
+      BufferPool.HEAP.release(mBuffer);
+    }
+  }
+
+  /**
+   * Writes the whole body to mChannel. File contents are sent with
+   * FileChannel.transferTo, which lets the kernel move the data when mChannel
+   * is a socket or a file.
+   *
+   * @param mChannel Where to write the body. Must be in blocking mode.
+   * @throws IOException When writing fails or a file can't be read in full.
+   */
+  public void writeTo(WritableByteChannel mChannel) throws IOException {
+    if (_iEncodedFiles > 0 || _isEncoded()) {
+      writeTo(Channels.newOutputStream(mChannel));
+      return;
+    }
+
+    for (_Part mPart : _aParts) {
+      _writeFully(mChannel, ByteBuffer.wrap(mPart._aHead));
+
+      if (mPart._mFile != null) {
+        FileInputStream mIn = new FileInputStream(mPart._mFile);
+        try {
+          transferFully(mIn.getChannel(), mPart._lFileOffset,
+              mPart._lFileLength, mChannel);
+        } finally {
+          mIn.close();
+        }
+      } else if (mPart._mData != null) {
+        _writeFully(mChannel, mPart._mData.duplicate());
+      } else if (mPart._mStream != null) {
+        ByteBuffer mBuffer = BufferPool.HEAP.acquire();
+        try {
+          _copyStream(mPart, mBuffer, Channels.newOutputStream(mChannel));
+        } finally {
+          BufferPool.HEAP.release(mBuffer);
+        }
+      }
+
+      if (mPart.hasContent()) {
+        _writeFully(mChannel, ByteBuffer.wrap(CRLF));
+      }
+    }
+
+    _writeFully(mChannel, ByteBuffer.wrap(_aClosing));
+  }
+
+  /**
+   * Sends exactly lCount bytes of mFile, from lPosition, to mChannel using
+   * FileChannel.transferTo.
+   *
+   * @param mFile Channel of the file to send.
+   * @param lPosition Position in the file of the first byte to send.
+   * @param lCount Number of bytes to send.
+   * @param mChannel Destination, in blocking mode.
+   * @throws IOException When the transfer fails or the file is too short.
+   */
+  public static void transferFully(FileChannel mFile, long lPosition,
+                                   long lCount, WritableByteChannel mChannel)
+      throws IOException {
+    while (lCount > 0) {
+      long lSent = mFile.transferTo(lPosition, lCount, mChannel);
+
+      if (lSent <= 0 && lPosition >= mFile.size()) {
+        throw new EOFException("File shrank while sent");
+      }
+
+      lPosition += lSent;
+      lCount -= lSent;
+    }
+  }
+
+  /*****************************************************************************
+   **************************** Non-Blocking Writing ***************************
+   ****************************************************************************/
+
+  /**
+   * Writer of the body to a non-blocking channel, typically a SocketChannel
+   * driven by a Selector. Each call to {@link #writeTo} writes as much as the
+   * channel accepts and returns, keeping track of where it stopped.
+   *
+   * File contents are handed to the channel with FileChannel.transferTo, only
+   * as fast as the channel accepts them: a slow peer never makes the file be
+   * read ahead into memory. A file is kept open from its first byte sent to
+   * its last; {@link #close()} releases it if the writing is abandoned.
+   *
+   * @see HttpSelectorTransport
+   */
+  public class NonBlockingWriter {
+    /** Index of the next part to start. Past the last part, the closing
+     * delimiter is next. */
+    protected int _iPart = 0;
+    /** Bytes to write, in order. */
+    protected final ArrayDeque<ByteBuffer> _mBuffers =
+        new ArrayDeque<ByteBuffer>();
+    /** Part whose file is being sent once _mBuffers are written, or null. */
+    protected _Part _mFilePart = null;
+    /** Open channel of the file of _mFilePart, once its sending started. */
+    protected FileChannel _mFile = null;
+    /** Position of the next byte of _mFile to send. */
+    protected long _lFilePosition = 0;
+    /** Number of bytes of the body written so far. */
+    protected long _lWritten = 0;
+
+    /**
+     * Writes the body to mChannel until it is done or mChannel can't accept
+     * more bytes without blocking.
+     *
+     * @param mChannel Where to write the body, typically in non-blocking
+     *                 mode.
+     * @return The number of bytes written by this call.
+     * @throws IOException When writing fails or a file can't be read in full.
+     */
+    public long writeTo(WritableByteChannel mChannel) throws IOException {
+      long lWritten = 0;
+
+      while (true) {
+        if (!_mBuffers.isEmpty()) {
+          ByteBuffer mBuffer = _mBuffers.peekFirst();
+          lWritten += mChannel.write(mBuffer);
+          if (mBuffer.hasRemaining()) {
+            break;
+          }
+          _mBuffers.pollFirst();
+        } else if (_mFilePart != null) {
+          long lSent = _transferSome(mChannel);
+          lWritten += lSent;
+          if (_mFilePart != null && lSent == 0) {
+            break;
+          }
+        } else if (_iPart < _aParts.size()) {
+          _Part mPart = _aParts.get(_iPart++);
+          _mBuffers.addLast(ByteBuffer.wrap(mPart._aHead));
+          _mFilePart = mPart._mFile != null ? mPart : null;
+          if (mPart._mData != null) {
+            _mBuffers.addLast(mPart._mData.duplicate());
+            _mBuffers.addLast(ByteBuffer.wrap(CRLF));
+          }
+        } else if (_iPart == _aParts.size()) {
+          _iPart++;
+          _mBuffers.addLast(ByteBuffer.wrap(_aClosing));
+        } else {
+          break;
+        }
+      }
+
+      _lWritten += lWritten;
+      return lWritten;
+    }
+
+    /** @return Whether the whole body was written. */
+    public boolean isDone() {
+      return _iPart > _aParts.size() && _mBuffers.isEmpty();
+    }
+
+    /** @return The number of bytes of the body written so far. */
+    public long getWritten() { return _lWritten; }
+
+    /** Closes the file being sent, if any. */
+    public void close() {
+      if (_mFile != null) {
+        try {
+          _mFile.close();
+        } catch (IOException e) {
+          // Only read from.
+        }
+        _mFile = null;
+      }
+    }
+
+    /**
+     * Sends the next slice of the file of _mFilePart that mChannel accepts.
+     * Once the file is sent, moves on to the CRLF ending the part.
+     *
+     * @return The number of bytes sent.
+     */
+    protected long _transferSome(WritableByteChannel mChannel)
+        throws IOException {
+      if (_mFile == null) {
+        _mFile = new FileInputStream(_mFilePart._mFile).getChannel();
+        _lFilePosition = _mFilePart._lFileOffset;
+      }
+
+      long lRemaining = _mFilePart._lFileOffset + _mFilePart._lFileLength -
+          _lFilePosition;
+      long lSent = 0;
+      if (lRemaining > 0) {
+        lSent = _mFile.transferTo(_lFilePosition,
+            Math.min(lRemaining, TRANSFER_SLICE), mChannel);
+        if (lSent <= 0 && _lFilePosition >= _mFile.size()) {
+          throw new EOFException(
+              _mFilePart._mFile.getPath() + " shrank while sent");
+        }
+        _lFilePosition += lSent;
+        lRemaining -= lSent;
+      }
+
+      if (lRemaining == 0) {
+        close();
+        _mFilePart = null;
+        _mBuffers.addLast(ByteBuffer.wrap(CRLF));
+      }
+
+      return lSent;
+    }
+  }
+
+  /**
+   * @return A new writer of this body to a non-blocking channel. Several
+   * writers can be used one after the other, to send the body again.
+   * @throws IllegalStateException If the body is compressed or has stream
+   * parts.
+   */
+  public NonBlockingWriter newNonBlockingWriter() {
+    if (_iEncodedFiles > 0 || _isEncoded() || _iStreamParts > 0) {
+      throw new IllegalStateException("Compressed or streamed bodies can't " +
+          "be written without blocking");
+    }
+
+    return new NonBlockingWriter();
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected MultipartEntity _addPart(_Part mPart) {
+    _aParts.add(mPart);
+    _lContentLength += mPart.getLength();
+
+    return this;
+  }
+
+  /**
+   * Streams the content of the file of mPart to mOut through mBuffer, which
+   * must be backed by an array.
+   */
+  protected void _copyFile(_Part mPart, ByteBuffer mBuffer, OutputStream mOut)
+      throws IOException {
+    FileInputStream mIn = new FileInputStream(mPart._mFile);
+
+    try {
+      FileChannel mFileChannel = mIn.getChannel();
+      mFileChannel.position(mPart._lFileOffset);
+      long lRemaining = mPart._lFileLength;
+
+      while (lRemaining > 0) {
+        int iRead = _readChunk(mFileChannel, mBuffer, lRemaining, mPart);
+        mOut.write(mBuffer.array(), mBuffer.arrayOffset(), iRead);
+        lRemaining -= iRead;
+      }
+    } finally {
+      mIn.close();
+    }
+  }
+
+  /**
+   * Streams the content of the file of mPart to mOut through mBuffer,
+   * compressed. When mOut is an {@link EncodingSink}, the compressed bytes go
+   * to its encoded stream and the bytes read from the file are reported to
+   * it.
+   */
+  protected void _encodeFile(_Part mPart, ByteBuffer mBuffer,
+                             OutputStream mOut) throws IOException {
+    EncodingSink mSink =
+        mOut instanceof EncodingSink ? (EncodingSink) mOut : null;
+    OutputStream mEncoder = _startEncoding(
+        mSink != null ? mSink.getEncodedStream() : mOut);
+    boolean bDone = false;
+    FileInputStream mIn = null;
+
+    try {
+      mIn = new FileInputStream(mPart._mFile);
+      FileChannel mFileChannel = mIn.getChannel();
+      mFileChannel.position(mPart._lFileOffset);
+      long lRemaining = mPart._lFileLength;
+
+      while (lRemaining > 0) {
+        int iRead = _readChunk(mFileChannel, mBuffer, lRemaining, mPart);
+        mEncoder.write(mBuffer.array(), mBuffer.arrayOffset(), iRead);
+        if (mSink != null) {
+          mSink.onSourceBytes(iRead);
+        }
+        lRemaining -= iRead;
+      }
+      bDone = true;
+    } finally {
+      if (mIn != null) {
+        mIn.close();
+      }
+      _endEncoding(mEncoder, bDone);
+    }
+  }
+
+  /**
+   * @return Whether the whole body is compressed: in PER_REQUEST mode, when
+   * at least half of it is worth compressing.
+   */
+  protected boolean _isEncoded() {
+    return _mCompression != null &&
+        _mCompression.getMode() == RequestCompression.PER_REQUEST &&
+        _lCompressible > 0 && _lCompressible * 2 >= _lContentLength;
+  }
+
+  /**
+   * @return A compressing stream writing to mOut, which it doesn't close.
+   */
+  protected OutputStream _startEncoding(OutputStream mOut)
+      throws IOException {
+    return _mCompression.getCodec().encode(new FilterOutputStream(mOut) {
+      @Override
+      public void write(byte[] aBytes, int iStart, int iCount)
+          throws IOException {
+        out.write(aBytes, iStart, iCount);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    });
+  }
+
+  /**
+   * Finishes the compressed stream mEncoder if bDone, and releases it in any
+   * case.
+   */
+  protected static void _endEncoding(OutputStream mEncoder, boolean bDone)
+      throws IOException {
+    if (bDone) {
+      mEncoder.close();
+      return;
+    }
+
+    try {
+      mEncoder.close();
+    } catch (IOException e) {
+      // The writing already failed.
+    }
+  }
+
+  /** @return aValue compressed, or null if it couldn't be. */
+  protected byte[] _encode(byte[] aValue) {
+    try {
+      ByteArrayOutputStream mOut = new ByteArrayOutputStream(
+          aValue.length / 2);
+      OutputStream mEncoder = _mCompression.getCodec().encode(mOut);
+      mEncoder.write(aValue);
+      mEncoder.close();
+      return mOut.toByteArray();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** @return The Content-Encoding part header of compressed parts. */
+  protected byte[] _encodingHeader() {
+    return _concat(CONTENT_ENCODING,
+        _mCompression.getCodec().getName().getBytes(HEADER_CHARSET), CRLF);
+  }
+
+  /**
+   * Hands the content of the file of mPart to mSink, slice by slice.
+   */
+  protected void _transferFile(_Part mPart, FileChannelSink mSink)
+      throws IOException {
+    FileInputStream mIn = new FileInputStream(mPart._mFile);
+
+    try {
+      FileChannel mFileChannel = mIn.getChannel();
+      long lPosition = 0;
+
+      while (lPosition < mPart._lFileLength) {
+        long lCount = Math.min(TRANSFER_SLICE,
+            mPart._lFileLength - lPosition);
+        mSink.transferFrom(mFileChannel, mPart._lFileOffset + lPosition,
+            lCount);
+        lPosition += lCount;
+      }
+    } finally {
+      mIn.close();
+    }
+  }
+
+  /**
+   * Hands the bytes of mData to mSink, slice by slice, without copying them.
+   * The position of mData is left untouched.
+   */
+  protected static void _transferData(ByteBuffer mData, FileChannelSink mSink)
+      throws IOException {
+    ByteBuffer mSource = mData.duplicate();
+
+    while (mSource.hasRemaining()) {
+      ByteBuffer mSlice = mSource.duplicate();
+      mSlice.limit(mSlice.position() +
+          (int) Math.min(mSource.remaining(), TRANSFER_SLICE));
+      mSource.position(mSlice.limit());
+      mSink.transferFrom(mSlice);
+    }
+  }
+
+  /**
+   * Writes the bytes of mData to mOut, slice by slice so that progress is
+   * reported regularly. Heap buffers are written from their backing array,
+   * others are copied through mBuffer: a plain stream, such as the one of
+   * HttpURLConnection, only takes arrays.
+   */
+  protected static void _writeData(ByteBuffer mData, ByteBuffer mBuffer,
+                                   OutputStream mOut) throws IOException {
+    ByteBuffer mSource = mData.duplicate();
+
+    while (mSource.hasRemaining()) {
+      int iCount = (int) Math.min(mSource.remaining(), TRANSFER_SLICE);
+
+      if (mSource.hasArray()) {
+        mOut.write(mSource.array(),
+            mSource.arrayOffset() + mSource.position(), iCount);
+        mSource.position(mSource.position() + iCount);
+      } else {
+        iCount = Math.min(iCount, mBuffer.capacity());
+        ByteBuffer mSlice = mSource.duplicate();
+        mSlice.limit(mSlice.position() + iCount);
+
+        mBuffer.clear();
+        mBuffer.put(mSlice);
+        mOut.write(mBuffer.array(), mBuffer.arrayOffset(), iCount);
+        mSource.position(mSource.position() + iCount);
+      }
+    }
+  }
+
+  /**
+   * Streams the content of the stream of mPart to mOut through mBuffer,
+   * which must be backed by an array.
+   *
+   * @throws EOFException If the stream is shorter than the length of the
+   * part.
+   */
+  protected static void _copyStream(_Part mPart, ByteBuffer mBuffer,
+                                    OutputStream mOut) throws IOException {
+    InputStream mIn = mPart._mStream.open();
+
+    try {
+      byte[] aBuffer = mBuffer.array();
+      int iOffset = mBuffer.arrayOffset();
+      long lRemaining = mPart._lStreamLength;
+
+      while (lRemaining != 0) {
+        int iWanted = lRemaining < 0 ? mBuffer.capacity()
+            : (int) Math.min(lRemaining, mBuffer.capacity());
+        int iRead = mIn.read(aBuffer, iOffset, iWanted);
+
+        if (iRead == -1) {
+          if (lRemaining < 0) break;
+          throw new EOFException("Stream of a part ended " + lRemaining +
+              " bytes early");
+        }
+
+        mOut.write(aBuffer, iOffset, iRead);
+        if (lRemaining > 0) {
+          lRemaining -= iRead;
+        }
+      }
+    } finally {
+      mIn.close();
+    }
+  }
+
+  /**
+   * @return The head of a part: its delimiter and headers, then the blank
+   * line.
+   */
+  protected byte[] _head(String sName, String sFileName,
+                         String sContentType) {
+    return _concat(
+        _aDelimiter,
+        DISPOSITION, sName.getBytes(HEADER_CHARSET),
+        sFileName != null
+            ? _concat(FILENAME, sFileName.getBytes(HEADER_CHARSET)) : EMPTY,
+        QUOTE_CRLF,
+        sContentType != null ? _contentType(sContentType) : EMPTY,
+        CRLF);
+  }
+
+  /** @return The Content-Type header line of value sContentType. */
+  protected static byte[] _contentType(String sContentType) {
+    return _concat(CONTENT_TYPE, sContentType.getBytes(HEADER_CHARSET), CRLF);
+  }
+
+  /**
+   * Fills mBuffer with at most lRemaining bytes of mFileChannel, and flips it.
+   *
+   * @return The number of bytes read.
+   * @throws EOFException If the file is now shorter than when it was added.
+   */
+  protected static int _readChunk(FileChannel mFileChannel, ByteBuffer mBuffer,
+                                  long lRemaining, _Part mPart)
+      throws IOException {
+    mBuffer.clear();
+    if (lRemaining < mBuffer.capacity()) {
+      mBuffer.limit((int) lRemaining);
+    }
+
+    int iRead = mFileChannel.read(mBuffer);
+    if (iRead == -1) {
+      throw new EOFException(mPart._mFile.getPath() + " shrank while sent");
+    }
+
+    mBuffer.flip();
+    return iRead;
+  }
+
+  protected static void _writeFully(WritableByteChannel mChannel,
+                                    ByteBuffer mBuffer) throws IOException {
+    while (mBuffer.hasRemaining()) {
+      mChannel.write(mBuffer);
+    }
+  }
+
+  protected static byte[] _concat(byte[]... aChunks) {
+    int iLength = 0;
+    for (byte[] aChunk : aChunks) {
+      iLength += aChunk.length;
+    }
+
+    byte[] aResult = new byte[iLength];
+    int iOffset = 0;
+    for (byte[] aChunk : aChunks) {
+      System.arraycopy(aChunk, 0, aResult, iOffset, aChunk.length);
+      iOffset += aChunk.length;
+    }
+
+    return aResult;
+  }
+}
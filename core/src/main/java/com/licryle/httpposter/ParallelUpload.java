@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings and state of a parallel upload. When set on an
+ * {@link HttpConfiguration}, the {@link HttpEngine} splits each file into
+ * parts and sends them over {@link #getConnections()} connections at once,
+ * so that a single large file isn't limited to what one TCP stream reaches
+ * on a high-latency link. A failed part is sent again on its own.
+ *
+ * ** Protocol:
+ * Each part is a POST of the raw bytes (application/octet-stream) to the end
+ * point, with the headers of {@link ResumableUpload}:
+ * - X-Upload-Id: identifier of the file upload, the same for all its parts,
+ * - X-Upload-Offset: position in the file of the first byte of the part,
+ * - X-Upload-Length: total size of the file,
+ * - X-Upload-Name: name of the file,
+ * and:
+ * - X-Upload-Part: index of the part, from 0,
+ * - X-Upload-Part-Count: number of parts of the file.
+ * Parts arrive in any order, possibly at once. The server answers with a 2xx
+ * code once it stored the part.
+ *
+ * Once every part of every file is stored, the engine posts the regular
+ * multipart form of the configuration, with the arguments and, instead of
+ * each file, a text field file_N holding its upload id. This request commits
+ * the upload: the server composes each file from its parts, in offset order.
+ * The answer to it is the one given to the listener.
+ *
+ * ** Usage:
+ * ParallelUpload mUpload = new ParallelUpload(4);
+ * mConf.setParallelUpload(mUpload);
+ *
+ * The parts stored are kept in the object, so running again a configuration
+ * after a failure only sends the missing ones.
+ *
+ * @see HttpEngine#_httpPostParallel
+ */
+public class ParallelUpload {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final String HEADER_PART = "X-Upload-Part";
+  public static final String HEADER_PART_COUNT = "X-Upload-Part-Count";
+
+  /** Default number of parts sent at once. */
+  public static final int DEFAULT_CONNECTIONS = 4;
+  /** Default size under which files are sent as a single part, in bytes. */
+  public static final long DEFAULT_MIN_PART_SIZE = 1024 * 1024;
+  /** Default number of times a part is sent before giving up. */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final int _iConnections;
+  protected long _lMinPartSize = DEFAULT_MIN_PART_SIZE;
+  protected int _iMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+  /** Runs the parts sent besides the calling thread. */
+  protected ExecutorService _mExecutor = null;
+
+  /** Uploads in progress, by absolute path of their file. */
+  protected final HashMap<String, Session> _mSessions =
+      new HashMap<String, Session>();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Upload of a single file: its id, its parts and which were stored. */
+  public static class Session {
+    protected final String _sUploadId;
+    protected final File _mFile;
+    protected final long _lLength;
+    protected final long _lLastModified;
+    protected final long _lPartSize;
+    /** Whether each part was stored by the server. Guarded by this. */
+    protected final boolean[] _aStored;
+
+    protected Session(String sUploadId, File mFile, long lPartSize) {
+      _sUploadId = sUploadId;
+      _mFile = mFile;
+      _lLength = mFile.length();
+      _lLastModified = mFile.lastModified();
+      _lPartSize = lPartSize;
+      _aStored = new boolean[
+          (int) Math.max(1, (_lLength + lPartSize - 1) / lPartSize)];
+    }
+
+    public String getUploadId() { return _sUploadId; }
+    public File getFile() { return _mFile; }
+    public long getLength() { return _lLength; }
+    public int getPartCount() { return _aStored.length; }
+
+    /** @return Position in the file of the first byte of part iPart. */
+    public long getPartOffset(int iPart) { return iPart * _lPartSize; }
+
+    /** @return Number of bytes of part iPart. */
+    public long getPartLength(int iPart) {
+      return Math.min(_lPartSize, _lLength - getPartOffset(iPart));
+    }
+
+    public synchronized boolean isStored(int iPart) {
+      return _aStored[iPart];
+    }
+
+    /** Records that the server stored part iPart. */
+    public synchronized void store(int iPart) {
+      _aStored[iPart] = true;
+    }
+
+    /** @return The number of bytes of the file the server stored. */
+    public synchronized long getStoredBytes() {
+      long lBytes = 0;
+      for (int i = 0; i < _aStored.length; i++) {
+        if (_aStored[i]) {
+          lBytes += getPartLength(i);
+        }
+      }
+
+      return lBytes;
+    }
+
+    /** @return Whether the file changed since the upload started. */
+    protected boolean _isStale() {
+      return _mFile.length() != _lLength ||
+          _mFile.lastModified() != _lLastModified;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a parallel upload over {@link #DEFAULT_CONNECTIONS} connections.
+   */
+  public ParallelUpload() {
+    this(DEFAULT_CONNECTIONS);
+  }
+
+  /**
+   * @param iConnections Number of parts sent at once, each over its own
+   *                     connection. Files are split in as many parts.
+   */
+  public ParallelUpload(int iConnections) {
+    if (iConnections <= 0) {
+      throw new IllegalArgumentException("Connections must be positive");
+    }
+
+    _iConnections = iConnections;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  public int getConnections() { return _iConnections; }
+  public long getMinPartSize() { return _lMinPartSize; }
+  public int getMaxAttempts() { return _iMaxAttempts; }
+  public ExecutorService getExecutor() { return _mExecutor; }
+
+  /**
+   * @param lMinPartSize Size under which parts aren't split further, in
+   *                     bytes. Files smaller than this are sent in one part.
+   * @return This upload, to chain calls.
+   */
+  public ParallelUpload setMinPartSize(long lMinPartSize) {
+    _lMinPartSize = Math.max(1, lMinPartSize);
+    return this;
+  }
+
+  /**
+   * @param iMaxAttempts Number of times a part is sent before the upload
+   *                     gives up. It can still be resumed later.
+   * @return This upload, to chain calls.
+   */
+  public ParallelUpload setMaxAttempts(int iMaxAttempts) {
+    _iMaxAttempts = Math.max(1, iMaxAttempts);
+    return this;
+  }
+
+  /**
+   * @param mExecutor Executor running the parts sent besides the calling
+   *                  thread, or null for a thread per connection. It must be
+   *                  able to run {@link #getConnections()} - 1 tasks at once.
+   * @return This upload, to chain calls.
+   */
+  public ParallelUpload setExecutor(ExecutorService mExecutor) {
+    _mExecutor = mExecutor;
+    return this;
+  }
+
+  /**
+   * @param mFile A file to upload.
+   * @return The upload of mFile, started anew if there is none yet or if the
+   * file changed since.
+   */
+  public synchronized Session getSession(File mFile) {
+    String sKey = mFile.getAbsolutePath();
+    Session mSession = _mSessions.get(sKey);
+
+    if (mSession == null || mSession._isStale()) {
+      long lPartSize = Math.max(_lMinPartSize,
+          (mFile.length() + _iConnections - 1) / _iConnections);
+      mSession = new Session(UUID.randomUUID().toString(), mFile, lPartSize);
+      _mSessions.put(sKey, mSession);
+    }
+
+    return mSession;
+  }
+
+  /**
+   * Forgets all the uploads, so that the files are sent again from scratch.
+   * Called by the engine once the commit request succeeded.
+   */
+  public synchronized void clear() {
+    _mSessions.clear();
+  }
+}
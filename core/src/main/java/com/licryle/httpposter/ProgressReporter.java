@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reports the progress of uploads in bytes, with their throughput, at a
+ * bounded rate. Unlike {@link HttpListener#onProgress}, which gives a
+ * percentage, it also works when the length of the body isn't known in
+ * advance, for instance when it is compressed or streamed:
+ *
+ * ** Usage:
+ * ProgressReporter mReporter = new ProgressReporter(
+ *     new ProgressReporter.Listener() {
+ *       public void onProgress(int iInstance, long lSent, long lTotal,
+ *                              long lBytesPerSecond) {
+ *         ...
+ *       }
+ *     })
+ *     .setMinInterval(250)
+ *     .setMinBytes(32 * 1024)
+ *     .setExecutor(HttpPoster.mainThreadExecutor());
+ *
+ * mConf.setProgressReporter(mReporter);
+ *
+ * Progress is reported once both at least {@link #setMinInterval} ms and
+ * {@link #setMinBytes} bytes went by since the last report, and always once
+ * the body is fully sent. The final report of a body of unknown size gives
+ * the bytes sent as its total. In between, a write only costs a comparison,
+ * and the clock is read at most once per {@link #setMinBytes} bytes.
+ *
+ * Reports are delivered on the executor, or on the thread sending the body
+ * if none. When the executor falls behind, say a busy UI thread, reports
+ * still waiting to run are replaced by the latest one instead of piling up.
+ *
+ * A reporter may be shared by many requests, which are told apart by their
+ * instance id.
+ *
+ * @see HttpConfiguration#setProgressReporter
+ */
+public class ProgressReporter {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Minimum time between two reports of a request by default, in ms. */
+  public static final long DEFAULT_MIN_INTERVAL = 100;
+  /** Minimum number of bytes sent between two reports of a request by
+   * default. */
+  public static final long DEFAULT_MIN_BYTES = 16 * 1024;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final Listener _mListener;
+  protected long _lMinIntervalNs =
+      TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_INTERVAL);
+  protected long _lMinBytes = DEFAULT_MIN_BYTES;
+  /** Where reports are delivered, or null for the sending thread. */
+  protected Executor _mExecutor = null;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Receives the reports. */
+  public interface Listener {
+    /**
+     * @param iInstance Unique Id of the request, as given to the
+     *                  {@link HttpListener} callbacks.
+     * @param lSent Bytes of the body sent so far. For resumable and parallel
+     *              uploads, this covers the whole transfer, so it starts at
+     *              the bytes the server already had.
+     * @param lTotal Size of the body in bytes, or -1 if unknown. The final
+     *               report gives lSent instead.
+     * @param lBytesPerSecond Upload rate since the previous report.
+     */
+    void onProgress(int iInstance, long lSent, long lTotal,
+                    long lBytesPerSecond);
+  }
+
+  /** A report waiting for the executor. */
+  protected static class _Report {
+    protected final long _lSent;
+    protected final long _lTotal;
+    protected final long _lBytesPerSecond;
+
+    protected _Report(long lSent, long lTotal, long lBytesPerSecond) {
+      _lSent = lSent;
+      _lTotal = lTotal;
+      _lBytesPerSecond = lBytesPerSecond;
+    }
+  }
+
+  /**
+   * Progress of one request. Updated by a single thread at a time, the one
+   * sending the body.
+   */
+  public class Tracker {
+    protected final int _iInstance;
+    /** Bytes sent and nanoTime at the last report, or at the start. */
+    protected long _lLastSent = 0;
+    protected long _lLastNs = 0;
+    /** Bytes sent at which to check the time next. */
+    protected long _lNextCheck = 0;
+    /** Upload rate given by the last report. */
+    protected long _lLastRate = 0;
+    /** Whether the last report was the final one of the attempt. */
+    protected boolean _bFinished = false;
+    /** Latest report not delivered by the executor yet, or null. */
+    protected final AtomicReference<_Report> _mPending =
+        new AtomicReference<_Report>();
+
+    protected Tracker(int iInstance) {
+      _iInstance = iInstance;
+    }
+
+    /**
+     * Starts measuring from lSent, as a new attempt begins.
+     *
+     * @param lSent Bytes of the transfer sent by earlier requests.
+     */
+    public void start(long lSent) {
+      _lLastSent = lSent;
+      _lLastNs = System.nanoTime();
+      _lNextCheck = lSent + _lMinBytes;
+      _bFinished = false;
+    }
+
+    /**
+     * Reports the progress if enough time and bytes went by since the last
+     * report, or if the body is fully sent.
+     *
+     * @param lSent Bytes of the transfer sent so far.
+     * @param lTotal Size of the transfer, or -1 if unknown.
+     */
+    public void update(long lSent, long lTotal) {
+      _update(lSent, lTotal, lSent == lTotal);
+    }
+
+    /**
+     * Reports the progress as final once the body is fully sent, unless
+     * already done. Needed when the size of the body is unknown, in which
+     * case the bytes sent are given as the total.
+     *
+     * @param lSent Bytes of the transfer sent in all.
+     */
+    public void finish(long lSent) {
+      _update(lSent, lSent, true);
+    }
+
+    protected void _update(long lSent, long lTotal, boolean bDone) {
+      if (lSent < _lNextCheck && !bDone) {
+        return;
+      }
+
+      _lNextCheck = lSent + _lMinBytes;
+      long lNow = System.nanoTime();
+      long lElapsed = lNow - _lLastNs;
+      if ((lElapsed < _lMinIntervalNs && !bDone) || (bDone && _bFinished)) {
+        return;
+      }
+
+      // The last report may come right after the previous one, too soon to
+      // measure a rate.
+      if (lElapsed >= _lMinIntervalNs || _lLastRate == 0) {
+        _lLastRate = lElapsed > 0
+            ? (long) ((lSent - _lLastSent) * 1e9 / lElapsed)
+            : 0;
+      }
+      long lRate = _lLastRate;
+      _lLastSent = lSent;
+      _lLastNs = lNow;
+      _bFinished = bDone;
+      _deliver(new _Report(lSent, lTotal < 0 ? -1 : lTotal, lRate));
+    }
+
+    protected void _deliver(_Report mReport) {
+      if (_mExecutor == null) {
+        _mListener.onProgress(_iInstance, mReport._lSent, mReport._lTotal,
+            mReport._lBytesPerSecond);
+        return;
+      }
+
+      if (_mPending.getAndSet(mReport) != null) {
+        // The report already queued will deliver this one instead.
+        return;
+      }
+
+      _mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          _Report mLatest = _mPending.getAndSet(null);
+          if (mLatest != null) {
+            _mListener.onProgress(_iInstance, mLatest._lSent,
+                mLatest._lTotal, mLatest._lBytesPerSecond);
+          }
+        }
+      });
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param mListener Receives the reports of the requests.
+   */
+  public ProgressReporter(Listener mListener) {
+    _mListener = mListener;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param lMs Minimum time in ms between two reports of a request.
+   *            100 by default.
+   * @return This reporter, to chain calls.
+   */
+  public ProgressReporter setMinInterval(long lMs) {
+    _lMinIntervalNs = TimeUnit.MILLISECONDS.toNanos(lMs);
+    return this;
+  }
+
+  /**
+   * @param lBytes Minimum number of bytes sent between two reports of a
+   *               request. 16KB by default.
+   * @return This reporter, to chain calls.
+   */
+  public ProgressReporter setMinBytes(long lBytes) {
+    _lMinBytes = lBytes;
+    return this;
+  }
+
+  /**
+   * @param mExecutor Where to deliver the reports, or null to deliver them
+   *                  on the thread sending the body, the default.
+   * @return This reporter, to chain calls.
+   */
+  public ProgressReporter setExecutor(Executor mExecutor) {
+    _mExecutor = mExecutor;
+    return this;
+  }
+
+  /**
+   * @param iInstance Unique Id of the request.
+   * @return A tracker of the progress of the request.
+   */
+  public Tracker newTracker(int iInstance) {
+    return new Tracker(iInstance);
+  }
+
+  public long getMinInterval() {
+    return TimeUnit.NANOSECONDS.toMillis(_lMinIntervalNs);
+  }
+  public long getMinBytes() { return _lMinBytes; }
+  public Executor getExecutor() { return _mExecutor; }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Settings of the compression of request bodies, set with
+ * {@link HttpConfiguration#setCompression}. On metered or slow links, text
+ * arguments and log files compress several times, so sending them compressed
+ * saves most of the upload time.
+ *
+ * Two modes are available:
+ * - {@link #PER_REQUEST}: the whole body is compressed and sent with a
+ *   Content-Encoding header. The server must decode request bodies.
+ * - {@link #PER_PART}: each part worth it is compressed on its own and sent
+ *   with a Content-Encoding header in its part headers. The rest of the body
+ *   is left as is, so a server can still parse the form and only decode the
+ *   parts marked as such.
+ *
+ * Files that are already compressed are sent as is: those whose extension is
+ * one of #getSkippedExtensions() or whose first bytes are the signature of a
+ * compressed format (JPEG, PNG, GIF, WebP, MP4 and other ISO media, gzip,
+ * zip, zstd, xz, bzip2, 7z), and those smaller than #getMinSize(). In
+ * PER_REQUEST mode, the body is only compressed if at least half of it is
+ * compressible.
+ *
+ * Compressed bodies are sent chunked, as their length isn't known in
+ * advance. Progress is still reported in bytes of the uncompressed body.
+ *
+ * gzip is built in. Other codecs, such as zstd, are plugged in by
+ * implementing {@link Codec}, e.g. with zstd-jni:
+ *
+ * new RequestCompression(new RequestCompression.Codec() {
+ *   public String getName() { return "zstd"; }
+ *   public OutputStream encode(OutputStream mOut) throws IOException {
+ *     return new ZstdOutputStream(mOut);
+ *   }
+ * }, RequestCompression.PER_REQUEST);
+ *
+ * @see MultipartEntity#setCompression
+ */
+public class RequestCompression {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** The whole body is compressed, with a Content-Encoding header. */
+  public static final int PER_REQUEST = 0;
+  /** Each part is compressed on its own, with a Content-Encoding part
+   * header. */
+  public static final int PER_PART = 1;
+
+  /** Default size in bytes under which a part isn't worth compressing. */
+  public static final long DEFAULT_MIN_SIZE = 1024;
+
+  /** Extensions of the files skipped by default, in lower case. */
+  public static final String[] DEFAULT_SKIPPED_EXTENSIONS = {
+      "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+      "mp4", "m4v", "m4a", "mov", "3gp", "mkv", "webm", "avi",
+      "mp3", "aac", "ogg", "opus", "flac",
+      "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "br", "lz4",
+      "jar", "apk", "docx", "xlsx", "pptx"
+  };
+
+  /** gzip with the default compression level. */
+  public static final Codec GZIP = new GzipCodec(-1);
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  /** Number of bytes read from a file to recognize its format. */
+  protected static final int SIGNATURE_LENGTH = 12;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final Codec _mCodec;
+  protected final int _iMode;
+  protected long _lMinSize = DEFAULT_MIN_SIZE;
+  protected final HashSet<String> _aSkippedExtensions =
+      new HashSet<String>(Arrays.asList(DEFAULT_SKIPPED_EXTENSIONS));
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** A streaming compression format. */
+  public interface Codec {
+    /** @return The name of the format, as sent in Content-Encoding. */
+    String getName();
+
+    /**
+     * @param mOut Where to write the compressed bytes.
+     * @return A stream compressing what is written to it into mOut. Closing
+     * it must finish the compressed stream, then close mOut.
+     * @throws IOException When the compressed stream can't be started.
+     */
+    OutputStream encode(OutputStream mOut) throws IOException;
+  }
+
+  /** gzip, with a given compression level. */
+  public static class GzipCodec implements Codec {
+    protected final int _iLevel;
+
+    /**
+     * @param iLevel Compression level, from 1 (fastest) to 9 (smallest), or
+     *               -1 for the default level.
+     */
+    public GzipCodec(int iLevel) {
+      _iLevel = iLevel;
+    }
+
+    @Override
+    public String getName() { return "gzip"; }
+
+    @Override
+    public OutputStream encode(OutputStream mOut) throws IOException {
+      return new GZIPOutputStream(mOut, 64 * 1024) {
+        {
+          def.setLevel(_iLevel);
+        }
+      };
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * @param mCodec Compression format to use, e.g. {@link #GZIP}.
+   * @param iMode Either {@link #PER_REQUEST} or {@link #PER_PART}.
+   */
+  public RequestCompression(Codec mCodec, int iMode) {
+    if (mCodec == null || (iMode != PER_REQUEST && iMode != PER_PART)) {
+      throw new IllegalArgumentException("Invalid compression settings");
+    }
+
+    _mCodec = mCodec;
+    _iMode = iMode;
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param mFile A file to send.
+   * @return Whether mFile is worth compressing: large enough, and neither
+   * its extension nor its first bytes tell a compressed format.
+   */
+  public boolean shouldCompress(File mFile) {
+    if (mFile.length() < _lMinSize) {
+      return false;
+    }
+
+    String sName = mFile.getName();
+    int iDot = sName.lastIndexOf('.');
+    if (iDot != -1 && _aSkippedExtensions.contains(
+        sName.substring(iDot + 1).toLowerCase())) {
+      return false;
+    }
+
+    byte[] aSignature = new byte[SIGNATURE_LENGTH];
+    int iRead = 0;
+    try {
+      FileInputStream mIn = new FileInputStream(mFile);
+      try {
+        int iCount;
+        while (iRead < aSignature.length &&
+            (iCount = mIn.read(aSignature, iRead,
+                aSignature.length - iRead)) != -1) {
+          iRead += iCount;
+        }
+      } finally {
+        mIn.close();
+      }
+    } catch (IOException e) {
+      // Reported when the file is sent.
+      return false;
+    }
+
+    return !isCompressedSignature(aSignature, iRead);
+  }
+
+  /**
+   * @param aBytes First bytes of some content.
+   * @param iLength Number of valid bytes in aBytes.
+   * @return Whether they are the signature of a compressed format.
+   */
+  public static boolean isCompressedSignature(byte[] aBytes, int iLength) {
+    return _startsWith(aBytes, iLength, 0, 0xff, 0xd8, 0xff) ||     // JPEG
+        _startsWith(aBytes, iLength, 0, 0x89, 'P', 'N', 'G') ||     // PNG
+        _startsWith(aBytes, iLength, 0, 'G', 'I', 'F', '8') ||      // GIF
+        (_startsWith(aBytes, iLength, 0, 'R', 'I', 'F', 'F') &&     // WebP
+            _startsWith(aBytes, iLength, 8, 'W', 'E', 'B', 'P')) ||
+        _startsWith(aBytes, iLength, 4, 'f', 't', 'y', 'p') ||      // MP4
+        _startsWith(aBytes, iLength, 0, 0x1f, 0x8b) ||              // gzip
+        _startsWith(aBytes, iLength, 0, 'P', 'K', 0x03, 0x04) ||    // zip
+        _startsWith(aBytes, iLength, 0, 0x28, 0xb5, 0x2f, 0xfd) ||  // zstd
+        _startsWith(aBytes, iLength, 0, 0xfd, '7', 'z', 'X', 'Z') ||// xz
+        _startsWith(aBytes, iLength, 0, 'B', 'Z', 'h') ||           // bzip2
+        _startsWith(aBytes, iLength, 0, '7', 'z', 0xbc, 0xaf);      // 7z
+  }
+
+  /**
+   * @param lBytes Length of a text value.
+   * @return Whether it is worth compressing.
+   */
+  public boolean shouldCompress(long lBytes) {
+    return lBytes >= _lMinSize;
+  }
+
+  /**
+   * @param lMinSize Size in bytes under which a part isn't compressed.
+   * @return This object, to chain calls.
+   */
+  public RequestCompression setMinSize(long lMinSize) {
+    _lMinSize = lMinSize;
+    return this;
+  }
+
+  /**
+   * @param sExtension Extension of files not to compress, without the dot.
+   * @return This object, to chain calls.
+   */
+  public RequestCompression addSkippedExtension(String sExtension) {
+    _aSkippedExtensions.add(sExtension.toLowerCase());
+    return this;
+  }
+
+  public Codec getCodec() { return _mCodec; }
+  public int getMode() { return _iMode; }
+  public long getMinSize() { return _lMinSize; }
+  public HashSet<String> getSkippedExtensions() {
+    return new HashSet<String>(_aSkippedExtensions);
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected static boolean _startsWith(byte[] aBytes, int iLength,
+                                       int iOffset, int... aSignature) {
+    if (iOffset + aSignature.length > iLength) {
+      return false;
+    }
+
+    for (int i = 0; i < aSignature.length; i++) {
+      if ((aBytes[iOffset + i] & 0xff) != aSignature[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Settings and state of a resumable upload. When set on an
+ * {@link HttpConfiguration}, the {@link HttpEngine} doesn't send the files in
+ * a single multipart request, but each file on its own, in ranges of
+ * {@link #getChunkSize()} bytes. The server acknowledges every range, so that
+ * after a failure the upload resumes from the last acknowledged offset
+ * instead of starting over.
+ *
+ * ** Protocol:
+ * Each range is a POST of the raw bytes (application/octet-stream) to the end
+ * point, with the headers:
+ * - X-Upload-Id: identifier of the file upload, the same for all its ranges,
+ * - X-Upload-Offset: position in the file of the first byte sent,
+ * - X-Upload-Length: total size of the file,
+ * - X-Upload-Name: name of the file.
+ * The server answers with a 2xx code and X-Upload-Offset set to the number of
+ * bytes of the file it has stored. It may answer 409 with that same header
+ * when the offset doesn't match what it has, the upload then continues from
+ * there.
+ *
+ * A POST with an empty body and no X-Upload-Offset asks the server for its
+ * current offset, answered the same way. The engine sends it after a range
+ * failed, before resuming.
+ *
+ * Once every file is complete, the engine posts the regular multipart form of
+ * the configuration, with the arguments and, instead of each file, a text
+ * field file_N holding its upload id. The answer to that last request is the
+ * one given to the listener.
+ *
+ * ** Usage:
+ * ResumableUpload mUpload = new ResumableUpload();
+ * mConf.setResumableUpload(mUpload);
+ *
+ * The state is kept in the object, so running again a configuration after a
+ * failure resumes the files where they stopped. To resume across process
+ * restarts, save {@link Session#getUploadId()} and
+ * {@link Session#getAcknowledged()} and give them back to {@link #restore}.
+ *
+ * @see HttpEngine#_httpPostResumable
+ */
+public class ResumableUpload {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final String HEADER_ID = "X-Upload-Id";
+  public static final String HEADER_OFFSET = "X-Upload-Offset";
+  public static final String HEADER_LENGTH = "X-Upload-Length";
+  public static final String HEADER_NAME = "X-Upload-Name";
+
+  /** Default size of the ranges, in bytes. */
+  public static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+  /** Default number of consecutive failed attempts before giving up. */
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final long _lChunkSize;
+  protected final int _iMaxAttempts;
+  /** Uploads in progress, by absolute path of their file. */
+  protected final HashMap<String, Session> _mSessions =
+      new HashMap<String, Session>();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Upload of a single file: its id and how much of it the server has. */
+  public static class Session {
+    protected final String _sUploadId;
+    protected final File _mFile;
+    protected final long _lLength;
+    protected final long _lLastModified;
+    protected long _lAcknowledged;
+    /** Whether the server heard of this upload, even with 0 bytes. */
+    protected boolean _bStarted;
+
+    protected Session(String sUploadId, File mFile, long lAcknowledged,
+                      boolean bStarted) {
+      _sUploadId = sUploadId;
+      _mFile = mFile;
+      _lLength = mFile.length();
+      _lLastModified = mFile.lastModified();
+      _lAcknowledged = lAcknowledged;
+      _bStarted = bStarted;
+    }
+
+    public String getUploadId() { return _sUploadId; }
+    public File getFile() { return _mFile; }
+    public long getLength() { return _lLength; }
+    public synchronized long getAcknowledged() { return _lAcknowledged; }
+
+    /** @return Whether the server has the whole file. */
+    public synchronized boolean isComplete() {
+      return _bStarted && _lAcknowledged >= _lLength;
+    }
+
+    /**
+     * Records the offset acknowledged by the server. It may go backwards if
+     * the server lost data.
+     *
+     * @param lOffset Number of bytes of the file stored by the server.
+     */
+    public synchronized void acknowledge(long lOffset) {
+      _lAcknowledged = Math.max(0, Math.min(lOffset, _lLength));
+      _bStarted = true;
+    }
+
+    /** @return Whether the file changed since the upload started. */
+    protected boolean _isStale() {
+      return _mFile.length() != _lLength ||
+          _mFile.lastModified() != _lLastModified;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a resumable upload with ranges of {@link #DEFAULT_CHUNK_SIZE}
+   * bytes, giving up after {@link #DEFAULT_MAX_ATTEMPTS} failures in a row.
+   */
+  public ResumableUpload() {
+    this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_ATTEMPTS);
+  }
+
+  /**
+   * @param lChunkSize Size of the ranges, in bytes. Smaller ranges lose less
+   *                   on a failure but cost more requests.
+   * @param iMaxAttempts Number of consecutive failed requests after which the
+   *                     upload gives up. It can still be resumed later.
+   */
+  public ResumableUpload(long lChunkSize, int iMaxAttempts) {
+    if (lChunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive");
+    }
+
+    _lChunkSize = lChunkSize;
+    _iMaxAttempts = Math.max(1, iMaxAttempts);
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  public long getChunkSize() { return _lChunkSize; }
+  public int getMaxAttempts() { return _iMaxAttempts; }
+
+  /**
+   * @param mFile A file to upload.
+   * @return The upload of mFile, started anew if there is none yet or if the
+   * file changed since.
+   */
+  public synchronized Session getSession(File mFile) {
+    String sKey = mFile.getAbsolutePath();
+    Session mSession = _mSessions.get(sKey);
+
+    if (mSession == null || mSession._isStale()) {
+      mSession = new Session(UUID.randomUUID().toString(), mFile, 0, false);
+      _mSessions.put(sKey, mSession);
+    }
+
+    return mSession;
+  }
+
+  /**
+   * Resumes an upload started by an earlier process.
+   *
+   * @param mFile The file being uploaded. It must not have changed since.
+   * @param sUploadId Id of the upload, from {@link Session#getUploadId()}.
+   * @param lAcknowledged Offset acknowledged by the server so far. The engine
+   *                      checks it with the server before sending anything.
+   * @return The restored upload.
+   */
+  public synchronized Session restore(File mFile, String sUploadId,
+                                      long lAcknowledged) {
+    Session mSession = new Session(sUploadId, mFile, lAcknowledged, true);
+    _mSessions.put(mFile.getAbsolutePath(), mSession);
+
+    return mSession;
+  }
+
+  /**
+   * Forgets all the uploads, so that the files are sent again from scratch.
+   * Called by the engine once the final request succeeded.
+   */
+  public synchronized void clear() {
+    _mSessions.clear();
+  }
+}
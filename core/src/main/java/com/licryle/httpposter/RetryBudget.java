@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+/**
+ * Limits the share of retries among all the requests of the process, so that
+ * a backend in trouble isn't flooded by the retries of every worker at once.
+ *
+ * Every request deposits a fraction of a token, and every retry withdraws a
+ * whole token: with the default ratio of 0.2, retries are capped at 20% of
+ * the requests. A small number of retries per second are allowed anyway, so
+ * that a process sending few requests can still retry. This floor is kept
+ * apart from the balance earned by the requests, and holds at most one
+ * second of retries, so that a long quiet period doesn't allow a burst of
+ * retries. The balance is capped as well.
+ *
+ * A budget is typically shared by all the {@link RetryPolicy} instances of
+ * the process, see {@link #getDefault()}.
+ *
+ * @see RetryPolicy#setBudget
+ */
+public class RetryBudget {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final double DEFAULT_RATIO = 0.2;
+  public static final int DEFAULT_MIN_PER_SECOND = 10;
+  public static final int DEFAULT_CAPACITY = 100;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected static final RetryBudget DEFAULT = new RetryBudget();
+
+  protected final double _dRatio;
+  protected final int _iMinPerSecond;
+  protected final int _iCapacity;
+
+  /** Tokens earned by the requests. Guarded by this. */
+  protected double _dBalance;
+  /** Tokens of the per-second floor, at most _iMinPerSecond. Guarded by
+   * this. */
+  protected double _dFloor;
+  /** Time in ns of the last refill of the floor. Guarded by this. */
+  protected long _lLastRefill;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /** Creates a budget with the default ratio, floor and capacity. */
+  public RetryBudget() {
+    this(DEFAULT_RATIO, DEFAULT_MIN_PER_SECOND, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param dRatio Maximum number of retries per request, typically 0.1 to
+   *               0.2.
+   * @param iMinPerSecond Number of retries per second allowed regardless of
+   *                      the number of requests.
+   * @param iCapacity Maximum number of retries earned by the requests
+   *                  available at once, on top of the floor.
+   */
+  public RetryBudget(double dRatio, int iMinPerSecond, int iCapacity) {
+    _dRatio = dRatio;
+    _iMinPerSecond = iMinPerSecond;
+    _iCapacity = iCapacity;
+    _dBalance = 0;
+    _dFloor = iMinPerSecond;
+    _lLastRefill = System.nanoTime();
+  }
+
+  /** @return The budget shared by default by all the retry policies. */
+  public static RetryBudget getDefault() { return DEFAULT; }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /** Records a new request, which earns a fraction of a retry. */
+  public synchronized void deposit() {
+    _dBalance = Math.min(_iCapacity, _dBalance + _dRatio);
+  }
+
+  /**
+   * Takes a token for a retry, if any is left. The floor is spent first, as
+   * what it doesn't spend is lost.
+   *
+   * @return Whether the retry may happen.
+   */
+  public synchronized boolean tryWithdraw() {
+    _refill();
+
+    if (_dFloor >= 1) {
+      _dFloor -= 1;
+      return true;
+    }
+    if (_dBalance >= 1) {
+      _dBalance -= 1;
+      return true;
+    }
+
+    return false;
+  }
+
+  /** @return The number of retries currently available. */
+  public synchronized double getBalance() {
+    _refill();
+    return _dFloor + _dBalance;
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Refills the floor for the time elapsed since the last call. */
+  protected void _refill() {
+    long lNow = System.nanoTime();
+    double dSeconds = (lNow - _lLastRefill) / 1e9;
+    _lLastRefill = lNow;
+
+    _dFloor = Math.min(_iMinPerSecond, _dFloor + dSeconds * _iMinPerSecond);
+  }
+}
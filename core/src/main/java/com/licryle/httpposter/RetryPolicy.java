@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * When and how the {@link HttpEngine} retries a failed request. The entity is
+ * built once and sent again on each attempt; resumable uploads resume from
+ * the last acknowledged offset.
+ *
+ * The delay before attempt n + 1 is drawn from an exponential backoff:
+ * initial * multiplier^(n - 1), capped at a maximum, then reduced by a random
+ * share of up to the jitter fraction so that clients failing together don't
+ * retry together. With the default jitter of 1, the delay is uniform between
+ * 0 and the backoff ("full jitter").
+ *
+ * A request is retried when:
+ * - the connection failed ({@link HttpEngine#FAILURE_CONNECTION}),
+ * - the transfer failed ({@link HttpEngine#FAILURE_TRANSFER}), unless
+ *   disabled: the server may have processed the request already,
+ * - the server answered with a retryable status code, by default 408, 429,
+ *   502, 503 and 504. A Retry-After header in the answer then sets the delay.
+ * and as long as the attempts, the deadline and the {@link RetryBudget} allow
+ * it.
+ *
+ * ** Usage:
+ * mConf.setRetryPolicy(new RetryPolicy()
+ *     .setMaxAttempts(5)
+ *     .setBackoff(1000, 60000, 2)
+ *     .setDeadline(5 * 60 * 1000)
+ *     .retryOnStatusRange(500, 599));
+ *
+ * A policy holds no per-request state and can be shared by configurations.
+ *
+ * @see HttpConfiguration#setRetryPolicy
+ */
+public class RetryPolicy {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  /** Default backoff before the first retry, in milliseconds. */
+  public static final long DEFAULT_INITIAL_BACKOFF = 500;
+  /** Default cap of the backoff, in milliseconds. */
+  public static final long DEFAULT_MAX_BACKOFF = 30000;
+  public static final double DEFAULT_MULTIPLIER = 2;
+  public static final double DEFAULT_JITTER = 1;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected int _iMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+  protected long _lInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+  protected long _lMaxBackoff = DEFAULT_MAX_BACKOFF;
+  protected double _dMultiplier = DEFAULT_MULTIPLIER;
+  protected double _dJitter = DEFAULT_JITTER;
+  /** Time in milliseconds after which no attempt starts, 0 for none. */
+  protected long _lDeadline = 0;
+  protected boolean _bRetryTransfer = true;
+  protected boolean _bHonourRetryAfter = true;
+  /** Retryable response codes, indexed by code. */
+  protected final boolean[] _aRetryableStatus = new boolean[600];
+  protected RetryBudget _mBudget = RetryBudget.getDefault();
+  protected final Random _mRandom = new Random();
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a policy with the default settings, retrying 408, 429, 502, 503
+   * and 504 answers, and drawing on the default {@link RetryBudget}.
+   */
+  public RetryPolicy() {
+    retryOnStatus(408);
+    retryOnStatus(429);
+    retryOnStatusRange(502, 504);
+  }
+
+  /*****************************************************************************
+   ********************************* Settings **********************************
+   ****************************************************************************/
+
+  /**
+   * @param iMaxAttempts Total number of attempts, the first one included.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setMaxAttempts(int iMaxAttempts) {
+    _iMaxAttempts = Math.max(1, iMaxAttempts);
+    return this;
+  }
+
+  /**
+   * @param lInitial Backoff before the first retry, in milliseconds.
+   * @param lMax Maximum backoff, in milliseconds.
+   * @param dMultiplier Growth of the backoff after each attempt.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setBackoff(long lInitial, long lMax, double dMultiplier) {
+    _lInitialBackoff = lInitial;
+    _lMaxBackoff = lMax;
+    _dMultiplier = dMultiplier;
+    return this;
+  }
+
+  /**
+   * @param dJitter Fraction, from 0 to 1, of the backoff that is randomized.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setJitter(double dJitter) {
+    _dJitter = Math.max(0, Math.min(1, dJitter));
+    return this;
+  }
+
+  /**
+   * @param lDeadline Time in milliseconds, from the start of the request,
+   *                  after which no new attempt is made. 0 for none.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setDeadline(long lDeadline) {
+    _lDeadline = lDeadline;
+    return this;
+  }
+
+  /**
+   * @param bRetry Whether to retry requests that failed while being sent.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setRetryOnTransferFailure(boolean bRetry) {
+    _bRetryTransfer = bRetry;
+    return this;
+  }
+
+  /**
+   * @param bHonour Whether the Retry-After header of an answer sets the delay
+   *                before the next attempt.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setHonourRetryAfter(boolean bHonour) {
+    _bHonourRetryAfter = bHonour;
+    return this;
+  }
+
+  /**
+   * @param iCode Response code to retry on.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy retryOnStatus(int iCode) {
+    return retryOnStatusRange(iCode, iCode);
+  }
+
+  /**
+   * @param iFrom First response code to retry on, e.g. 500 for all the 5xx.
+   * @param iTo Last response code to retry on, included.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy retryOnStatusRange(int iFrom, int iTo) {
+    for (int i = Math.max(0, iFrom);
+         i <= Math.min(iTo, _aRetryableStatus.length - 1); i++) {
+      _aRetryableStatus[i] = true;
+    }
+    return this;
+  }
+
+  /** Stops retrying on any response code. */
+  public RetryPolicy clearRetryableStatuses() {
+    for (int i = 0; i < _aRetryableStatus.length; i++) {
+      _aRetryableStatus[i] = false;
+    }
+    return this;
+  }
+
+  /**
+   * @param mBudget Budget the retries draw on, or null for no limit.
+   * @return This policy, to chain calls.
+   */
+  public RetryPolicy setBudget(RetryBudget mBudget) {
+    _mBudget = mBudget;
+    return this;
+  }
+
+  public int getMaxAttempts() { return _iMaxAttempts; }
+  public long getDeadline() { return _lDeadline; }
+  public RetryBudget getBudget() { return _mBudget; }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Called by the engine after each attempt.
+   *
+   * @param iAttempt Number of the attempt that just ended, from 1.
+   * @param lResult Its result, HttpEngine#SUCCESS or a failure code.
+   * @param iResponseCode The response code, 0 if none.
+   * @param sRetryAfter Value of the Retry-After header, or null.
+   * @param lElapsed Time in milliseconds since the first attempt started.
+   * @return The delay in milliseconds before the next attempt, or -1 if the
+   * request must not be retried.
+   */
+  public long getRetryDelay(int iAttempt, long lResult, int iResponseCode,
+                            String sRetryAfter, long lElapsed) {
+    if (iAttempt == 1 && _mBudget != null) {
+      _mBudget.deposit();
+    }
+
+    if (iAttempt >= _iMaxAttempts || !isRetryable(lResult, iResponseCode)) {
+      return -1;
+    }
+
+    long lDelay = _backoff(iAttempt);
+    if (_bHonourRetryAfter && lResult == HttpEngine.FAILURE_RESPONSE) {
+      long lRetryAfter = parseRetryAfter(sRetryAfter);
+      if (lRetryAfter >= 0) {
+        lDelay = lRetryAfter;
+      }
+    }
+
+    if (_lDeadline > 0 && lElapsed + lDelay >= _lDeadline) {
+      return -1;
+    }
+
+    if (_mBudget != null && !_mBudget.tryWithdraw()) {
+      return -1;
+    }
+
+    return lDelay;
+  }
+
+  /**
+   * @param lResult Result of an attempt.
+   * @param iResponseCode Its response code, 0 if none.
+   * @return Whether the failure calls for a retry, limits aside.
+   */
+  public boolean isRetryable(long lResult, int iResponseCode) {
+    if (lResult == HttpEngine.FAILURE_CONNECTION) return true;
+    if (lResult == HttpEngine.FAILURE_TRANSFER) return _bRetryTransfer;
+
+    return lResult == HttpEngine.FAILURE_RESPONSE &&
+        iResponseCode >= 0 && iResponseCode < _aRetryableStatus.length &&
+        _aRetryableStatus[iResponseCode];
+  }
+
+  /**
+   * @param sRetryAfter Value of a Retry-After header: a number of seconds or
+   *                    an HTTP date.
+   * @return The delay it asks for in milliseconds, or -1 if none or invalid.
+   */
+  public static long parseRetryAfter(String sRetryAfter) {
+    if (sRetryAfter == null) return -1;
+    sRetryAfter = sRetryAfter.trim();
+
+    try {
+      return Math.max(0, Long.parseLong(sRetryAfter) * 1000);
+    } catch (NumberFormatException e) {
+      // Not a number of seconds, try a date.
+    }
+
+    SimpleDateFormat mFormat =
+        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    mFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return Math.max(0,
+          mFormat.parse(sRetryAfter).getTime() - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** @return The jittered backoff after attempt iAttempt. */
+  protected long _backoff(int iAttempt) {
+    double dBackoff = Math.min(_lMaxBackoff,
+        _lInitialBackoff * Math.pow(_dMultiplier, iAttempt - 1));
+
+    return (long) (dBackoff * (1 - _dJitter * _mRandom.nextDouble()));
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link HttpResponseHandler} copying the body to an OutputStream as it
+ * arrives, through a buffer borrowed from {@link BufferPool#HEAP}, so that the
+ * body never has to fit in memory. The content of the result is the number of
+ * bytes copied.
+ *
+ * The stream is flushed but not closed, as it belongs to the caller. It is
+ * shared by all the requests using the handler.
+ *
+ * @see FileResponseHandler
+ */
+public class StreamResponseHandler implements HttpResponseHandler<Long> {
+  protected final OutputStream _mSink;
+
+  /**
+   * @param mSink Where to copy the bodies.
+   */
+  public StreamResponseHandler(OutputStream mSink) {
+    _mSink = mSink;
+  }
+
+  @Override
+  public Long handle(HttpResponseBody mBody) throws IOException {
+    return copy(mBody.getStream(), _mSink);
+  }
+
+  /**
+   * Copies mIn to mOut until its end, then flushes mOut.
+   *
+   * @return The number of bytes copied.
+   * @throws IOException When reading or writing fails.
+   */
+  public static long copy(InputStream mIn, OutputStream mOut)
+      throws IOException {
+    ByteBuffer mBuffer = BufferPool.HEAP.acquire();
+
+    try {
+      byte[] aBuffer = mBuffer.array();
+      int iOffset = mBuffer.arrayOffset();
+      int iLength = mBuffer.capacity();
+      long lCopied = 0;
+
+      int iRead;
+      while ((iRead = mIn.read(aBuffer, iOffset, iLength)) != -1) {
+        mOut.write(aBuffer, iOffset, iRead);
+        lCopied += iRead;
+      }
+
+      mOut.flush();
+      return lCopied;
+    } finally {
+      BufferPool.HEAP.release(mBuffer);
+    }
+  }
+}
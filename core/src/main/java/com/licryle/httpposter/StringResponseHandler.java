@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+
+/**
+ * {@link HttpResponseHandler} decoding the body into a String, with the
+ * charset of its Content-Type, UTF-8 if none. The body is decoded once, as
+ * sent: line endings are kept as they are. This is the handler used when none
+ * is set on the {@link HttpConfiguration}.
+ *
+ * Like {@link BytesResponseHandler}, it refuses bodies larger than a given
+ * size.
+ */
+public class StringResponseHandler implements HttpResponseHandler<String> {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Handler of the requests that don't set one, shared as it is stateless. */
+  public static final StringResponseHandler DEFAULT =
+      new StringResponseHandler();
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Collects the raw bytes of the body. */
+  protected final BytesResponseHandler _mCollector;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /** Decodes bodies of up to {@link BytesResponseHandler#DEFAULT_MAX_BYTES}. */
+  public StringResponseHandler() {
+    this(BytesResponseHandler.DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param iMaxBytes Maximum size of the body, in bytes, before decoding.
+   */
+  public StringResponseHandler(int iMaxBytes) {
+    _mCollector = new BytesResponseHandler(iMaxBytes);
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  @Override
+  public String handle(HttpResponseBody mBody) throws IOException {
+    return _mCollector._collect(mBody).toString(mBody.getCharset());
+  }
+
+  public int getMaxBytes() { return _mCollector.getMaxBytes(); }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of records, written with group commit: any number of
+ * threads {@link #append} records, which a single writer thread writes and
+ * fsyncs in batches. A thread needing durability waits for its record with
+ * {@link #await}, sharing one fsync with all the records appended meanwhile.
+ *
+ * Each record is framed as [length][CRC32][payload]. {@link #replay} stops
+ * at the first torn or corrupted record, as left by a crash in the middle of
+ * a write, and truncates the file there.
+ *
+ * The file is compacted by the writer thread, between two batches, whenever
+ * the {@link Compactor} asks for it: the live records it returns are written
+ * to a new file which then replaces the journal.
+ *
+ * @see UploadQueue
+ */
+public class UploadJournal {
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final File _mFile;
+  protected FileChannel _mChannel;
+  protected Compactor _mCompactor;
+  protected Thread _mWriter;
+
+  /** Records appended but not written yet. Guarded by this. */
+  protected ArrayList<byte[]> _aPending = new ArrayList<byte[]>();
+  /** Sequence number of the last appended record. Guarded by this. */
+  protected long _lAppendedSeq = 0;
+  /** Sequence number of the last record synced to disk. Guarded by this. */
+  protected long _lDurableSeq = 0;
+  /** Error that stopped the writer, reported to the waiting threads. */
+  protected IOException _mError;
+  protected boolean _bClosed = false;
+
+  /** Number of records in the file, maintained by the writer. */
+  protected long _lRecordCount = 0;
+
+  /** Whether java.nio.file is available, which it isn't on older Android. */
+  protected static final boolean _bHasNioFiles = _hasNioFiles();
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Decides when to compact the journal, and what to keep. */
+  public interface Compactor {
+    /**
+     * @param lRecordCount Number of records currently in the journal.
+     * @return Whether the journal should be compacted now.
+     */
+    boolean shouldCompact(long lRecordCount);
+
+    /**
+     * @return The records to keep. Records appended concurrently are written
+     * after them, so that a record may appear both in the returned list and
+     * after it.
+     */
+    List<byte[]> getLiveRecords();
+  }
+
+  /**
+   * Holds the uses of java.nio.file, so that this class loads where it's
+   * missing.
+   */
+  protected static class _NioFiles {
+    /** Atomically renames mFrom over mTo, and syncs their directory. */
+    static void replace(File mFrom, File mTo) throws IOException {
+      Files.move(mFrom.toPath(), mTo.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+
+      File mDir = mTo.getAbsoluteFile().getParentFile();
+      try {
+        FileChannel mDirChannel = FileChannel.open(mDir.toPath(),
+            StandardOpenOption.READ);
+        try {
+          mDirChannel.force(true);
+        } finally {
+          mDirChannel.close();
+        }
+      } catch (IOException e) {
+        // Directories can't be opened on some platforms, Windows among
+        // them: the rename is then left to the file system to persist.
+      }
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Opens, and creates if needed, the journal. Call {@link #replay} to read
+   * its records, then {@link #start} to accept new ones. A compacted file
+   * left by a crash in the middle of its replacement takes the place of the
+   * journal.
+   *
+   * @param mFile The journal file.
+   * @throws IOException When the file can't be opened.
+   */
+  public UploadJournal(File mFile) throws IOException {
+    _mFile = mFile;
+
+    File mTemp = _getTempFile();
+    if (!mFile.exists() && mTemp.exists() && !mTemp.renameTo(mFile)) {
+      throw new IOException("Can't restore " + mFile.getPath());
+    }
+    _mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Reads all the valid records of the journal, and truncates any torn record
+   * at its end. Must be called before {@link #start}.
+   *
+   * @return The payloads of the records, in order.
+   * @throws IOException When the file can't be read.
+   */
+  public ArrayList<byte[]> replay() throws IOException {
+    ArrayList<byte[]> aRecords = new ArrayList<byte[]>();
+    long lValidLength = 0;
+
+    DataInputStream mIn = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(_mFile), 65536));
+    try {
+      while (true) {
+        byte[] aPayload;
+        try {
+          int iLength = mIn.readInt();
+          int iCrc = mIn.readInt();
+          if (iLength < 0 || iLength > _mFile.length() - lValidLength) {
+            break;
+          }
+
+          aPayload = new byte[iLength];
+          mIn.readFully(aPayload);
+          if (_crc(aPayload) != iCrc) {
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+
+        aRecords.add(aPayload);
+        lValidLength += 8 + aPayload.length;
+      }
+    } finally {
+      mIn.close();
+    }
+
+    if (_mChannel.size() > lValidLength) {
+      _mChannel.truncate(lValidLength);
+      _mChannel.force(true);
+    }
+    _mChannel.position(lValidLength);
+    _lRecordCount = aRecords.size();
+
+    return aRecords;
+  }
+
+  /**
+   * Starts the writer thread.
+   *
+   * @param mCompactor Decides when to compact, or null to never compact.
+   */
+  public synchronized void start(Compactor mCompactor) {
+    _mCompactor = mCompactor;
+    _mWriter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        _writeLoop();
+      }
+    }, "UploadJournal");
+    _mWriter.setDaemon(true);
+    _mWriter.start();
+  }
+
+  /**
+   * Queues a record to be written. Returns right away.
+   *
+   * @param aPayload The record.
+   * @return Sequence number of the record, to give to {@link #await}.
+   * @throws IOException If the journal is closed or failed.
+   */
+  public synchronized long append(byte[] aPayload) throws IOException {
+    if (_mError != null) throw _mError;
+    if (_bClosed) throw new IOException("Journal closed");
+
+    _aPending.add(aPayload);
+    notifyAll();
+
+    return ++_lAppendedSeq;
+  }
+
+  /**
+   * Blocks until the record of sequence number lSeq is synced to disk.
+   *
+   * @param lSeq Sequence number returned by {@link #append}.
+   * @throws IOException If the journal failed before syncing the record.
+   */
+  public synchronized void await(long lSeq) throws IOException {
+    boolean bInterrupted = false;
+
+    try {
+      while (_lDurableSeq < lSeq) {
+        if (_mError != null) throw _mError;
+        if (_mWriter == null || !_mWriter.isAlive()) {
+          throw new IOException("Journal closed");
+        }
+
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          bInterrupted = true;
+        }
+      }
+    } finally {
+      if (bInterrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Writes the pending records, stops the writer and closes the file.
+   *
+   * @throws IOException If the last records couldn't be written.
+   */
+  public void close() throws IOException {
+    Thread mWriter;
+    synchronized (this) {
+      _bClosed = true;
+      notifyAll();
+      mWriter = _mWriter;
+    }
+
+    if (mWriter != null) {
+      try {
+        mWriter.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    _mChannel.close();
+
+    synchronized (this) {
+      if (_mError != null) throw _mError;
+    }
+  }
+
+  public File getFile() { return _mFile; }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Body of the writer thread: writes and syncs batches until closed. */
+  protected void _writeLoop() {
+    try {
+      while (true) {
+        ArrayList<byte[]> aBatch;
+        long lBatchSeq;
+
+        synchronized (this) {
+          while (_aPending.isEmpty() && !_bClosed) {
+            wait();
+          }
+          if (_aPending.isEmpty()) {
+            return;
+          }
+
+          aBatch = _aPending;
+          _aPending = new ArrayList<byte[]>();
+          lBatchSeq = _lAppendedSeq;
+        }
+
+        _write(_mChannel, aBatch);
+        _mChannel.force(false);
+        _lRecordCount += aBatch.size();
+
+        synchronized (this) {
+          _lDurableSeq = lBatchSeq;
+          notifyAll();
+        }
+
+        if (_mCompactor != null &&
+            _mCompactor.shouldCompact(_lRecordCount)) {
+          _compact(_mCompactor.getLiveRecords());
+        }
+      }
+    } catch (IOException e) {
+      synchronized (this) {
+        _mError = e;
+        notifyAll();
+      }
+    } catch (InterruptedException e) {
+      synchronized (this) {
+        _mError = new IOException("Journal writer interrupted");
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Replaces the journal by a file holding only aRecords: written to a
+   * temporary file, synced, then renamed over the journal.
+   */
+  protected void _compact(List<byte[]> aRecords) throws IOException {
+    File mTemp = _getTempFile();
+    RandomAccessFile mTempFile = new RandomAccessFile(mTemp, "rw");
+
+    try {
+      FileChannel mTempChannel = mTempFile.getChannel();
+      mTempChannel.truncate(0);
+      _write(mTempChannel, aRecords);
+      mTempChannel.force(true);
+    } finally {
+      mTempFile.close();
+    }
+
+    _mChannel.close();
+    _replace(mTemp);
+
+    _mChannel = new RandomAccessFile(_mFile, "rw").getChannel();
+    _mChannel.position(_mChannel.size());
+    _lRecordCount = aRecords.size();
+  }
+
+  /**
+   * Renames mTemp over the journal, then syncs the directory so that the
+   * rename survives a crash.
+   *
+   * java.nio.file is used when available, as File.renameTo() can't replace a
+   * file on Windows and the directory can't be synced otherwise. Without it,
+   * the journal is deleted first if needed: should the process die before
+   * the rename, the constructor picks up mTemp.
+   */
+  protected void _replace(File mTemp) throws IOException {
+    if (_bHasNioFiles) {
+      _NioFiles.replace(mTemp, _mFile);
+      return;
+    }
+
+    if (!mTemp.renameTo(_mFile) &&
+        !(_mFile.delete() && mTemp.renameTo(_mFile))) {
+      throw new IOException("Can't replace " + _mFile.getPath());
+    }
+  }
+
+  /** @return The file the journal is compacted into. */
+  protected File _getTempFile() {
+    return new File(_mFile.getPath() + ".tmp");
+  }
+
+  protected static boolean _hasNioFiles() {
+    try {
+      Class.forName("java.nio.file.Files");
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  /** Writes aRecords, framed, at the position of mChannel. */
+  protected static void _write(FileChannel mChannel, List<byte[]> aRecords)
+      throws IOException {
+    int iSize = 0;
+    for (byte[] aRecord : aRecords) {
+      iSize += 8 + aRecord.length;
+    }
+
+    ByteBuffer mBuffer = ByteBuffer.allocate(iSize);
+    for (byte[] aRecord : aRecords) {
+      mBuffer.putInt(aRecord.length);
+      mBuffer.putInt(_crc(aRecord));
+      mBuffer.put(aRecord);
+    }
+
+    mBuffer.flip();
+    while (mBuffer.hasRemaining()) {
+      mChannel.write(mBuffer);
+    }
+  }
+
+  protected static int _crc(byte[] aPayload) {
+    CRC32 mCrc = new CRC32();
+    mCrc.update(aPayload, 0, aPayload.length);
+    return (int) mCrc.getValue();
+  }
+
+}
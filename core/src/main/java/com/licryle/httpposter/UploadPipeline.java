@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs many requests in two stages, so that the network doesn't sit idle
+ * while the next request is built. A preparation thread builds the entities
+ * of the requests in order, with {@link HttpEngine#prepare()}: files are
+ * stat-ed, hashed or compressed, and arguments encoded. Transfer threads
+ * send the prepared requests.
+ *
+ * The stages are connected by a queue of {@link #getPrepareAhead()}
+ * requests: once that many are prepared and not sent yet, the preparation
+ * waits, which bounds the memory held by entities built ahead.
+ *
+ * ** Usage:
+ * UploadPipeline mPipeline = new UploadPipeline(8, 2);
+ *
+ * for (HttpConfiguration mConf : aConfigurations) {
+ *   int iInstanceId = mPipeline.submit(mConf);
+ * }
+ *
+ * The listener of each configuration is called from the transfer threads,
+ * with the instance id returned by submit().
+ *
+ * @see HttpEngine#prepare()
+ */
+public class UploadPipeline {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default number of requests prepared ahead of the transfers. */
+  public static final int DEFAULT_PREPARE_AHEAD = 8;
+  /** Default number of requests sent at once. */
+  public static final int DEFAULT_TRANSFERS = 2;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Marks the end of the requests, in both queues. */
+  protected static final _Job STOP = new _Job(null);
+
+  /** Requests submitted, waiting to be prepared. */
+  protected final LinkedBlockingQueue<_Job> _mSubmitted =
+      new LinkedBlockingQueue<_Job>();
+  /** Requests prepared, waiting for a transfer thread. */
+  protected final ArrayBlockingQueue<_Job> _mPrepared;
+
+  protected final int _iPrepareAhead;
+  protected final Thread _mPreparer;
+  protected final Thread[] _aTransfers;
+  /** Guarded by this. */
+  protected boolean _bShutdown = false;
+  protected volatile HttpLogger _mLogger = HttpLogger.NONE;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** A request going through the stages. */
+  protected static class _Job {
+    protected final HttpEngine _mEngine;
+
+    protected _Job(HttpEngine mEngine) {
+      _mEngine = mEngine;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /** Creates a pipeline with the default number of threads and depth. */
+  public UploadPipeline() {
+    this(DEFAULT_PREPARE_AHEAD, DEFAULT_TRANSFERS);
+  }
+
+  /**
+   * @param iPrepareAhead Number of requests prepared ahead of the transfers.
+   * @param iTransfers Number of requests sent at once, each on its own
+   *                   thread.
+   */
+  public UploadPipeline(int iPrepareAhead, int iTransfers) {
+    if (iPrepareAhead <= 0 || iTransfers <= 0) {
+      throw new IllegalArgumentException("Sizes must be strictly positive");
+    }
+
+    _iPrepareAhead = iPrepareAhead;
+    _mPrepared = new ArrayBlockingQueue<_Job>(iPrepareAhead);
+
+    _mPreparer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        _prepareLoop();
+      }
+    }, "UploadPipeline-prepare");
+    _mPreparer.setDaemon(true);
+    _mPreparer.start();
+
+    _aTransfers = new Thread[iTransfers];
+    for (int i = 0; i < iTransfers; i++) {
+      _aTransfers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          _transferLoop();
+        }
+      }, "UploadPipeline-transfer #" + (i + 1));
+      _aTransfers[i].setDaemon(true);
+      _aTransfers[i].start();
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Queues the request of mConf. It is prepared and sent after the requests
+   * submitted before it, in order of submission.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @return The instance id of the request, as given to its listener.
+   * @throws IllegalStateException If the pipeline was shut down.
+   */
+  public synchronized int submit(HttpConfiguration mConf) {
+    if (_bShutdown) {
+      throw new IllegalStateException("Pipeline shut down");
+    }
+
+    HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+    mEngine.setLogger(_mLogger);
+    _mSubmitted.add(new _Job(mEngine));
+
+    return mEngine.getInstanceId();
+  }
+
+  /**
+   * Stops accepting requests. Those submitted already are still prepared and
+   * sent, after which the threads end.
+   */
+  public synchronized void shutdown() {
+    if (_bShutdown) return;
+    _bShutdown = true;
+
+    // Under the lock of submit(), so that no request comes after STOP.
+    _mSubmitted.add(STOP);
+  }
+
+  /**
+   * Waits until the requests submitted before {@link #shutdown()} are over.
+   *
+   * @param lTimeoutMs Maximum time to wait, in milliseconds.
+   * @return Whether all the threads ended in time.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public boolean awaitTermination(long lTimeoutMs)
+      throws InterruptedException {
+    long lDeadline = System.currentTimeMillis() + lTimeoutMs;
+
+    _mPreparer.join(Math.max(1, lDeadline - System.currentTimeMillis()));
+    for (Thread mThread : _aTransfers) {
+      mThread.join(Math.max(1, lDeadline - System.currentTimeMillis()));
+    }
+
+    if (_mPreparer.isAlive()) return false;
+    for (Thread mThread : _aTransfers) {
+      if (mThread.isAlive()) return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * @param mLogger Where to send the debug traces of the requests submitted
+   *                from now on.
+   * @return This pipeline, to chain calls.
+   */
+  public UploadPipeline setLogger(HttpLogger mLogger) {
+    _mLogger = mLogger != null ? mLogger : HttpLogger.NONE;
+    return this;
+  }
+
+  public int getPrepareAhead() { return _iPrepareAhead; }
+  public int getTransfers() { return _aTransfers.length; }
+
+  /** @return Number of requests waiting to be prepared. */
+  public int getSubmittedCount() { return _mSubmitted.size(); }
+
+  /** @return Number of requests prepared, waiting to be sent. */
+  public int getPreparedCount() { return _mPrepared.size(); }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Body of the preparation thread. */
+  protected void _prepareLoop() {
+    while (true) {
+      _Job mJob = _take(_mSubmitted);
+      if (mJob == STOP) {
+        for (int i = 0; i < _aTransfers.length; i++) {
+          _put(_mPrepared, STOP);
+        }
+        return;
+      }
+
+      try {
+        mJob._mEngine.prepare();
+      } catch (IOException e) {
+        // Built again by run(), which reports the failure.
+      }
+
+      // Waits while the transfers are _iPrepareAhead requests behind.
+      _put(_mPrepared, mJob);
+    }
+  }
+
+  /** Body of the transfer threads. */
+  protected void _transferLoop() {
+    while (true) {
+      _Job mJob = _take(_mPrepared);
+      if (mJob == STOP) {
+        return;
+      }
+
+      try {
+        mJob._mEngine.run();
+      } catch (RuntimeException e) {
+        _mLogger.d("UploadPipeline", "Request failed: " + e);
+      }
+    }
+  }
+
+  /** Takes the head of mQueue, waiting for it without being interrupted. */
+  protected static _Job _take(BlockingQueue<_Job> mQueue) {
+    boolean bInterrupted = false;
+    try {
+      while (true) {
+        try {
+          return mQueue.take();
+        } catch (InterruptedException e) {
+          bInterrupted = true;
+        }
+      }
+    } finally {
+      if (bInterrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Adds mJob to mQueue, waiting for room without being interrupted. */
+  protected static void _put(BlockingQueue<_Job> mQueue, _Job mJob) {
+    boolean bInterrupted = false;
+    while (true) {
+      try {
+        mQueue.put(mJob);
+        break;
+      } catch (InterruptedException e) {
+        bInterrupted = true;
+      }
+    }
+
+    if (bInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
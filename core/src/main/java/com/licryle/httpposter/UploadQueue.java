@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent queue of uploads, surviving the death of the process. Every
+ * enqueued {@link HttpConfiguration} is recorded in an {@link UploadJournal}
+ * before {@link #enqueue} returns, and removed from it once uploaded. A pool
+ * of workers drains the queue; on startup, the entries left unfinished by the
+ * previous process are loaded from the journal and uploaded again.
+ *
+ * ** Usage:
+ * UploadQueue mQueue = new UploadQueue(new File(mDir, "uploads.journal"), 4);
+ * mQueue.setListener(this);
+ * mQueue.start();
+ *
+ * long lEntryId = mQueue.enqueue(mConf);
+ *
+ * The journal keeps the end point, arguments, files, boundary and timeouts of
+ * each configuration. The listener, connection pool, response handler and
+ * resumable upload settings of a configuration are only used by the process
+ * that enqueued it; entries replayed after a restart report to the
+ * {@link Listener} of the queue only. Configurations with typed
+ * {@link HttpPart}s can't be recorded, and are refused.
+ *
+ * Enqueuing is cheap: the journal syncs its writes in batches, so that
+ * concurrent calls share a single fsync, and {@link #enqueueAll} syncs once
+ * for a whole collection. The journal is compacted once most of its records
+ * are about finished entries.
+ *
+ * Uploads are delivered at least once: an entry whose upload completed right
+ * before the process died may be uploaded again on the next start.
+ *
+ * @see UploadJournal
+ */
+public class UploadQueue implements UploadJournal.Compactor {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default number of uploads running at once. */
+  public static final int DEFAULT_WORKERS = 4;
+  /** Default number of attempts before an entry is given up. */
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  /** Default delay in milliseconds before an entry that failed is retried. */
+  public static final long DEFAULT_RETRY_DELAY = 5000;
+
+  /*****************************************************************************
+   **************************** Protected Constants ****************************
+   ****************************************************************************/
+
+  protected static final byte RECORD_ADD = 1;
+  protected static final byte RECORD_DONE = 2;
+  protected static final byte RECORD_GIVEN_UP = 3;
+
+  /** Journal size, in records, below which it is never compacted. */
+  protected static final long COMPACT_MIN_RECORDS = 1024;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final UploadJournal _mJournal;
+  protected final ScheduledThreadPoolExecutor _mWorkers;
+  /** Entries not finished yet, by id. */
+  protected final ConcurrentHashMap<Long, _Entry> _mEntries =
+      new ConcurrentHashMap<Long, _Entry>();
+  protected final AtomicLong _lNextId = new AtomicLong(1);
+  /** Entries waiting for {@link #start}, those of the journal first. Guarded
+   * by this. */
+  protected ArrayList<_Entry> _aWaiting = new ArrayList<_Entry>();
+  protected boolean _bStarted = false;
+
+  protected volatile Listener _mListener;
+  protected HttpLogger _mLogger = HttpLogger.NONE;
+  protected int _iMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+  protected long _lRetryDelay = DEFAULT_RETRY_DELAY;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** Notified when entries leave the queue. */
+  public interface Listener {
+    /**
+     * Called from a worker thread once an entry is finished: the server
+     * answered, the files couldn't be read, or all the attempts failed.
+     *
+     * @param lEntryId Id of the entry, as returned by {@link #enqueue}.
+     * @param mConf Configuration of the entry.
+     * @param mResult Result of the last attempt.
+     */
+    void onUploadFinished(long lEntryId, HttpConfiguration mConf,
+                          HttpResult mResult);
+  }
+
+  /** An entry of the queue: a configuration and its journal record. */
+  protected static class _Entry {
+    protected final long _lId;
+    protected final HttpConfiguration _mConf;
+    protected final byte[] _aRecord;
+    protected int _iAttempts = 0;
+
+    public _Entry(long lId, HttpConfiguration mConf, byte[] aRecord) {
+      _lId = lId;
+      _mConf = mConf;
+      _aRecord = aRecord;
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Opens the queue and loads the unfinished entries of its journal. Uploads
+   * only begin with {@link #start}.
+   *
+   * @param mJournalFile File of the journal, created if needed.
+   * @param iWorkers Number of uploads running at once.
+   * @throws IOException When the journal can't be read.
+   */
+  public UploadQueue(File mJournalFile, int iWorkers) throws IOException {
+    _mJournal = new UploadJournal(mJournalFile);
+    _replay(_mJournal.replay());
+    _mJournal.start(this);
+
+    _mWorkers = new ScheduledThreadPoolExecutor(iWorkers, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable mRunnable) {
+        Thread mThread = new Thread(mRunnable, "UploadQueue");
+        mThread.setDaemon(true);
+        return mThread;
+      }
+    });
+    // Entries waiting at shutdown stay in the journal for the next start.
+    _mWorkers.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Starts the workers, beginning with the entries loaded from the journal.
+   */
+  public synchronized void start() {
+    _bStarted = true;
+
+    for (_Entry mEntry : _aWaiting) {
+      _schedule(mEntry, 0);
+    }
+    _aWaiting.clear();
+  }
+
+  /**
+   * Adds a configuration to the queue. Returns once it is recorded on disk.
+   * The upload begins right away if the queue is started.
+   *
+   * @param mConf Configuration of the POST request to execute.
+   * @return Id of the entry, given back to {@link Listener#onUploadFinished}.
+   * @throws IOException When the entry can't be recorded.
+   * @throws IllegalArgumentException If mConf has typed parts, which can't
+   * be recorded.
+   */
+  public long enqueue(HttpConfiguration mConf) throws IOException {
+    _Entry mEntry = _add(mConf);
+    _mJournal.await(_mJournal.append(mEntry._aRecord));
+    _schedule(mEntry, 0);
+
+    return mEntry._lId;
+  }
+
+  /**
+   * Adds several configurations to the queue, syncing the journal once for
+   * all of them.
+   *
+   * @param aConfs Configurations of the POST requests to execute.
+   * @return Ids of the entries, in the same order.
+   * @throws IOException When the entries can't be recorded.
+   */
+  public long[] enqueueAll(Collection<HttpConfiguration> aConfs)
+      throws IOException {
+    ArrayList<_Entry> aEntries = new ArrayList<_Entry>(aConfs.size());
+    long lSeq = 0;
+
+    for (HttpConfiguration mConf : aConfs) {
+      _Entry mEntry = _add(mConf);
+      aEntries.add(mEntry);
+      lSeq = _mJournal.append(mEntry._aRecord);
+    }
+    _mJournal.await(lSeq);
+
+    long[] aIds = new long[aEntries.size()];
+    for (int i = 0; i < aIds.length; i++) {
+      _schedule(aEntries.get(i), 0);
+      aIds[i] = aEntries.get(i)._lId;
+    }
+
+    return aIds;
+  }
+
+  /** @return Number of entries not finished yet, running ones included. */
+  public int getPendingCount() { return _mEntries.size(); }
+
+  /**
+   * Stops the queue: uploads in progress are completed, waiting entries stay
+   * in the journal for the next start. Blocks until the workers are done.
+   *
+   * @throws IOException When the journal couldn't be flushed.
+   */
+  public void close() throws IOException {
+    _mWorkers.shutdown();
+
+    try {
+      _mWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    _mJournal.close();
+  }
+
+  public UploadQueue setListener(Listener mListener) {
+    _mListener = mListener;
+    return this;
+  }
+
+  /**
+   * @param mLogger Where to send the debug traces of the uploads.
+   * @return This queue, to chain calls.
+   */
+  public UploadQueue setLogger(HttpLogger mLogger) {
+    _mLogger = mLogger != null ? mLogger : HttpLogger.NONE;
+    return this;
+  }
+
+  /**
+   * @param iMaxAttempts Number of attempts before an entry is given up.
+   * @param lRetryDelay Delay in milliseconds before retrying a failed entry.
+   * @return This queue, to chain calls.
+   */
+  public UploadQueue setRetries(int iMaxAttempts, long lRetryDelay) {
+    _iMaxAttempts = Math.max(1, iMaxAttempts);
+    _lRetryDelay = lRetryDelay;
+    return this;
+  }
+
+  /*****************************************************************************
+   ***************************** Journal Compaction ****************************
+   ****************************************************************************/
+
+  @Override
+  public boolean shouldCompact(long lRecordCount) {
+    return lRecordCount > COMPACT_MIN_RECORDS &&
+        lRecordCount > 2L * _mEntries.size();
+  }
+
+  @Override
+  public List<byte[]> getLiveRecords() {
+    ArrayList<byte[]> aRecords = new ArrayList<byte[]>(_mEntries.size());
+    for (_Entry mEntry : _mEntries.values()) {
+      aRecords.add(mEntry._aRecord);
+    }
+
+    return aRecords;
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Creates the entry of mConf and registers it, before its journaling. */
+  protected _Entry _add(HttpConfiguration mConf) throws IOException {
+    long lId = _lNextId.getAndIncrement();
+    _Entry mEntry = new _Entry(lId, mConf, _encodeAdd(lId, mConf));
+    _mEntries.put(lId, mEntry);
+
+    return mEntry;
+  }
+
+  protected synchronized void _schedule(final _Entry mEntry, long lDelay) {
+    if (!_bStarted) {
+      _aWaiting.add(mEntry);
+      return;
+    }
+
+    _mWorkers.schedule(new Runnable() {
+      @Override
+      public void run() {
+        _upload(mEntry);
+      }
+    }, lDelay, TimeUnit.MILLISECONDS);
+  }
+
+  /** Runs one attempt of mEntry on a worker thread. */
+  protected void _upload(_Entry mEntry) {
+    HttpEngine mEngine =
+        new HttpEngine(mEntry._mConf, HttpEngine.nextInstanceId());
+    mEngine.setLogger(_mLogger);
+
+    long lResult = mEngine.run();
+    mEntry._iAttempts++;
+
+    boolean bFinished = lResult == HttpEngine.SUCCESS ||
+        lResult == HttpEngine.FAILURE_RESPONSE ||
+        lResult == HttpEngine.FAILURE_FILE_READ ||
+        lResult == HttpEngine.FAILURE_CANCELLED;
+
+    if (!bFinished && mEntry._iAttempts < _iMaxAttempts &&
+        !_mWorkers.isShutdown()) {
+      _mLogger.d("UploadQueue", String.format(
+          "_upload: Entry %d failed with %d, retrying", mEntry._lId, lResult));
+      _schedule(mEntry, _lRetryDelay);
+      return;
+    }
+
+    if (!bFinished && _mWorkers.isShutdown()) {
+      return; // Retried on the next start.
+    }
+
+    _mEntries.remove(mEntry._lId);
+    try {
+      _mJournal.append(_encodeEnd(
+          bFinished ? RECORD_DONE : RECORD_GIVEN_UP, mEntry._lId));
+    } catch (IOException e) {
+      // The entry will be uploaded again on the next start.
+      _mLogger.d("UploadQueue", "_upload: " + e.getMessage());
+    }
+
+    Listener mListener = _mListener;
+    if (mListener != null) {
+      mListener.onUploadFinished(mEntry._lId, mEntry._mConf,
+          mEngine.getResult());
+    }
+  }
+
+  /** Rebuilds the unfinished entries from the records of the journal. */
+  protected void _replay(ArrayList<byte[]> aRecords) throws IOException {
+    LinkedHashMap<Long, byte[]> mLive = new LinkedHashMap<Long, byte[]>();
+    long lMaxId = 0;
+
+    for (byte[] aRecord : aRecords) {
+      DataInputStream mIn =
+          new DataInputStream(new ByteArrayInputStream(aRecord));
+      byte iType = mIn.readByte();
+      long lId = mIn.readLong();
+      lMaxId = Math.max(lMaxId, lId);
+
+      if (iType == RECORD_ADD) {
+        mLive.put(lId, aRecord);
+      } else {
+        mLive.remove(lId);
+      }
+    }
+
+    for (Map.Entry<Long, byte[]> mRecord : mLive.entrySet()) {
+      _Entry mEntry = new _Entry(mRecord.getKey(),
+          _decodeAdd(mRecord.getValue()), mRecord.getValue());
+      _mEntries.put(mEntry._lId, mEntry);
+      _aWaiting.add(mEntry);
+    }
+
+    _lNextId.set(lMaxId + 1);
+  }
+
+  protected static byte[] _encodeAdd(long lId, HttpConfiguration mConf)
+      throws IOException {
+    if (!mConf.getParts().isEmpty()) {
+      throw new IllegalArgumentException("Typed parts can't be journaled");
+    }
+
+    ByteArrayOutputStream mBytes = new ByteArrayOutputStream(256);
+    DataOutputStream mOut = new DataOutputStream(mBytes);
+
+    mOut.writeByte(RECORD_ADD);
+    mOut.writeLong(lId);
+    _writeString(mOut, mConf.getEndPoint().toString());
+    _writeString(mOut, mConf.getHTTPBoundary());
+    mOut.writeInt(mConf.getConnectTimeout());
+    mOut.writeInt(mConf.getReadTimeout());
+
+    mOut.writeInt(mConf.getArgs().size());
+    for (Map.Entry<String, String> mPair : mConf.getArgs().entrySet()) {
+      _writeString(mOut, mPair.getKey());
+      _writeString(mOut, mPair.getValue());
+    }
+
+    mOut.writeInt(mConf.getFiles().size());
+    for (File mFile : mConf.getFiles()) {
+      _writeString(mOut, mFile.getPath());
+    }
+
+    mOut.flush();
+    return mBytes.toByteArray();
+  }
+
+  protected static HttpConfiguration _decodeAdd(byte[] aRecord)
+      throws IOException {
+    DataInputStream mIn =
+        new DataInputStream(new ByteArrayInputStream(aRecord));
+    mIn.readByte();
+    mIn.readLong();
+
+    URL mEndPoint = new URL(_readString(mIn));
+    String sBoundary = _readString(mIn);
+    int iConnectTimeout = mIn.readInt();
+    int iReadTimeout = mIn.readInt();
+
+    int iArgs = mIn.readInt();
+    LinkedHashMap<String, String> mArgs =
+        new LinkedHashMap<String, String>();
+    for (int i = 0; i < iArgs; i++) {
+      mArgs.put(_readString(mIn), _readString(mIn));
+    }
+
+    int iFiles = mIn.readInt();
+    ArrayList<File> aFiles = new ArrayList<File>(iFiles);
+    for (int i = 0; i < iFiles; i++) {
+      aFiles.add(new File(_readString(mIn)));
+    }
+
+    return new HttpConfiguration(mEndPoint, mArgs, aFiles, null, sBoundary,
+        iConnectTimeout, iReadTimeout);
+  }
+
+  protected static byte[] _encodeEnd(byte iType, long lId) {
+    byte[] aRecord = new byte[9];
+    aRecord[0] = iType;
+    for (int i = 0; i < 8; i++) {
+      aRecord[8 - i] = (byte) (lId >>> (8 * i));
+    }
+
+    return aRecord;
+  }
+
+  /** Writes sValue as UTF-8, prefixed by its length. Unlike writeUTF, it
+   * isn't limited to 64KB. */
+  protected static void _writeString(DataOutputStream mOut, String sValue)
+      throws IOException {
+    byte[] aBytes = sValue.getBytes("UTF-8");
+    mOut.writeInt(aBytes.length);
+    mOut.write(aBytes);
+  }
+
+  protected static String _readString(DataInputStream mIn)
+      throws IOException {
+    byte[] aBytes = new byte[mIn.readInt()];
+    mIn.readFully(aBytes);
+    return new String(aBytes, "UTF-8");
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link ConcurrencyLimiter} adjusts the limit of a route from
+ * the outcomes given back to it, and the order in which requests over the
+ * limit get a slot. No request is sent: the tests acquire and release slots
+ * as the engine would.
+ */
+public class ConcurrencyLimiterTest {
+  protected static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Test
+  public void testOneDecreasePerWindow() throws IOException {
+    ConcurrencyLimiter.Endpoint mEndpoint = _newEndpoint(16);
+    long[] aAcquired = new long[4];
+    for (int i = 0; i < aAcquired.length; i++) {
+      aAcquired[i] = mEndpoint.acquire();
+    }
+
+    mEndpoint.release(aAcquired[0], ConcurrencyLimiter.OUTCOME_DROPPED, -1);
+    long lDecreasedAt = mEndpoint._lDecreasedAt;
+    assertEquals(8, mEndpoint.getLimit());
+    assertTrue(lDecreasedAt >= aAcquired[3]);
+
+    // Granted before the decrease, their failures are part of its window.
+    for (int i = 1; i < aAcquired.length; i++) {
+      mEndpoint.release(aAcquired[i], ConcurrencyLimiter.OUTCOME_DROPPED,
+          -1);
+    }
+    assertEquals(8, mEndpoint.getLimit());
+    assertEquals(lDecreasedAt, mEndpoint._lDecreasedAt);
+    assertEquals(4, mEndpoint.getDropCount());
+
+    mEndpoint.acquire();
+    mEndpoint.release(lDecreasedAt + 1, ConcurrencyLimiter.OUTCOME_DROPPED,
+        -1);
+    assertEquals(4, mEndpoint.getLimit());
+    assertTrue(mEndpoint._lDecreasedAt > lDecreasedAt);
+    assertEquals(0, mEndpoint.getInFlight());
+  }
+
+  @Test
+  public void testDecreaseStopsAtMinimum() throws IOException {
+    ConcurrencyLimiter.Endpoint mEndpoint =
+        new ConcurrencyLimiter(4, 3, 8).getEndpoint(_endPoint());
+
+    mEndpoint.acquire();
+    mEndpoint.release(1, ConcurrencyLimiter.OUTCOME_DROPPED, -1);
+
+    assertEquals(3, mEndpoint.getLimit());
+  }
+
+  @Test
+  public void testIncreaseNeedsSaturation() throws IOException {
+    ConcurrencyLimiter.Endpoint mEndpoint = _newEndpoint(8);
+
+    // A single request in flight says nothing about a limit of 8.
+    _succeed(mEndpoint, 1, LATENCY);
+    assertEquals(8.0, mEndpoint._dLimit, 0);
+
+    // With half the limit in use, each answer adds 1 / limit.
+    _succeed(mEndpoint, 4, LATENCY);
+    assertEquals(8.125, mEndpoint._dLimit, 1e-9);
+    for (int i = 0; i < 8; i++) {
+      _succeed(mEndpoint, 8, LATENCY);
+    }
+    assertEquals(9, mEndpoint.getLimit());
+    assertEquals(10, mEndpoint.getSuccessCount());
+  }
+
+  @Test
+  public void testIncreaseStopsAtMaximum() throws IOException {
+    ConcurrencyLimiter.Endpoint mEndpoint =
+        new ConcurrencyLimiter(4, 1, 5).getEndpoint(_endPoint());
+
+    for (int i = 0; i < 100; i++) {
+      _succeed(mEndpoint, 4, LATENCY);
+    }
+
+    assertEquals(5, mEndpoint.getLimit());
+  }
+
+  @Test
+  public void testSlowAnswersCutLimit() throws IOException {
+    ConcurrencyLimiter.Endpoint mEndpoint = _newEndpoint(10);
+
+    _succeed(mEndpoint, 1, LATENCY);
+    assertEquals(LATENCY, mEndpoint.getUsualLatencyNs());
+
+    // Within the tolerance of twice the usual time.
+    _succeed(mEndpoint, 1, LATENCY * 2);
+    assertEquals(10.0, mEndpoint._dLimit, 0);
+
+    _succeed(mEndpoint, 1, LATENCY * 3);
+    assertEquals(9.0, mEndpoint._dLimit, 1e-9);
+    // The usual time only creeps up by 1/256 per slower answer.
+    long lUsual = LATENCY + (LATENCY >> 8);
+    assertEquals(lUsual + (lUsual >> 8), mEndpoint.getUsualLatencyNs());
+  }
+
+  @Test
+  public void testToleranceIsConfigurable() throws IOException {
+    ConcurrencyLimiter mLimiter = new ConcurrencyLimiter(10, 1, 64)
+        .setTolerance(4);
+    ConcurrencyLimiter.Endpoint mEndpoint = mLimiter.getEndpoint(_endPoint());
+
+    _succeed(mEndpoint, 1, LATENCY);
+    _succeed(mEndpoint, 1, LATENCY * 3);
+    assertEquals(10.0, mEndpoint._dLimit, 0);
+
+    _succeed(mEndpoint, 1, LATENCY * 5);
+    assertEquals(9.0, mEndpoint._dLimit, 1e-9);
+  }
+
+  @Test
+  public void testWaitersGetSlotsInArrivalOrder() throws Exception {
+    final ConcurrencyLimiter.Endpoint mEndpoint =
+        new ConcurrencyLimiter(1, 1, 1).getEndpoint(_endPoint());
+    final List<Integer> aOrder =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    long lAcquired = mEndpoint.acquire();
+
+    ArrayList<Thread> aThreads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      final int iIndex = i;
+      Thread mThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long lSlot = mEndpoint.acquire();
+            aOrder.add(iIndex);
+            mEndpoint.release(lSlot, ConcurrencyLimiter.OUTCOME_IGNORED, -1);
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      });
+      mThread.start();
+      aThreads.add(mThread);
+      _awaitQueueLength(mEndpoint, i + 1);
+    }
+
+    mEndpoint.release(lAcquired, ConcurrencyLimiter.OUTCOME_IGNORED, -1);
+    for (Thread mThread : aThreads) {
+      mThread.join(10000);
+    }
+
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), aOrder);
+    assertEquals(0, mEndpoint.getQueueLength());
+    assertEquals(0, mEndpoint.getInFlight());
+    assertEquals(1, mEndpoint.getLimit());
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected static URL _endPoint() throws IOException {
+    return new URL("http://localhost:8080/upload");
+  }
+
+  protected static ConcurrencyLimiter.Endpoint _newEndpoint(int iLimit)
+      throws IOException {
+    return new ConcurrencyLimiter(iLimit, 1, 64).getEndpoint(_endPoint());
+  }
+
+  /**
+   * Has iInFlight requests in flight, then answers one of them in
+   * lLatencyNs, and the others without a measure.
+   */
+  protected static void _succeed(ConcurrencyLimiter.Endpoint mEndpoint,
+                                 int iInFlight, long lLatencyNs)
+      throws IOException {
+    long[] aAcquired = new long[iInFlight];
+    for (int i = 0; i < iInFlight; i++) {
+      aAcquired[i] = mEndpoint.acquire();
+    }
+
+    mEndpoint.release(aAcquired[0], ConcurrencyLimiter.OUTCOME_SUCCESS,
+        lLatencyNs);
+    for (int i = 1; i < iInFlight; i++) {
+      mEndpoint.release(aAcquired[i], ConcurrencyLimiter.OUTCOME_IGNORED, -1);
+    }
+  }
+
+  protected static void _awaitQueueLength(
+      ConcurrencyLimiter.Endpoint mEndpoint, int iLength)
+      throws InterruptedException {
+    long lEnd = System.currentTimeMillis() + 10000;
+    while (mEndpoint.getQueueLength() < iLength) {
+      assertTrue(System.currentTimeMillis() < lEnd);
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process HTTP/2 server speaking h2c with prior knowledge on the loopback
+ * interface, standing in for an upload end point to test and benchmark
+ * {@link Http2Connection}. Like {@link LoopbackServer}, it accepts any POST
+ * on any path, consumes the body and answers 200 with a body of the
+ * configured size, plus an x-received-bytes header with the size of the body
+ * it received.
+ *
+ * It uses small windows, so that client flow control is exercised: the
+ * default 65535 bytes per stream, which it reopens as it consumes DATA
+ * frames. A read pause simulates slow consumers, delaying the WINDOW_UPDATE
+ * frames of each stream as if it was read by its own thread, like the
+ * connections of {@link LoopbackServer}. Its own replies follow the windows
+ * of the client.
+ *
+ * It also answers curl --http2-prior-knowledge.
+ */
+public class H2cLoopbackServer {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Size of the DATA frames of the replies. */
+  public static final int FRAME_SIZE = 16384;
+  /** Default limit of concurrent streams per connection. */
+  public static final int DEFAULT_MAX_STREAMS = 100;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final ServerSocket _mServer;
+  protected final ExecutorService _mExecutor;
+  /** Sends the WINDOW_UPDATE frames delayed by the read pause. */
+  protected final ScheduledExecutorService _mTimer;
+  protected final Set<Socket> _aSockets =
+      Collections.synchronizedSet(new HashSet<Socket>());
+
+  /** Body of the replies. */
+  protected volatile byte[] _aReply = "ok".getBytes();
+  /** Pause in ns after each read of LoopbackServer.IO_SIZE bytes of DATA. */
+  protected volatile long _lReadPauseNs = 0;
+  /** Announced in SETTINGS_MAX_CONCURRENT_STREAMS to new connections. */
+  protected volatile int _iMaxStreams = DEFAULT_MAX_STREAMS;
+
+  /*****************************************************************************
+   ******************************* Helper Classes ******************************
+   ****************************************************************************/
+
+  /** State of a client connection. Guarded by itself. */
+  protected class Connection {
+    protected final Socket _mSocket;
+    protected final DataInputStream _mIn;
+    protected final OutputStream _mOut;
+    protected final Hpack.Decoder _mDecoder = new Hpack.Decoder();
+    protected final Hpack.Encoder _mEncoder = new Hpack.Encoder();
+
+    /** Bytes received by the open streams, and the nanoTime until which
+     * they are busy consuming them. */
+    protected final HashMap<Integer, long[]> _mReceived =
+        new HashMap<Integer, long[]>();
+    /** Send windows of the streams with a reply in progress. */
+    protected final HashMap<Integer, long[]> _mWindows =
+        new HashMap<Integer, long[]>();
+    protected long _lSendWindow = 65535;
+    protected int _iInitialWindow = 65535;
+    protected boolean _bClosed = false;
+
+    protected Connection(Socket mSocket) throws IOException {
+      _mSocket = mSocket;
+      _mIn = new DataInputStream(
+          new BufferedInputStream(mSocket.getInputStream(), 32 * 1024));
+      _mOut = new BufferedOutputStream(mSocket.getOutputStream(), 32 * 1024);
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Starts a server on an ephemeral port of the loopback interface.
+   *
+   * @throws IOException When the port can't be bound.
+   */
+  public H2cLoopbackServer() throws IOException {
+    _mServer = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+    _mExecutor = Executors.newCachedThreadPool();
+    _mTimer = Executors.newSingleThreadScheduledExecutor();
+
+    _mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        _accept();
+      }
+    });
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param sPath Path of the end point, starting with a /.
+   * @return The URL of sPath on this server.
+   */
+  public URL getEndPoint(String sPath) throws IOException {
+    return new URL("http", "127.0.0.1", _mServer.getLocalPort(), sPath);
+  }
+
+  /**
+   * @param iSize Size in bytes of the body of the replies.
+   * @return This server, to chain calls.
+   */
+  public H2cLoopbackServer setReplySize(int iSize) {
+    byte[] aReply = new byte[iSize];
+    Arrays.fill(aReply, (byte) 'x');
+    _aReply = aReply;
+    return this;
+  }
+
+  /**
+   * @param lPauseNs Pause in ns after each read of
+   *                 {@link LoopbackServer#IO_SIZE} bytes of DATA, 0 to read
+   *                 them as fast as possible.
+   * @return This server, to chain calls.
+   */
+  public H2cLoopbackServer setReadPause(long lPauseNs) {
+    _lReadPauseNs = lPauseNs;
+    return this;
+  }
+
+  /**
+   * @param iMaxStreams Concurrent streams allowed on connections opened
+   *                    afterwards.
+   * @return This server, to chain calls.
+   */
+  public H2cLoopbackServer setMaxStreams(int iMaxStreams) {
+    _iMaxStreams = iMaxStreams;
+    return this;
+  }
+
+  /** Stops the server and closes its connections. */
+  public void stop() {
+    try {
+      _mServer.close();
+    } catch (IOException e) {
+      // Closing anyway.
+    }
+
+    synchronized (_aSockets) {
+      for (Socket mSocket : _aSockets) {
+        try {
+          mSocket.close();
+        } catch (IOException e) {
+          // Closing anyway.
+        }
+      }
+    }
+    _mExecutor.shutdownNow();
+    _mTimer.shutdownNow();
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected void _accept() {
+    while (!_mServer.isClosed()) {
+      try {
+        final Socket mSocket = _mServer.accept();
+        mSocket.setTcpNoDelay(true);
+        _aSockets.add(mSocket);
+
+        _mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              _serve(new Connection(mSocket));
+            } catch (IOException e) {
+              // The client went away.
+            } finally {
+              _aSockets.remove(mSocket);
+              try {
+                mSocket.close();
+              } catch (IOException e) {
+                // Closing anyway.
+              }
+            }
+          }
+        });
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  /** Reads the frames of mConn until it is closed. */
+  protected void _serve(Connection mConn) throws IOException {
+    byte[] aPreface = new byte[Http2Connection.PREFACE.length];
+    mConn._mIn.readFully(aPreface);
+    if (!Arrays.equals(aPreface, Http2Connection.PREFACE)) {
+      throw new ProtocolException("Not an HTTP/2 client");
+    }
+
+    ByteArrayOutputStream mSettings = new ByteArrayOutputStream();
+    Http2Connection._writeSetting(mSettings,
+        Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS, _iMaxStreams);
+    _writeFrame(mConn, Http2Connection.TYPE_SETTINGS, 0, 0,
+        mSettings.toByteArray(), 0, mSettings.size());
+    _flush(mConn);
+
+    byte[] aHead = new byte[9];
+    while (true) {
+      mConn._mIn.readFully(aHead);
+      int iLength = ((aHead[0] & 0xff) << 16) | ((aHead[1] & 0xff) << 8) |
+          (aHead[2] & 0xff);
+      int iType = aHead[3] & 0xff;
+      int iFlags = aHead[4] & 0xff;
+      int iStreamId = Http2Connection._readInt32(aHead, 5) & 0x7fffffff;
+      byte[] aPayload = new byte[iLength];
+      mConn._mIn.readFully(aPayload);
+
+      switch (iType) {
+        case Http2Connection.TYPE_HEADERS:
+          _onHeaders(mConn, iFlags, iStreamId, aPayload);
+          break;
+
+        case Http2Connection.TYPE_DATA:
+          _onData(mConn, iFlags, iStreamId, aPayload);
+          break;
+
+        case Http2Connection.TYPE_SETTINGS:
+          if ((iFlags & Http2Connection.FLAG_ACK) == 0) {
+            _onSettings(mConn, aPayload);
+            _writeFrame(mConn, Http2Connection.TYPE_SETTINGS,
+                Http2Connection.FLAG_ACK, 0, aPayload, 0, 0);
+            _flush(mConn);
+          }
+          break;
+
+        case Http2Connection.TYPE_PING:
+          if ((iFlags & Http2Connection.FLAG_ACK) == 0) {
+            _writeFrame(mConn, Http2Connection.TYPE_PING,
+                Http2Connection.FLAG_ACK, 0, aPayload, 0, aPayload.length);
+            _flush(mConn);
+          }
+          break;
+
+        case Http2Connection.TYPE_WINDOW_UPDATE:
+          int iIncrement =
+              Http2Connection._readInt32(aPayload, 0) & 0x7fffffff;
+          synchronized (mConn) {
+            if (iStreamId == 0) {
+              mConn._lSendWindow += iIncrement;
+            } else if (mConn._mWindows.containsKey(iStreamId)) {
+              mConn._mWindows.get(iStreamId)[0] += iIncrement;
+            }
+            mConn.notifyAll();
+          }
+          break;
+
+        case Http2Connection.TYPE_RST_STREAM:
+          synchronized (mConn) {
+            mConn._mReceived.remove(iStreamId);
+            mConn._mWindows.remove(iStreamId);
+            mConn.notifyAll();
+          }
+          break;
+
+        case Http2Connection.TYPE_GOAWAY:
+          synchronized (mConn) {
+            mConn._bClosed = true;
+            mConn.notifyAll();
+          }
+          return;
+
+        default:
+          break;
+      }
+    }
+  }
+
+  protected void _onHeaders(Connection mConn, int iFlags, int iStreamId,
+                            byte[] aPayload) throws IOException {
+    int iStart = 0;
+    int iEnd = aPayload.length;
+    if ((iFlags & Http2Connection.FLAG_PADDED) != 0) {
+      iStart = 1;
+      iEnd -= aPayload[0] & 0xff;
+    }
+    if ((iFlags & Http2Connection.FLAG_PRIORITY) != 0) {
+      iStart += 5;
+    }
+
+    ByteArrayOutputStream mBlock = new ByteArrayOutputStream();
+    mBlock.write(aPayload, iStart, iEnd - iStart);
+    byte[] aHead = new byte[9];
+    while ((iFlags & Http2Connection.FLAG_END_HEADERS) == 0) {
+      mConn._mIn.readFully(aHead);
+      byte[] aContinuation = new byte[((aHead[0] & 0xff) << 16) |
+          ((aHead[1] & 0xff) << 8) | (aHead[2] & 0xff)];
+      mConn._mIn.readFully(aContinuation);
+      mBlock.write(aContinuation, 0, aContinuation.length);
+      iFlags = (iFlags & Http2Connection.FLAG_END_STREAM) | aHead[4];
+    }
+
+    byte[] aBlock = mBlock.toByteArray();
+    HashMap<String, String> mHeaders = new HashMap<String, String>();
+    mConn._mDecoder.decode(aBlock, 0, aBlock.length, mHeaders);
+
+    synchronized (mConn) {
+      mConn._mReceived.put(iStreamId, new long[2]);
+    }
+    if ((iFlags & Http2Connection.FLAG_END_STREAM) != 0) {
+      _reply(mConn, iStreamId);
+    }
+  }
+
+  protected void _onData(final Connection mConn, int iFlags,
+                         final int iStreamId, byte[] aPayload)
+      throws IOException {
+    int iStart = 0;
+    int iEnd = aPayload.length;
+    if ((iFlags & Http2Connection.FLAG_PADDED) != 0) {
+      iStart = 1;
+      iEnd -= aPayload[0] & 0xff;
+    }
+
+    long lPauseNs = _lReadPauseNs * aPayload.length / LoopbackServer.IO_SIZE;
+    long lDelayNs = 0;
+    boolean bOpen;
+    synchronized (mConn) {
+      long[] aReceived = mConn._mReceived.get(iStreamId);
+      bOpen = aReceived != null;
+      if (bOpen) {
+        long lNow = System.nanoTime();
+        aReceived[0] += iEnd - iStart;
+        aReceived[1] = Math.max(aReceived[1], lNow) + lPauseNs;
+        lDelayNs = aReceived[1] - lNow;
+      }
+    }
+    if (bOpen) {
+      _consume(iStreamId, aPayload, iStart, iEnd - iStart);
+    }
+
+    if (aPayload.length > 0) {
+      final byte[] aIncrement = Http2Connection._int32(aPayload.length);
+      _writeFrame(mConn, Http2Connection.TYPE_WINDOW_UPDATE, 0, 0, aIncrement,
+          0, 4);
+      _flush(mConn);
+
+      if ((iFlags & Http2Connection.FLAG_END_STREAM) == 0) {
+        _later(lDelayNs, new Runnable() {
+          @Override
+          public void run() {
+            try {
+              _writeFrame(mConn, Http2Connection.TYPE_WINDOW_UPDATE, 0,
+                  iStreamId, aIncrement, 0, 4);
+              _flush(mConn);
+            } catch (IOException e) {
+              // The client went away.
+            }
+          }
+        });
+      }
+    }
+
+    if (bOpen && (iFlags & Http2Connection.FLAG_END_STREAM) != 0) {
+      _later(lDelayNs, new Runnable() {
+        @Override
+        public void run() {
+          _reply(mConn, iStreamId);
+        }
+      });
+    }
+  }
+
+  /** Runs mTask after lDelayNs, or right away if it is 0 or less. */
+  protected void _later(long lDelayNs, Runnable mTask) {
+    if (lDelayNs <= 0) {
+      mTask.run();
+    } else {
+      _mTimer.schedule(mTask, lDelayNs, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Called with the DATA of each request as it is received. Does nothing,
+   * override to inspect uploads.
+   */
+  protected void _consume(int iStreamId, byte[] aData, int iStart,
+                          int iCount) {
+  }
+
+  protected void _onSettings(Connection mConn, byte[] aPayload) {
+    synchronized (mConn) {
+      for (int i = 0; i + 6 <= aPayload.length; i += 6) {
+        int iId = ((aPayload[i] & 0xff) << 8) | (aPayload[i + 1] & 0xff);
+        int iValue = Http2Connection._readInt32(aPayload, i + 2);
+
+        if (iId == Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE) {
+          for (long[] aWindow : mConn._mWindows.values()) {
+            aWindow[0] += iValue - mConn._iInitialWindow;
+          }
+          mConn._iInitialWindow = iValue;
+        }
+      }
+      mConn.notifyAll();
+    }
+  }
+
+  /** Sends the reply of iStreamId from another thread, as it may block. */
+  protected void _reply(final Connection mConn, final int iStreamId) {
+    final long lReceived;
+    synchronized (mConn) {
+      long[] aReceived = mConn._mReceived.remove(iStreamId);
+      lReceived = aReceived != null ? aReceived[0] : 0;
+      mConn._mWindows.put(iStreamId, new long[] { mConn._iInitialWindow });
+    }
+
+    _mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          _sendReply(mConn, iStreamId, lReceived);
+        } catch (IOException e) {
+          // The client went away.
+        } catch (InterruptedException e) {
+          // The server is stopping.
+        } finally {
+          synchronized (mConn) {
+            mConn._mWindows.remove(iStreamId);
+          }
+        }
+      }
+    });
+  }
+
+  protected void _sendReply(Connection mConn, int iStreamId, long lReceived)
+      throws IOException, InterruptedException {
+    byte[] aReply = _aReply;
+
+    LinkedHashMap<String, String> mHeaders =
+        new LinkedHashMap<String, String>();
+    mHeaders.put(":status", "200");
+    mHeaders.put("content-type", "text/plain; charset=utf-8");
+    mHeaders.put("content-length", String.valueOf(aReply.length));
+    mHeaders.put("x-received-bytes", String.valueOf(lReceived));
+
+    ByteArrayOutputStream mBlock = new ByteArrayOutputStream();
+    synchronized (mConn._mOut) {
+      mConn._mEncoder.encode(mHeaders, mBlock);
+      _writeFrame(mConn, Http2Connection.TYPE_HEADERS,
+          Http2Connection.FLAG_END_HEADERS |
+              (aReply.length == 0 ? Http2Connection.FLAG_END_STREAM : 0),
+          iStreamId, mBlock.toByteArray(), 0, mBlock.size());
+    }
+    _flush(mConn);
+
+    int iOffset = 0;
+    while (iOffset < aReply.length) {
+      int iCount;
+      synchronized (mConn) {
+        long[] aWindow;
+        while ((aWindow = mConn._mWindows.get(iStreamId)) != null &&
+            !mConn._bClosed &&
+            (aWindow[0] <= 0 || mConn._lSendWindow <= 0)) {
+          mConn.wait();
+        }
+        if (aWindow == null || mConn._bClosed) {
+          return;
+        }
+
+        iCount = (int) Math.min(Math.min(FRAME_SIZE, aReply.length - iOffset),
+            Math.min(aWindow[0], mConn._lSendWindow));
+        aWindow[0] -= iCount;
+        mConn._lSendWindow -= iCount;
+      }
+
+      boolean bLast = iOffset + iCount == aReply.length;
+      _writeFrame(mConn, Http2Connection.TYPE_DATA,
+          bLast ? Http2Connection.FLAG_END_STREAM : 0, iStreamId, aReply,
+          iOffset, iCount);
+      iOffset += iCount;
+    }
+    _flush(mConn);
+  }
+
+  protected void _writeFrame(Connection mConn, int iType, int iFlags,
+                             int iStreamId, byte[] aPayload, int iStart,
+                             int iLength) throws IOException {
+    byte[] aHead = new byte[9];
+    aHead[0] = (byte) (iLength >>> 16);
+    aHead[1] = (byte) (iLength >>> 8);
+    aHead[2] = (byte) iLength;
+    aHead[3] = (byte) iType;
+    aHead[4] = (byte) iFlags;
+    System.arraycopy(Http2Connection._int32(iStreamId), 0, aHead, 5, 4);
+
+    synchronized (mConn._mOut) {
+      mConn._mOut.write(aHead);
+      mConn._mOut.write(aPayload, iStart, iLength);
+    }
+  }
+
+  protected void _flush(Connection mConn) throws IOException {
+    synchronized (mConn._mOut) {
+      mConn._mOut.flush();
+    }
+  }
+}
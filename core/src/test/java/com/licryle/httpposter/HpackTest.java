@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link Hpack} against the examples of RFC 7541, appendix C, and
+ * end to end against the {@link H2cLoopbackServer}.
+ */
+public class HpackTest {
+  @Test
+  public void testRequestsWithoutHuffman() throws IOException {
+    Hpack.Decoder mDecoder = new Hpack.Decoder();
+
+    // C.3.1 to C.3.3: the :authority, then cache-control, enter the table.
+    assertEquals(_headers(":method", "GET", ":scheme", "http", ":path", "/",
+        ":authority", "www.example.com"), _decode(mDecoder,
+        "828684410f7777772e6578616d706c652e636f6d"));
+    assertEquals(_headers(":method", "GET", ":scheme", "http", ":path", "/",
+        ":authority", "www.example.com", "cache-control", "no-cache"),
+        _decode(mDecoder, "828684be58086e6f2d6361636865"));
+    assertEquals(_headers(":method", "GET", ":scheme", "https",
+        ":path", "/index.html", ":authority", "www.example.com",
+        "custom-key", "custom-value"), _decode(mDecoder,
+        "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+  }
+
+  @Test
+  public void testRequestsWithHuffman() throws IOException {
+    Hpack.Decoder mDecoder = new Hpack.Decoder();
+
+    // C.4.1 to C.4.3: same headers as C.3, Huffman coded.
+    assertEquals(_headers(":method", "GET", ":scheme", "http", ":path", "/",
+        ":authority", "www.example.com"), _decode(mDecoder,
+        "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+    assertEquals(_headers(":method", "GET", ":scheme", "http", ":path", "/",
+        ":authority", "www.example.com", "cache-control", "no-cache"),
+        _decode(mDecoder, "828684be5886a8eb10649cbf"));
+    assertEquals(_headers(":method", "GET", ":scheme", "https",
+        ":path", "/index.html", ":authority", "www.example.com",
+        "custom-key", "custom-value"), _decode(mDecoder,
+        "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    Hpack.Decoder mDecoder = new Hpack.Decoder(256);
+
+    // C.5.1 fills the 256 bytes table, C.5.2 evicts :status 302 to add 307.
+    assertEquals(_headers(":status", "302", "cache-control", "private",
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+        "location", "https://www.example.com"), _decode(mDecoder,
+        "4803333032580770726976617465611d4d6f6e2c203231204f637420323031" +
+        "332032303a31333a323120474d546e1768747470733a2f2f7777772e657861" +
+        "6d706c652e636f6d"));
+    assertEquals(_headers(":status", "307", "cache-control", "private",
+        "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+        "location", "https://www.example.com"), _decode(mDecoder,
+        "4803333037c1c0bf"));
+  }
+
+  @Test
+  public void testTableSizeAboveLimitIsRefused() {
+    try {
+      // Dynamic table size update to 4096, above the 256 announced.
+      _decode(new Hpack.Decoder(256), "3fe11f");
+      fail("Table size update accepted");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testEncoderRoundTrip() throws IOException {
+    LinkedHashMap<String, String> mHeaders = _headers(":method", "POST",
+        ":scheme", "http", ":path", "/upload", ":authority", "127.0.0.1:80",
+        "content-type", "multipart/form-data; boundary=BOUNDARY",
+        "Accept-Encoding", "gzip, deflate", "X-Upload-Id", "42");
+
+    ByteArrayOutputStream mBlock = new ByteArrayOutputStream();
+    new Hpack.Encoder().encode(mHeaders, mBlock);
+    byte[] aBlock = mBlock.toByteArray();
+
+    LinkedHashMap<String, String> mDecoded =
+        new LinkedHashMap<String, String>();
+    new Hpack.Decoder().decode(aBlock, 0, aBlock.length, mDecoded);
+
+    LinkedHashMap<String, String> mExpected =
+        new LinkedHashMap<String, String>();
+    for (String sName : mHeaders.keySet()) {
+      mExpected.put(sName.toLowerCase(), mHeaders.get(sName));
+    }
+    assertEquals(mExpected, mDecoded);
+  }
+
+  @Test
+  public void testPostOverH2c() throws IOException {
+    H2cLoopbackServer mServer = new H2cLoopbackServer().setReplySize(1000);
+    Http2ConnectionPool mPool = new Http2ConnectionPool();
+
+    try {
+      for (int i = 0; i < 3; i++) {
+        HashMap<String, String> mArgs = new HashMap<String, String>();
+        mArgs.put("request", String.valueOf(i));
+        HttpConfiguration mConf = new HttpConfiguration(
+            mServer.getEndPoint("/upload"), mArgs, new ArrayList<File>(),
+            null, "BOUNDARY", 5000, 5000).setHttp2ConnectionPool(mPool);
+        HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+
+        assertEquals(HttpEngine.SUCCESS, mEngine.run());
+        assertEquals(200, mEngine.getResponseCode());
+        assertEquals(1000, mEngine.getResponse().length());
+        assertEquals(String.valueOf(new MultipartEntity("BOUNDARY")
+                .addText("request", String.valueOf(i)).getContentLength()),
+            mEngine.getResponseHeader("x-received-bytes"));
+      }
+      assertEquals(1, mPool.getMissCount());
+    } finally {
+      mPool.evictAll();
+      mServer.stop();
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected static LinkedHashMap<String, String> _headers(String... aPairs) {
+    LinkedHashMap<String, String> mHeaders =
+        new LinkedHashMap<String, String>();
+    for (int i = 0; i < aPairs.length; i += 2) {
+      mHeaders.put(aPairs[i], aPairs[i + 1]);
+    }
+
+    return mHeaders;
+  }
+
+  protected static LinkedHashMap<String, String> _decode(
+      Hpack.Decoder mDecoder, String sHex) throws IOException {
+    byte[] aBlock = new byte[sHex.length() / 2];
+    for (int i = 0; i < aBlock.length; i++) {
+      aBlock[i] = (byte) Integer.parseInt(sHex.substring(2 * i, 2 * i + 2),
+          16);
+    }
+
+    LinkedHashMap<String, String> mHeaders =
+        new LinkedHashMap<String, String>();
+    mDecoder.decode(aBlock, 0, aBlock.length, mHeaders);
+    return mHeaders;
+  }
+}
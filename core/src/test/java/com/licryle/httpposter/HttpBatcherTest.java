@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link HttpBatcher} splits a multipart/mixed answer between the
+ * items of a batch, which configurations it sends within one, and that its
+ * items can be cancelled through the {@link HttpRequestRegistry}.
+ */
+public class HttpBatcherTest {
+  protected static final String BOUNDARY = "batch_42";
+  protected static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+  protected HttpBatcher _mBatcher;
+  protected _Recorder _mRecorder;
+
+  @Before
+  public void setUp() {
+    _mBatcher = new HttpBatcher(10, TimeUnit.MINUTES.toMillis(1), 1);
+    _mRecorder = new _Recorder();
+  }
+
+  @After
+  public void tearDown() {
+    _mBatcher.shutdown();
+  }
+
+  @Test
+  public void testSplitBodyStartingWithDelimiter() {
+    byte[] aBody = _ascii("--" + BOUNDARY + "\r\n" +
+        "Content-ID: item0\r\n\r\n" +
+        "first\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "Content-ID: item1\r\n\r\n" +
+        "second\r\n" +
+        "--" + BOUNDARY + "--\r\n");
+
+    ArrayList<HttpBatcher._Part> aParts = HttpBatcher._split(aBody, BOUNDARY);
+
+    assertEquals(2, aParts.size());
+    assertEquals("item0", aParts.get(0)._mHeaders.get("content-id"));
+    assertEquals("first", _text(aBody, aParts.get(0)));
+    assertEquals("item1", aParts.get(1)._mHeaders.get("content-id"));
+    assertEquals("second", _text(aBody, aParts.get(1)));
+  }
+
+  @Test
+  public void testSplitIgnoresPreambleAndEpilogue() {
+    byte[] aBody = _ascii("This is the preamble.\r\n" +
+        "--" + BOUNDARY + "  \r\n" +
+        "X-Status: 201\r\n\r\n" +
+        "created\r\n" +
+        "--" + BOUNDARY + "--\r\n" +
+        "This is the epilogue.\r\n");
+
+    ArrayList<HttpBatcher._Part> aParts = HttpBatcher._split(aBody, BOUNDARY);
+
+    assertEquals(1, aParts.size());
+    assertEquals("201", aParts.get(0)._mHeaders.get("x-status"));
+    assertEquals("created", _text(aBody, aParts.get(0)));
+  }
+
+  @Test
+  public void testSplitDropsPartWithoutClosingDelimiter() {
+    byte[] aBody = _ascii("--" + BOUNDARY + "\r\n\r\n" +
+        "complete\r\n" +
+        "--" + BOUNDARY + "\r\n\r\n" +
+        "truncated");
+
+    ArrayList<HttpBatcher._Part> aParts = HttpBatcher._split(aBody, BOUNDARY);
+
+    assertEquals(1, aParts.size());
+    assertEquals("complete", _text(aBody, aParts.get(0)));
+  }
+
+  @Test
+  public void testSplitWithoutDelimiter() {
+    assertTrue(HttpBatcher._split(_ascii("not multipart"), BOUNDARY)
+        .isEmpty());
+  }
+
+  @Test
+  public void testPartsWithoutContentIdFollowPositions() {
+    ArrayList<HttpBatcher._Item> aItems = _newItems(2);
+    _dispatch(aItems, 200, "--" + BOUNDARY + "\r\n\r\n" +
+        "first\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "Content-Type: text/plain\r\n\r\n" +
+        "second\r\n" +
+        "--" + BOUNDARY + "--\r\n");
+
+    assertEquals("200 first", _mRecorder.get(aItems.get(0)));
+    assertEquals("200 second", _mRecorder.get(aItems.get(1)));
+  }
+
+  @Test
+  public void testContentIdOverridesPosition() {
+    ArrayList<HttpBatcher._Item> aItems = _newItems(2);
+    _dispatch(aItems, 200, "--" + BOUNDARY + "\r\n" +
+        "Content-ID: <item1>\r\n\r\n" +
+        "second\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "Content-ID: item0\r\n\r\n" +
+        "first\r\n" +
+        "--" + BOUNDARY + "--\r\n");
+
+    assertEquals("200 first", _mRecorder.get(aItems.get(0)));
+    assertEquals("200 second", _mRecorder.get(aItems.get(1)));
+  }
+
+  @Test
+  public void testOutOfRangeItemIsIgnored() {
+    ArrayList<HttpBatcher._Item> aItems = _newItems(2);
+    _dispatch(aItems, 200, "--" + BOUNDARY + "\r\n" +
+        "Content-ID: item0\r\n\r\n" +
+        "first\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "Content-ID: item7\r\n\r\n" +
+        "stray\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "Content-ID: other\r\n\r\n" +
+        "stray\r\n" +
+        "--" + BOUNDARY + "--\r\n");
+
+    assertEquals("200 first", _mRecorder.get(aItems.get(0)));
+    assertEquals("failure " + HttpEngine.FAILURE_RESPONSE,
+        _mRecorder.get(aItems.get(1)));
+  }
+
+  @Test
+  public void testMissingClosingDelimiterFailsLastItem() {
+    ArrayList<HttpBatcher._Item> aItems = _newItems(2);
+    _dispatch(aItems, 200, "--" + BOUNDARY + "\r\n\r\n" +
+        "first\r\n" +
+        "--" + BOUNDARY + "\r\n\r\n" +
+        "second");
+
+    assertEquals("200 first", _mRecorder.get(aItems.get(0)));
+    assertEquals("failure " + HttpEngine.FAILURE_RESPONSE,
+        _mRecorder.get(aItems.get(1)));
+  }
+
+  @Test
+  public void testStatusPerItem() {
+    ArrayList<HttpBatcher._Item> aItems = _newItems(3);
+    _dispatch(aItems, 207, "--" + BOUNDARY + "\r\n" +
+        "X-Status: 201\r\n\r\n" +
+        "created\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "x-status: 404\r\n\r\n" +
+        "\r\n" +
+        "--" + BOUNDARY + "\r\n" +
+        "X-Status: none\r\n\r\n" +
+        "unknown\r\n" +
+        "--" + BOUNDARY + "--\r\n");
+
+    assertEquals("201 created", _mRecorder.get(aItems.get(0)));
+    assertEquals("404 ", _mRecorder.get(aItems.get(1)));
+    assertEquals("207 unknown", _mRecorder.get(aItems.get(2)));
+  }
+
+  @Test
+  public void testCharsetPerItem() {
+    ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+    _write(mBody, _ascii("--" + BOUNDARY + "\r\n" +
+        "Content-Type: text/plain; charset=ISO-8859-1\r\n\r\n"));
+    _write(mBody, "\u00e9t\u00e9".getBytes(LATIN_1));
+    _write(mBody, _ascii("\r\n--" + BOUNDARY + "\r\n\r\n"));
+    _write(mBody, "\u00e9t\u00e9 \u20ac".getBytes(
+        HttpResponseBody.DEFAULT_CHARSET));
+    _write(mBody, _ascii("\r\n--" + BOUNDARY + "--\r\n"));
+
+    ArrayList<HttpBatcher._Item> aItems = _newItems(2);
+    _dispatch(aItems, 200, "multipart/mixed; boundary=\"" + BOUNDARY + "\"",
+        mBody.toByteArray());
+
+    assertEquals("200 \u00e9t\u00e9", _mRecorder.get(aItems.get(0)));
+    assertEquals("200 \u00e9t\u00e9 \u20ac", _mRecorder.get(aItems.get(1)));
+  }
+
+  @Test
+  public void testAnswerNotMultipartGoesToEveryItem() {
+    ArrayList<HttpBatcher._Item> aItems = _newItems(2);
+    _dispatch(aItems, 500, "text/plain; charset=ISO-8859-1",
+        "\u00e9chec".getBytes(LATIN_1));
+
+    assertEquals("500 \u00e9chec", _mRecorder.get(aItems.get(0)));
+    assertEquals("500 \u00e9chec", _mRecorder.get(aItems.get(1)));
+  }
+
+  @Test
+  public void testSingleRequestSettingsAreNotBatched() throws IOException {
+    assertTrue(_mBatcher.isBatchable(_newConfiguration()));
+
+    assertFalse(_mBatcher.isBatchable(_newConfiguration()
+        .setCompression(new RequestCompression(RequestCompression.GZIP,
+            RequestCompression.PER_REQUEST))));
+    assertFalse(_mBatcher.isBatchable(_newConfiguration()
+        .setBandwidthLimiter(new BandwidthLimiter(1024))));
+    assertFalse(_mBatcher.isBatchable(_newConfiguration()
+        .setMaxUploadRate(1024)));
+    assertFalse(_mBatcher.isBatchable(_newConfiguration()
+        .setConcurrencyLimiter(new ConcurrencyLimiter())));
+    assertFalse(_mBatcher.isBatchable(_newConfiguration()
+        .setProgressReporter(new ProgressReporter(null))));
+  }
+
+  @Test
+  public void testCancelItemThroughRegistry() throws Exception {
+    LoopbackServer mServer = new LoopbackServer();
+    try {
+      CountDownLatch mDone = new CountDownLatch(2);
+      _mRecorder._mDone = mDone;
+      URL mEndPoint = mServer.getEndPoint("/batch");
+
+      int iCancelled = _mBatcher.post(_newConfiguration(mEndPoint));
+      int iKept = _mBatcher.post(_newConfiguration(mEndPoint));
+      HttpRequestRegistry mRegistry = HttpRequestRegistry.getDefault();
+      assertTrue(mRegistry.get(iCancelled) != null);
+
+      assertTrue(mRegistry.cancel(iCancelled));
+      _mBatcher.flush();
+
+      assertTrue(mDone.await(10, TimeUnit.SECONDS));
+      assertEquals("failure " + HttpEngine.FAILURE_CANCELLED,
+          _mRecorder.get(iCancelled));
+      // Left alone, the other item is posted as is.
+      assertEquals("200 ok", _mRecorder.get(iKept));
+      assertNull(mRegistry.get(iCancelled));
+      assertNull(mRegistry.get(iKept));
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Helper Classes *******************************
+   ****************************************************************************/
+
+  /** Records the outcome of each request, as "<code> <body>" or
+   * "failure <error>". */
+  protected static class _Recorder implements HttpListener {
+    protected final HashMap<Integer, String> _mOutcomes =
+        new HashMap<Integer, String>();
+    protected volatile CountDownLatch _mDone = null;
+
+    @Override
+    public void onStartTransfer(int iInstance) { }
+
+    @Override
+    public void onProgress(int iInstance, int iProgress) { }
+
+    @Override
+    public void onFailure(int iInstance, long lErrorCode) {
+      _record(iInstance, "failure " + lErrorCode);
+    }
+
+    @Override
+    public void onResponse(int iInstance, int iResponseCode,
+                           String sResponse) {
+      _record(iInstance, iResponseCode + " " + sResponse);
+    }
+
+    public synchronized String get(int iInstance) {
+      return _mOutcomes.get(iInstance);
+    }
+
+    public String get(HttpEngine mEngine) {
+      return get(mEngine.getInstanceId());
+    }
+
+    protected void _record(int iInstance, String sOutcome) {
+      synchronized (this) {
+        _mOutcomes.put(iInstance, sOutcome);
+      }
+      if (_mDone != null) {
+        _mDone.countDown();
+      }
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected HttpConfiguration _newConfiguration() throws IOException {
+    return _newConfiguration(new URL("http://localhost/batch"));
+  }
+
+  protected HttpConfiguration _newConfiguration(URL mEndPoint) {
+    return new HttpConfiguration(mEndPoint, new HashMap<String, String>(),
+        new ArrayList<File>(), _mRecorder, null, 5000, 5000);
+  }
+
+  /** @return iCount items, registered as {@link HttpBatcher#post} does. */
+  protected ArrayList<HttpBatcher._Item> _newItems(int iCount) {
+    ArrayList<HttpBatcher._Item> aItems = new ArrayList<HttpBatcher._Item>();
+    for (int i = 0; i < iCount; i++) {
+      try {
+        HttpBatcher._Item mItem = new HttpBatcher._Item(
+            HttpEngine.nextInstanceId(), _newConfiguration());
+        mItem._register();
+        aItems.add(mItem);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return aItems;
+  }
+
+  /** Dispatches a multipart/mixed answer of the batch to aItems. */
+  protected void _dispatch(ArrayList<HttpBatcher._Item> aItems, int iCode,
+                           String sBody) {
+    _dispatch(aItems, iCode, "multipart/mixed; boundary=" + BOUNDARY,
+        _ascii(sBody));
+  }
+
+  /** Dispatches the answer of the batch to aItems, and checks that they
+   * all left the registry. */
+  protected void _dispatch(ArrayList<HttpBatcher._Item> aItems, int iCode,
+                           String sContentType, byte[] aBody) {
+    HttpEngine mEngine = new HttpEngine(aItems.get(0).getConfiguration(), 0);
+    mEngine._iResponseCode = iCode;
+    mEngine._mContent = aBody;
+    mEngine._mResponseHeaders.put("content-type", sContentType);
+
+    _mBatcher._dispatchAnswer(aItems, mEngine);
+
+    for (HttpBatcher._Item mItem : aItems) {
+      assertNull(HttpRequestRegistry.getDefault().get(mItem.getInstanceId()));
+    }
+  }
+
+  protected static String _text(byte[] aBody, HttpBatcher._Part mPart) {
+    return new String(aBody, mPart._iStart, mPart._iEnd - mPart._iStart,
+        LATIN_1);
+  }
+
+  protected static byte[] _ascii(String sText) {
+    return sText.getBytes(LATIN_1);
+  }
+
+  protected static void _write(ByteArrayOutputStream mOut, byte[] aData) {
+    mOut.write(aData, 0, aData.length);
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process HTTP server on the loopback interface, standing in for an upload
+ * end point in the tests and the end-to-end benchmarks. It accepts any POST
+ * on any path, consumes the body and answers 200 with a body of the
+ * configured size.
+ *
+ * Its behaviour can be changed between iterations to simulate:
+ *  - slow consumers, pausing after each read of the request body;
+ *  - chunked replies, without Content-Length;
+ *  - large replies.
+ *
+ * Connections are kept alive, so that pooled and non-pooled requests can be
+ * compared.
+ */
+public class LoopbackServer {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Size of the reads of the request body, and of the writes of the reply. */
+  public static final int IO_SIZE = 64 * 1024;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  protected final HttpServer _mServer;
+  protected final ExecutorService _mExecutor;
+
+  /** Body of the replies. */
+  protected volatile byte[] _aReply = "ok".getBytes();
+  /** Whether replies are chunked instead of having a Content-Length. */
+  protected volatile boolean _bChunked = false;
+  /** Pause in ns after each read of IO_SIZE bytes of the request body. */
+  protected volatile long _lReadPauseNs = 0;
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Starts a server on an ephemeral port of the loopback interface.
+   *
+   * @throws IOException When the port can't be bound.
+   */
+  public LoopbackServer() throws IOException {
+    _mServer = HttpServer.create(
+        new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1024);
+    _mExecutor = Executors.newCachedThreadPool();
+
+    _mServer.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange mExchange) throws IOException {
+        try {
+          _handle(mExchange);
+        } finally {
+          mExchange.close();
+        }
+      }
+    });
+    _mServer.setExecutor(_mExecutor);
+    _mServer.start();
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * @param sPath Path of the end point, starting with a /.
+   * @return The URL of sPath on this server.
+   */
+  public URL getEndPoint(String sPath) throws IOException {
+    return new URL("http", "127.0.0.1", _mServer.getAddress().getPort(),
+        sPath);
+  }
+
+  /**
+   * @param iSize Size in bytes of the body of the replies.
+   * @return This server, to chain calls.
+   */
+  public LoopbackServer setReplySize(int iSize) {
+    byte[] aReply = new byte[iSize];
+    Arrays.fill(aReply, (byte) 'x');
+    _aReply = aReply;
+    return this;
+  }
+
+  /**
+   * @param bChunked Whether to send replies with chunked encoding.
+   * @return This server, to chain calls.
+   */
+  public LoopbackServer setChunked(boolean bChunked) {
+    _bChunked = bChunked;
+    return this;
+  }
+
+  /**
+   * @param lPauseNs Pause in ns after each read of {@link #IO_SIZE} bytes of
+   *                 the request body, 0 to read it as fast as possible.
+   * @return This server, to chain calls.
+   */
+  public LoopbackServer setReadPause(long lPauseNs) {
+    _lReadPauseNs = lPauseNs;
+    return this;
+  }
+
+  /** Stops the server and closes its connections. */
+  public void stop() {
+    _mServer.stop(0);
+    _mExecutor.shutdownNow();
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  protected void _handle(HttpExchange mExchange) throws IOException {
+    byte[] aBuffer = new byte[IO_SIZE];
+    InputStream mIn = mExchange.getRequestBody();
+    long lPauseNs = _lReadPauseNs;
+    int iRead;
+    while ((iRead = mIn.read(aBuffer)) != -1) {
+      _consume(mExchange, aBuffer, iRead);
+      if (lPauseNs > 0) {
+        LockSupport.parkNanos(lPauseNs);
+      }
+    }
+
+    byte[] aReply = _aReply;
+    mExchange.getResponseHeaders().set("Content-Type",
+        "text/plain; charset=utf-8");
+    // For sendResponseHeaders, 0 means chunked and -1 means no body.
+    mExchange.sendResponseHeaders(200, _bChunked ? 0
+        : aReply.length > 0 ? aReply.length : -1);
+
+    OutputStream mOut = mExchange.getResponseBody();
+    for (int iOffset = 0; iOffset < aReply.length; iOffset += IO_SIZE) {
+      mOut.write(aReply, iOffset, Math.min(IO_SIZE, aReply.length - iOffset));
+    }
+    mOut.close();
+  }
+
+  /**
+   * Called with the body of each request as it is received. Does nothing,
+   * override to inspect uploads.
+   */
+  protected void _consume(HttpExchange mExchange, byte[] aData, int iCount) {
+  }
+}
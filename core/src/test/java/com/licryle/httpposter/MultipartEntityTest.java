@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link MultipartEntity} writes the same bytes as httpmime in
+ * browser compatible mode, which it replaced, through each of its sinks and
+ * on the wire.
+ */
+public class MultipartEntityTest {
+  protected static final String BOUNDARY = "-------1.234E10-------";
+
+  protected File _mDir;
+  protected final ArrayList<File> _aFiles = new ArrayList<File>();
+  protected final LinkedHashMap<String, String> _mArgs =
+      new LinkedHashMap<String, String>();
+
+  @Before
+  public void setUp() throws IOException {
+    _mDir = File.createTempFile("multipart", "");
+    _mDir.delete();
+    _mDir.mkdir();
+
+    _aFiles.add(_createFile("photo.jpg", 200000));
+    _aFiles.add(_createFile("\u00e9t\u00e9 2015.bin", 150001));
+    _aFiles.add(_createFile("empty", 0));
+
+    _mArgs.put("lat", "40.7");
+    _mArgs.put("n\u00e4me", "v\u00e4lue \u20ac");
+    _mArgs.put("empty", "");
+  }
+
+  @After
+  public void tearDown() {
+    for (File mFile : _aFiles) {
+      mFile.delete();
+    }
+    _mDir.delete();
+  }
+
+  @Test
+  public void testStreamMatchesHttpmime() throws IOException {
+    ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+    _newEntity().writeTo(mOut);
+
+    assertArrayEquals(_writeHttpmime(), mOut.toByteArray());
+  }
+
+  @Test
+  public void testChannelMatchesHttpmime() throws IOException {
+    ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+    _newEntity().writeTo(Channels.newChannel(mOut));
+
+    assertArrayEquals(_writeHttpmime(), mOut.toByteArray());
+  }
+
+  @Test
+  public void testLengthAndType() throws IOException {
+    MultipartEntity mEntity = _newEntity();
+    byte[] aExpected = _writeHttpmime();
+
+    assertEquals(aExpected.length, mEntity.getContentLength());
+    assertEquals("multipart/form-data; boundary=" + BOUNDARY,
+        mEntity.getContentType());
+  }
+
+  @Test
+  public void testBuffersMatchHttpmime() throws IOException {
+    byte[] aData = new byte[100000];
+    new Random(3).nextBytes(aData);
+    ByteBuffer mDirect = ByteBuffer.allocateDirect(aData.length);
+    mDirect.put(aData).flip();
+
+    MultipartEntity mEntity = new MultipartEntity(BOUNDARY)
+        .addBytes("heap", "heap.bin", "application/octet-stream", aData)
+        .addBuffer("direct", "direct.bin", "application/octet-stream",
+            mDirect);
+    byte[] aExpected = _write(_newHttpmime()
+        .addBinaryBody("heap", aData, ContentType.DEFAULT_BINARY, "heap.bin")
+        .addBinaryBody("direct", aData, ContentType.DEFAULT_BINARY,
+            "direct.bin"));
+
+    ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+    mEntity.writeTo(mStream);
+    ByteArrayOutputStream mChannel = new ByteArrayOutputStream();
+    mEntity.writeTo(Channels.newChannel(mChannel));
+
+    assertArrayEquals(aExpected, mStream.toByteArray());
+    assertArrayEquals(aExpected, mChannel.toByteArray());
+    assertEquals(0, mDirect.position());
+  }
+
+  @Test
+  public void testPostedBodyMatchesHttpmime() throws IOException {
+    final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+    LoopbackServer mServer = new LoopbackServer() {
+      @Override
+      protected void _consume(HttpExchange mExchange, byte[] aData,
+                              int iCount) {
+        synchronized (mReceived) {
+          mReceived.write(aData, 0, iCount);
+        }
+      }
+    };
+
+    try {
+      HttpConfiguration mConf = new HttpConfiguration(
+          mServer.getEndPoint("/upload"), _mArgs, _aFiles, null, BOUNDARY,
+          5000, 5000);
+      HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+
+      assertEquals(HttpEngine.SUCCESS, mEngine.run());
+      assertEquals(200, mEngine.getResponseCode());
+      synchronized (mReceived) {
+        assertArrayEquals(_writeHttpmime(), mReceived.toByteArray());
+      }
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  @Test
+  public void testDirectBufferHandedToSink() throws IOException {
+    byte[] aData = new byte[100000];
+    new Random(4).nextBytes(aData);
+    ByteBuffer mDirect = ByteBuffer.allocateDirect(aData.length);
+    mDirect.put(aData).flip();
+
+    final ByteArrayOutputStream mTransferred = new ByteArrayOutputStream();
+    _Sink mSink = new _Sink() {
+      @Override
+      public void transferFrom(ByteBuffer mData) throws IOException {
+        assertTrue(mData.isDirect());
+        while (mData.hasRemaining()) {
+          int iByte = mData.get();
+          write(iByte);
+          mTransferred.write(iByte);
+        }
+      }
+    };
+    new MultipartEntity(BOUNDARY)
+        .addBuffer("direct", "direct.bin", "application/octet-stream",
+            mDirect)
+        .writeTo(mSink);
+
+    assertArrayEquals(aData, mTransferred.toByteArray());
+    assertArrayEquals(_write(_newHttpmime().addBinaryBody("direct", aData,
+        ContentType.DEFAULT_BINARY, "direct.bin")), mSink.toByteArray());
+    assertEquals(0, mDirect.position());
+  }
+
+  @Test
+  public void testDirectBufferPostedOnPooledConnection() throws IOException {
+    byte[] aData = new byte[300000];
+    new Random(5).nextBytes(aData);
+    ByteBuffer mDirect = ByteBuffer.allocateDirect(aData.length);
+    mDirect.put(aData).flip();
+
+    final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+    LoopbackServer mServer = new LoopbackServer() {
+      @Override
+      protected void _consume(HttpExchange mExchange, byte[] aData,
+                              int iCount) {
+        synchronized (mReceived) {
+          mReceived.write(aData, 0, iCount);
+        }
+      }
+    };
+
+    try {
+      HttpConfiguration mConf = new HttpConfiguration(
+          mServer.getEndPoint("/upload"), _mArgs, _aFiles, null, BOUNDARY,
+          5000, 5000)
+          .setConnectionPool(new HttpConnectionPool())
+          .addPart(HttpPart.buffer("tile", "tile.bin",
+              "application/octet-stream", mDirect));
+      HttpEngine mEngine = new HttpEngine(mConf, HttpEngine.nextInstanceId());
+
+      assertEquals(HttpEngine.SUCCESS, mEngine.run());
+      MultipartEntityBuilder mBuilder = _newHttpmime();
+      for (int i = 0; i < _aFiles.size(); i++) {
+        mBuilder.addBinaryBody("file_" + i, _aFiles.get(i),
+            ContentType.DEFAULT_BINARY, _aFiles.get(i).getName());
+      }
+      for (Map.Entry<String, String> mArg : _mArgs.entrySet()) {
+        mBuilder.addTextBody(mArg.getKey(), mArg.getValue(),
+            ContentType.MULTIPART_FORM_DATA);
+      }
+      mBuilder.addBinaryBody("tile", aData, ContentType.DEFAULT_BINARY,
+          "tile.bin");
+      synchronized (mReceived) {
+        assertArrayEquals(_write(mBuilder), mReceived.toByteArray());
+      }
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Helper Classes *******************************
+   ****************************************************************************/
+
+  /** Stream accepting transfers, like the streams of {@link HttpConnection}.
+   * File regions are read into it. */
+  protected abstract static class _Sink extends ByteArrayOutputStream
+      implements FileChannelSink {
+    @Override
+    public boolean canTransfer() { return true; }
+
+    @Override
+    public void transferFrom(FileChannel mFile, long lPosition, long lCount)
+        throws IOException {
+      ByteBuffer mBuffer = ByteBuffer.allocate((int) lCount);
+      while (mBuffer.hasRemaining()) {
+        mFile.read(mBuffer, lPosition + mBuffer.position());
+      }
+      write(mBuffer.array(), 0, mBuffer.capacity());
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** @return The entity HttpEngine builds for the files and arguments. */
+  protected MultipartEntity _newEntity() throws IOException {
+    MultipartEntity mEntity = new MultipartEntity(BOUNDARY);
+    for (int i = 0; i < _aFiles.size(); i++) {
+      mEntity.addFile("file_" + i, _aFiles.get(i));
+    }
+    for (Map.Entry<String, String> mArg : _mArgs.entrySet()) {
+      mEntity.addText(mArg.getKey(), mArg.getValue());
+    }
+
+    return mEntity;
+  }
+
+  /** @return The same form, written by httpmime. */
+  protected byte[] _writeHttpmime() throws IOException {
+    MultipartEntityBuilder mBuilder = _newHttpmime();
+    for (int i = 0; i < _aFiles.size(); i++) {
+      mBuilder.addBinaryBody("file_" + i, _aFiles.get(i),
+          ContentType.DEFAULT_BINARY, _aFiles.get(i).getName());
+    }
+    for (Map.Entry<String, String> mArg : _mArgs.entrySet()) {
+      mBuilder.addTextBody(mArg.getKey(), mArg.getValue(),
+          ContentType.MULTIPART_FORM_DATA);
+    }
+
+    return _write(mBuilder);
+  }
+
+  protected static MultipartEntityBuilder _newHttpmime() {
+    return MultipartEntityBuilder.create()
+        .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+        .setBoundary(BOUNDARY);
+  }
+
+  protected static byte[] _write(MultipartEntityBuilder mBuilder)
+      throws IOException {
+    ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+    mBuilder.build().writeTo(mOut);
+    return mOut.toByteArray();
+  }
+
+  protected File _createFile(String sName, int iSize) throws IOException {
+    byte[] aData = new byte[iSize];
+    new Random(iSize).nextBytes(aData);
+
+    File mFile = new File(_mDir, sName);
+    FileOutputStream mOut = new FileOutputStream(mFile);
+    try {
+      mOut.write(aData);
+    } finally {
+      mOut.close();
+    }
+
+    return mFile;
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link ResumableUpload}s against a {@link LoopbackServer} implementing
+ * the server side of the protocol, which can drop ranges or lose data.
+ */
+public class ResumableUploadTest {
+  protected static final int FILE_SIZE = 10000;
+  protected static final long CHUNK_SIZE = 3000;
+
+  protected File _mFile;
+  protected byte[] _aContent;
+
+  @Before
+  public void setUp() throws IOException {
+    _aContent = new byte[FILE_SIZE];
+    new Random(9).nextBytes(_aContent);
+
+    _mFile = File.createTempFile("resumable", ".bin");
+    FileOutputStream mOut = new FileOutputStream(_mFile);
+    try {
+      mOut.write(_aContent);
+    } finally {
+      mOut.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    _mFile.delete();
+  }
+
+  @Test
+  public void testRangesAreAcknowledged() throws IOException {
+    _UploadServer mServer = new _UploadServer();
+    ResumableUpload mUpload = new ResumableUpload(CHUNK_SIZE, 3);
+    String sUploadId = mUpload.getSession(_mFile).getUploadId();
+
+    try {
+      assertEquals(HttpEngine.SUCCESS, _run(mServer, mUpload));
+
+      assertEquals(Arrays.asList(0L, 3000L, 6000L, 9000L),
+          mServer.getOffsets());
+      assertEquals(0, mServer.getQueries());
+      assertArrayEquals(_aContent, mServer.getStored(sUploadId));
+      assertTrue(mServer.getForm().contains(sUploadId));
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  @Test
+  public void testResumesAfterFailedRange() throws IOException {
+    // Every range is cut in the middle: each failure still makes progress.
+    _UploadServer mServer = new _UploadServer() {
+      @Override
+      protected int _keep(int iIndex, long lOffset, int iCount) {
+        return (iCount + 1) / 2;
+      }
+    };
+    ResumableUpload mUpload = new ResumableUpload(CHUNK_SIZE, 1);
+    String sUploadId = mUpload.getSession(_mFile).getUploadId();
+
+    try {
+      assertEquals(HttpEngine.SUCCESS, _run(mServer, mUpload));
+
+      ArrayList<Long> aOffsets = mServer.getOffsets();
+      assertEquals(Arrays.asList(0L, 1500L, 3000L), aOffsets.subList(0, 3));
+      assertEquals(aOffsets.size() - 1, mServer.getQueries());
+      assertArrayEquals(_aContent, mServer.getStored(sUploadId));
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  @Test
+  public void testOffsetCorrectedByServer() throws IOException {
+    // The server lost all but 1000 bytes when the second range comes.
+    _UploadServer mServer = new _UploadServer() {
+      @Override
+      protected long _rewind(int iIndex, long lStored) {
+        return iIndex == 1 ? 1000 : -1;
+      }
+    };
+    ResumableUpload mUpload = new ResumableUpload(CHUNK_SIZE, 3);
+    String sUploadId = mUpload.getSession(_mFile).getUploadId();
+
+    try {
+      assertEquals(HttpEngine.SUCCESS, _run(mServer, mUpload));
+
+      assertEquals(Arrays.asList(0L, 3000L, 1000L, 4000L, 7000L),
+          mServer.getOffsets());
+      assertEquals(0, mServer.getQueries());
+      assertArrayEquals(_aContent, mServer.getStored(sUploadId));
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  @Test
+  public void testGivesUpWithoutProgress() throws IOException {
+    _UploadServer mServer = new _UploadServer() {
+      @Override
+      protected int _keep(int iIndex, long lOffset, int iCount) {
+        return 0;
+      }
+    };
+    ResumableUpload mUpload = new ResumableUpload(CHUNK_SIZE, 3);
+
+    try {
+      assertNotEquals(HttpEngine.SUCCESS, _run(mServer, mUpload));
+
+      assertEquals(Arrays.asList(0L, 0L, 0L), mServer.getOffsets());
+      assertEquals(mUpload.getMaxAttempts(), mServer.getQueries());
+      assertEquals(0, mUpload.getSession(_mFile).getAcknowledged());
+      assertEquals(null, mServer.getForm());
+    } finally {
+      mServer.stop();
+    }
+  }
+
+  /*****************************************************************************
+   ****************************** Helper Classes *******************************
+   ****************************************************************************/
+
+  /**
+   * Server side of the protocol described in {@link ResumableUpload}, storing
+   * the uploads in memory. Override {@link #_keep} and {@link #_rewind} to
+   * make it fail.
+   */
+  protected static class _UploadServer extends LoopbackServer {
+    /** Bytes stored, by upload id. */
+    protected final HashMap<String, ByteArrayOutputStream> _mUploads =
+        new HashMap<String, ByteArrayOutputStream>();
+    /** Offsets of the ranges received, in order. */
+    protected final ArrayList<Long> _aOffsets = new ArrayList<Long>();
+    protected int _iQueries = 0;
+    /** Body of the final multipart form, once received. */
+    protected String _sForm;
+
+    public _UploadServer() throws IOException {
+    }
+
+    public synchronized ArrayList<Long> getOffsets() {
+      return new ArrayList<Long>(_aOffsets);
+    }
+
+    public synchronized int getQueries() { return _iQueries; }
+    public synchronized String getForm() { return _sForm; }
+
+    public synchronized byte[] getStored(String sUploadId) {
+      return _getUpload(sUploadId).toByteArray();
+    }
+
+    @Override
+    protected synchronized void _handle(HttpExchange mExchange)
+        throws IOException {
+      Headers mHeaders = mExchange.getRequestHeaders();
+      String sUploadId = mHeaders.getFirst(ResumableUpload.HEADER_ID);
+      String sOffset = mHeaders.getFirst(ResumableUpload.HEADER_OFFSET);
+      byte[] aBody = _read(mExchange.getRequestBody());
+
+      if (sUploadId == null) {
+        _sForm = new String(aBody, "UTF-8");
+        _answer(mExchange, 200, -1);
+        return;
+      }
+
+      ByteArrayOutputStream mStored = _getUpload(sUploadId);
+      if (sOffset == null) {
+        _iQueries++;
+        _answer(mExchange, 200, mStored.size());
+        return;
+      }
+
+      long lOffset = Long.parseLong(sOffset);
+      int iIndex = _aOffsets.size();
+      _aOffsets.add(lOffset);
+      if (lOffset != mStored.size()) {
+        _answer(mExchange, 409, mStored.size());
+        return;
+      }
+
+      long lRewind = _rewind(iIndex, mStored.size());
+      if (lRewind >= 0) {
+        byte[] aKept = Arrays.copyOf(mStored.toByteArray(), (int) lRewind);
+        mStored.reset();
+        mStored.write(aKept);
+        _answer(mExchange, 409, lRewind);
+        return;
+      }
+
+      int iKeep = _keep(iIndex, lOffset, aBody.length);
+      mStored.write(aBody, 0, iKeep);
+      if (iKeep < aBody.length) {
+        // Closes the connection without an answer.
+        throw new IOException("Range dropped");
+      }
+      _answer(mExchange, 200, mStored.size());
+    }
+
+    /**
+     * @param iIndex Index of the range among all those received.
+     * @param lOffset Offset of the range in the file.
+     * @param iCount Size of the range.
+     * @return How many bytes of the range to store. If fewer than iCount,
+     * the connection is then dropped without an answer.
+     */
+    protected int _keep(int iIndex, long lOffset, int iCount) {
+      return iCount;
+    }
+
+    /**
+     * @param iIndex Index of the range among all those received.
+     * @param lStored Number of bytes stored so far.
+     * @return The number of bytes to go back to, answering 409 with it
+     * instead of storing the range, or -1 to store it.
+     */
+    protected long _rewind(int iIndex, long lStored) {
+      return -1;
+    }
+
+    protected ByteArrayOutputStream _getUpload(String sUploadId) {
+      ByteArrayOutputStream mStored = _mUploads.get(sUploadId);
+      if (mStored == null) {
+        mStored = new ByteArrayOutputStream();
+        _mUploads.put(sUploadId, mStored);
+      }
+
+      return mStored;
+    }
+
+    protected static byte[] _read(InputStream mIn) throws IOException {
+      ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+      byte[] aBuffer = new byte[IO_SIZE];
+      int iRead;
+      while ((iRead = mIn.read(aBuffer)) != -1) {
+        mBody.write(aBuffer, 0, iRead);
+      }
+
+      return mBody.toByteArray();
+    }
+
+    /** Answers with no body, and lOffset in X-Upload-Offset unless -1. */
+    protected static void _answer(HttpExchange mExchange, int iCode,
+                                  long lOffset) throws IOException {
+      if (lOffset >= 0) {
+        mExchange.getResponseHeaders().set(ResumableUpload.HEADER_OFFSET,
+            String.valueOf(lOffset));
+      }
+      mExchange.sendResponseHeaders(iCode, -1);
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** @return The result of posting _mFile to mServer as mUpload. */
+  protected long _run(LoopbackServer mServer, ResumableUpload mUpload)
+      throws IOException {
+    ArrayList<File> aFiles = new ArrayList<File>();
+    aFiles.add(_mFile);
+    HashMap<String, String> mArgs = new HashMap<String, String>();
+    mArgs.put("name", "resumable");
+
+    HttpConfiguration mConf = new HttpConfiguration(
+        mServer.getEndPoint("/upload"), mArgs, aFiles, null,
+        "-------1.234E10-------", 5000, 5000)
+        .setResumableUpload(mUpload);
+
+    return new HttpEngine(mConf, HttpEngine.nextInstanceId()).run();
+  }
+}
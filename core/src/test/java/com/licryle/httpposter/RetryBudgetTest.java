@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that {@link RetryBudget} caps retries at its ratio of the requests,
+ * plus a floor that doesn't build up while idle.
+ */
+public class RetryBudgetTest {
+  @Test
+  public void testFloorDoesNotAccumulate() {
+    RetryBudget mBudget = new RetryBudget(0.2, 10, 100);
+    _idle(mBudget, 60);
+
+    assertEquals(10, _withdrawAll(mBudget));
+  }
+
+  @Test
+  public void testRetriesFollowRequests() {
+    RetryBudget mBudget = new RetryBudget(0.25, 10, 100);
+    _withdrawAll(mBudget);
+
+    for (int i = 0; i < 100; i++) {
+      mBudget.deposit();
+    }
+    assertEquals(25, _withdrawAll(mBudget));
+    assertFalse(mBudget.tryWithdraw());
+  }
+
+  @Test
+  public void testEarnedBalanceIsCapped() {
+    RetryBudget mBudget = new RetryBudget(0.5, 10, 100);
+    _withdrawAll(mBudget);
+
+    for (int i = 0; i < 1000; i++) {
+      mBudget.deposit();
+    }
+    _idle(mBudget, 60);
+
+    assertEquals(110, _withdrawAll(mBudget));
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Makes mBudget behave as if it wasn't used for iSeconds. */
+  protected static void _idle(RetryBudget mBudget, int iSeconds) {
+    synchronized (mBudget) {
+      mBudget._lLastRefill -= TimeUnit.SECONDS.toNanos(iSeconds);
+    }
+  }
+
+  /** @return The number of retries mBudget allows right away. */
+  protected static int _withdrawAll(RetryBudget mBudget) {
+    int iCount = 0;
+    while (mBudget.tryWithdraw()) {
+      iCount++;
+    }
+
+    return iCount;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the delays {@link RetryPolicy} gives between attempts: which
+ * failures it retries, its capped and jittered backoff, Retry-After and the
+ * deadline. The policies have no budget and a seeded random source.
+ */
+public class RetryPolicyTest {
+  protected static final long SEED = 42;
+
+  protected RetryPolicy _mPolicy;
+
+  @Before
+  public void setUp() {
+    _mPolicy = _newPolicy();
+  }
+
+  @Test
+  public void testBackoffGrowsUpToCap() {
+    _mPolicy.setBackoff(500, 10000, 2).setJitter(0);
+
+    assertEquals(500, _mPolicy._backoff(1));
+    assertEquals(1000, _mPolicy._backoff(2));
+    assertEquals(2000, _mPolicy._backoff(3));
+    assertEquals(8000, _mPolicy._backoff(5));
+    assertEquals(10000, _mPolicy._backoff(6));
+    assertEquals(10000, _mPolicy._backoff(60));
+  }
+
+  @Test
+  public void testFullJitter() {
+    Random mRandom = new Random(SEED);
+    boolean bBelowHalf = false;
+    for (int i = 0; i < 1000; i++) {
+      int iAttempt = 1 + i % 8;
+      double dBackoff = Math.min(RetryPolicy.DEFAULT_MAX_BACKOFF,
+          RetryPolicy.DEFAULT_INITIAL_BACKOFF * Math.pow(2, iAttempt - 1));
+      long lDelay = _mPolicy._backoff(iAttempt);
+
+      assertEquals((long) (dBackoff * (1 - mRandom.nextDouble())), lDelay);
+      assertTrue(lDelay >= 0 && lDelay <= dBackoff);
+      bBelowHalf |= lDelay < dBackoff / 2;
+    }
+    assertTrue(bBelowHalf);
+  }
+
+  @Test
+  public void testPartialJitter() {
+    _mPolicy.setBackoff(1000, 1000, 2).setJitter(0.25);
+
+    for (int i = 0; i < 1000; i++) {
+      long lDelay = _mPolicy._backoff(3);
+      assertTrue(lDelay >= 750 && lDelay <= 1000);
+    }
+  }
+
+  @Test
+  public void testRetryableFailures() {
+    _mPolicy.setJitter(0);
+
+    assertEquals(500, _delay(1, HttpEngine.FAILURE_CONNECTION, 0));
+    assertEquals(500, _delay(1, HttpEngine.FAILURE_TRANSFER, 0));
+    assertEquals(1000, _delay(2, HttpEngine.FAILURE_RESPONSE, 503));
+    assertEquals(500, _delay(1, HttpEngine.FAILURE_RESPONSE, 429));
+    assertEquals(-1, _delay(1, HttpEngine.FAILURE_RESPONSE, 500));
+    assertEquals(-1, _delay(1, HttpEngine.FAILURE_RESPONSE, 404));
+    assertEquals(-1, _delay(1, HttpEngine.FAILURE_FILE_READ, 0));
+    assertEquals(-1, _delay(1, HttpEngine.SUCCESS, 200));
+
+    _mPolicy.setRetryOnTransferFailure(false).clearRetryableStatuses()
+        .retryOnStatusRange(500, 599);
+    assertEquals(-1, _delay(1, HttpEngine.FAILURE_TRANSFER, 0));
+    assertEquals(500, _delay(1, HttpEngine.FAILURE_RESPONSE, 500));
+    assertEquals(-1, _delay(1, HttpEngine.FAILURE_RESPONSE, 429));
+  }
+
+  @Test
+  public void testMaxAttempts() {
+    _mPolicy.setMaxAttempts(3).setJitter(0);
+
+    assertEquals(500, _delay(1, HttpEngine.FAILURE_CONNECTION, 0));
+    assertEquals(1000, _delay(2, HttpEngine.FAILURE_CONNECTION, 0));
+    assertEquals(-1, _delay(3, HttpEngine.FAILURE_CONNECTION, 0));
+  }
+
+  @Test
+  public void testRetryAfterSetsDelay() {
+    _mPolicy.setJitter(0);
+
+    assertEquals(7000, _mPolicy.getRetryDelay(1, HttpEngine.FAILURE_RESPONSE,
+        503, "7", 0));
+    assertEquals(500, _mPolicy.getRetryDelay(1, HttpEngine.FAILURE_RESPONSE,
+        503, "soon", 0));
+    // Only an answer of the server carries one.
+    assertEquals(500, _mPolicy.getRetryDelay(1,
+        HttpEngine.FAILURE_CONNECTION, 0, "7", 0));
+
+    _mPolicy.setHonourRetryAfter(false);
+    assertEquals(500, _mPolicy.getRetryDelay(1, HttpEngine.FAILURE_RESPONSE,
+        503, "7", 0));
+  }
+
+  @Test
+  public void testParseRetryAfterSeconds() {
+    assertEquals(120000, RetryPolicy.parseRetryAfter("120"));
+    assertEquals(5000, RetryPolicy.parseRetryAfter(" 5 "));
+    assertEquals(0, RetryPolicy.parseRetryAfter("0"));
+    assertEquals(0, RetryPolicy.parseRetryAfter("-3"));
+  }
+
+  @Test
+  public void testParseRetryAfterDate() {
+    long lNow = System.currentTimeMillis();
+    long lDelay = RetryPolicy.parseRetryAfter(_httpDate(lNow + 60000));
+    // The date is rounded down to the second.
+    assertTrue(lDelay > 58000 && lDelay <= 60000);
+
+    assertEquals(0, RetryPolicy.parseRetryAfter(_httpDate(lNow - 60000)));
+    assertEquals(0,
+        RetryPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+  }
+
+  @Test
+  public void testParseRetryAfterGarbage() {
+    assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+    assertEquals(-1, RetryPolicy.parseRetryAfter(""));
+    assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+    assertEquals(-1, RetryPolicy.parseRetryAfter("1.5"));
+    assertEquals(-1, RetryPolicy.parseRetryAfter("21 Oct 2015"));
+  }
+
+  @Test
+  public void testDeadlineCutsRetries() {
+    _mPolicy.setDeadline(10000).setJitter(0);
+
+    assertEquals(500, _mPolicy.getRetryDelay(1,
+        HttpEngine.FAILURE_CONNECTION, 0, null, 9000));
+    // The next attempt would start at the deadline.
+    assertEquals(-1, _mPolicy.getRetryDelay(1,
+        HttpEngine.FAILURE_CONNECTION, 0, null, 9500));
+    assertEquals(-1, _mPolicy.getRetryDelay(1,
+        HttpEngine.FAILURE_CONNECTION, 0, null, 12000));
+    // A Retry-After beyond the deadline gives up as well.
+    assertEquals(-1, _mPolicy.getRetryDelay(1,
+        HttpEngine.FAILURE_RESPONSE, 503, "60", 0));
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** @return A policy with the default settings, no budget and a seeded
+   * random source. */
+  protected static RetryPolicy _newPolicy() {
+    RetryPolicy mPolicy = new RetryPolicy().setBudget(null);
+    mPolicy._mRandom.setSeed(SEED);
+    return mPolicy;
+  }
+
+  protected long _delay(int iAttempt, long lResult, int iResponseCode) {
+    return _mPolicy.getRetryDelay(iAttempt, lResult, iResponseCode, null, 0);
+  }
+
+  protected static String _httpDate(long lTime) {
+    SimpleDateFormat mFormat =
+        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    mFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return mFormat.format(new Date(lTime));
+  }
+}
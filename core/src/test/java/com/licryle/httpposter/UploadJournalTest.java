@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the framing of {@link UploadJournal}: records survive a reopen, and
+ * replay stops at the first torn or corrupted one, truncating the file there.
+ */
+public class UploadJournalTest {
+  protected File _mFile;
+
+  @Before
+  public void setUp() throws IOException {
+    _mFile = File.createTempFile("journal", ".bin");
+  }
+
+  @After
+  public void tearDown() {
+    _mFile.delete();
+    new File(_mFile.getPath() + ".tmp").delete();
+  }
+
+  @Test
+  public void testReplayAfterReopen() throws IOException {
+    List<byte[]> aRecords = _records(5);
+    _append(aRecords, null);
+
+    UploadJournal mJournal = new UploadJournal(_mFile);
+    try {
+      _assertRecords(aRecords, mJournal.replay());
+    } finally {
+      mJournal.close();
+    }
+    assertEquals(_framedLength(aRecords), _mFile.length());
+  }
+
+  @Test
+  public void testTornRecordIsTruncated() throws IOException {
+    List<byte[]> aRecords = _records(3);
+    _append(aRecords, null);
+    long lValid = _mFile.length();
+
+    // A record of 100 bytes cut short by a crash.
+    RandomAccessFile mFile = new RandomAccessFile(_mFile, "rw");
+    try {
+      mFile.seek(lValid);
+      mFile.writeInt(100);
+      mFile.writeInt(0);
+      mFile.write(new byte[10]);
+    } finally {
+      mFile.close();
+    }
+
+    UploadJournal mJournal = new UploadJournal(_mFile);
+    try {
+      _assertRecords(aRecords, mJournal.replay());
+    } finally {
+      mJournal.close();
+    }
+    assertEquals(lValid, _mFile.length());
+  }
+
+  @Test
+  public void testCorruptedRecordStopsReplay() throws IOException {
+    List<byte[]> aRecords = _records(3);
+    _append(aRecords, null);
+
+    // Flips a byte of the payload of the second record.
+    long lSecond = _framedLength(aRecords.subList(0, 1));
+    RandomAccessFile mFile = new RandomAccessFile(_mFile, "rw");
+    try {
+      mFile.seek(lSecond + 8);
+      int iByte = mFile.read();
+      mFile.seek(lSecond + 8);
+      mFile.write(iByte ^ 0xff);
+    } finally {
+      mFile.close();
+    }
+
+    UploadJournal mJournal = new UploadJournal(_mFile);
+    try {
+      _assertRecords(aRecords.subList(0, 1), mJournal.replay());
+    } finally {
+      mJournal.close();
+    }
+    assertEquals(lSecond, _mFile.length());
+  }
+
+  @Test
+  public void testCompactionKeepsLiveRecords() throws IOException {
+    final List<byte[]> aRecords = _records(6);
+    final AtomicBoolean mCompacted = new AtomicBoolean(false);
+
+    // Once 4 records are written, only the last 2 of them are live.
+    _append(aRecords, new UploadJournal.Compactor() {
+      @Override
+      public boolean shouldCompact(long lRecordCount) {
+        return lRecordCount >= 4 && mCompacted.compareAndSet(false, true);
+      }
+
+      @Override
+      public List<byte[]> getLiveRecords() {
+        return aRecords.subList(2, 4);
+      }
+    });
+
+    UploadJournal mJournal = new UploadJournal(_mFile);
+    try {
+      ArrayList<byte[]> aReplayed = mJournal.replay();
+      assertEquals(aRecords.size() - 2, aReplayed.size());
+      _assertRecords(aRecords.subList(2, aRecords.size()), aReplayed);
+    } finally {
+      mJournal.close();
+    }
+    assertTrue(mCompacted.get());
+    assertFalse(new File(_mFile.getPath() + ".tmp").exists());
+  }
+
+  @Test
+  public void testInterruptedCompactionIsRestored() throws IOException {
+    List<byte[]> aRecords = _records(3);
+    _append(aRecords, null);
+
+    // A crash after the journal was deleted, before the rename.
+    File mTemp = new File(_mFile.getPath() + ".tmp");
+    assertTrue(_mFile.renameTo(mTemp));
+
+    UploadJournal mJournal = new UploadJournal(_mFile);
+    try {
+      _assertRecords(aRecords, mJournal.replay());
+    } finally {
+      mJournal.close();
+    }
+    assertFalse(mTemp.exists());
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /**
+   * Appends aRecords one by one to a new journal on _mFile, each synced
+   * before the next, then closes it.
+   */
+  protected void _append(List<byte[]> aRecords,
+                         UploadJournal.Compactor mCompactor)
+      throws IOException {
+    UploadJournal mJournal = new UploadJournal(_mFile);
+    try {
+      mJournal.replay();
+      mJournal.start(mCompactor);
+      for (byte[] aRecord : aRecords) {
+        mJournal.await(mJournal.append(aRecord));
+      }
+    } finally {
+      mJournal.close();
+    }
+  }
+
+  /** @return iCount records of different lengths, the first one empty. */
+  protected static List<byte[]> _records(int iCount) {
+    ArrayList<byte[]> aRecords = new ArrayList<byte[]>();
+    for (int i = 0; i < iCount; i++) {
+      byte[] aRecord = new byte[i * 37];
+      Arrays.fill(aRecord, (byte) i);
+      aRecords.add(aRecord);
+    }
+
+    return aRecords;
+  }
+
+  /** @return Size of aRecords in the file: 8 bytes of header each. */
+  protected static long _framedLength(List<byte[]> aRecords) {
+    long lLength = 0;
+    for (byte[] aRecord : aRecords) {
+      lLength += 8 + aRecord.length;
+    }
+
+    return lLength;
+  }
+
+  protected static void _assertRecords(List<byte[]> aExpected,
+                                       List<byte[]> aActual) {
+    assertEquals(aExpected.size(), aActual.size());
+    for (int i = 0; i < aExpected.size(); i++) {
+      assertArrayEquals(aExpected.get(i), aActual.get(i));
+    }
+  }
+}
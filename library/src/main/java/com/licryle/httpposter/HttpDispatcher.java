@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 - Cyrille Berliat <cyrille.berliat+github@gmail.com>
+ *
+ * Licensed under the GNU General Public  License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/gpl-2.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licryle.httpposter;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many {@link HttpPoster}s in parallel. By default, AsyncTasks are
+ * executed one after the other on a single serial executor; the dispatcher
+ * instead runs them on its own pool of worker threads, bounded by:
+ * - a global limit of requests running at the same time,
+ * - a limit of requests running at the same time against a given host.
+ *
+ * Requests above those limits are queued and started, in order, as soon as a
+ * slot frees up. Each request is a regular {@link HttpPoster}, so the
+ * {@link HttpListener} callbacks are still delivered on the main thread with
+ * the instance ID of the request.
+ *
+ * ** Usage:
+ * HttpDispatcher mDispatcher = new HttpDispatcher(8, 2);
+ *
+ * for (HttpConfiguration mConf : aConfigurations) {
+ *   int iInstance = mDispatcher.dispatch(mConf).getInstanceId();
+ * }
+ *
+ * As for {@link android.os.AsyncTask#execute}, dispatch() must be called from
+ * the main thread. Requires API 11 (Honeycomb).
+ *
+ * @see HttpPoster
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class HttpDispatcher {
+  /*****************************************************************************
+   ****************************** Public Constants *****************************
+   ****************************************************************************/
+
+  /** Default number of requests running at the same time. */
+  public static final int DEFAULT_MAX_REQUESTS = 16;
+  /** Default number of requests running at the same time against one host. */
+  public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+  /*****************************************************************************
+   **************************** Protected Variables ****************************
+   ****************************************************************************/
+
+  /** Worker threads running the requests, sized to the global limit. */
+  protected final ThreadPoolExecutor _mExecutor;
+  /** Maximum number of requests running at the same time against a host. */
+  protected final int _iMaxRequestsPerHost;
+  /** Per host executors, only present while the host has pending requests.*/
+  protected final HashMap<String, _HostExecutor> _mHosts =
+      new HashMap<String, _HostExecutor>();
+  /** Whether {@link #shutdown()} was called. The worker threads are only
+   * stopped once the queues of all the hosts are empty. */
+  protected boolean _bShutdown = false;
+
+  /*****************************************************************************
+   ************************** Protected Helper Classes *************************
+   ****************************************************************************/
+
+  /** Executor queuing the requests of a single host, and handing at most
+   * #_iMaxRequestsPerHost of them at a time to the worker threads. */
+  protected class _HostExecutor implements Executor {
+    /** Key of the host, as computed by {@link HttpConnection#routeOf}. */
+    protected final String _sRoute;
+    /** Requests waiting for a slot of this host. */
+    protected final ArrayDeque<Runnable> _mPending = new ArrayDeque<Runnable>();
+    /** Number of requests of this host handed to the worker threads. */
+    protected int _iActive = 0;
+
+    public _HostExecutor(String sRoute) {
+      _sRoute = sRoute;
+    }
+
+    @Override
+    public void execute(final Runnable mTask) {
+      synchronized (HttpDispatcher.this) {
+        if (_bShutdown) {
+          throw new RejectedExecutionException("Dispatcher shut down");
+        }
+
+        _mPending.addLast(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              mTask.run();
+            } finally {
+              _onFinished();
+            }
+          }
+        });
+
+        _schedule();
+      }
+    }
+
+    /** Hands pending requests to the worker threads while slots are free.
+     * Must be called with the dispatcher lock held. */
+    protected void _schedule() {
+      while (_iActive < _iMaxRequestsPerHost && !_mPending.isEmpty()) {
+        _iActive++;
+        _mExecutor.execute(_mPending.pollFirst());
+      }
+    }
+
+    protected void _onFinished() {
+      synchronized (HttpDispatcher.this) {
+        _iActive--;
+        _schedule();
+
+        if (_iActive == 0 && _mPending.isEmpty()) {
+          _mHosts.remove(_sRoute);
+          if (_bShutdown && _mHosts.isEmpty()) {
+            _mExecutor.shutdown();
+          }
+        }
+      }
+    }
+  }
+
+  /*****************************************************************************
+   ******************************* Constructors ********************************
+   ****************************************************************************/
+
+  /**
+   * Creates a dispatcher with the default limits.
+   */
+  public HttpDispatcher() {
+    this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+  }
+
+  /**
+   * @param iMaxRequests Maximum number of requests running at the same time.
+   * @param iMaxRequestsPerHost Maximum number of requests running at the same
+   *                            time against the same host.
+   */
+  public HttpDispatcher(int iMaxRequests, int iMaxRequestsPerHost) {
+    if (iMaxRequests <= 0 || iMaxRequestsPerHost <= 0) {
+      throw new IllegalArgumentException("Limits must be strictly positive");
+    }
+
+    _iMaxRequestsPerHost = iMaxRequestsPerHost;
+
+    final AtomicInteger mThreadCount = new AtomicInteger(0);
+    _mExecutor = new ThreadPoolExecutor(iMaxRequests, iMaxRequests,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable mRunnable) {
+            return new Thread(mRunnable,
+                "HttpDispatcher #" + mThreadCount.incrementAndGet());
+          }
+        });
+    _mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /*****************************************************************************
+   ****************************** Public Functions *****************************
+   ****************************************************************************/
+
+  /**
+   * Starts a new {@link HttpPoster} for mConf, or queues it if the limits are
+   * reached. Must be called from the main thread.
+   *
+   * @param mConf Configuration of the POST request to run.
+   * @return The poster running the request. Its instance ID is already set.
+   * @throws RejectedExecutionException If the dispatcher was shut down.
+   */
+  public HttpPoster dispatch(HttpConfiguration mConf) {
+    HttpPoster mPoster = new HttpPoster();
+
+    // Held so the host executor can't be dropped before the task reaches it.
+    synchronized (this) {
+      if (_bShutdown) {
+        throw new RejectedExecutionException("Dispatcher shut down");
+      }
+      mPoster.executeOnExecutor(_getHostExecutor(mConf), mConf);
+    }
+
+    return mPoster;
+  }
+
+  /**
+   * Starts or queues a request for each of the configurations, in order.
+   * Must be called from the main thread.
+   *
+   * @param aConfs Configurations of the POST requests to run.
+   * @return The posters running the requests, in the same order.
+   */
+  public ArrayList<HttpPoster> dispatchAll(
+      Collection<HttpConfiguration> aConfs) {
+    ArrayList<HttpPoster> aPosters = new ArrayList<HttpPoster>(aConfs.size());
+
+    for (HttpConfiguration mConf : aConfs) {
+      aPosters.add(dispatch(mConf));
+    }
+
+    return aPosters;
+  }
+
+  /**
+   * @return Number of requests started or queued and not finished yet.
+   */
+  public synchronized int getPendingCount() {
+    int iCount = 0;
+    for (_HostExecutor mHost : _mHosts.values()) {
+      iCount += mHost._iActive + mHost._mPending.size();
+    }
+
+    return iCount;
+  }
+
+  /**
+   * Stops accepting new requests. Requests already dispatched still run,
+   * including those queued behind the limits, and the worker threads stop
+   * once the last of them is over.
+   */
+  public synchronized void shutdown() {
+    _bShutdown = true;
+    if (_mHosts.isEmpty()) {
+      _mExecutor.shutdown();
+    }
+  }
+
+  /*****************************************************************************
+   ********************************** Helpers **********************************
+   ****************************************************************************/
+
+  /** Must be called with the dispatcher lock held. */
+  protected _HostExecutor _getHostExecutor(
+      HttpConfiguration mConf) {
+    String sRoute = HttpConnection.routeOf(mConf.getEndPoint());
+
+    _HostExecutor mHost = _mHosts.get(sRoute);
+    if (mHost == null) {
+      mHost = new _HostExecutor(sRoute);
+      _mHosts.put(sRoute, mHost);
+    }
+
+    return mHost;
+  }
+}
@@ -16,24 +16,12 @@
 package com.licryle.httpposter;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.mime.HttpMultipartMode;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main class of the library. Orchestrate the Async HTTP Posting. Only the first
@@ -64,6 +52,8 @@ import java.util.Map;
  *
  * new HttpPoster().execute(mConf);
  *
+ * To run several posts in parallel, see {@link HttpDispatcher}.
+ *
  * @see com.licryle.httpposter.HttpConfiguration
  * @see com.licryle.httpposter.HttpListener
  *
@@ -74,6 +64,10 @@ import java.util.Map;
  *
  * It is also updated to the newest Android API, as HttpPost and HttpClient
  * classes are deprecated in favor of HttpURLConnection.
+ *
+ * The posting itself is done by a framework-free {@link HttpEngine}; this
+ * class only runs it in the background and brings its events back on the main
+ * thread.
  */
 public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
     Long> {
@@ -82,16 +76,18 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
    ****************************************************************************/
 
   /** A failure ocurred when trying to open the connection. */
-  public static final long FAILURE_CONNECTION = -1;
+  public static final long FAILURE_CONNECTION = HttpEngine.FAILURE_CONNECTION;
   /** A failure ocurred when trying to post the request. */
-  public static final long FAILURE_TRANSFER = -2;
+  public static final long FAILURE_TRANSFER = HttpEngine.FAILURE_TRANSFER;
   /** A failure ocurred when retrieving the reponse from the post request. */
-  public static final long FAILURE_RESPONSE = -3;
+  public static final long FAILURE_RESPONSE = HttpEngine.FAILURE_RESPONSE;
   /** A file passed in paramater couldn't be accessed. */
-  private static final long FAILURE_FILE_READ = -4;
+  public static final long FAILURE_FILE_READ = HttpEngine.FAILURE_FILE_READ;
+  /** The request was cancelled, or its deadline passed. */
+  public static final long FAILURE_CANCELLED = HttpEngine.FAILURE_CANCELLED;
 
   /** The POST request was successful and we retrieved the answer correctly. */
-  public static final long SUCCESS = 0;
+  public static final long SUCCESS = HttpEngine.SUCCESS;
 
   /*****************************************************************************
    **************************** Protected Variables ****************************
@@ -105,137 +101,65 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
   /** The listener object to which we will dispatch events. */
   protected HttpListener _mListener = null;
 
-  /** Static Unique ID so we can associate each request with a unique id for the
-   * listener's callbacks. */
-  protected static int UNIQUE_ID = 0;
-
   /** Current Unique Id of the POST Request. */
   protected int _iInstanceId = 0;
-
+  /** Progress published but not dispatched yet, -1 if none. */
+  protected final AtomicInteger _iPendingProgress = new AtomicInteger(-1);
+  /** Engine running the request, once doInBackground started. */
+  protected volatile HttpEngine _mEngine = null;
+  /** Brings to the main thread the events AsyncTask doesn't carry. */
+  protected final Executor _mMainThread = mainThreadExecutor();
 
   /*****************************************************************************
    ************************** Protected Helper Classes *************************
    ****************************************************************************/
 
-  /** HttpPost implementation of HttpEntity to allow for a
-   * _ProgressiveOutputStream to be called in place of the generic OutputStream.
-   * This way, we can track the progress of the posting.
-   *
-   * @see com.licryle.httpposter.HttpPoster._ProgressiveOutputStream
-   */
-  protected class _ProgressiveEntity implements HttpEntity {
-    /** Original Entity we want to send in the POST request */
-    protected HttpEntity _mEntity;
-    /** Poster object we want to inform progress of. */
-    protected HttpPoster _mPoster;
-
-    public _ProgressiveEntity(HttpEntity mEntity, HttpPoster mPoster) {
-      _mEntity = mEntity;
-      _mPoster = mPoster;
-    }
-
-    @Override
-    public void consumeContent() throws IOException {
-      _mEntity.consumeContent();
-    }
-
-    @Override
-    public InputStream getContent() throws IOException,
-        IllegalStateException {
-      return _mEntity.getContent();
-    }
-
-    @Override
-    public Header getContentEncoding() {
-      return _mEntity.getContentEncoding();
-    }
-
-    @Override
-    public long getContentLength() {
-      return _mEntity.getContentLength();
-    }
-
+  /** Sends the debug traces of the {@link HttpEngine} to logcat. */
+  protected static class _LogcatLogger implements HttpLogger {
     @Override
-    public Header getContentType() {
-      return _mEntity.getContentType();
+    public void d(String sTag, String sMessage) {
+      Log.d(sTag, sMessage);
     }
+  }
 
+  /** Receives the events of the {@link HttpEngine} on the background thread.
+   * The start of the transfer is posted to the main thread, and progress goes
+   * through publishProgress, which posts to the same queue, so that they keep
+   * their order. The outcome is dispatched from onPostExecute. While the main
+   * thread hasn't dispatched a progress yet, newer ones replace it instead of
+   * being published too. As with progress, the start isn't dispatched once
+   * the task is cancelled.
+   *
+   * As AsyncTask#cancel only flags the task, each event also checks the flag
+   * and cancels the engine, see {@link #onCancelled()}. */
+  protected class _EngineListener implements HttpListener {
     @Override
-    public boolean isChunked() {
-      return _mEntity.isChunked();
+    public void onStartTransfer(int iInstance) {
+      _cancelEngineIfCancelled();
+      _mMainThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!isCancelled()) {
+            _dispatchOnStartTransfer();
+          }
+        }
+      });
     }
 
     @Override
-    public boolean isRepeatable() {
-      return _mEntity.isRepeatable();
+    public void onProgress(int iInstance, int iProgress) {
+      _cancelEngineIfCancelled();
+      if (_iPendingProgress.getAndSet(iProgress) == -1) {
+        publishProgress(iProgress);
+      }
     }
 
     @Override
-    public boolean isStreaming() {
-      return _mEntity.isStreaming();
-    } // CONSIDER put a _real_ delegator into here!
-
-    @Override
-    public void writeTo(OutputStream mOutstream) throws IOException {
-      Log.d("HttpPoster", "_ProgressiveEntity.In");
-      _mEntity.writeTo(new _ProgressiveOutputStream(
-          mOutstream, _mEntity.getContentLength(), _mPoster));
-      Log.d("HttpPoster", "_ProgressiveEntity.Out");
-    }
-
-  }
+    public void onFailure(int iInstance, long lErrorCode) { }
 
-  /** _ProgressiveOutputStream is an implementation of DataOutputStream that
-   * keeps track of the number of bytes written in the stream.
-   *
-   * Only called by _ProgressiveEntity.
-   *
-   * @see com.licryle.httpposter.HttpPoster._ProgressiveEntity
-   */
-  protected class _ProgressiveOutputStream extends DataOutputStream {
-    /** Number of bytes we already sent in the stream. */
-    protected long _lTotalSent;
-    /** Total number of bytes we want to send. */
-    protected long _lTotalSize;
-    /** Poster object we want to inform progress of. */
-    protected HttpPoster _mPoster;
-    /** Progress from 0 to 100 of the transfer. Used to pace progress sending.*/
-    protected int _iProgress;
-
-    public _ProgressiveOutputStream(OutputStream proxy, long total,
-                                    HttpPoster mPoster) {
-      super(proxy);
-      _lTotalSent = 0;
-      _lTotalSize = total;
-      _mPoster = mPoster;
-      _iProgress = 0;
-    }
-
-    /**
-     * Override of the write method from the base class so we can track how many
-     * bytes we sent in the stream. Once written, dispatches progress using
-     * _dispatchOnProgress as an int from 0 to 100 corresponding to the
-     * percentage of data sent, only when the value changes to avoid spamming
-     * progress signals.
-     *
-     * @param aBytes Full array of bytes to be sent in the stream.
-     * @param iStart Starting index in aBytes weere we want to start sending.
-     * @param iCount Number of bytes to write in the stream.
-     * @throws IOException Whenever the write fails, raises an IO Exception.
-     */
     @Override
-    public void write(byte[] aBytes, int iStart, int iCount) throws IOException {
-      _lTotalSent += iCount;
-
-      out.write(aBytes, iStart, iCount);
-
-      int iOldProgress = _iProgress;
-      _iProgress = (int) ((_lTotalSent / (float) _lTotalSize) * 100);
-
-      if (_iProgress != iOldProgress) {
-        _mPoster.publishProgress(_iProgress);
-      }
-    }
+    public void onResponse(int iInstance, int iResponseCode,
+                           String sResponse) { }
   }
 
   /*****************************************************************************
@@ -244,7 +168,7 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
 
   @Override
   protected void onPreExecute() {
-    _iInstanceId = ++UNIQUE_ID;
+    _iInstanceId = HttpEngine.nextInstanceId();
 
     Log.d("HttpPoster",
         String.format("onPreExecute: Now executing instance %d", _iInstanceId));
@@ -252,33 +176,40 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
 
   /**
    * Executes on the background thread to perform the HTTP Post request. This
-   * function initialize the Listener, builds the Entity to send to the server,
-   * then process the request. Warning: only the first {link HttpConfiguration}
-   * is processed.
+   * function initialize the Listener, then runs an {@link HttpEngine} for the
+   * request. Warning: only the first {link HttpConfiguration} is processed.
    *
    * @param mConf {@link HttpConfiguration} of the post request to be processed.
    *                                       Only the first element is acted upon.
    * @return The result of the HTTP Post request. Either #SUCCESS,
    * #FAILURE_CONNECTION, #FAILURE_TRANSFER, #FAILURE_RESPONSE,
-   * #FAILURE_MALFORMEDURL or #FAILURE_FILE_READ.
+   * #FAILURE_MALFORMEDURL, #FAILURE_FILE_READ or
+   * #FAILURE_CANCELLED.
    */
   @Override
   protected Long doInBackground(HttpConfiguration... mConf) {
     _mListener = mConf[0].getListener();
 
-    try {
-      _ProgressiveEntity mEntity = _buildEntity(mConf[0]);
+    HttpEngine mEngine = new HttpEngine(mConf[0], _iInstanceId,
+        new _EngineListener());
+    mEngine.setLogger(new _LogcatLogger());
+    _mEngine = mEngine;
+    _cancelEngineIfCancelled();
 
-      return _httpPost(mConf[0], mEntity);
-    } catch (IOException e) {
-      e.printStackTrace();
-      return FAILURE_FILE_READ;
-    }
+    long lResult = mEngine.run();
+
+    _sResponse = mEngine.getResponse();
+    _iResponseCode = mEngine.getResponseCode();
+
+    return lResult;
   }
 
   @Override
   protected void onProgressUpdate(Integer... iProgress) {
-    _dispatchOnProgress(iProgress[0]);
+    int iLatest = _iPendingProgress.getAndSet(-1);
+    if (iLatest != -1) {
+      _dispatchOnProgress(iLatest);
+    }
   }
 
   @Override
@@ -294,6 +225,50 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
     }
   }
 
+  /**
+   * Forwards AsyncTask#cancel to the {@link HttpEngine}, which closes the
+   * connection in flight. onCancelled only runs once doInBackground returned,
+   * so the flag of the task is also checked when the engine starts, and on
+   * each of its events. The listener then gets neither onResponse nor
+   * onFailure, as AsyncTask skips onPostExecute.
+   */
+  @Override
+  protected void onCancelled() {
+    HttpEngine mEngine = _mEngine;
+    if (mEngine != null) {
+      mEngine.cancel();
+    }
+  }
+
+  /**
+   * @return The Unique Id of this POST Request, as passed to the
+   * {@link HttpListener} callbacks. Only set once the task was executed.
+   */
+  public int getInstanceId() { return _iInstanceId; }
+
+  /**
+   * @return An executor running its tasks on the main thread, to deliver the
+   * reports of a {@link ProgressReporter} to the UI without going through
+   * the task.
+   */
+  public static Executor mainThreadExecutor() {
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+    return new Executor() {
+      @Override
+      public void execute(Runnable mTask) {
+        mHandler.post(mTask);
+      }
+    };
+  }
+
+  /** Cancels the engine if the task was cancelled. */
+  protected void _cancelEngineIfCancelled() {
+    HttpEngine mEngine = _mEngine;
+    if (mEngine != null && isCancelled()) {
+      mEngine.cancel();
+    }
+  }
+
   /*****************************************************************************
    ************************** HttpListener Dispatchers *************************
    ****************************************************************************/
@@ -336,8 +311,6 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
     if (_mListener != null) {
       _mListener.onResponse(_iInstanceId, _iResponseCode, sResponse);
     }
-
-    _iResponseCode = 0;
   }
 
   /**
@@ -346,7 +319,8 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
    *
    * @param lError The error code related to the POST failure. Either
    *               #FAILURE_CONNECTION, #FAILURE_TRANSFER, #FAILURE_RESPONSE,
-   *               #FAILURE_MALFORMEDURL or #FAILURE_FILE_READ.
+   *               #FAILURE_MALFORMEDURL, #FAILURE_FILE_READ or
+   *               #FAILURE_CANCELLED.
    *
    * @see HttpListener#onFailure
    */
@@ -355,168 +329,4 @@ public class HttpPoster extends AsyncTask<HttpConfiguration, Integer,
       _mListener.onFailure(_iInstanceId, lError);
     }
   }
-
-  /*****************************************************************************
-   **************************** Core Poster Functions **************************
-   ****************************************************************************/
-
-  /**
-   * Builds the {@link _ProgressiveEntity} that we will send to the server.
-   * Takes for input an {@link HttpConfiguration} that contains the Post
-   * variables and File Names to send.
-   *
-   * @param mConf Configuration of the POST request to be processed.
-   * @return A ProgressiveEntity which progress can be tracked as we send it to
-   * the server.
-   *
-   * @throws IOException When a file in the list of files from
-   * {@link HttpConfiguration#getFiles()} cannot be read.
-   *
-   * @see {@link com.licryle.httpposter.HttpPoster._ProgressiveEntity}
-   * @see {@link com.licryle.httpposter.HttpConfiguration}
-   */
-  protected _ProgressiveEntity _buildEntity(HttpConfiguration mConf)
-      throws IOException{
-    Log.d("HttpPoster",
-        String.format("_buildEntity: Entering for Instance %d", _iInstanceId));
-
-    /********* Build request content *********/
-    MultipartEntityBuilder mBuilder = MultipartEntityBuilder.create();
-    mBuilder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
-    mBuilder.setBoundary(mConf.getHTTPBoundary());
-
-    int iFileNb = 0;
-    Iterator mFiles = mConf.getFiles().iterator();
-    while (mFiles.hasNext()) {
-      final File mFile = (File) mFiles.next();
-
-      try {
-        mBuilder.addBinaryBody("file_" + iFileNb, mFile,
-            ContentType.DEFAULT_BINARY, mFile.getName());
-      } catch(Exception e) {
-        throw new IOException();
-      }
-
-      iFileNb++;
-    }
-
-    Iterator mArgs = mConf.getArgs().entrySet().iterator();
-    while (mArgs.hasNext()) {
-      Map.Entry mPair = (Map.Entry) mArgs.next();
-
-      mBuilder.addTextBody((String) mPair.getKey(), (String) mPair.getValue(),
-          ContentType.MULTIPART_FORM_DATA);
-    }
-
-    Log.d("HttpPoster",
-        String.format("_buildEntity: Leaving for Instance %d", _iInstanceId));
-
-    return new _ProgressiveEntity(mBuilder.build(), this);
-  }
-
-  /**
-   * Opens a connection to the POST end point specified in the mConf
-   * {@link HttpConfiguration} and sends the content of mEntity. Attempts to
-   * read the answer from the server after the POST Request.
-   * 
-   * @param mConf The {@link HttpConfiguration} of the request.
-   * @param mEntity The Entity to send in the HTTP Post. Should be built using
-   *                {@link #_buildEntity}.
-   *
-   * @return The result of the HTTP Post request. Either #SUCCESS,
-   * #FAILURE_CONNECTION, #FAILURE_TRANSFER, #FAILURE_RESPONSE,
-   * #FAILURE_MALFORMEDURL.
-   *
-   * @see HttpConfiguration
-   * @see _ProgressiveEntity
-   */
-  protected Long _httpPost(HttpConfiguration mConf,
-                           _ProgressiveEntity mEntity) {
-    Log.d("HttpPoster",
-        String.format("_httpPost: Entering Instance %d", _iInstanceId));
-
-    /******** Open request ********/
-    try {
-      HttpURLConnection mConn =
-          (HttpURLConnection) mConf.getEndPoint().openConnection();
-
-      mConn.setRequestMethod("POST");
-      mConn.setRequestProperty("Content-Type",
-          "multipart/form-data; boundary=" + mConf.getHTTPBoundary());
-
-      mConn.setDoInput(true);
-      mConn.setDoOutput(true);
-      mConn.setUseCaches(false);
-      mConn.setReadTimeout(mConf.getReadTimeout());
-      mConn.setConnectTimeout(mConf.getConnectTimeout());
-      mConn.setInstanceFollowRedirects(false);
-
-      mConn.connect();
-
-      Log.d("HttpPoster",
-          String.format("_httpPost: Connected for Instance %d", _iInstanceId));
-
-      try {
-        /********** Write request ********/
-        _dispatchOnStartTransfer();
-
-        Log.d("HttpPoster",
-            String.format("_httpPost: Sending for Instance %d", _iInstanceId));
-
-        mEntity.writeTo(mConn.getOutputStream());
-        mConn.getOutputStream().flush();
-        mConn.getOutputStream().close();
-
-        _iResponseCode = mConn.getResponseCode();
-        try {
-          Log.d("HttpPoster",
-              String.format("_httpPost: Reading for Instance %d",
-                  _iInstanceId));
-
-          _readServerAnswer(mConn.getInputStream());
-          return SUCCESS;
-        } catch (IOException e) {
-          return FAILURE_RESPONSE;
-        }
-      } catch (Exception e) {
-        Log.d("HTTPParser", e.getMessage());
-        e.printStackTrace();
-
-        return FAILURE_TRANSFER;
-      } finally {
-        if (mConn != null) {
-          Log.d("HttpPoster",
-              String.format("_httpPost: Disconnecting Instance %d",
-                  _iInstanceId));
-
-          mConn.disconnect();
-        }
-      }
-    } catch (Exception e) {
-      return FAILURE_CONNECTION;
-    }
-  }
-
-  /**
-   * Reads the content of the InputStream, typically the answer from the server
-   * in this context, and stores it in {@link #_sResponse}.
-   *
-   * @param mInputStream Any valid InputStream.
-   * @throws IOException When the InputStream can't be read.
-   */
-  protected void _readServerAnswer(InputStream mInputStream)
-      throws IOException {
-    BufferedReader mRd =
-        new BufferedReader(new InputStreamReader(mInputStream));
-
-    String sLine = "";
-    String sContent = "";
-
-    while ((sLine = mRd.readLine()) != null)
-    {
-      sContent += sLine + "\n";
-    }
-
-    _sResponse = sContent;
-  }
-}
\ No newline at end of file
+}